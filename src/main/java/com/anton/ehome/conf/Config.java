@@ -31,9 +31,11 @@ public class Config
     private static final int DEFAULT_HTTP_PORT = 8080;
 
     private int httpPort = DEFAULT_HTTP_PORT;
+    private HttpConfig httpConfig = new HttpConfig();
     private List<ZWaveConfig> zwaveConfigs = emptyList();
     private List<Chart> charts = emptyList();
     private NotificationConfig notificationConfig = new NotificationConfig();
+    private MetricsConfig metricsConfig = new MetricsConfig();
 
     public int getHttpPort()
     {
@@ -45,6 +47,16 @@ public class Config
         this.httpPort = httpPort;
     }
 
+    public HttpConfig getHttpConfig()
+    {
+        return httpConfig;
+    }
+
+    public void setHttpConfig(HttpConfig httpConfig)
+    {
+        this.httpConfig = httpConfig;
+    }
+
     public List<ZWaveConfig> getZwaveConfigs()
     {
         return zwaveConfigs;
@@ -75,6 +87,16 @@ public class Config
         this.notificationConfig = notificationConfig;
     }
 
+    public MetricsConfig getMetricsConfig()
+    {
+        return metricsConfig;
+    }
+
+    public void setMetricsConfig(MetricsConfig metricsConfig)
+    {
+        this.metricsConfig = metricsConfig;
+    }
+
     @Override
     public int hashCode()
     {
@@ -20,6 +20,7 @@ import static java.util.Objects.requireNonNull;
 
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.function.Consumer;
 
 import com.anton.ehome.dao.IConfigDao;
@@ -32,6 +33,7 @@ import com.google.inject.Provider;
  */
 class ConfigService implements IConfigService, Provider<Config>
 {
+    private final List<Consumer<Config>> modifiedListeners = new CopyOnWriteArrayList<>();
     private final IConfigDao dao;
     private final Config config;
 
@@ -51,6 +53,13 @@ class ConfigService implements IConfigService, Provider<Config>
 
         consumer.accept(config);
         dao.persist(reason, user, config);
+        modifiedListeners.forEach(listener -> listener.accept(config));
+    }
+
+    @Override
+    public void onModified(Consumer<Config> listener)
+    {
+        modifiedListeners.add(listener);
     }
 
     @Override
@@ -0,0 +1,196 @@
+/**
+ * Copyright 2017 Anton Johansson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anton.ehome.conf;
+
+import static org.apache.commons.lang3.builder.EqualsBuilder.reflectionEquals;
+import static org.apache.commons.lang3.builder.HashCodeBuilder.reflectionHashCode;
+import static org.apache.commons.lang3.builder.ToStringBuilder.reflectionToString;
+import static org.apache.commons.lang3.builder.ToStringStyle.SHORT_PREFIX_STYLE;
+
+/**
+ * Contains configuration for the HTTP server. Changes are applied when the HTTP server is started.
+ */
+public class HttpConfig
+{
+    private static final int DEFAULT_MIN_THREADS = 4;
+    private static final int DEFAULT_MAX_THREADS = 32;
+    private static final int DEFAULT_MAX_QUEUED_REQUESTS = 256;
+    private static final int DEFAULT_THREAD_IDLE_TIMEOUT = 60_000;
+    private static final int DEFAULT_ACCEPTORS = -1;
+    private static final int DEFAULT_SELECTORS = -1;
+    private static final int DEFAULT_IDLE_TIMEOUT = 30_000;
+    private static final int DEFAULT_GZIP_MIN_SIZE = 1024;
+
+    private int minThreads = DEFAULT_MIN_THREADS;
+    private int maxThreads = DEFAULT_MAX_THREADS;
+    private int maxQueuedRequests = DEFAULT_MAX_QUEUED_REQUESTS;
+    private int threadIdleTimeout = DEFAULT_THREAD_IDLE_TIMEOUT;
+    private int acceptors = DEFAULT_ACCEPTORS;
+    private int selectors = DEFAULT_SELECTORS;
+    private int idleTimeout = DEFAULT_IDLE_TIMEOUT;
+    private boolean http2Enabled;
+    private boolean gzipEnabled = true;
+    private int gzipMinSize = DEFAULT_GZIP_MIN_SIZE;
+
+    /**
+     * Gets the number of threads that the server keeps, even when they are idle.
+     */
+    public int getMinThreads()
+    {
+        return minThreads;
+    }
+
+    public void setMinThreads(int minThreads)
+    {
+        this.minThreads = minThreads;
+    }
+
+    /**
+     * Gets the maximum number of threads of the server, including acceptor and selector threads.
+     */
+    public int getMaxThreads()
+    {
+        return maxThreads;
+    }
+
+    public void setMaxThreads(int maxThreads)
+    {
+        this.maxThreads = maxThreads;
+    }
+
+    /**
+     * Gets the maximum number of requests that wait for a thread when all threads are busy. Connections are closed when the queue is full.
+     */
+    public int getMaxQueuedRequests()
+    {
+        return maxQueuedRequests;
+    }
+
+    public void setMaxQueuedRequests(int maxQueuedRequests)
+    {
+        this.maxQueuedRequests = maxQueuedRequests;
+    }
+
+    /**
+     * Gets the time, in milliseconds, that a thread above the minimum number of threads is kept while idle.
+     */
+    public int getThreadIdleTimeout()
+    {
+        return threadIdleTimeout;
+    }
+
+    public void setThreadIdleTimeout(int threadIdleTimeout)
+    {
+        this.threadIdleTimeout = threadIdleTimeout;
+    }
+
+    /**
+     * Gets the number of threads that accept new connections, or -1 to let the server choose from the number of processors.
+     */
+    public int getAcceptors()
+    {
+        return acceptors;
+    }
+
+    public void setAcceptors(int acceptors)
+    {
+        this.acceptors = acceptors;
+    }
+
+    /**
+     * Gets the number of threads that select connections that are ready for reads and writes, or -1 to let the server choose from the number
+     * of processors.
+     */
+    public int getSelectors()
+    {
+        return selectors;
+    }
+
+    public void setSelectors(int selectors)
+    {
+        this.selectors = selectors;
+    }
+
+    /**
+     * Gets the time, in milliseconds, that an idle connection is kept alive between requests.
+     */
+    public int getIdleTimeout()
+    {
+        return idleTimeout;
+    }
+
+    public void setIdleTimeout(int idleTimeout)
+    {
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * Gets whether clients may upgrade to, or start with, HTTP/2 over plain text connections (h2c).
+     */
+    public boolean isHttp2Enabled()
+    {
+        return http2Enabled;
+    }
+
+    public void setHttp2Enabled(boolean http2Enabled)
+    {
+        this.http2Enabled = http2Enabled;
+    }
+
+    /**
+     * Gets whether JSON responses are compressed for clients that accept it.
+     */
+    public boolean isGzipEnabled()
+    {
+        return gzipEnabled;
+    }
+
+    public void setGzipEnabled(boolean gzipEnabled)
+    {
+        this.gzipEnabled = gzipEnabled;
+    }
+
+    /**
+     * Gets the size, in bytes, below which responses are not compressed.
+     */
+    public int getGzipMinSize()
+    {
+        return gzipMinSize;
+    }
+
+    public void setGzipMinSize(int gzipMinSize)
+    {
+        this.gzipMinSize = gzipMinSize;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return reflectionHashCode(this);
+    }
+
+    @Override
+    public boolean equals(Object that)
+    {
+        return reflectionEquals(this, that);
+    }
+
+    @Override
+    public String toString()
+    {
+        return reflectionToString(this, SHORT_PREFIX_STYLE);
+    }
+}
@@ -35,6 +35,13 @@ public interface IConfigService
      */
     void modify(String reason, String user, Consumer<Config> consumer);
 
+    /**
+     * Adds a listener for when the configuration has been modified.
+     *
+     * @param listener The listener to add.
+     */
+    void onModified(Consumer<Config> listener);
+
     /**
      * Gets the current configuration.
      *
@@ -0,0 +1,246 @@
+/**
+ * Copyright 2017 Anton Johansson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anton.ehome.conf;
+
+import static org.apache.commons.lang3.builder.EqualsBuilder.reflectionEquals;
+import static org.apache.commons.lang3.builder.HashCodeBuilder.reflectionHashCode;
+import static org.apache.commons.lang3.builder.ToStringBuilder.reflectionToString;
+import static org.apache.commons.lang3.builder.ToStringStyle.SHORT_PREFIX_STYLE;
+
+/**
+ * Contains configuration for how metrics are stored.
+ */
+public class MetricsConfig
+{
+    private static final int DEFAULT_QUEUE_CAPACITY = 10_000;
+    private static final int DEFAULT_BATCH_SIZE = 500;
+    private static final int DEFAULT_FLUSH_INTERVAL = 1000;
+    private static final int DEFAULT_HOT_WINDOW_HOURS = 12;
+    private static final int DEFAULT_HOT_WINDOW_CAPACITY = DEFAULT_HOT_WINDOW_HOURS * 3600;
+    private static final long DEFAULT_HOT_WINDOW_HISTORY_SIZE = 16L * 1024 * 1024;
+    private static final int DEFAULT_ENERGY_SAVE_INTERVAL = 60;
+    private static final int DEFAULT_ENERGY_MAX_GAP = 3600;
+    private static final int DEFAULT_CACHE_BUCKET_SIZE = 3600;
+    private static final int DEFAULT_CACHE_CAPACITY = 1_000_000;
+
+    private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private int flushInterval = DEFAULT_FLUSH_INTERVAL;
+    private OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+    private boolean pushEnabled = true;
+    private int hotWindowHours = DEFAULT_HOT_WINDOW_HOURS;
+    private int hotWindowCapacity = DEFAULT_HOT_WINDOW_CAPACITY;
+    private long hotWindowHistorySize = DEFAULT_HOT_WINDOW_HISTORY_SIZE;
+    private int energySaveInterval = DEFAULT_ENERGY_SAVE_INTERVAL;
+    private int energyMaxGap = DEFAULT_ENERGY_MAX_GAP;
+    private int cacheBucketSize = DEFAULT_CACHE_BUCKET_SIZE;
+    private int cacheCapacity = DEFAULT_CACHE_CAPACITY;
+    private SpoolConfig spoolConfig = new SpoolConfig();
+    private RetentionConfig retentionConfig = new RetentionConfig();
+
+    /**
+     * Gets the maximum number of metrics that can wait in the write queue.
+     */
+    public int getQueueCapacity()
+    {
+        return queueCapacity;
+    }
+
+    public void setQueueCapacity(int queueCapacity)
+    {
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * Gets the number of metrics that triggers a flush of the write queue.
+     */
+    public int getBatchSize()
+    {
+        return batchSize;
+    }
+
+    public void setBatchSize(int batchSize)
+    {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Gets the maximum age, in milliseconds, of a queued metric before the write queue is flushed.
+     */
+    public int getFlushInterval()
+    {
+        return flushInterval;
+    }
+
+    public void setFlushInterval(int flushInterval)
+    {
+        this.flushInterval = flushInterval;
+    }
+
+    public OverflowPolicy getOverflowPolicy()
+    {
+        return overflowPolicy;
+    }
+
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy)
+    {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * Gets whether or not metrics are stored as soon as devices report new values, instead of only when they are polled.
+     */
+    public boolean isPushEnabled()
+    {
+        return pushEnabled;
+    }
+
+    public void setPushEnabled(boolean pushEnabled)
+    {
+        this.pushEnabled = pushEnabled;
+    }
+
+    /**
+     * Gets the number of hours of recent metrics that are loaded into memory at startup.
+     */
+    public int getHotWindowHours()
+    {
+        return hotWindowHours;
+    }
+
+    public void setHotWindowHours(int hotWindowHours)
+    {
+        this.hotWindowHours = hotWindowHours;
+    }
+
+    /**
+     * Gets the maximum number of recent metrics that are kept in memory for each device, or zero to not keep any. The default covers the hot
+     * window at one metric per second.
+     */
+    public int getHotWindowCapacity()
+    {
+        return hotWindowCapacity;
+    }
+
+    public void setHotWindowCapacity(int hotWindowCapacity)
+    {
+        this.hotWindowCapacity = hotWindowCapacity;
+    }
+
+    /**
+     * Gets the number of bytes of off-heap memory that older metrics, evicted from the hot window, can use in compressed form.
+     */
+    public long getHotWindowHistorySize()
+    {
+        return hotWindowHistorySize;
+    }
+
+    public void setHotWindowHistorySize(long hotWindowHistorySize)
+    {
+        this.hotWindowHistorySize = hotWindowHistorySize;
+    }
+
+    /**
+     * Gets the number of seconds between saves of the energy that devices used today and this month.
+     */
+    public int getEnergySaveInterval()
+    {
+        return energySaveInterval;
+    }
+
+    public void setEnergySaveInterval(int energySaveInterval)
+    {
+        this.energySaveInterval = energySaveInterval;
+    }
+
+    /**
+     * Gets the maximum number of seconds between two readings of power that the energy in between is counted for. Nothing is known about the
+     * power during a longer gap, such as when a device is unreachable, so no energy is counted for it.
+     */
+    public int getEnergyMaxGap()
+    {
+        return energyMaxGap;
+    }
+
+    public void setEnergyMaxGap(int energyMaxGap)
+    {
+        this.energyMaxGap = energyMaxGap;
+    }
+
+    /**
+     * Gets the number of seconds of metrics that are read and cached together, when metrics are read from the database.
+     */
+    public int getCacheBucketSize()
+    {
+        return cacheBucketSize;
+    }
+
+    public void setCacheBucketSize(int cacheBucketSize)
+    {
+        this.cacheBucketSize = cacheBucketSize;
+    }
+
+    /**
+     * Gets the maximum number of metrics that are cached, or zero to not cache any.
+     */
+    public int getCacheCapacity()
+    {
+        return cacheCapacity;
+    }
+
+    public void setCacheCapacity(int cacheCapacity)
+    {
+        this.cacheCapacity = cacheCapacity;
+    }
+
+    public SpoolConfig getSpoolConfig()
+    {
+        return spoolConfig;
+    }
+
+    public void setSpoolConfig(SpoolConfig spoolConfig)
+    {
+        this.spoolConfig = spoolConfig;
+    }
+
+    public RetentionConfig getRetentionConfig()
+    {
+        return retentionConfig;
+    }
+
+    public void setRetentionConfig(RetentionConfig retentionConfig)
+    {
+        this.retentionConfig = retentionConfig;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return reflectionHashCode(this);
+    }
+
+    @Override
+    public boolean equals(Object that)
+    {
+        return reflectionEquals(this, that);
+    }
+
+    @Override
+    public String toString()
+    {
+        return reflectionToString(this, SHORT_PREFIX_STYLE);
+    }
+}
@@ -0,0 +1,31 @@
+/**
+ * Copyright 2017 Anton Johansson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anton.ehome.conf;
+
+/**
+ * Defines what to do with new metrics when the write queue is full.
+ */
+public enum OverflowPolicy
+{
+    /** The caller waits until there is room in the queue. */
+    BLOCK,
+
+    /** The oldest metric in the queue is discarded to make room for the new one. */
+    DROP_OLDEST,
+
+    /** The new metric bypasses the queue and is written to the local spool, to be replayed later. */
+    SPILL;
+}
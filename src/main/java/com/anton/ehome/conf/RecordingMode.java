@@ -0,0 +1,35 @@
+/**
+ * Copyright 2017 Anton Johansson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anton.ehome.conf;
+
+/**
+ * Defines which readings of a monitored value are stored.
+ */
+public enum RecordingMode
+{
+    /** Every reading is stored. */
+    ALL,
+
+    /** Readings are only stored when they differ from the last stored reading by more than the deadband, or when the heartbeat is due. */
+    DEADBAND,
+
+    /**
+     * Readings are compressed with the swinging door algorithm, using the deadband as the width of the door. A reading is only stored when a
+     * straight line from the last stored reading can no longer describe the readings in between, within the deadband. This means that the latest
+     * reading is held back until the next reading shows whether it is needed.
+     */
+    SWINGING_DOOR;
+}
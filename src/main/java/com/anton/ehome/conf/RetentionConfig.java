@@ -0,0 +1,95 @@
+/**
+ * Copyright 2017 Anton Johansson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anton.ehome.conf;
+
+import static org.apache.commons.lang3.builder.EqualsBuilder.reflectionEquals;
+import static org.apache.commons.lang3.builder.HashCodeBuilder.reflectionHashCode;
+import static org.apache.commons.lang3.builder.ToStringBuilder.reflectionToString;
+import static org.apache.commons.lang3.builder.ToStringStyle.SHORT_PREFIX_STYLE;
+
+/**
+ * Contains configuration for how long metrics are kept, at each resolution.
+ * <p>
+ * Durations are written as InfluxDB duration literals, such as {@code 7d}, {@code 12h} or {@code INF} for metrics that never expire.
+ * </p>
+ */
+public class RetentionConfig
+{
+    private static final String DEFAULT_RAW_RETENTION = "7d";
+    private static final String DEFAULT_MINUTE_ROLLUP_RETENTION = "30d";
+    private static final String DEFAULT_HOUR_ROLLUP_RETENTION = "INF";
+
+    private String rawRetention = DEFAULT_RAW_RETENTION;
+    private String minuteRollupRetention = DEFAULT_MINUTE_ROLLUP_RETENTION;
+    private String hourRollupRetention = DEFAULT_HOUR_ROLLUP_RETENTION;
+
+    /**
+     * Gets how long metrics are kept exactly as they were read.
+     */
+    public String getRawRetention()
+    {
+        return rawRetention;
+    }
+
+    public void setRawRetention(String rawRetention)
+    {
+        this.rawRetention = rawRetention;
+    }
+
+    /**
+     * Gets how long the one minute minimum, maximum, sum, mean and count of metrics are kept.
+     */
+    public String getMinuteRollupRetention()
+    {
+        return minuteRollupRetention;
+    }
+
+    public void setMinuteRollupRetention(String minuteRollupRetention)
+    {
+        this.minuteRollupRetention = minuteRollupRetention;
+    }
+
+    /**
+     * Gets how long the one hour minimum, maximum, sum, mean and count of metrics are kept.
+     */
+    public String getHourRollupRetention()
+    {
+        return hourRollupRetention;
+    }
+
+    public void setHourRollupRetention(String hourRollupRetention)
+    {
+        this.hourRollupRetention = hourRollupRetention;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return reflectionHashCode(this);
+    }
+
+    @Override
+    public boolean equals(Object that)
+    {
+        return reflectionEquals(this, that);
+    }
+
+    @Override
+    public String toString()
+    {
+        return reflectionToString(this, SHORT_PREFIX_STYLE);
+    }
+}
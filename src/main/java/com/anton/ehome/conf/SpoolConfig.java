@@ -0,0 +1,162 @@
+/**
+ * Copyright 2017 Anton Johansson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anton.ehome.conf;
+
+import static org.apache.commons.lang3.builder.EqualsBuilder.reflectionEquals;
+import static org.apache.commons.lang3.builder.HashCodeBuilder.reflectionHashCode;
+import static org.apache.commons.lang3.builder.ToStringBuilder.reflectionToString;
+import static org.apache.commons.lang3.builder.ToStringStyle.SHORT_PREFIX_STYLE;
+
+/**
+ * Contains configuration for the local spool, that keeps metrics that could not be written to the database until they can be replayed.
+ */
+public class SpoolConfig
+{
+    private static final String DEFAULT_DIRECTORY = "spool";
+    private static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+    private static final long DEFAULT_MAX_DISK_USAGE = 256L * 1024 * 1024;
+    private static final int DEFAULT_SYNC_INTERVAL = 1000;
+    private static final int DEFAULT_REPLAY_INTERVAL = 10_000;
+    private static final int DEFAULT_REPLAY_BATCH_SIZE = 5000;
+
+    private boolean enabled = true;
+    private String directory = DEFAULT_DIRECTORY;
+    private int segmentSize = DEFAULT_SEGMENT_SIZE;
+    private long maxDiskUsage = DEFAULT_MAX_DISK_USAGE;
+    private SyncPolicy syncPolicy = SyncPolicy.PERIODIC;
+    private int syncInterval = DEFAULT_SYNC_INTERVAL;
+    private int replayInterval = DEFAULT_REPLAY_INTERVAL;
+    private int replayBatchSize = DEFAULT_REPLAY_BATCH_SIZE;
+
+    public boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled)
+    {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Gets the directory that spool segments are stored in.
+     */
+    public String getDirectory()
+    {
+        return directory;
+    }
+
+    public void setDirectory(String directory)
+    {
+        this.directory = directory;
+    }
+
+    /**
+     * Gets the size, in bytes, of each spool segment.
+     * <p>
+     * Points are spooled in line protocol, which takes around 100 bytes per metric, so the default segment holds about 160 000 metrics.
+     * </p>
+     */
+    public int getSegmentSize()
+    {
+        return segmentSize;
+    }
+
+    public void setSegmentSize(int segmentSize)
+    {
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Gets the maximum number of bytes that the spool segments can use. The oldest segments are discarded when the spool grows beyond this.
+     */
+    public long getMaxDiskUsage()
+    {
+        return maxDiskUsage;
+    }
+
+    public void setMaxDiskUsage(long maxDiskUsage)
+    {
+        this.maxDiskUsage = maxDiskUsage;
+    }
+
+    public SyncPolicy getSyncPolicy()
+    {
+        return syncPolicy;
+    }
+
+    public void setSyncPolicy(SyncPolicy syncPolicy)
+    {
+        this.syncPolicy = syncPolicy;
+    }
+
+    /**
+     * Gets the interval, in milliseconds, that spooled metrics are forced to disk with, when using {@link SyncPolicy#PERIODIC}.
+     */
+    public int getSyncInterval()
+    {
+        return syncInterval;
+    }
+
+    public void setSyncInterval(int syncInterval)
+    {
+        this.syncInterval = syncInterval;
+    }
+
+    /**
+     * Gets the interval, in milliseconds, that the database is checked with, to see if spooled metrics can be replayed.
+     */
+    public int getReplayInterval()
+    {
+        return replayInterval;
+    }
+
+    public void setReplayInterval(int replayInterval)
+    {
+        this.replayInterval = replayInterval;
+    }
+
+    /**
+     * Gets the maximum number of spooled metrics that are replayed in each write.
+     */
+    public int getReplayBatchSize()
+    {
+        return replayBatchSize;
+    }
+
+    public void setReplayBatchSize(int replayBatchSize)
+    {
+        this.replayBatchSize = replayBatchSize;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return reflectionHashCode(this);
+    }
+
+    @Override
+    public boolean equals(Object that)
+    {
+        return reflectionEquals(this, that);
+    }
+
+    @Override
+    public String toString()
+    {
+        return reflectionToString(this, SHORT_PREFIX_STYLE);
+    }
+}
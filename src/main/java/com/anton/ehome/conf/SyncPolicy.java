@@ -0,0 +1,31 @@
+/**
+ * Copyright 2017 Anton Johansson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anton.ehome.conf;
+
+/**
+ * Defines when spooled metrics are forced to disk.
+ */
+public enum SyncPolicy
+{
+    /** Metrics are forced to disk every time they are spooled. */
+    ALWAYS,
+
+    /** Metrics are forced to disk periodically, at the configured sync interval. */
+    PERIODIC,
+
+    /** Metrics are only forced to disk when a segment is full, leaving the rest to the operating system. */
+    NEVER;
+}
@@ -15,6 +15,7 @@
  */
 package com.anton.ehome.conf;
 
+import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.apache.commons.lang3.builder.EqualsBuilder.reflectionEquals;
 import static org.apache.commons.lang3.builder.HashCodeBuilder.reflectionHashCode;
 import static org.apache.commons.lang3.builder.ToStringBuilder.reflectionToString;
@@ -26,10 +27,16 @@ import static org.apache.commons.lang3.builder.ToStringStyle.SHORT_PREFIX_STYLE;
 public class ZWaveMonitoringConfig
 {
     private static final int DEFAULT_INTERVAL = 10;
+    private static final int DEFAULT_HEARTBEAT = 3600;
 
     private byte nodeId;
     private Scale scale;
     private int interval = DEFAULT_INTERVAL;
+    private long intervalMillis;
+    private RecordingMode recordingMode = RecordingMode.ALL;
+    private double deadband;
+    private DeadbandType deadbandType = DeadbandType.ABSOLUTE;
+    private int heartbeat = DEFAULT_HEARTBEAT;
 
     public byte getNodeId()
     {
@@ -61,6 +68,75 @@ public class ZWaveMonitoringConfig
         this.interval = interval;
     }
 
+    /**
+     * Gets the number of milliseconds between polls, which overrides the {@link #getInterval() interval in seconds} if positive. This allows
+     * for polling more often than once a second.
+     */
+    public long getIntervalMillis()
+    {
+        return intervalMillis;
+    }
+
+    public void setIntervalMillis(long intervalMillis)
+    {
+        this.intervalMillis = intervalMillis;
+    }
+
+    /**
+     * Gets the number of milliseconds between polls, from the {@link #getIntervalMillis() millisecond interval} if it's set, or otherwise from
+     * the {@link #getInterval() interval in seconds}.
+     */
+    public long getPollInterval()
+    {
+        return intervalMillis > 0 ? intervalMillis : SECONDS.toMillis(interval);
+    }
+
+    public RecordingMode getRecordingMode()
+    {
+        return recordingMode;
+    }
+
+    public void setRecordingMode(RecordingMode recordingMode)
+    {
+        this.recordingMode = recordingMode;
+    }
+
+    /**
+     * Gets how much a reading must change to be stored, as defined by the {@link #getDeadbandType() deadband type}.
+     */
+    public double getDeadband()
+    {
+        return deadband;
+    }
+
+    public void setDeadband(double deadband)
+    {
+        this.deadband = deadband;
+    }
+
+    public DeadbandType getDeadbandType()
+    {
+        return deadbandType;
+    }
+
+    public void setDeadbandType(DeadbandType deadbandType)
+    {
+        this.deadbandType = deadbandType;
+    }
+
+    /**
+     * Gets the maximum number of seconds between stored readings, regardless of the recording mode. Zero means that there is no maximum.
+     */
+    public int getHeartbeat()
+    {
+        return heartbeat;
+    }
+
+    public void setHeartbeat(int heartbeat)
+    {
+        this.heartbeat = heartbeat;
+    }
+
     @Override
     public int hashCode()
     {
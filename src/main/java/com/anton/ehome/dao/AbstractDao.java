@@ -30,7 +30,6 @@ import org.influxdb.dto.Point;
 import org.influxdb.dto.Point.Builder;
 import org.influxdb.dto.Query;
 import org.influxdb.dto.QueryResult;
-import org.influxdb.impl.InfluxDBResultMapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -40,7 +39,6 @@ import org.slf4j.LoggerFactory;
 abstract class AbstractDao
 {
     private static final Logger LOG = LoggerFactory.getLogger(AbstractDao.class);
-    private static final InfluxDBResultMapper MAPPER = new InfluxDBResultMapper();
 
     private final InfluxDB influx;
 
@@ -92,10 +90,20 @@ abstract class AbstractDao
      * @return Returns the list of items found.
      */
     protected final <T> List<T> selectMany(String query, Class<T> clazz)
+    {
+        return ResultMapper.of(clazz).map(select(query));
+    }
+
+    /**
+     * Performs a query against the {@link InfluxDB} and returns the raw result, for callers that read it without mapping it to objects.
+     *
+     * @param query The query to perform.
+     * @return Returns the result.
+     */
+    protected final QueryResult select(String query)
     {
         LOG.debug("Executing query: {}", query);
-        QueryResult result = influx.query(new Query(query, DATABASE_NAME));
-        return MAPPER.toPOJO(result, clazz);
+        return influx.query(new Query(query, DATABASE_NAME));
     }
 
     /**
@@ -115,7 +123,19 @@ abstract class AbstractDao
          */
         protected InsertMeasurementBuilder measurement(String measurement)
         {
-            return new InsertMeasurementBuilder(measurement);
+            return measurement(measurement, System.currentTimeMillis());
+        }
+
+        /**
+         * Sets measurement of the insert, at the given time.
+         *
+         * @param measurement The measurement to use.
+         * @param time The time of the insert, in milliseconds since the epoch.
+         * @return Returns the builder.
+         */
+        protected InsertMeasurementBuilder measurement(String measurement, long time)
+        {
+            return new InsertMeasurementBuilder(measurement, time);
         }
     }
 
@@ -130,10 +150,10 @@ abstract class AbstractDao
         private final Builder builder;
         private String retentionPolicy;
 
-        private InsertMeasurementBuilder(String measurement)
+        private InsertMeasurementBuilder(String measurement, long time)
         {
             this.measurement = measurement;
-            this.time = System.currentTimeMillis();
+            this.time = time;
             builder = Point.measurement(measurement).time(time, MILLISECONDS);
         }
 
@@ -153,6 +173,24 @@ abstract class AbstractDao
             return this;
         }
 
+        /**
+         * Adds a tag, which is indexed, without also adding it as a field.
+         *
+         * @param tag The name of the tag.
+         * @param value The value of the tag.
+         * @return Returns the builder.
+         */
+        protected InsertMeasurementBuilder tag(String tag, String value)
+        {
+            if (!fields.add(tag))
+            {
+                throw new IllegalArgumentException("The field '" + tag + "' is already added");
+            }
+
+            builder.tag(tag, value);
+            return this;
+        }
+
         /**
          * Adds a {@link String}-value field.
          *
@@ -245,5 +283,20 @@ abstract class AbstractDao
             LOG.debug("Executing insert statement for measurement '{}'", measurement);
             influx.write(DATABASE_NAME, retentionPolicy, builder.build());
         }
+
+        /**
+         * Queues the insert statement on the given writer, which writes it together with other queued statements.
+         *
+         * @param writer The writer to queue the insert statement on.
+         */
+        protected void queue(BatchWriter writer)
+        {
+            if (retentionPolicy != null)
+            {
+                throw new IllegalStateException("Queued inserts can't use a specific retention policy");
+            }
+            LOG.trace("Queueing insert statement for measurement '{}'", measurement);
+            writer.add(builder.build(), time);
+        }
     }
 }
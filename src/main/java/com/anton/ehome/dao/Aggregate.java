@@ -0,0 +1,145 @@
+/**
+ * Copyright 2017 Anton Johansson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anton.ehome.dao;
+
+import static org.apache.commons.lang3.builder.EqualsBuilder.reflectionEquals;
+import static org.apache.commons.lang3.builder.HashCodeBuilder.reflectionHashCode;
+import static org.apache.commons.lang3.builder.ToStringBuilder.reflectionToString;
+import static org.apache.commons.lang3.builder.ToStringStyle.SHORT_PREFIX_STYLE;
+
+import java.time.Duration;
+
+import com.anton.ehome.dao.Rollups.Tier;
+
+/**
+ * Defines a function that the database reduces the metrics of each interval of an aggregation with.
+ * <p>
+ * Rollups keep the minimum, maximum, sum, mean and count of their metrics, so those are exact at every resolution. Percentiles and integrals
+ * of rolled up metrics are computed from the mean of each rollup interval, so they are approximations.
+ * </p>
+ */
+public final class Aggregate
+{
+    private static final Aggregate MEAN = new Aggregate("mean(value)", "sum(sum) / sum(count)");
+    private static final Aggregate MIN = new Aggregate("min(value)", "min(min)");
+    private static final Aggregate MAX = new Aggregate("max(value)", "max(max)");
+    private static final Aggregate COUNT = new Aggregate("count(value)", "sum(count)");
+    private static final Aggregate SUM = new Aggregate("sum(value)", "sum(sum)");
+
+    private final String raw;
+    private final String rollup;
+
+    private Aggregate(String raw, String rollup)
+    {
+        this.raw = raw;
+        this.rollup = rollup;
+    }
+
+    /**
+     * Gets the mean of the metrics in each interval.
+     */
+    public static Aggregate mean()
+    {
+        return MEAN;
+    }
+
+    /**
+     * Gets the smallest metric in each interval.
+     */
+    public static Aggregate min()
+    {
+        return MIN;
+    }
+
+    /**
+     * Gets the largest metric in each interval.
+     */
+    public static Aggregate max()
+    {
+        return MAX;
+    }
+
+    /**
+     * Gets the number of metrics in each interval.
+     */
+    public static Aggregate count()
+    {
+        return COUNT;
+    }
+
+    /**
+     * Gets the sum of the metrics in each interval.
+     */
+    public static Aggregate sum()
+    {
+        return SUM;
+    }
+
+    /**
+     * Gets the given percentile of the metrics in each interval.
+     *
+     * @param percentile The percentile, from zero to one hundred.
+     */
+    public static Aggregate percentile(double percentile)
+    {
+        if (!(percentile >= 0 && percentile <= 100))
+        {
+            throw new IllegalArgumentException("percentile must be between 0 and 100");
+        }
+        return new Aggregate("percentile(value, " + percentile + ")", "percentile(mean, " + percentile + ")");
+    }
+
+    /**
+     * Gets the area under the metrics of each interval, with straight lines between the metrics. For a power in watts and a unit of one hour,
+     * this is the energy in watt hours.
+     *
+     * @param unit The unit of time to integrate over.
+     */
+    public static Aggregate integral(Duration unit)
+    {
+        if (unit.toMillis() <= 0)
+        {
+            throw new IllegalArgumentException("unit must be at least one millisecond");
+        }
+        return new Aggregate("integral(value, " + unit.toMillis() + "ms)", "integral(mean, " + unit.toMillis() + "ms)");
+    }
+
+    /**
+     * Gets the InfluxQL expression that computes this aggregate from metrics of the given tier.
+     */
+    String getSelector(Tier tier)
+    {
+        return tier == Tier.RAW ? raw : rollup;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return reflectionHashCode(this);
+    }
+
+    @Override
+    public boolean equals(Object that)
+    {
+        return reflectionEquals(this, that);
+    }
+
+    @Override
+    public String toString()
+    {
+        return reflectionToString(this, SHORT_PREFIX_STYLE);
+    }
+}
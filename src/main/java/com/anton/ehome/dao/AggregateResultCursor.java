@@ -0,0 +1,116 @@
+/**
+ * Copyright 2017 Anton Johansson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anton.ehome.dao;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.influxdb.dto.QueryResult.Series;
+
+/**
+ * Iterates over the rows of an aggregation query, without mapping each row to an object.
+ * <p>
+ * The aggregates are read from the columns named by {@link #getColumn(int)}, in order.
+ * </p>
+ */
+final class AggregateResultCursor implements IAggregateCursor
+{
+    private final List<Series> series = new ArrayList<>();
+    private final int[] valueColumns;
+    private final double[] values;
+    private int currentSeries;
+    private int row = -1;
+    private int timeColumn;
+    private long time;
+
+    AggregateResultCursor(List<Series> series, int numberOfAggregates)
+    {
+        this.series.addAll(series);
+        this.valueColumns = new int[numberOfAggregates];
+        this.values = new double[numberOfAggregates];
+        if (!series.isEmpty())
+        {
+            selectColumns(series.get(0));
+        }
+    }
+
+    /**
+     * Gets the name of the column of the aggregate with the given index.
+     */
+    static String getColumn(int index)
+    {
+        return "aggregate" + index;
+    }
+
+    @Override
+    public boolean next()
+    {
+        while (currentSeries < series.size())
+        {
+            List<List<Object>> rows = series.get(currentSeries).getValues();
+            if (rows != null && ++row < rows.size())
+            {
+                List<Object> columns = rows.get(row);
+                time = toEpochMilli(columns.get(timeColumn));
+                for (int index = 0; index < values.length; index++)
+                {
+                    Object value = valueColumns[index] < 0 ? null : columns.get(valueColumns[index]);
+                    values[index] = value instanceof Number ? ((Number) value).doubleValue() : Double.NaN;
+                }
+                return true;
+            }
+
+            currentSeries++;
+            row = -1;
+            if (currentSeries < series.size())
+            {
+                selectColumns(series.get(currentSeries));
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public long getTime()
+    {
+        return time;
+    }
+
+    @Override
+    public double getValue(int index)
+    {
+        return values[index];
+    }
+
+    private void selectColumns(Series item)
+    {
+        timeColumn = item.getColumns().indexOf("time");
+        for (int index = 0; index < valueColumns.length; index++)
+        {
+            valueColumns[index] = item.getColumns().indexOf(getColumn(index));
+        }
+    }
+
+    private long toEpochMilli(Object time)
+    {
+        if (time instanceof Number)
+        {
+            return ((Number) time).longValue();
+        }
+        return Instant.parse(String.valueOf(time)).toEpochMilli();
+    }
+}
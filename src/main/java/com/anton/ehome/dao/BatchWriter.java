@@ -0,0 +1,532 @@
+/**
+ * Copyright 2017 Anton Johansson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anton.ehome.dao;
+
+import static com.anton.ehome.dao.InfluxUtils.DATABASE_NAME;
+import static com.anton.ehome.dao.InfluxUtils.RETENTION_POLICY_RAW;
+import static java.lang.System.currentTimeMillis;
+import static java.lang.System.nanoTime;
+import static java.util.Collections.singletonList;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongConsumer;
+
+import org.influxdb.InfluxDB;
+import org.influxdb.dto.BatchPoints;
+import org.influxdb.dto.Point;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.anton.ehome.common.IDaemon;
+import com.anton.ehome.conf.IConfigService;
+import com.anton.ehome.conf.MetricsConfig;
+import com.anton.ehome.domain.WriteStatistics;
+import com.google.inject.Inject;
+
+/**
+ * Queues {@link Point points} in memory and writes them to the {@link InfluxDB} in batches from a background thread.
+ * <p>
+ * A batch is flushed when it reaches the configured batch size, or when its oldest point has waited for the configured flush interval, whichever
+ * comes first. Points are written to the raw metrics retention policy. Batches that can't be written are handed over to the {@link Spool}.
+ * </p>
+ * <p>
+ * Every queued point remembers when it was added. Once a batch is written, every point that was added before the batch was collected can be
+ * read, except for those that still wait in the queue or the spool, so the {@link #onWritten(LongConsumer) written listeners} are told the
+ * earliest of when the batch was collected, when the oldest point in the queue was added and when the oldest spooled point was added.
+ * </p>
+ * <p>
+ * The number of points that are not yet written is kept by the second of their own time, so that readers can tell from which time metrics may
+ * still be missing from the database, together with the {@link Spool#getOldestTime() oldest spooled point}.
+ * </p>
+ * <p>
+ * When stopped, the queued points are flushed before the background thread ends. Points that are added after that, including those of callers
+ * that wait for room in the queue, are written right away on the calling thread.
+ * </p>
+ */
+class BatchWriter implements IDaemon
+{
+    private static final Logger LOG = LoggerFactory.getLogger(BatchWriter.class);
+    private static final long STOP_TIMEOUT = 30;
+    private static final long MILLISECONDS_PER_SECOND = 1000;
+
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong spilled = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong flushes = new AtomicLong();
+    private final AtomicLong totalFlushLatency = new AtomicLong();
+    private final AtomicInteger writing = new AtomicInteger();
+    private final List<LongConsumer> writtenListeners = new CopyOnWriteArrayList<>();
+    private final Thread thread = new Thread(new FlushLoop(), "metrics-batch-writer");
+    private final Object spoolLock = new Object();
+    private final Map<Long, Integer> unwritten = new ConcurrentHashMap<>();
+    private final BlockingQueue<QueuedPoint> queue;
+    private final int queueCapacity;
+    private final InfluxDB influx;
+    private final Spool spool;
+    private final IConfigService configService;
+    private volatile long lastFlushLatency;
+    private volatile long maxFlushLatency;
+    private volatile boolean isDone;
+    private long oldestSpooled = Long.MAX_VALUE;
+
+    @Inject
+    BatchWriter(InfluxDB influx, Spool spool, IConfigService configService)
+    {
+        this.influx = influx;
+        this.spool = spool;
+        this.configService = configService;
+        this.queueCapacity = configService.getCurrentConfig().getMetricsConfig().getQueueCapacity();
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+    }
+
+    @Override
+    public boolean start()
+    {
+        LOG.info("Starting the batch writer with a queue capacity of {}", queueCapacity);
+        thread.start();
+        return true;
+    }
+
+    @Override
+    public void stop()
+    {
+        LOG.info("Stopping the batch writer, {} points are still queued", queue.size());
+        isDone = true;
+        try
+        {
+            thread.join(SECONDS.toMillis(STOP_TIMEOUT));
+        }
+        catch (InterruptedException e)
+        {
+            LOG.warn("Interrupted while waiting for the queued points to be written");
+            Thread.currentThread().interrupt();
+        }
+        flushRemaining();
+    }
+
+    /**
+     * Adds a point to the write queue, applying the configured overflow policy if the queue is full.
+     *
+     * @param point The point to write.
+     * @param time The time of the point, in milliseconds since the epoch.
+     */
+    void add(Point point, long time)
+    {
+        QueuedPoint queued = new QueuedPoint(point, currentTimeMillis(), time);
+        unwritten.merge(getSecond(time), 1, Integer::sum);
+        add(queued);
+    }
+
+    private void add(QueuedPoint point)
+    {
+        if (queue.offer(point))
+        {
+            flushRemainingIfDone();
+            return;
+        }
+
+        switch (getConfig().getOverflowPolicy())
+        {
+            case DROP_OLDEST:
+                while (!queue.offer(point))
+                {
+                    QueuedPoint oldest = queue.poll();
+                    if (oldest != null)
+                    {
+                        dropped.incrementAndGet();
+                        removeUnwritten(singletonList(oldest));
+                    }
+                }
+                break;
+
+            case SPILL:
+                spilled.incrementAndGet();
+                if (spool(singletonList(point)) == 0)
+                {
+                    LOG.debug("The write queue is full and the point could not be spooled, writing point directly");
+                    write(singletonList(point));
+                }
+                else
+                {
+                    removeUnwritten(singletonList(point));
+                }
+                break;
+
+            case BLOCK:
+            default:
+                try
+                {
+                    // Waits a flush interval at a time, so that callers don't keep waiting for room after the writer is stopped
+                    while (!queue.offer(point, getConfig().getFlushInterval(), MILLISECONDS))
+                    {
+                        if (isDone)
+                        {
+                            write(singletonList(point));
+                            return;
+                        }
+                    }
+                    flushRemainingIfDone();
+                }
+                catch (InterruptedException e)
+                {
+                    LOG.warn("Interrupted while waiting for room in the write queue, dropping point");
+                    dropped.incrementAndGet();
+                    removeUnwritten(singletonList(point));
+                    Thread.currentThread().interrupt();
+                }
+                break;
+        }
+    }
+
+    /**
+     * Writes the points that are left in the queue if the writer is stopped, since the background thread no longer takes them.
+     */
+    private void flushRemainingIfDone()
+    {
+        if (isDone)
+        {
+            flushRemaining();
+        }
+    }
+
+    private void flushRemaining()
+    {
+        List<QueuedPoint> remaining = new ArrayList<>();
+        queue.drainTo(remaining);
+        if (!remaining.isEmpty())
+        {
+            LOG.debug("Writing {} points that are left in the queue of the stopped batch writer", remaining.size());
+            write(remaining);
+        }
+    }
+
+    /**
+     * Adds a listener for when points are written, that is given the time before which every added point is written. Listeners are called on
+     * the background thread, after a batch is written or when no points were added during a flush interval.
+     *
+     * @param listener The listener to add.
+     */
+    void onWritten(LongConsumer listener)
+    {
+        writtenListeners.add(listener);
+    }
+
+    /**
+     * Gets statistics of the write queue.
+     *
+     * @return Returns the statistics.
+     */
+    WriteStatistics getStatistics()
+    {
+        long numberOfFlushes = flushes.get();
+
+        WriteStatistics statistics = new WriteStatistics();
+        statistics.setQueueDepth(queue.size());
+        statistics.setQueueCapacity(queueCapacity);
+        statistics.setWritten(written.get());
+        statistics.setDropped(dropped.get());
+        statistics.setSpilled(spilled.get());
+        statistics.setFailed(failed.get());
+        statistics.setFlushes(numberOfFlushes);
+        statistics.setLastFlushLatency(lastFlushLatency);
+        statistics.setMaxFlushLatency(maxFlushLatency);
+        statistics.setAverageFlushLatency(numberOfFlushes == 0 ? 0 : totalFlushLatency.get() / numberOfFlushes);
+        statistics.setSpooled(spool.getSpooled());
+        statistics.setReplayed(spool.getReplayed());
+        statistics.setDiscarded(spool.getDiscarded());
+        statistics.setSpoolSize(spool.getSize());
+        return statistics;
+    }
+
+    /**
+     * Checks whether or not there are points that were taken from the queue but are not yet written, either because they are being written
+     * right now, or because they wait in the spool for the database to be reachable again.
+     */
+    boolean hasUnwritten()
+    {
+        return writing.get() > 0 || spool.hasPending();
+    }
+
+    /**
+     * Gets the time of the oldest point that is added but not yet written, whether it's queued, being written or spooled.
+     *
+     * @return Returns the time in milliseconds since the epoch, rounded down to the second; or {@link Long#MAX_VALUE} if every point is written.
+     */
+    long getOldestUnwrittenTime()
+    {
+        // Points are spooled before they are no longer counted here, so counting them here first never misses a point that moves in between
+        long oldest = Long.MAX_VALUE;
+        for (long second : unwritten.keySet())
+        {
+            oldest = Math.min(oldest, second);
+        }
+        return Math.min(oldest, spool.getOldestTime());
+    }
+
+    /**
+     * Stops counting the given points as unwritten, once they are written, spooled or dropped.
+     */
+    private void removeUnwritten(List<QueuedPoint> points)
+    {
+        Map<Long, Integer> counts = new HashMap<>();
+        for (QueuedPoint point : points)
+        {
+            counts.merge(getSecond(point.time), 1, Integer::sum);
+        }
+        counts.forEach((second, count) -> unwritten.computeIfPresent(second, (key, current) -> current > count ? current - count : null));
+    }
+
+    private static long getSecond(long time)
+    {
+        return Math.floorDiv(time, MILLISECONDS_PER_SECOND) * MILLISECONDS_PER_SECOND;
+    }
+
+    private MetricsConfig getConfig()
+    {
+        return configService.getCurrentConfig().getMetricsConfig();
+    }
+
+    /**
+     * Spools the given points, remembering when the oldest of them was added.
+     *
+     * @return Returns the number of points that were spooled.
+     */
+    private int spool(List<QueuedPoint> points)
+    {
+        List<Point> spooled = new ArrayList<>(points.size());
+        long oldest = Long.MAX_VALUE;
+        for (QueuedPoint point : points)
+        {
+            spooled.add(point.point);
+            oldest = Math.min(oldest, point.added);
+        }
+
+        synchronized (spoolLock)
+        {
+            int count = spool.append(spooled);
+            if (count > 0)
+            {
+                oldestSpooled = Math.min(oldestSpooled, oldest);
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Gets when the oldest point that was spooled by this writer and is not yet replayed was added.
+     *
+     * @return Returns the time, or {@link Long#MAX_VALUE} if no such point is spooled.
+     */
+    private long getOldestSpooled()
+    {
+        synchronized (spoolLock)
+        {
+            if (!spool.hasPending())
+            {
+                oldestSpooled = Long.MAX_VALUE;
+            }
+            return oldestSpooled;
+        }
+    }
+
+    /**
+     * Writes the given points, or spools them if they can't be written.
+     *
+     * @return Returns whether or not the points were written.
+     */
+    private boolean write(List<QueuedPoint> points)
+    {
+        BatchPoints batch = BatchPoints.database(DATABASE_NAME).retentionPolicy(RETENTION_POLICY_RAW).build();
+        points.forEach(point -> batch.point(point.point));
+
+        long start = nanoTime();
+        writing.incrementAndGet();
+        try
+        {
+            influx.write(batch);
+            written.addAndGet(points.size());
+            return true;
+        }
+        catch (Exception e)
+        {
+            int spooledCount = spool(points);
+            if (spooledCount == points.size())
+            {
+                LOG.warn("Could not write {} points, they are spooled until the database is reachable", points.size(), e);
+            }
+            else
+            {
+                LOG.warn("Could not write {} points, {} of them are spooled", points.size(), spooledCount, e);
+                failed.addAndGet(points.size() - spooledCount);
+            }
+            return false;
+        }
+        finally
+        {
+            removeUnwritten(points);
+            writing.decrementAndGet();
+            long latency = NANOSECONDS.toMillis(nanoTime() - start);
+            lastFlushLatency = latency;
+            maxFlushLatency = Math.max(maxFlushLatency, latency);
+            totalFlushLatency.addAndGet(latency);
+            flushes.incrementAndGet();
+        }
+    }
+
+    /**
+     * A point in the write queue, along with when it was added and its own time.
+     */
+    private static final class QueuedPoint
+    {
+        private final Point point;
+        private final long added;
+        private final long time;
+
+        private QueuedPoint(Point point, long added, long time)
+        {
+            this.point = point;
+            this.added = added;
+            this.time = time;
+        }
+    }
+
+    /**
+     * Collects batches from the queue and writes them.
+     */
+    private class FlushLoop implements Runnable
+    {
+        private long lastWritten = Long.MIN_VALUE;
+
+        @Override
+        public void run()
+        {
+            while (!isDone || !queue.isEmpty())
+            {
+                try
+                {
+                    List<QueuedPoint> batch = collectBatch();
+                    long until = getWrittenUntil();
+                    if (!batch.isEmpty())
+                    {
+                        LOG.trace("Flushing {} points", batch.size());
+                        if (!write(batch))
+                        {
+                            continue;
+                        }
+                    }
+                    if (until > lastWritten)
+                    {
+                        lastWritten = until;
+                        notifyWritten(until);
+                    }
+                }
+                catch (InterruptedException e)
+                {
+                    LOG.warn("Interrupted while collecting points to write", e);
+                }
+                catch (Exception e)
+                {
+                    LOG.warn("Exception occurred in loop", e);
+                }
+            }
+            LOG.info("Batch writer stopped");
+        }
+
+        /**
+         * Gets the time before which every added point is either collected by now, or spooled and replayed.
+         * <p>
+         * The time is read before the head of the queue, so a point that is added after it is saved after it too. A point that was added before
+         * it but isn't collected is still in the queue, and was added no earlier than the head of the queue was.
+         * </p>
+         */
+        private long getWrittenUntil()
+        {
+            long until = currentTimeMillis();
+            QueuedPoint head = queue.peek();
+            if (head != null)
+            {
+                until = Math.min(until, head.added);
+            }
+            return Math.min(until, getOldestSpooled());
+        }
+
+        private void notifyWritten(long until)
+        {
+            for (LongConsumer listener : writtenListeners)
+            {
+                try
+                {
+                    listener.accept(until);
+                }
+                catch (Exception e)
+                {
+                    LOG.warn("Exception occurred in listener of written points", e);
+                }
+            }
+        }
+
+        private List<QueuedPoint> collectBatch() throws InterruptedException
+        {
+            MetricsConfig config = getConfig();
+            int batchSize = config.getBatchSize();
+            long flushInterval = config.getFlushInterval();
+
+            List<QueuedPoint> batch = new ArrayList<>(batchSize);
+            QueuedPoint first = queue.poll(flushInterval, MILLISECONDS);
+            if (first == null)
+            {
+                return batch;
+            }
+            batch.add(first);
+
+            long deadline = nanoTime() + MILLISECONDS.toNanos(flushInterval);
+            while (batch.size() < batchSize)
+            {
+                if (queue.drainTo(batch, batchSize - batch.size()) > 0)
+                {
+                    continue;
+                }
+
+                long remaining = deadline - nanoTime();
+                if (remaining <= 0 || isDone)
+                {
+                    break;
+                }
+
+                QueuedPoint point = queue.poll(remaining, NANOSECONDS);
+                if (point == null)
+                {
+                    break;
+                }
+                batch.add(point);
+            }
+            return batch;
+        }
+    }
+}
@@ -0,0 +1,539 @@
+/**
+ * Copyright 2017 Anton Johansson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anton.ehome.dao;
+
+import static java.time.ZoneOffset.UTC;
+import static java.util.Collections.singletonList;
+import static java.util.stream.Collectors.toCollection;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.anton.ehome.conf.IConfigService;
+import com.anton.ehome.conf.MetricsConfig;
+import com.anton.ehome.dao.Rollups.Tier;
+import com.anton.ehome.domain.Metric;
+import com.anton.ehome.domain.WriteStatistics;
+import com.anton.ehome.utils.VisibleForTesting;
+import com.google.inject.Inject;
+
+/**
+ * Caches metrics that are read from the database by the {@link MetricsDao}.
+ * <p>
+ * Ranges are split into buckets of the configured size, aligned to the epoch. Buckets that ended long enough ago that their metrics can no
+ * longer change are read once and kept in memory, until the least recently used ones are evicted to keep the number of cached metrics within the
+ * configured capacity. The most recent part of a range is always read from the database, and so are ranges that are kept in memory by the
+ * {@link HotWindow} anyway.
+ * </p>
+ * <p>
+ * Metrics that are not yet written to the database, because they are queued or spooled, would be missing from a bucket that is read now, so
+ * buckets from the oldest unwritten metric on are read from the database as if they were recent. Buckets are evicted when metrics are saved
+ * late into them, and when spooled metrics of their time are replayed.
+ * </p>
+ * <p>
+ * When several callers need the same bucket at the same time, it's read only once, by the first caller, while the others wait for it.
+ * </p>
+ */
+class CachingMetricsDao implements IMetricsDao
+{
+    private static final Logger LOG = LoggerFactory.getLogger(CachingMetricsDao.class);
+    private static final int MIN_METRICS_PER_BUCKET = 60;
+
+    private final Map<Key, CompletableFuture<Bucket>> inFlight = new ConcurrentHashMap<>();
+    private final LinkedHashMap<Key, Bucket> buckets = new LinkedHashMap<>(16, 0.75f, true);
+    private final MetricsDao dao;
+    private final Rollups rollups;
+    private final IConfigService configService;
+    private final LongSupplier clock;
+    private long weight;
+
+    @Inject
+    CachingMetricsDao(MetricsDao dao, Rollups rollups, Spool spool, IConfigService configService)
+    {
+        this(dao, rollups, spool, configService, System::currentTimeMillis);
+    }
+
+    @VisibleForTesting
+    CachingMetricsDao(MetricsDao dao, Rollups rollups, Spool spool, IConfigService configService, LongSupplier clock)
+    {
+        this.dao = dao;
+        this.rollups = rollups;
+        this.configService = configService;
+        this.clock = clock;
+        spool.onReplayed(this::evictReplayed);
+    }
+
+    @Override
+    public void save(byte nodeId, double value)
+    {
+        dao.save(nodeId, value);
+    }
+
+    @Override
+    public void save(byte nodeId, double value, long time)
+    {
+        dao.save(nodeId, value, time);
+        if (time < clock.getAsLong() - Tier.RAW.getSettleTime().toMillis())
+        {
+            evict(nodeId, time);
+        }
+    }
+
+    @Override
+    public long getLastSaveTime(byte nodeId)
+    {
+        return dao.getLastSaveTime(nodeId);
+    }
+
+    @Override
+    public long getVersion(byte nodeId, LocalDateTime from, Duration resolution)
+    {
+        return dao.getVersion(nodeId, from, resolution);
+    }
+
+    @Override
+    public void onSaved(IMetricListener listener)
+    {
+        dao.onSaved(listener);
+    }
+
+    @Override
+    public List<Metric> getMetrics(byte nodeId, LocalDateTime from, LocalDateTime to)
+    {
+        return getMetrics(nodeId, from, to, Duration.ZERO);
+    }
+
+    @Override
+    public List<Metric> getMetrics(byte nodeId, LocalDateTime from, LocalDateTime to, Duration resolution)
+    {
+        IMetricCursor cursor = getMetricCursor(nodeId, from, to, resolution);
+        List<Metric> metrics = new ArrayList<>();
+        while (cursor.next())
+        {
+            Metric metric = new Metric();
+            metric.setTime(Instant.ofEpochMilli(cursor.getTime()));
+            metric.setValue(cursor.getValue());
+            metrics.add(metric);
+        }
+        return metrics;
+    }
+
+    @Override
+    public IMetricCursor getMetricCursor(byte nodeId, LocalDateTime from, LocalDateTime to, Duration resolution)
+    {
+        return getMetricCursors(singletonList(nodeId), from, to, resolution).get(nodeId);
+    }
+
+    @Override
+    public Map<Byte, IMetricCursor> getMetricCursors(Collection<Byte> nodeIds, LocalDateTime from, LocalDateTime to, Duration resolution)
+    {
+        long now = clock.getAsLong();
+        long start = toMillis(from);
+        long end = toMillis(to);
+        Tier tier = rollups.select(Duration.ofMillis(now - start), resolution);
+
+        MetricsConfig config = configService.getCurrentConfig().getMetricsConfig();
+        long bucketSize = Math.max(config.getCacheBucketSize() * 1000L, tier.getResolution().toMillis() * MIN_METRICS_PER_BUCKET);
+        long firstBucket = Math.floorDiv(start, bucketSize) * bucketSize;
+        long closedUntil = Math.min(
+                Math.floorDiv(now - tier.getSettleTime().toMillis(), bucketSize) * bucketSize,
+                Math.floorDiv(end, bucketSize) * bucketSize + bucketSize);
+        closedUntil = Math.min(closedUntil, Math.floorDiv(dao.getOldestUnwrittenTime(), bucketSize) * bucketSize);
+        if (config.getCacheCapacity() <= 0 || end < start || firstBucket >= closedUntil)
+        {
+            return dao.getMetricCursors(tier, nodeIds, from, to);
+        }
+
+        Map<Byte, IMetricCursor> cursors = new HashMap<>();
+        Set<Byte> remaining = new LinkedHashSet<>();
+        for (byte nodeId : nodeIds)
+        {
+            Optional<IMetricCursor> cursor = dao.getFromMemory(tier, nodeId, from, to);
+            if (cursor.isPresent())
+            {
+                cursors.put(nodeId, cursor.get());
+            }
+            else
+            {
+                remaining.add(nodeId);
+            }
+        }
+        if (remaining.isEmpty())
+        {
+            return cursors;
+        }
+
+        Map<Key, Bucket> found = getBuckets(tier, bucketSize, remaining, firstBucket, closedUntil, config.getCacheCapacity());
+        Map<Byte, IMetricCursor> live = end < closedUntil
+            ? new HashMap<>()
+            : dao.getMetricCursors(tier, remaining, toDateTime(closedUntil), to);
+
+        for (byte nodeId : remaining)
+        {
+            List<IMetricCursor> parts = new ArrayList<>();
+            for (long bucketStart = firstBucket; bucketStart < closedUntil; bucketStart += bucketSize)
+            {
+                parts.add(found.get(new Key(tier, bucketSize, nodeId, bucketStart)).cursor());
+            }
+            Optional.ofNullable(live.get(nodeId)).ifPresent(parts::add);
+            cursors.put(nodeId, new RangeCursor(parts, start, end));
+        }
+        return cursors;
+    }
+
+    @Override
+    public Map<Byte, IMetricCursor> getMetricCursorsSince(Collection<Byte> nodeIds, long since, long to, Duration resolution)
+    {
+        // Times are stored with millisecond precision, so the first millisecond after the given time is the first that can hold a newer metric
+        return getMetricCursors(nodeIds, toDateTime(since + 1), toDateTime(to), resolution);
+    }
+
+    @Override
+    public Map<Byte, IAggregateCursor> getAggregates(
+            Collection<Byte> nodeIds, LocalDateTime from, LocalDateTime to, Duration step, Fill fill, Aggregate... aggregates)
+    {
+        return dao.getAggregates(nodeIds, from, to, step, fill, aggregates);
+    }
+
+    @Override
+    public void streamMetrics(byte nodeId, LocalDateTime from, LocalDateTime to, Duration resolution, IMetricConsumer consumer)
+    {
+        dao.streamMetrics(nodeId, from, to, resolution, consumer);
+    }
+
+    @Override
+    public boolean hasUnwrittenMetrics()
+    {
+        return dao.hasUnwrittenMetrics();
+    }
+
+    @Override
+    public WriteStatistics getWriteStatistics()
+    {
+        return dao.getWriteStatistics();
+    }
+
+    /**
+     * Gets the given buckets of the given devices, from the cache if they are there, otherwise from the database.
+     */
+    private Map<Key, Bucket> getBuckets(Tier tier, long bucketSize, Set<Byte> nodeIds, long firstBucket, long closedUntil, int capacity)
+    {
+        Map<Key, Bucket> found = new HashMap<>();
+        Map<Key, CompletableFuture<Bucket>> owned = new LinkedHashMap<>();
+        Map<Key, CompletableFuture<Bucket>> awaited = new HashMap<>();
+        for (byte nodeId : nodeIds)
+        {
+            for (long bucketStart = firstBucket; bucketStart < closedUntil; bucketStart += bucketSize)
+            {
+                Key key = new Key(tier, bucketSize, nodeId, bucketStart);
+                Bucket bucket = getCached(key);
+                if (bucket != null)
+                {
+                    found.put(key, bucket);
+                    continue;
+                }
+
+                CompletableFuture<Bucket> future = new CompletableFuture<>();
+                CompletableFuture<Bucket> existing = inFlight.putIfAbsent(key, future);
+                if (existing != null)
+                {
+                    awaited.put(key, existing);
+                }
+                else if ((bucket = getCached(key)) != null)
+                {
+                    // Another caller finished reading the bucket in between
+                    inFlight.remove(key, future);
+                    future.complete(bucket);
+                    found.put(key, bucket);
+                }
+                else
+                {
+                    owned.put(key, future);
+                }
+            }
+        }
+
+        if (!owned.isEmpty())
+        {
+            found.putAll(load(tier, bucketSize, owned, capacity));
+        }
+        for (Entry<Key, CompletableFuture<Bucket>> entry : awaited.entrySet())
+        {
+            try
+            {
+                found.put(entry.getKey(), entry.getValue().join());
+            }
+            catch (CompletionException e)
+            {
+                throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Reads the given buckets from the database in a single query, caches them and hands them over to the callers that wait for them.
+     */
+    private Map<Key, Bucket> load(Tier tier, long bucketSize, Map<Key, CompletableFuture<Bucket>> owned, int capacity)
+    {
+        Set<Byte> nodeIds = owned.keySet().stream().map(key -> key.nodeId).collect(toCollection(LinkedHashSet::new));
+        long from = owned.keySet().stream().mapToLong(key -> key.start).min().getAsLong();
+        long to = owned.keySet().stream().mapToLong(key -> key.start).max().getAsLong() + bucketSize - 1;
+        LOG.debug("Reading {} buckets of {} metrics for nodes {}", owned.size(), tier.name().toLowerCase(), nodeIds);
+
+        Map<Key, Bucket> loaded = new HashMap<>();
+        try
+        {
+            Map<Key, Bucket.Builder> builders = new HashMap<>();
+            Map<Byte, IMetricCursor> cursors = dao.getMetricCursors(tier, nodeIds, toDateTime(from), toDateTime(to));
+            for (byte nodeId : nodeIds)
+            {
+                IMetricCursor cursor = cursors.get(nodeId);
+                while (cursor != null && cursor.next())
+                {
+                    long bucketStart = Math.floorDiv(cursor.getTime(), bucketSize) * bucketSize;
+                    builders.computeIfAbsent(new Key(tier, bucketSize, nodeId, bucketStart), key -> new Bucket.Builder())
+                            .add(cursor.getTime(), cursor.getValue());
+                }
+            }
+
+            for (Entry<Key, CompletableFuture<Bucket>> entry : owned.entrySet())
+            {
+                Bucket.Builder builder = builders.get(entry.getKey());
+                Bucket bucket = builder == null ? Bucket.EMPTY : builder.build();
+                put(entry.getKey(), bucket, capacity);
+                loaded.put(entry.getKey(), bucket);
+                entry.getValue().complete(bucket);
+            }
+            return loaded;
+        }
+        catch (RuntimeException e)
+        {
+            owned.values().forEach(future -> future.completeExceptionally(e));
+            throw e;
+        }
+        finally
+        {
+            owned.forEach(inFlight::remove);
+        }
+    }
+
+    private synchronized Bucket getCached(Key key)
+    {
+        return buckets.get(key);
+    }
+
+    private synchronized void put(Key key, Bucket bucket, int capacity)
+    {
+        Bucket previous = buckets.put(key, bucket);
+        weight += bucket.getWeight() - (previous == null ? 0 : previous.getWeight());
+
+        Iterator<Bucket> iterator = buckets.values().iterator();
+        while (weight > capacity && iterator.hasNext())
+        {
+            weight -= iterator.next().getWeight();
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Evicts the cached buckets of the given device that contain the given time, since a metric was saved after they were read.
+     */
+    private synchronized void evict(byte nodeId, long time)
+    {
+        Iterator<Entry<Key, Bucket>> iterator = buckets.entrySet().iterator();
+        while (iterator.hasNext())
+        {
+            Entry<Key, Bucket> entry = iterator.next();
+            Key key = entry.getKey();
+            if (key.nodeId == nodeId && time >= key.start && time < key.start + key.size)
+            {
+                LOG.debug("Evicting cached metrics of node {} from {}, since a metric was saved late", nodeId, toDateTime(key.start));
+                weight -= entry.getValue().getWeight();
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Evicts the cached buckets of every device that overlap the given times, since spooled metrics of those times were replayed.
+     */
+    private synchronized void evictReplayed(long from, long to)
+    {
+        Iterator<Entry<Key, Bucket>> iterator = buckets.entrySet().iterator();
+        while (iterator.hasNext())
+        {
+            Entry<Key, Bucket> entry = iterator.next();
+            Key key = entry.getKey();
+            if (key.start <= to && from < key.start + key.size)
+            {
+                LOG.debug("Evicting cached metrics of node {} from {}, since spooled metrics were replayed", key.nodeId, toDateTime(key.start));
+                weight -= entry.getValue().getWeight();
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Gets the number of cached metrics, counting each cached bucket as one more, so that empty buckets are bounded too.
+     */
+    @VisibleForTesting
+    synchronized long getWeight()
+    {
+        return weight;
+    }
+
+    private static long toMillis(LocalDateTime time)
+    {
+        return time.toInstant(UTC).toEpochMilli();
+    }
+
+    private static LocalDateTime toDateTime(long time)
+    {
+        return LocalDateTime.ofInstant(Instant.ofEpochMilli(time), UTC);
+    }
+
+    /**
+     * Identifies a bucket of metrics of one device, in one tier.
+     */
+    private static final class Key
+    {
+        private final Tier tier;
+        private final long size;
+        private final byte nodeId;
+        private final long start;
+
+        private Key(Tier tier, long size, byte nodeId, long start)
+        {
+            this.tier = tier;
+            this.size = size;
+            this.nodeId = nodeId;
+            this.start = start;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return 31 * (31 * (31 * tier.hashCode() + Long.hashCode(size)) + nodeId) + Long.hashCode(start);
+        }
+
+        @Override
+        public boolean equals(Object that)
+        {
+            if (!(that instanceof Key))
+            {
+                return false;
+            }
+            Key key = (Key) that;
+            return tier == key.tier && size == key.size && nodeId == key.nodeId && start == key.start;
+        }
+    }
+
+    /**
+     * Holds the metrics of a bucket, in time order.
+     */
+    private static final class Bucket
+    {
+        private static final Bucket EMPTY = new Bucket(new long[0], new double[0]);
+
+        private final long[] times;
+        private final double[] values;
+
+        private Bucket(long[] times, double[] values)
+        {
+            this.times = times;
+            this.values = values;
+        }
+
+        private long getWeight()
+        {
+            return times.length + 1;
+        }
+
+        private IMetricCursor cursor()
+        {
+            return new IMetricCursor()
+            {
+                private int position = -1;
+
+                @Override
+                public boolean next()
+                {
+                    return ++position < times.length;
+                }
+
+                @Override
+                public long getTime()
+                {
+                    return times[position];
+                }
+
+                @Override
+                public double getValue()
+                {
+                    return values[position];
+                }
+            };
+        }
+
+        /**
+         * Collects the metrics of a bucket as they are read.
+         */
+        private static final class Builder
+        {
+            private long[] times = new long[MIN_METRICS_PER_BUCKET];
+            private double[] values = new double[MIN_METRICS_PER_BUCKET];
+            private int size;
+
+            private void add(long time, double value)
+            {
+                if (size == times.length)
+                {
+                    times = Arrays.copyOf(times, size * 2);
+                    values = Arrays.copyOf(values, size * 2);
+                }
+                times[size] = time;
+                values[size] = value;
+                size++;
+            }
+
+            private Bucket build()
+            {
+                return new Bucket(Arrays.copyOf(times, size), Arrays.copyOf(values, size));
+            }
+        }
+    }
+}
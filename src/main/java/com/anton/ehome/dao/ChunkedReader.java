@@ -0,0 +1,155 @@
+/**
+ * Copyright 2017 Anton Johansson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anton.ehome.dao;
+
+import static com.anton.ehome.dao.InfluxUtils.DATABASE_NAME;
+import static com.anton.ehome.utils.JsonUtils.JSON_MAPPER;
+
+import java.io.IOException;
+import java.util.function.Predicate;
+
+import org.influxdb.InfluxDB;
+import org.influxdb.InfluxDBException;
+import org.influxdb.dto.QueryResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.anton.ehome.utils.VisibleForTesting;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.inject.Inject;
+
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Performs queries against the {@link InfluxDB} whose results are received in chunks, handing each chunk to a consumer on the calling thread
+ * as it arrives.
+ * <p>
+ * The chunked queries of the {@link InfluxDB} client call their consumer from a thread of the HTTP client, and failed requests are thrown on
+ * that thread instead of being reported to the caller. The request is therefore sent with the HTTP client of the {@link InfluxConnection}
+ * instead: failures are thrown to the caller with their real cause, the database is not read faster than the consumer can keep up with, and
+ * closing the response cancels the query.
+ * </p>
+ */
+class ChunkedReader
+{
+    private static final Logger LOG = LoggerFactory.getLogger(ChunkedReader.class);
+
+    private final OkHttpClient httpClient;
+    private final InfluxSettings settings;
+
+    @Inject
+    ChunkedReader(InfluxConnection connection)
+    {
+        this(connection.getHttpClient(), connection.getSettings());
+    }
+
+    @VisibleForTesting
+    ChunkedReader(OkHttpClient httpClient, InfluxSettings settings)
+    {
+        this.httpClient = httpClient;
+        this.settings = settings;
+    }
+
+    /**
+     * Performs a query, receiving the result in chunks of the given size that are handed to the given consumer as they arrive. When the consumer
+     * returns {@code false}, the response is closed and no more chunks are read.
+     *
+     * @param query The query to perform.
+     * @param chunkSize The maximum number of rows in each chunk.
+     * @param consumer The consumer of the chunks, that returns {@code false} to stop.
+     */
+    void select(String query, int chunkSize, Predicate<QueryResult> consumer)
+    {
+        LOG.debug("Executing chunked query: {}", query);
+        HttpUrl url = HttpUrl.parse(settings.getUrl())
+                .newBuilder()
+                .addPathSegment("query")
+                .addQueryParameter("u", settings.getUsername())
+                .addQueryParameter("p", settings.getPassword())
+                .addQueryParameter("db", DATABASE_NAME)
+                .addQueryParameter("q", query)
+                .addQueryParameter("chunked", "true")
+                .addQueryParameter("chunk_size", String.valueOf(chunkSize))
+                .build();
+
+        try (Response response = httpClient.newCall(new Request.Builder().url(url).build()).execute())
+        {
+            if (!response.isSuccessful())
+            {
+                throw new InfluxDBException(getError(response));
+            }
+
+            JsonReader reader = new JsonReader(response.body().charStream());
+            reader.setLenient(true);
+            while (reader.peek() != JsonToken.END_DOCUMENT)
+            {
+                QueryResult chunk = JSON_MAPPER.fromJson(reader, QueryResult.class);
+                throwIfError(chunk);
+                if (!consumer.test(chunk))
+                {
+                    LOG.debug("The consumer stopped the chunked query");
+                    return;
+                }
+            }
+        }
+        catch (IOException | JsonParseException e)
+        {
+            throw new InfluxDBException("Could not read the result of the chunked query", e);
+        }
+    }
+
+    private String getError(Response response) throws IOException
+    {
+        String body = response.body().string();
+        try
+        {
+            QueryResult result = JSON_MAPPER.fromJson(body, QueryResult.class);
+            if (result != null && result.hasError())
+            {
+                return result.getError();
+            }
+        }
+        catch (JsonParseException e)
+        {
+            LOG.trace("The error response is not JSON", e);
+        }
+        return "HTTP " + response.code() + ": " + body;
+    }
+
+    private void throwIfError(QueryResult result)
+    {
+        if (result.hasError())
+        {
+            throw new InfluxDBException(result.getError());
+        }
+        if (result.getResults() != null)
+        {
+            result.getResults()
+                    .stream()
+                    .filter(QueryResult.Result::hasError)
+                    .findFirst()
+                    .ifPresent(item ->
+                    {
+                        throw new InfluxDBException(item.getError());
+                    });
+        }
+    }
+}
@@ -15,14 +15,11 @@
  */
 package com.anton.ehome.dao;
 
-import static com.anton.ehome.dao.InfluxUtils.DATABASE_NAME;
+import static com.google.inject.multibindings.Multibinder.newSetBinder;
 
 import org.influxdb.InfluxDB;
-import org.influxdb.InfluxDBFactory;
-import org.influxdb.dto.Pong;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
+import com.anton.ehome.common.IDaemon;
 import com.google.inject.AbstractModule;
 import com.google.inject.Provides;
 import com.google.inject.Singleton;
@@ -32,14 +29,26 @@ import com.google.inject.Singleton;
  */
 public class DaoModule extends AbstractModule
 {
-    private static final Logger LOG = LoggerFactory.getLogger(DaoModule.class);
-
     @Override
     protected void configure()
     {
         bindDao(IConfigDao.class, ConfigDao.class);
-        bindDao(IMetricsDao.class, MetricsDao.class);
+        bindDao(IEnergyDao.class, EnergyDao.class);
+        bindDao(IMetricsDao.class, CachingMetricsDao.class);
         bindDao(IUserDao.class, UserDao.class);
+
+        bind(MetricsDao.class).in(Singleton.class);
+        bind(InfluxConnection.class).in(Singleton.class);
+        bind(ChunkedReader.class).in(Singleton.class);
+        bind(BatchWriter.class).in(Singleton.class);
+        bind(Spool.class).in(Singleton.class);
+        bind(Rollups.class).in(Singleton.class);
+        bind(HotWindow.class).in(Singleton.class);
+        newSetBinder(binder(), IDaemon.class).addBinding().to(InfluxConnection.class);
+        newSetBinder(binder(), IDaemon.class).addBinding().to(BatchWriter.class);
+        newSetBinder(binder(), IDaemon.class).addBinding().to(Spool.class);
+        newSetBinder(binder(), IDaemon.class).addBinding().to(Rollups.class);
+        newSetBinder(binder(), IDaemon.class).addBinding().to(HotWindow.class);
     }
 
     private <Int, Impl extends Int> void bindDao(Class<Int> interFace, Class<Impl> implementation)
@@ -48,22 +57,12 @@ public class DaoModule extends AbstractModule
     }
 
     /**
-     * Provides the {@link InfluxDB} instance.
+     * Provides the {@link InfluxDB} instance, that is shared by all data access objects.
      */
     @Provides
-    private InfluxDB influx()
+    @Singleton
+    private InfluxDB influx(InfluxConnection connection)
     {
-        InfluxDB influx = InfluxDBFactory.connect("http://127.0.0.1:8086", "root", "root");
-
-        Pong pong = influx.ping();
-        LOG.info("InfluxDB version: {}", pong.getVersion());
-
-        LOG.debug("Making sure that database '{}' exists", DATABASE_NAME);
-        influx.createDatabase(DATABASE_NAME);
-
-        LOG.debug("Making sure retention policies exists");
-        InfluxUtils.createRetentionPolicies(influx);
-
-        return influx;
+        return connection.getClient();
     }
 }
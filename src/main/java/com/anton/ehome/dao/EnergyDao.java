@@ -0,0 +1,92 @@
+/**
+ * Copyright 2017 Anton Johansson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anton.ehome.dao;
+
+import static com.anton.ehome.dao.InfluxUtils.DATABASE_NAME;
+
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.influxdb.InfluxDB;
+import org.influxdb.annotation.Column;
+import org.influxdb.annotation.Measurement;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.anton.ehome.domain.EnergyPeriod;
+import com.google.inject.Inject;
+
+/**
+ * Default implementation of {@link IEnergyDao}.
+ * <p>
+ * The energy of each device and period is a single point in the {@code energy} measurement, at the start of the period, so saving the energy
+ * of a period again overwrites the point. Energy is kept in the default retention policy, so it never expires.
+ * </p>
+ */
+class EnergyDao extends AbstractDao implements IEnergyDao
+{
+    private static final Logger LOG = LoggerFactory.getLogger(EnergyDao.class);
+    private static final String MEASUREMENT = "energy";
+    private static final String ENERGY_QUERY = "SELECT value, nodeId FROM \"[database]\"..energy WHERE period = '[period]' AND time = '[start]'";
+
+    @Inject
+    EnergyDao(InfluxDB influx)
+    {
+        super(influx);
+    }
+
+    @Override
+    public void saveEnergy(byte nodeId, EnergyPeriod period, long start, double kilowattHours)
+    {
+        LOG.debug("Saving energy of node {} for the {} starting at {}: {} kWh", nodeId, period.name().toLowerCase(), start, kilowattHours);
+        insert().measurement(MEASUREMENT, start)
+                .tag("nodeId", String.valueOf(nodeId))
+                .tag("period", period.name().toLowerCase())
+                .field("value", kilowattHours)
+                .execute();
+    }
+
+    @Override
+    public Map<Byte, Double> getEnergy(EnergyPeriod period, long start)
+    {
+        String query = ENERGY_QUERY
+                .replace("[database]", DATABASE_NAME)
+                .replace("[period]", period.name().toLowerCase())
+                .replace("[start]", Instant.ofEpochMilli(start).toString());
+
+        Map<Byte, Double> energy = new HashMap<>();
+        for (EnergyData data : selectMany(query, EnergyData.class))
+        {
+            if (data.value != null && data.nodeId != null)
+            {
+                energy.put(Byte.valueOf(data.nodeId), data.value);
+            }
+        }
+        return energy;
+    }
+
+    /**
+     * Defines the energy of a device and period stored in the database.
+     */
+    @Measurement(name = MEASUREMENT)
+    public static class EnergyData
+    {
+        private @Column(name = "time") Instant time;
+        private @Column(name = "value") Double value;
+        private @Column(name = "nodeId") String nodeId;
+    }
+}
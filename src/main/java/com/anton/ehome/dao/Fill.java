@@ -0,0 +1,52 @@
+/**
+ * Copyright 2017 Anton Johansson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anton.ehome.dao;
+
+/**
+ * Defines what value an aggregation gives intervals that have no metrics.
+ */
+public enum Fill
+{
+    /** Intervals without metrics are left out. */
+    NONE("none"),
+
+    /** Intervals without metrics have no value. */
+    NULL("null"),
+
+    /** Intervals without metrics get the value of the previous interval. */
+    PREVIOUS("previous"),
+
+    /** Intervals without metrics get a value interpolated between the surrounding intervals. */
+    LINEAR("linear"),
+
+    /** Intervals without metrics get the value zero. */
+    ZERO("0");
+
+    private final String option;
+
+    Fill(String option)
+    {
+        this.option = option;
+    }
+
+    /**
+     * Gets the option of the InfluxQL {@code fill()} clause.
+     */
+    String getOption()
+    {
+        return option;
+    }
+}
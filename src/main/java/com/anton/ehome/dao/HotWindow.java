@@ -0,0 +1,493 @@
+/**
+ * Copyright 2017 Anton Johansson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anton.ehome.dao;
+
+import static com.anton.ehome.dao.InfluxUtils.DATABASE_NAME;
+import static com.anton.ehome.dao.InfluxUtils.RETENTION_POLICY_RAW;
+import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.stream.Collectors.toList;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.LongSupplier;
+
+import org.influxdb.InfluxDB;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.anton.ehome.common.IDaemon;
+import com.anton.ehome.conf.Config;
+import com.anton.ehome.conf.IConfigService;
+import com.anton.ehome.conf.ZWaveConfig;
+import com.anton.ehome.conf.ZWaveMonitoringConfig;
+import com.anton.ehome.domain.Metric;
+import com.anton.ehome.utils.VisibleForTesting;
+import com.google.inject.Inject;
+
+/**
+ * Keeps the most recent raw metrics of each node in memory, so that recent ranges can be read without querying the database.
+ * <p>
+ * Each node has a fixed-capacity ring buffer of times and values, kept in primitive arrays ordered by time. A buffer knows from which time it
+ * is complete: initially from when the application started, since every metric saved after that passes through it. At startup, the buffers
+ * of all monitored nodes are warmed from the database in the background, which makes them complete from the start of the configured window.
+ * Warming waits until metrics that an earlier run left in the {@link Spool} are replayed, since they belong to the window but are not in the
+ * database until then.
+ * </p>
+ * <p>
+ * When a buffer is full, its oldest metric is moved to the history of the node: a list of compressed {@link MetricBlock blocks} stored
+ * off-heap, which can keep weeks of metrics within the configured memory budget. When the budget is used up, the oldest block of the node is
+ * released, and the node is only complete from after the last metric of that block.
+ * </p>
+ */
+class HotWindow extends AbstractDao implements IDaemon
+{
+    private static final Logger LOG = LoggerFactory.getLogger(HotWindow.class);
+    private static final int NUMBER_OF_NODES = 256;
+    private static final long SET_UP_TIMEOUT = 5;
+    private static final long RECOVERY_CHECK_INTERVAL = 1000;
+    private static final String WARM_QUERY = "SELECT time, value FROM \"[database]\".\"[retentionPolicy]\".metric"
+        + " WHERE nodeId = [nodeId] AND time >= [from]ms AND time < [to]ms";
+
+    private final AtomicReferenceArray<Series> series = new AtomicReferenceArray<>(NUMBER_OF_NODES);
+    private final AtomicLong historySize = new AtomicLong();
+    private final Thread thread = new Thread(this::warm, "metrics-hot-window-warmer");
+    private final IConfigService configService;
+    private final Rollups rollups;
+    private final Spool spool;
+    private final long startTime;
+    private volatile boolean isDone;
+
+    @Inject
+    HotWindow(InfluxDB influx, IConfigService configService, Rollups rollups, Spool spool)
+    {
+        this(influx, configService, rollups, spool, System::currentTimeMillis);
+    }
+
+    @VisibleForTesting
+    HotWindow(InfluxDB influx, IConfigService configService, Rollups rollups, Spool spool, LongSupplier clock)
+    {
+        super(influx);
+        this.configService = configService;
+        this.rollups = rollups;
+        this.spool = spool;
+        this.startTime = clock.getAsLong();
+    }
+
+    @Override
+    public boolean start()
+    {
+        if (getCapacity() > 0)
+        {
+            thread.start();
+        }
+        return true;
+    }
+
+    @Override
+    public void stop()
+    {
+        isDone = true;
+    }
+
+    /**
+     * Adds a metric to the buffer of the given node.
+     *
+     * @param nodeId The identifier of the node.
+     * @param time The time of the metric, in milliseconds since the epoch.
+     * @param value The value of the metric.
+     */
+    void add(byte nodeId, long time, double value)
+    {
+        Series buffer = getOrCreate(nodeId);
+        if (buffer != null)
+        {
+            buffer.add(time, value);
+        }
+    }
+
+    /**
+     * Gets the metrics of the given node between the given times, if the buffer of the node is complete for the whole range.
+     *
+     * @param nodeId The identifier of the node.
+     * @param from The start of the range, inclusive, in milliseconds since the epoch.
+     * @param to The end of the range, inclusive, in milliseconds since the epoch.
+     * @return Returns a cursor over the metrics; or {@link Optional#empty()} if the range is not completely kept in memory.
+     */
+    Optional<IMetricCursor> get(byte nodeId, long from, long to)
+    {
+        Series buffer = series.get(nodeId & 0xFF);
+        if (buffer == null)
+        {
+            return from >= startTime && getCapacity() > 0 ? Optional.of(new RangeCursor(new ArrayList<>(), from, to)) : Optional.empty();
+        }
+        return buffer.get(from, to);
+    }
+
+    /**
+     * Gets the number of bytes of off-heap memory that is used by the history of all nodes.
+     *
+     * @return Returns the number of bytes.
+     */
+    long getHistorySize()
+    {
+        return historySize.get();
+    }
+
+    /**
+     * Warms the buffers of all monitored nodes with the metrics stored before the application started.
+     * <p>
+     * The raw tier is only read after it's set up, since metrics stored before there were any tiers are copied into it then, and after the
+     * metrics spooled by an earlier run are replayed into it.
+     * </p>
+     */
+    @VisibleForTesting
+    void warm()
+    {
+        try
+        {
+            if (!rollups.awaitSetUp(SET_UP_TIMEOUT, MINUTES))
+            {
+                LOG.warn("The metric tiers are still not set up, warming the hot window anyway");
+            }
+            if (spool.isRecovering())
+            {
+                LOG.info("Waiting for spooled metrics to be replayed before warming the hot window");
+            }
+            while (spool.isRecovering())
+            {
+                if (isDone)
+                {
+                    return;
+                }
+                Thread.sleep(RECOVERY_CHECK_INTERVAL);
+            }
+        }
+        catch (InterruptedException e)
+        {
+            LOG.warn("Interrupted while waiting to warm the hot window");
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        Config config = configService.getCurrentConfig();
+        long from = startTime - HOURS.toMillis(config.getMetricsConfig().getHotWindowHours());
+        List<Byte> nodeIds = config.getZwaveConfigs()
+                .stream()
+                .map(ZWaveConfig::getMonitoringValues)
+                .filter(Objects::nonNull)
+                .flatMap(List::stream)
+                .map(ZWaveMonitoringConfig::getNodeId)
+                .distinct()
+                .collect(toList());
+
+        LOG.info("Warming the hot window of {} nodes", nodeIds.size());
+        for (byte nodeId : nodeIds)
+        {
+            if (isDone)
+            {
+                return;
+            }
+
+            try
+            {
+                String query = WARM_QUERY
+                        .replace("[database]", DATABASE_NAME)
+                        .replace("[retentionPolicy]", RETENTION_POLICY_RAW)
+                        .replace("[nodeId]", String.valueOf(nodeId))
+                        .replace("[from]", String.valueOf(from))
+                        .replace("[to]", String.valueOf(startTime));
+
+                List<Metric> metrics = selectMany(query, Metric.class);
+                Series buffer = getOrCreate(nodeId);
+                if (buffer != null)
+                {
+                    buffer.prepend(metrics, from, startTime);
+                }
+                LOG.debug("Warmed the hot window of node {} with {} metrics", nodeId, metrics.size());
+            }
+            catch (Exception e)
+            {
+                LOG.warn("Could not warm the hot window of node {}", nodeId, e);
+            }
+        }
+    }
+
+    private int getCapacity()
+    {
+        return configService.getCurrentConfig().getMetricsConfig().getHotWindowCapacity();
+    }
+
+    private Series getOrCreate(byte nodeId)
+    {
+        int index = nodeId & 0xFF;
+        Series buffer = series.get(index);
+        if (buffer == null)
+        {
+            int capacity = getCapacity();
+            if (capacity <= 0)
+            {
+                return null;
+            }
+            series.compareAndSet(index, null, new Series(capacity, startTime));
+            buffer = series.get(index);
+        }
+        return buffer;
+    }
+
+    private MetricBlock allocateBlock()
+    {
+        long budget = configService.getCurrentConfig().getMetricsConfig().getHotWindowHistorySize();
+        long size = historySize.get();
+        while (size + MetricBlock.SIZE <= budget)
+        {
+            if (historySize.compareAndSet(size, size + MetricBlock.SIZE))
+            {
+                return new MetricBlock();
+            }
+            size = historySize.get();
+        }
+        return null;
+    }
+
+    /**
+     * The metrics of one node: the history of compressed blocks, followed by a ring buffer of the most recent metrics.
+     */
+    private final class Series
+    {
+        private final Deque<MetricBlock> history = new ArrayDeque<>();
+        private long[] times;
+        private double[] values;
+        private int head;
+        private int size;
+        private long completeFrom;
+
+        private Series(int capacity, long completeFrom)
+        {
+            this.times = new long[capacity];
+            this.values = new double[capacity];
+            this.completeFrom = completeFrom;
+        }
+
+        synchronized void add(long time, double value)
+        {
+            int capacity = times.length;
+            if (size == capacity)
+            {
+                archive(times[head], values[head]);
+                head = (head + 1) % capacity;
+                size--;
+            }
+
+            // Metrics are mostly added in order, so only shift the few that are newer than the added one
+            int position = size;
+            while (position > 0 && times[index(position - 1)] > time)
+            {
+                times[index(position)] = times[index(position - 1)];
+                values[index(position)] = values[index(position - 1)];
+                position--;
+            }
+            times[index(position)] = time;
+            values[index(position)] = value;
+            size++;
+        }
+
+        synchronized Optional<IMetricCursor> get(long from, long to)
+        {
+            if (from < completeFrom)
+            {
+                return Optional.empty();
+            }
+
+            List<IMetricCursor> cursors = new ArrayList<>();
+            for (MetricBlock block : history)
+            {
+                if (block.getLastTime() >= from && block.getFirstTime() <= to)
+                {
+                    cursors.add(block.cursor());
+                }
+            }
+
+            int first = firstAtOrAfter(from);
+            int last = first;
+            while (last < size && times[index(last)] <= to)
+            {
+                last++;
+            }
+            long[] rangeTimes = new long[last - first];
+            double[] rangeValues = new double[last - first];
+            for (int position = first; position < last; position++)
+            {
+                rangeTimes[position - first] = times[index(position)];
+                rangeValues[position - first] = values[index(position)];
+            }
+            cursors.add(new ArrayCursor(rangeTimes, rangeValues));
+            return Optional.of(new RangeCursor(cursors, from, to));
+        }
+
+        /**
+         * Adds metrics between the given times, that are older than all metrics in the buffer, making it complete from the given time if all
+         * of them fit. Nothing is added if metrics have already been moved to the history, since the added ones would not be in order.
+         */
+        synchronized void prepend(List<Metric> older, long from, long to)
+        {
+            if (completeFrom > to || !history.isEmpty())
+            {
+                return;
+            }
+
+            int capacity = times.length;
+            long[] newTimes = new long[capacity];
+            double[] newValues = new double[capacity];
+            int total = older.size() + size;
+            int skip = Math.max(0, total - capacity);
+            completeFrom = Math.min(completeFrom, from);
+
+            int count = 0;
+            for (int i = 0; i < older.size(); i++)
+            {
+                long time = older.get(i).getTime().toEpochMilli();
+                double value = older.get(i).getValue();
+                if (i < skip)
+                {
+                    archive(time, value);
+                }
+                else
+                {
+                    newTimes[count] = time;
+                    newValues[count] = value;
+                    count++;
+                }
+            }
+            for (int position = 0; position < size; position++)
+            {
+                if (position < skip - older.size())
+                {
+                    archive(times[index(position)], values[index(position)]);
+                }
+                else
+                {
+                    newTimes[count] = times[index(position)];
+                    newValues[count] = values[index(position)];
+                    count++;
+                }
+            }
+
+            times = newTimes;
+            values = newValues;
+            head = 0;
+            size = count;
+        }
+
+        /**
+         * Moves a metric that is evicted from the ring buffer to the history, releasing the oldest block of the history if the memory budget is
+         * used up. If the metric still can't be kept, the series is only complete from after it.
+         */
+        private void archive(long time, double value)
+        {
+            MetricBlock block = history.peekLast();
+            if (block != null && time < block.getLastTime())
+            {
+                completeFrom = Math.max(completeFrom, time + 1);
+                return;
+            }
+            if (block != null && block.append(time, value))
+            {
+                return;
+            }
+
+            block = allocateBlock();
+            if (block == null && !history.isEmpty())
+            {
+                MetricBlock oldest = history.removeFirst();
+                historySize.addAndGet(-MetricBlock.SIZE);
+                completeFrom = Math.max(completeFrom, oldest.getLastTime() + 1);
+                block = allocateBlock();
+            }
+            if (block == null)
+            {
+                completeFrom = Math.max(completeFrom, time + 1);
+                return;
+            }
+            block.append(time, value);
+            history.addLast(block);
+        }
+
+        private int firstAtOrAfter(long time)
+        {
+            int low = 0;
+            int high = size;
+            while (low < high)
+            {
+                int middle = (low + high) >>> 1;
+                if (times[index(middle)] < time)
+                {
+                    low = middle + 1;
+                }
+                else
+                {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+
+        private int index(int position)
+        {
+            return (head + position) % times.length;
+        }
+    }
+
+    /**
+     * Iterates over metrics copied from a ring buffer.
+     */
+    private static final class ArrayCursor implements IMetricCursor
+    {
+        private final long[] times;
+        private final double[] values;
+        private int position = -1;
+
+        private ArrayCursor(long[] times, double[] values)
+        {
+            this.times = times;
+            this.values = values;
+        }
+
+        @Override
+        public boolean next()
+        {
+            return ++position < times.length;
+        }
+
+        @Override
+        public long getTime()
+        {
+            return times[position];
+        }
+
+        @Override
+        public double getValue()
+        {
+            return values[position];
+        }
+    }
+}
@@ -0,0 +1,47 @@
+/**
+ * Copyright 2017 Anton Johansson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anton.ehome.dao;
+
+/**
+ * Iterates over the intervals of an aggregation in time order, without creating an object for each interval.
+ * <p>
+ * A cursor is positioned before the first interval, and {@link #next()} has to be called before reading the time and values of each interval.
+ * </p>
+ */
+public interface IAggregateCursor
+{
+    /**
+     * Moves to the next interval.
+     *
+     * @return Returns {@code true} if there was a next interval; or {@code false} if all intervals are read.
+     */
+    boolean next();
+
+    /**
+     * Gets the start of the current interval.
+     *
+     * @return Returns the time, in milliseconds since the epoch.
+     */
+    long getTime();
+
+    /**
+     * Gets the value of an aggregate in the current interval.
+     *
+     * @param index The index of the aggregate, in the order that the aggregates were given.
+     * @return Returns the value; or {@link Double#NaN} if the interval has no value.
+     */
+    double getValue(int index);
+}
@@ -0,0 +1,45 @@
+/**
+ * Copyright 2017 Anton Johansson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anton.ehome.dao;
+
+import java.util.Map;
+
+import com.anton.ehome.domain.EnergyPeriod;
+
+/**
+ * Provides persistence operations for the energy used by devices.
+ */
+public interface IEnergyDao
+{
+    /**
+     * Saves the energy used by a device in a period, replacing the energy that was saved for the same period before.
+     *
+     * @param nodeId The identifier of the device.
+     * @param period The kind of period.
+     * @param start The start of the period, in milliseconds since the epoch.
+     * @param kilowattHours The energy used in the period, in kilowatt hours.
+     */
+    void saveEnergy(byte nodeId, EnergyPeriod period, long start, double kilowattHours);
+
+    /**
+     * Gets the energy used by all devices in a period.
+     *
+     * @param period The kind of period.
+     * @param start The start of the period, in milliseconds since the epoch.
+     * @return Returns the energy used by each device that has any saved, in kilowatt hours.
+     */
+    Map<Byte, Double> getEnergy(EnergyPeriod period, long start);
+}
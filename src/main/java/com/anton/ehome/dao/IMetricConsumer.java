@@ -0,0 +1,32 @@
+/**
+ * Copyright 2017 Anton Johansson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anton.ehome.dao;
+
+/**
+ * Consumes metrics one at a time, as they are streamed from the database.
+ */
+@FunctionalInterface
+public interface IMetricConsumer
+{
+    /**
+     * Consumes a metric.
+     *
+     * @param time The time of the metric, in milliseconds since the epoch.
+     * @param value The value of the metric.
+     * @return Returns {@code true} to continue with the next metric; or {@code false} to stop streaming and cancel the query.
+     */
+    boolean accept(long time, double value);
+}
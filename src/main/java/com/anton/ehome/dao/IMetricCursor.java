@@ -0,0 +1,46 @@
+/**
+ * Copyright 2017 Anton Johansson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anton.ehome.dao;
+
+/**
+ * Iterates over metrics in time order, without creating an object for each metric.
+ * <p>
+ * A cursor is positioned before the first metric, and {@link #next()} has to be called before reading the time and value of each metric.
+ * </p>
+ */
+public interface IMetricCursor
+{
+    /**
+     * Moves to the next metric.
+     *
+     * @return Returns {@code true} if there was a next metric; or {@code false} if all metrics are read.
+     */
+    boolean next();
+
+    /**
+     * Gets the time of the current metric.
+     *
+     * @return Returns the time, in milliseconds since the epoch.
+     */
+    long getTime();
+
+    /**
+     * Gets the value of the current metric.
+     *
+     * @return Returns the value.
+     */
+    double getValue();
+}
@@ -15,10 +15,14 @@
  */
 package com.anton.ehome.dao;
 
+import java.time.Duration;
 import java.time.LocalDateTime;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 import com.anton.ehome.domain.Metric;
+import com.anton.ehome.domain.WriteStatistics;
 
 /**
  * Provides persistence operations for managing metrics.
@@ -27,6 +31,9 @@ public interface IMetricsDao
 {
     /**
      * Saves a metric.
+     * <p>
+     * The metric is queued and written to the database in the background, together with other metrics.
+     * </p>
      *
      * @param nodeId The identifier of the device.
      * @param value The value of the metric.
@@ -34,7 +41,50 @@ public interface IMetricsDao
     void save(byte nodeId, double value);
 
     /**
-     * Gets metrics for the device between the given times.
+     * Saves a metric that was read at the given time.
+     *
+     * @param nodeId The identifier of the device.
+     * @param value The value of the metric.
+     * @param time The time of the metric, in milliseconds since the epoch.
+     * @see #save(byte, double)
+     */
+    void save(byte nodeId, double value, long time);
+
+    /**
+     * Gets the time when a metric of the device was last saved.
+     * <p>
+     * The time is increased for every save, even within the same millisecond, so it can be used as a version of the metrics of the device.
+     * </p>
+     *
+     * @param nodeId The identifier of the device.
+     * @return Returns the time, in milliseconds since the epoch; or zero if no metric of the device was saved since startup.
+     */
+    long getLastSaveTime(byte nodeId);
+
+    /**
+     * Gets a version of the metrics of the device that are read from the given date at the given resolution.
+     * <p>
+     * The version is the {@link #getLastSaveTime(byte) save time} of the latest metric that such a read can find. Saved metrics are readable
+     * once they are written to the database, and rolled up metrics once the rollup has run after that, so the version changes only when a read
+     * would return something new, rather than when metrics are saved.
+     * </p>
+     *
+     * @param nodeId The identifier of the device.
+     * @param from The date that the metrics are read from.
+     * @param resolution The largest acceptable time between two metrics, or the step that the metrics are aggregated in.
+     * @return Returns the version; or zero if no metric of the device that the read can find was saved since startup.
+     */
+    long getVersion(byte nodeId, LocalDateTime from, Duration resolution);
+
+    /**
+     * Adds a listener for when metrics are saved. Listeners should return quickly, since they are called on the thread that saves the metric.
+     *
+     * @param listener The listener to add.
+     */
+    void onSaved(IMetricListener listener);
+
+    /**
+     * Gets metrics for the device between the given times, at the finest resolution that is still kept for the given range.
      *
      * @param nodeId The device.
      * @param from Get metrics from this date.
@@ -42,4 +92,112 @@ public interface IMetricsDao
      * @return Returns all found metrics.
      */
     List<Metric> getMetrics(byte nodeId, LocalDateTime from, LocalDateTime to);
+
+    /**
+     * Gets metrics for the device between the given times.
+     * <p>
+     * Metrics are read from the coarsest rollup that has the given resolution, or a finer one, and that is still kept for the given range. The
+     * value of a rolled up metric is the mean of the metrics it was rolled up from.
+     * </p>
+     *
+     * @param nodeId The device.
+     * @param from Get metrics from this date.
+     * @param to Get metrics to this date.
+     * @param resolution The largest acceptable time between two metrics.
+     * @return Returns all found metrics.
+     */
+    List<Metric> getMetrics(byte nodeId, LocalDateTime from, LocalDateTime to, Duration resolution);
+
+    /**
+     * Gets a cursor over metrics for the device between the given times, for callers that process many metrics one at a time.
+     *
+     * @param nodeId The device.
+     * @param from Get metrics from this date.
+     * @param to Get metrics to this date.
+     * @param resolution The largest acceptable time between two metrics.
+     * @return Returns a cursor over all found metrics.
+     * @see #getMetrics(byte, LocalDateTime, LocalDateTime, Duration)
+     */
+    IMetricCursor getMetricCursor(byte nodeId, LocalDateTime from, LocalDateTime to, Duration resolution);
+
+    /**
+     * Gets cursors over metrics for several devices between the given times, reading the metrics of all devices in a single query.
+     *
+     * @param nodeIds The devices.
+     * @param from Get metrics from this date.
+     * @param to Get metrics to this date.
+     * @param resolution The largest acceptable time between two metrics.
+     * @return Returns a cursor over all found metrics for each of the given devices.
+     * @see #getMetricCursor(byte, LocalDateTime, LocalDateTime, Duration)
+     */
+    Map<Byte, IMetricCursor> getMetricCursors(Collection<Byte> nodeIds, LocalDateTime from, LocalDateTime to, Duration resolution);
+
+    /**
+     * Gets cursors over metrics for several devices that are newer than the given time, up to and including the other given time, reading the
+     * metrics of all devices in a single query.
+     * <p>
+     * This is meant for callers that already have the metrics up to a given time, and only need the ones after it. Only the metrics after that
+     * time are read, so a short range is usually served from memory, without a query.
+     * </p>
+     *
+     * @param nodeIds The devices.
+     * @param since Get metrics after this time, in milliseconds since the epoch.
+     * @param to Get metrics to this time, in milliseconds since the epoch.
+     * @param resolution The largest acceptable time between two metrics.
+     * @return Returns a cursor over all found metrics for each of the given devices.
+     * @see #getMetricCursors(Collection, LocalDateTime, LocalDateTime, Duration)
+     */
+    Map<Byte, IMetricCursor> getMetricCursorsSince(Collection<Byte> nodeIds, long since, long to, Duration resolution);
+
+    /**
+     * Aggregates metrics for several devices between the given times, in intervals of the given length, in a single query.
+     * <p>
+     * The aggregation is done by the database, and only the aggregated values are read. Intervals are aligned to the epoch, rather than to the
+     * start of the range, and the metrics are read from the coarsest rollup that has intervals no longer than the given ones.
+     * </p>
+     *
+     * @param nodeIds The devices.
+     * @param from Aggregate metrics from this date.
+     * @param to Aggregate metrics to this date.
+     * @param step The length of each interval; at least one millisecond.
+     * @param fill What value to give intervals without metrics.
+     * @param aggregates The functions to reduce the metrics of each interval with; at least one.
+     * @return Returns a cursor over the intervals for each of the given devices, with the values of the aggregates in the given order.
+     */
+    Map<Byte, IAggregateCursor> getAggregates(
+            Collection<Byte> nodeIds, LocalDateTime from, LocalDateTime to, Duration step, Fill fill, Aggregate... aggregates);
+
+    /**
+     * Streams metrics for the device between the given times to the given consumer, for exports and other reads of long ranges.
+     * <p>
+     * Metrics are read from the database in chunks, so only a few chunks are held in memory at any time, and the consumer gets the first
+     * metrics before the whole range is read. When the consumer returns {@code false}, the query is cancelled.
+     * </p>
+     *
+     * @param nodeId The device.
+     * @param from Get metrics from this date.
+     * @param to Get metrics to this date.
+     * @param resolution The largest acceptable time between two metrics.
+     * @param consumer The consumer of the metrics, called on the calling thread.
+     * @see #getMetrics(byte, LocalDateTime, LocalDateTime, Duration)
+     */
+    void streamMetrics(byte nodeId, LocalDateTime from, LocalDateTime to, Duration resolution, IMetricConsumer consumer);
+
+    /**
+     * Checks whether or not some saved metrics, other than those that wait in the write queue, are not yet written to the database.
+     * <p>
+     * Metrics that can't be written are spooled, and are written with their original times once the database is reachable again. Until then,
+     * a read from the database can miss metrics that are older than the newest metrics it returns.
+     * </p>
+     *
+     * @return Returns {@code true} if metrics are being written or wait in the spool.
+     */
+    boolean hasUnwrittenMetrics();
+
+    /**
+     * Gets statistics of the queue that metrics are written through.
+     *
+     * @return Returns the statistics.
+     */
+    WriteStatistics getWriteStatistics();
 }
@@ -0,0 +1,222 @@
+/**
+ * Copyright 2017 Anton Johansson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anton.ehome.dao;
+
+import static com.anton.ehome.dao.InfluxUtils.DATABASE_NAME;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.util.concurrent.CountDownLatch;
+
+import org.influxdb.InfluxDB;
+import org.influxdb.InfluxDBFactory;
+import org.influxdb.dto.Pong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.anton.ehome.common.IDaemon;
+import com.anton.ehome.utils.VisibleForTesting;
+import com.google.inject.Inject;
+
+import okhttp3.ConnectionPool;
+import okhttp3.OkHttpClient;
+
+/**
+ * Holds the {@link InfluxDB} client that is shared by all data access objects, and monitors the connection to the database in the background.
+ * <p>
+ * The database is pinged regularly. When it's reachable for the first time, or again after being unreachable, the monitor makes sure that the
+ * database and its retention policies exist. While it's unreachable, pooled connections are evicted and the monitor tries to reconnect with
+ * an exponentially increasing delay.
+ * </p>
+ */
+class InfluxConnection implements IDaemon
+{
+    private static final Logger LOG = LoggerFactory.getLogger(InfluxConnection.class);
+    private static final long INITIAL_RECONNECT_DELAY = 1000;
+
+    private final CountDownLatch prepared = new CountDownLatch(1);
+    private final Thread thread = new Thread(new HealthMonitor(), "influx-health-monitor");
+    private final InfluxSettings settings;
+    private final OkHttpClient httpClient;
+    private final InfluxDB influx;
+    private volatile boolean isDone;
+    private boolean isHealthy;
+    private int failures;
+
+    @Inject
+    InfluxConnection()
+    {
+        this(new InfluxSettings(System.getProperties()));
+    }
+
+    private InfluxConnection(InfluxSettings settings)
+    {
+        this(settings, new OkHttpClient.Builder()
+                .connectionPool(new ConnectionPool(settings.getMaxIdleConnections(), settings.getKeepAlive(), SECONDS))
+                .connectTimeout(settings.getConnectTimeout(), SECONDS)
+                .readTimeout(settings.getReadTimeout(), SECONDS)
+                .writeTimeout(settings.getWriteTimeout(), SECONDS)
+                .build());
+    }
+
+    private InfluxConnection(InfluxSettings settings, OkHttpClient httpClient)
+    {
+        this(settings, httpClient, connect(settings, httpClient));
+    }
+
+    @VisibleForTesting
+    InfluxConnection(InfluxSettings settings, OkHttpClient httpClient, InfluxDB influx)
+    {
+        this.settings = settings;
+        this.httpClient = httpClient;
+        this.influx = influx;
+        this.thread.setDaemon(true);
+    }
+
+    private static InfluxDB connect(InfluxSettings settings, OkHttpClient httpClient)
+    {
+        InfluxDB influx = InfluxDBFactory.connect(settings.getUrl(), settings.getUsername(), settings.getPassword(), httpClient.newBuilder());
+        if (settings.isGzip())
+        {
+            influx.enableGzip();
+        }
+        return influx;
+    }
+
+    @Override
+    public boolean start()
+    {
+        startMonitor();
+        return true;
+    }
+
+    @Override
+    public void stop()
+    {
+        isDone = true;
+        thread.interrupt();
+    }
+
+    /**
+     * Gets the shared client. The first time, the monitor is started and the database gets at most the configured startup timeout to become
+     * reachable, after which the client is returned anyway and the monitor keeps reconnecting in the background.
+     *
+     * @return Returns the client.
+     */
+    InfluxDB getClient()
+    {
+        startMonitor();
+        try
+        {
+            if (!prepared.await(settings.getStartupTimeout(), SECONDS))
+            {
+                LOG.warn("InfluxDB at {} is not reachable yet, continuing while reconnecting in the background", settings.getUrl());
+            }
+        }
+        catch (InterruptedException e)
+        {
+            LOG.warn("Interrupted while waiting for InfluxDB to become reachable");
+            Thread.currentThread().interrupt();
+        }
+        return influx;
+    }
+
+    /**
+     * Gets the HTTP client that the shared client sends its requests with, for requests that the shared client can't send.
+     */
+    OkHttpClient getHttpClient()
+    {
+        return httpClient;
+    }
+
+    InfluxSettings getSettings()
+    {
+        return settings;
+    }
+
+    private synchronized void startMonitor()
+    {
+        if (thread.getState() == Thread.State.NEW)
+        {
+            LOG.info("Connecting to InfluxDB at {}", settings.getUrl());
+            thread.start();
+        }
+    }
+
+    /**
+     * Checks the connection to the database, preparing the database if it just became reachable.
+     *
+     * @return Returns the number of milliseconds until the connection should be checked again.
+     */
+    @VisibleForTesting
+    long check()
+    {
+        try
+        {
+            Pong pong = influx.ping();
+            if (!isHealthy)
+            {
+                LOG.debug("Making sure that database '{}' exists", DATABASE_NAME);
+                influx.createDatabase(DATABASE_NAME);
+
+                LOG.debug("Making sure retention policies exists");
+                InfluxUtils.createRetentionPolicies(influx);
+
+                LOG.info("Connected to InfluxDB version {} at {}", pong.getVersion(), settings.getUrl());
+                isHealthy = true;
+                failures = 0;
+                prepared.countDown();
+            }
+            return SECONDS.toMillis(settings.getHealthCheckInterval());
+        }
+        catch (Exception e)
+        {
+            if (failures == 0)
+            {
+                LOG.warn("Could not reach InfluxDB at {}, trying to reconnect", settings.getUrl(), e);
+            }
+            isHealthy = false;
+            httpClient.connectionPool().evictAll();
+            long delay = Math.min(SECONDS.toMillis(settings.getMaxReconnectDelay()), INITIAL_RECONNECT_DELAY << Math.min(failures, 30));
+            failures++;
+            LOG.debug("Trying to reconnect to InfluxDB in {} ms", delay);
+            return delay;
+        }
+    }
+
+    /**
+     * Checks the connection to the database until stopped.
+     */
+    private class HealthMonitor implements Runnable
+    {
+        @Override
+        public void run()
+        {
+            while (!isDone)
+            {
+                long delay = check();
+                try
+                {
+                    Thread.sleep(delay);
+                }
+                catch (InterruptedException e)
+                {
+                    LOG.debug("Interrupted while waiting for the next check of the connection to InfluxDB");
+                }
+            }
+            LOG.info("InfluxDB health monitor stopped");
+        }
+    }
+}
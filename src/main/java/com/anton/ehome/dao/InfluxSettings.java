@@ -0,0 +1,142 @@
+/**
+ * Copyright 2017 Anton Johansson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anton.ehome.dao;
+
+import java.util.Properties;
+
+import org.influxdb.InfluxDB;
+
+/**
+ * Defines how to connect to the {@link InfluxDB}.
+ * <p>
+ * The configuration of the application is stored in the database, so these settings are read from system properties instead, such as
+ * {@code -Dehome.influx.url=http://influxdb:8086}. Durations are in seconds.
+ * </p>
+ */
+final class InfluxSettings
+{
+    private static final String PREFIX = "ehome.influx.";
+
+    private final String url;
+    private final String username;
+    private final String password;
+    private final int maxIdleConnections;
+    private final long keepAlive;
+    private final boolean gzip;
+    private final long connectTimeout;
+    private final long readTimeout;
+    private final long writeTimeout;
+    private final long startupTimeout;
+    private final long healthCheckInterval;
+    private final long maxReconnectDelay;
+
+    InfluxSettings(Properties properties)
+    {
+        url = properties.getProperty(PREFIX + "url", "http://127.0.0.1:8086");
+        username = properties.getProperty(PREFIX + "username", "root");
+        password = properties.getProperty(PREFIX + "password", "root");
+        maxIdleConnections = Integer.parseInt(properties.getProperty(PREFIX + "maxIdleConnections", "5"));
+        keepAlive = Long.parseLong(properties.getProperty(PREFIX + "keepAlive", "300"));
+        gzip = Boolean.parseBoolean(properties.getProperty(PREFIX + "gzip", "true"));
+        connectTimeout = Long.parseLong(properties.getProperty(PREFIX + "connectTimeout", "10"));
+        readTimeout = Long.parseLong(properties.getProperty(PREFIX + "readTimeout", "60"));
+        writeTimeout = Long.parseLong(properties.getProperty(PREFIX + "writeTimeout", "60"));
+        startupTimeout = Long.parseLong(properties.getProperty(PREFIX + "startupTimeout", "10"));
+        healthCheckInterval = Long.parseLong(properties.getProperty(PREFIX + "healthCheckInterval", "30"));
+        maxReconnectDelay = Long.parseLong(properties.getProperty(PREFIX + "maxReconnectDelay", "60"));
+    }
+
+    /**
+     * Gets the URL of the database.
+     */
+    String getUrl()
+    {
+        return url;
+    }
+
+    String getUsername()
+    {
+        return username;
+    }
+
+    String getPassword()
+    {
+        return password;
+    }
+
+    /**
+     * Gets the maximum number of idle connections that are kept in the connection pool.
+     */
+    int getMaxIdleConnections()
+    {
+        return maxIdleConnections;
+    }
+
+    /**
+     * Gets the number of seconds that an idle connection is kept in the connection pool.
+     */
+    long getKeepAlive()
+    {
+        return keepAlive;
+    }
+
+    /**
+     * Gets whether or not the bodies of requests, such as batches of metrics, are compressed.
+     */
+    boolean isGzip()
+    {
+        return gzip;
+    }
+
+    long getConnectTimeout()
+    {
+        return connectTimeout;
+    }
+
+    long getReadTimeout()
+    {
+        return readTimeout;
+    }
+
+    long getWriteTimeout()
+    {
+        return writeTimeout;
+    }
+
+    /**
+     * Gets the number of seconds to wait for the database at startup, before continuing without it.
+     */
+    long getStartupTimeout()
+    {
+        return startupTimeout;
+    }
+
+    /**
+     * Gets the number of seconds between checks of a healthy connection.
+     */
+    long getHealthCheckInterval()
+    {
+        return healthCheckInterval;
+    }
+
+    /**
+     * Gets the maximum number of seconds between attempts to reconnect to the database.
+     */
+    long getMaxReconnectDelay()
+    {
+        return maxReconnectDelay;
+    }
+}
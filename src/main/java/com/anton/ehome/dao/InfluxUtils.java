@@ -15,6 +15,10 @@
  */
 package com.anton.ehome.dao;
 
+import java.time.Duration;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
 import org.influxdb.InfluxDB;
 
 /**
@@ -28,6 +32,20 @@ final class InfluxUtils
     /** A retention policy that expire after one hour. */
     static final String RETENTION_POLICY_ONE_HOUR = "one-hour";
 
+    /** The retention policy of raw metrics. */
+    static final String RETENTION_POLICY_RAW = "raw";
+
+    /** The retention policy of one minute metric rollups. */
+    static final String RETENTION_POLICY_ROLLUP_MINUTE = "rollup-1m";
+
+    /** The retention policy of one hour metric rollups. */
+    static final String RETENTION_POLICY_ROLLUP_HOUR = "rollup-1h";
+
+    /** The duration of a retention policy that never expires. */
+    static final Duration INFINITE = Duration.ofSeconds(Long.MAX_VALUE);
+
+    private static final Pattern DURATION_PART = Pattern.compile("(\\d+)(ns|us|u|\u00b5|ms|s|m|h|d|w)");
+
     // Prevent instantiation
     private InfluxUtils()
     {
@@ -41,5 +59,63 @@ final class InfluxUtils
     static void createRetentionPolicies(InfluxDB influx)
     {
         influx.createRetentionPolicy(RETENTION_POLICY_ONE_HOUR, DATABASE_NAME, "60m", 1, false);
+        influx.createRetentionPolicy(RETENTION_POLICY_RAW, DATABASE_NAME, "7d", 1, false);
+        influx.createRetentionPolicy(RETENTION_POLICY_ROLLUP_MINUTE, DATABASE_NAME, "30d", 1, false);
+        influx.createRetentionPolicy(RETENTION_POLICY_ROLLUP_HOUR, DATABASE_NAME, "INF", 1, false);
+    }
+
+    /**
+     * Parses a duration literal, as used by retention policies, such as {@code 30d}, {@code 1h30m} or {@code INF}.
+     *
+     * @param literal The literal to parse.
+     * @return Returns the parsed duration; or {@link #INFINITE} for {@code INF}.
+     */
+    static Duration parseDuration(String literal)
+    {
+        if ("INF".equalsIgnoreCase(literal))
+        {
+            return INFINITE;
+        }
+
+        Matcher matcher = DURATION_PART.matcher(literal);
+        Duration duration = Duration.ZERO;
+        int end = 0;
+        while (matcher.find() && matcher.start() == end)
+        {
+            long amount = Long.parseLong(matcher.group(1));
+            duration = duration.plus(toDuration(amount, matcher.group(2)));
+            end = matcher.end();
+        }
+        if (end == 0 || end != literal.length())
+        {
+            throw new IllegalArgumentException("Invalid duration: '" + literal + "'");
+        }
+        return duration;
+    }
+
+    private static Duration toDuration(long amount, String unit)
+    {
+        switch (unit)
+        {
+            case "ns":
+                return Duration.ofNanos(amount);
+            case "us":
+            case "u":
+            case "\u00b5":
+                return Duration.ofNanos(amount * 1000);
+            case "ms":
+                return Duration.ofMillis(amount);
+            case "s":
+                return Duration.ofSeconds(amount);
+            case "m":
+                return Duration.ofMinutes(amount);
+            case "h":
+                return Duration.ofHours(amount);
+            case "d":
+                return Duration.ofDays(amount);
+            case "w":
+            default:
+                return Duration.ofDays(amount * 7);
+        }
     }
 }
@@ -0,0 +1,299 @@
+/**
+ * Copyright 2017 Anton Johansson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anton.ehome.dao;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A fixed-size block of compressed metrics, stored off-heap in a direct {@link ByteBuffer}.
+ * <p>
+ * Metrics are appended in time order. The first time and value are stored as is, after that times are stored as the difference between
+ * consecutive deltas and values as the XOR with the previous value, as described in the paper about Facebook's Gorilla time series database.
+ * Metrics read at a steady interval with slowly changing values take around two bytes each.
+ * </p>
+ * <p>
+ * A block is appended to by one thread at a time, but can be read by {@link #cursor() cursors} concurrently, since bits that are already
+ * written never change.
+ * </p>
+ */
+final class MetricBlock
+{
+    /** The size, in bytes, of each block. */
+    static final int SIZE = 4096;
+
+    /** The largest number of bits a single metric can take: a 64-bit delta and a 64-bit XOR, with their control bits. */
+    private static final int MAX_METRIC_BITS = 4 + 64 + 2 + 5 + 6 + 64;
+
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(SIZE);
+    private final long capacity = SIZE * 8L;
+    private volatile int count;
+    private long position;
+    private long firstTime;
+    private long lastTime;
+    private long lastDelta;
+    private long lastValue;
+    private int lastLeading = -1;
+    private int lastTrailing;
+
+    /**
+     * Appends a metric to the block.
+     *
+     * @param time The time of the metric, in milliseconds since the epoch; not before the time of the previous metric.
+     * @param value The value of the metric.
+     * @return Returns {@code false} if the block is full.
+     */
+    boolean append(long time, double value)
+    {
+        if (capacity - position < MAX_METRIC_BITS)
+        {
+            return false;
+        }
+        if (count > 0 && time < lastTime)
+        {
+            throw new IllegalArgumentException("Metrics must be appended in time order");
+        }
+
+        long bits = Double.doubleToRawLongBits(value);
+        if (count == 0)
+        {
+            write(time, 64);
+            write(bits, 64);
+            firstTime = time;
+        }
+        else
+        {
+            long delta = time - lastTime;
+            writeDeltaOfDelta(delta - lastDelta);
+            writeXor(bits ^ lastValue);
+            lastDelta = delta;
+        }
+        lastTime = time;
+        lastValue = bits;
+        count++;
+        return true;
+    }
+
+    int getCount()
+    {
+        return count;
+    }
+
+    long getFirstTime()
+    {
+        return firstTime;
+    }
+
+    long getLastTime()
+    {
+        return lastTime;
+    }
+
+    /**
+     * Gets the number of bytes that are used by the metrics in the block.
+     */
+    int getUsedBytes()
+    {
+        return (int) ((position + 7) / 8);
+    }
+
+    /**
+     * Creates a cursor over the metrics that are in the block right now.
+     *
+     * @return Returns the cursor.
+     */
+    IMetricCursor cursor()
+    {
+        return new Cursor(count);
+    }
+
+    private void writeDeltaOfDelta(long deltaOfDelta)
+    {
+        if (deltaOfDelta == 0)
+        {
+            write(0b0, 1);
+        }
+        else if (deltaOfDelta >= -63 && deltaOfDelta <= 64)
+        {
+            write(0b10, 2);
+            write(deltaOfDelta + 63, 7);
+        }
+        else if (deltaOfDelta >= -255 && deltaOfDelta <= 256)
+        {
+            write(0b110, 3);
+            write(deltaOfDelta + 255, 9);
+        }
+        else if (deltaOfDelta >= -2047 && deltaOfDelta <= 2048)
+        {
+            write(0b1110, 4);
+            write(deltaOfDelta + 2047, 12);
+        }
+        else
+        {
+            write(0b1111, 4);
+            write(deltaOfDelta, 64);
+        }
+    }
+
+    private void writeXor(long xor)
+    {
+        if (xor == 0)
+        {
+            write(0b0, 1);
+            return;
+        }
+
+        int leading = Math.min(Long.numberOfLeadingZeros(xor), 31);
+        int trailing = Long.numberOfTrailingZeros(xor);
+        if (lastLeading >= 0 && leading >= lastLeading && trailing >= lastTrailing)
+        {
+            write(0b10, 2);
+            write(xor >>> lastTrailing, 64 - lastLeading - lastTrailing);
+        }
+        else
+        {
+            int significant = 64 - leading - trailing;
+            write(0b11, 2);
+            write(leading, 5);
+            write(significant - 1, 6);
+            write(xor >>> trailing, significant);
+            lastLeading = leading;
+            lastTrailing = trailing;
+        }
+    }
+
+    private void write(long value, int numberOfBits)
+    {
+        int remaining = numberOfBits;
+        while (remaining > 0)
+        {
+            int index = (int) (position >>> 3);
+            int free = 8 - (int) (position & 7);
+            int bits = Math.min(free, remaining);
+            int chunk = (int) (value >>> (remaining - bits)) & ((1 << bits) - 1);
+            buffer.put(index, (byte) (buffer.get(index) | (chunk << (free - bits))));
+            remaining -= bits;
+            position += bits;
+        }
+    }
+
+    /**
+     * Reads the metrics of the block, mirroring how they were written.
+     */
+    private final class Cursor implements IMetricCursor
+    {
+        private final int size;
+        private int read;
+        private long position;
+        private long time;
+        private long delta;
+        private long value;
+        private int leading;
+        private int trailing;
+
+        private Cursor(int size)
+        {
+            this.size = size;
+        }
+
+        @Override
+        public boolean next()
+        {
+            if (read >= size)
+            {
+                return false;
+            }
+
+            if (read == 0)
+            {
+                time = read(64);
+                value = read(64);
+            }
+            else
+            {
+                delta += readDeltaOfDelta();
+                time += delta;
+                value ^= readXor();
+            }
+            read++;
+            return true;
+        }
+
+        @Override
+        public long getTime()
+        {
+            return time;
+        }
+
+        @Override
+        public double getValue()
+        {
+            return Double.longBitsToDouble(value);
+        }
+
+        private long readDeltaOfDelta()
+        {
+            if (read(1) == 0)
+            {
+                return 0;
+            }
+            if (read(1) == 0)
+            {
+                return read(7) - 63;
+            }
+            if (read(1) == 0)
+            {
+                return read(9) - 255;
+            }
+            if (read(1) == 0)
+            {
+                return read(12) - 2047;
+            }
+            return read(64);
+        }
+
+        private long readXor()
+        {
+            if (read(1) == 0)
+            {
+                return 0;
+            }
+            if (read(1) == 1)
+            {
+                leading = (int) read(5);
+                int significant = (int) read(6) + 1;
+                trailing = 64 - leading - significant;
+            }
+            return read(64 - leading - trailing) << trailing;
+        }
+
+        private long read(int numberOfBits)
+        {
+            long result = 0;
+            int remaining = numberOfBits;
+            while (remaining > 0)
+            {
+                int index = (int) (position >>> 3);
+                int available = 8 - (int) (position & 7);
+                int bits = Math.min(available, remaining);
+                int chunk = (buffer.get(index) >>> (available - bits)) & ((1 << bits) - 1);
+                result = (result << bits) | chunk;
+                remaining -= bits;
+                position += bits;
+            }
+            return result;
+        }
+    }
+}
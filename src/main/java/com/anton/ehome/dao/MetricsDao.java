@@ -15,16 +15,34 @@
  */
 package com.anton.ehome.dao;
 
+import static com.anton.ehome.dao.InfluxUtils.DATABASE_NAME;
 import static java.time.ZoneOffset.UTC;
 
+import java.time.Duration;
+import java.time.Instant;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import org.influxdb.InfluxDB;
+import org.influxdb.dto.QueryResult;
+import org.influxdb.dto.QueryResult.Result;
+import org.influxdb.dto.QueryResult.Series;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.anton.ehome.dao.Rollups.Tier;
 import com.anton.ehome.domain.Metric;
+import com.anton.ehome.domain.WriteStatistics;
 import com.google.inject.Inject;
 
 /**
@@ -33,32 +51,326 @@ import com.google.inject.Inject;
 class MetricsDao extends AbstractDao implements IMetricsDao
 {
     private static final Logger LOG = LoggerFactory.getLogger(MetricsDao.class);
-    private static final String METRICS_QUERY = "SELECT time, value FROM metric WHERE nodeId = [nodeId] AND time >= '[from]' AND time <= '[to]'";
+    private static final int CHUNK_SIZE = 10_000;
+    private static final String METRICS_QUERY = "SELECT time, [valueField] AS value FROM \"[database]\".\"[retentionPolicy]\".metric"
+        + " WHERE [nodeIdCondition] AND time >= '[from]' AND time <= '[to]'";
+    private static final String GROUP_BY_NODE_ID = " GROUP BY nodeId";
+    private static final String AGGREGATE_QUERY = "SELECT [aggregates] FROM \"[database]\".\"[retentionPolicy]\".metric"
+        + " WHERE [nodeIdCondition] AND time >= '[from]' AND time <= '[to]' GROUP BY time([step]), nodeId fill([fill])";
+
+    private final List<IMetricListener> savedListeners = new CopyOnWriteArrayList<>();
+    private final AtomicLong lastSaveTime = new AtomicLong();
+    private final AtomicLongArray lastSaveTimes = new AtomicLongArray(256);
+    private final ReadVersions readVersions = new ReadVersions();
+    private final BatchWriter writer;
+    private final Rollups rollups;
+    private final HotWindow hotWindow;
+    private final ChunkedReader chunkedReader;
 
     @Inject
-    MetricsDao(InfluxDB influx)
+    MetricsDao(InfluxDB influx, BatchWriter writer, Rollups rollups, HotWindow hotWindow, ChunkedReader chunkedReader)
     {
         super(influx);
+        this.writer = writer;
+        this.rollups = rollups;
+        this.hotWindow = hotWindow;
+        this.chunkedReader = chunkedReader;
+        writer.onWritten(until -> readVersions.written(until, System.currentTimeMillis()));
     }
 
     @Override
     public void save(byte nodeId, double value)
+    {
+        save(nodeId, value, System.currentTimeMillis());
+    }
+
+    @Override
+    public void save(byte nodeId, double value, long time)
     {
         LOG.debug("Saving metric for node {} with value: {}", nodeId, value);
-        insert().measurement("metric")
+        insert().measurement("metric", time)
                 .field("nodeId", nodeId, true)
                 .field("value", value)
-                .execute();
+                .queue(writer);
+        hotWindow.add(nodeId, time, value);
+
+        long now = System.currentTimeMillis();
+        long saveTime = lastSaveTime.updateAndGet(previous -> Math.max(now, previous + 1));
+        lastSaveTimes.set(nodeId & 0xFF, saveTime);
+        readVersions.saved(nodeId, saveTime);
+
+        for (IMetricListener listener : savedListeners)
+        {
+            try
+            {
+                listener.saved(nodeId, time, value);
+            }
+            catch (Exception e)
+            {
+                LOG.warn("Exception occurred in listener of saved metrics", e);
+            }
+        }
+    }
+
+    @Override
+    public void onSaved(IMetricListener listener)
+    {
+        savedListeners.add(listener);
+    }
+
+    @Override
+    public long getLastSaveTime(byte nodeId)
+    {
+        return lastSaveTimes.get(nodeId & 0xFF);
+    }
+
+    @Override
+    public long getVersion(byte nodeId, LocalDateTime from, Duration resolution)
+    {
+        Tier tier = rollups.select(Duration.between(from, LocalDateTime.now(UTC)), resolution);
+        return readVersions.get(nodeId, tier, System.currentTimeMillis());
     }
 
     @Override
     public List<Metric> getMetrics(byte nodeId, LocalDateTime from, LocalDateTime to)
     {
-        String query = METRICS_QUERY
-                .replace("[nodeId]", String.valueOf(nodeId))
+        return getMetrics(nodeId, from, to, Duration.ZERO);
+    }
+
+    @Override
+    public List<Metric> getMetrics(byte nodeId, LocalDateTime from, LocalDateTime to, Duration resolution)
+    {
+        IMetricCursor cursor = getMetricCursor(nodeId, from, to, resolution);
+        List<Metric> metrics = new ArrayList<>();
+        while (cursor.next())
+        {
+            Metric metric = new Metric();
+            metric.setTime(Instant.ofEpochMilli(cursor.getTime()));
+            metric.setValue(cursor.getValue());
+            metrics.add(metric);
+        }
+        return metrics;
+    }
+
+    @Override
+    public IMetricCursor getMetricCursor(byte nodeId, LocalDateTime from, LocalDateTime to, Duration resolution)
+    {
+        Tier tier = rollups.select(Duration.between(from, LocalDateTime.now(UTC)), resolution);
+        Optional<IMetricCursor> cursor = getFromMemory(tier, nodeId, from, to);
+        if (cursor.isPresent())
+        {
+            return cursor.get();
+        }
+
+        LOG.debug("Getting {} metrics for node {}", tier.name().toLowerCase(), nodeId);
+        return new QueryResultCursor(select(getQuery(tier, tier.getNodeIdCondition(nodeId), from, to)));
+    }
+
+    @Override
+    public Map<Byte, IMetricCursor> getMetricCursors(Collection<Byte> nodeIds, LocalDateTime from, LocalDateTime to, Duration resolution)
+    {
+        return getMetricCursors(rollups.select(Duration.between(from, LocalDateTime.now(UTC)), resolution), nodeIds, from, to);
+    }
+
+    /**
+     * Gets cursors over metrics of the given tier for several devices between the given times, reading the metrics of all devices in a single
+     * query.
+     *
+     * @see #getMetricCursors(Collection, LocalDateTime, LocalDateTime, Duration)
+     */
+    Map<Byte, IMetricCursor> getMetricCursors(Tier tier, Collection<Byte> nodeIds, LocalDateTime from, LocalDateTime to)
+    {
+        Map<Byte, IMetricCursor> cursors = new HashMap<>();
+        Set<Byte> remaining = new LinkedHashSet<>();
+        for (byte nodeId : nodeIds)
+        {
+            Optional<IMetricCursor> cursor = getFromMemory(tier, nodeId, from, to);
+            if (cursor.isPresent())
+            {
+                cursors.put(nodeId, cursor.get());
+            }
+            else
+            {
+                remaining.add(nodeId);
+            }
+        }
+        if (remaining.isEmpty())
+        {
+            return cursors;
+        }
+
+        LOG.debug("Getting {} metrics for nodes {}", tier.name().toLowerCase(), remaining);
+        String query = getQuery(tier, tier.getNodeIdsCondition(remaining), from, to) + GROUP_BY_NODE_ID;
+
+        Map<Byte, List<Series>> seriesByNodeId = splitByNodeId(select(query));
+        for (byte nodeId : remaining)
+        {
+            cursors.put(nodeId, new QueryResultCursor(seriesByNodeId.getOrDefault(nodeId, new ArrayList<>())));
+        }
+        return cursors;
+    }
+
+    @Override
+    public Map<Byte, IMetricCursor> getMetricCursorsSince(Collection<Byte> nodeIds, long since, long to, Duration resolution)
+    {
+        // Times are stored with millisecond precision, so the first millisecond after the given time is the first that can hold a newer metric
+        LocalDateTime from = LocalDateTime.ofInstant(Instant.ofEpochMilli(since + 1), UTC);
+        return getMetricCursors(nodeIds, from, LocalDateTime.ofInstant(Instant.ofEpochMilli(to), UTC), resolution);
+    }
+
+    @Override
+    public Map<Byte, IAggregateCursor> getAggregates(
+            Collection<Byte> nodeIds, LocalDateTime from, LocalDateTime to, Duration step, Fill fill, Aggregate... aggregates)
+    {
+        if (step.toMillis() <= 0)
+        {
+            throw new IllegalArgumentException("step must be at least one millisecond");
+        }
+        if (aggregates.length == 0)
+        {
+            throw new IllegalArgumentException("At least one aggregate must be given");
+        }
+
+        Map<Byte, IAggregateCursor> cursors = new HashMap<>();
+        if (nodeIds.isEmpty())
+        {
+            return cursors;
+        }
+
+        Tier tier = rollups.select(Duration.between(from, LocalDateTime.now(UTC)), step);
+        StringBuilder selectors = new StringBuilder();
+        for (int index = 0; index < aggregates.length; index++)
+        {
+            selectors.append(index == 0 ? "" : ", ")
+                    .append(aggregates[index].getSelector(tier))
+                    .append(" AS ")
+                    .append(AggregateResultCursor.getColumn(index));
+        }
+
+        LOG.debug("Aggregating {} metrics for nodes {}", tier.name().toLowerCase(), nodeIds);
+        String query = AGGREGATE_QUERY
+                .replace("[aggregates]", selectors)
+                .replace("[database]", DATABASE_NAME)
+                .replace("[retentionPolicy]", tier.getRetentionPolicy())
+                .replace("[nodeIdCondition]", tier.getNodeIdsCondition(nodeIds))
+                .replace("[from]", from.atZone(UTC).toString())
+                .replace("[to]", to.atZone(UTC).toString())
+                .replace("[step]", step.toMillis() + "ms")
+                .replace("[fill]", fill.getOption());
+
+        Map<Byte, List<Series>> seriesByNodeId = splitByNodeId(select(query));
+        for (byte nodeId : nodeIds)
+        {
+            cursors.put(nodeId, new AggregateResultCursor(seriesByNodeId.getOrDefault(nodeId, new ArrayList<>()), aggregates.length));
+        }
+        return cursors;
+    }
+
+    private Map<Byte, List<Series>> splitByNodeId(QueryResult result)
+    {
+        ResultMapper.throwIfError(result);
+        Map<Byte, List<Series>> seriesByNodeId = new HashMap<>();
+        if (result.getResults() == null)
+        {
+            return seriesByNodeId;
+        }
+        for (Result item : result.getResults())
+        {
+            if (item.getSeries() == null)
+            {
+                continue;
+            }
+            for (Series series : item.getSeries())
+            {
+                String nodeId = series.getTags() == null ? null : series.getTags().get("nodeId");
+                if (nodeId != null)
+                {
+                    seriesByNodeId.computeIfAbsent(Byte.valueOf(nodeId), key -> new ArrayList<>()).add(series);
+                }
+            }
+        }
+        return seriesByNodeId;
+    }
+
+    @Override
+    public void streamMetrics(byte nodeId, LocalDateTime from, LocalDateTime to, Duration resolution, IMetricConsumer consumer)
+    {
+        Tier tier = rollups.select(Duration.between(from, LocalDateTime.now(UTC)), resolution);
+        Optional<IMetricCursor> memory = getFromMemory(tier, nodeId, from, to);
+        if (memory.isPresent())
+        {
+            IMetricCursor cursor = memory.get();
+            while (cursor.next() && consumer.accept(cursor.getTime(), cursor.getValue()))
+            {
+                // Keep going until the consumer stops
+            }
+            return;
+        }
+
+        LOG.debug("Streaming {} metrics for node {}", tier.name().toLowerCase(), nodeId);
+        chunkedReader.select(getQuery(tier, tier.getNodeIdCondition(nodeId), from, to), CHUNK_SIZE, chunk ->
+        {
+            IMetricCursor cursor = new QueryResultCursor(chunk);
+            while (cursor.next())
+            {
+                if (!consumer.accept(cursor.getTime(), cursor.getValue()))
+                {
+                    return false;
+                }
+            }
+            return true;
+        });
+    }
+
+    /**
+     * Gets metrics of the given tier for the device between the given times from memory, if they are all kept there.
+     */
+    Optional<IMetricCursor> getFromMemory(Tier tier, byte nodeId, LocalDateTime from, LocalDateTime to)
+    {
+        if (tier != Tier.RAW)
+        {
+            return Optional.empty();
+        }
+
+        Optional<IMetricCursor> cursor = hotWindow.get(nodeId, from.toInstant(UTC).toEpochMilli(), to.toInstant(UTC).toEpochMilli());
+        if (cursor.isPresent())
+        {
+            LOG.debug("Getting metrics for node {} from memory", nodeId);
+        }
+        return cursor;
+    }
+
+    private String getQuery(Tier tier, String nodeIdCondition, LocalDateTime from, LocalDateTime to)
+    {
+        return METRICS_QUERY
+                .replace("[valueField]", tier.getValueField())
+                .replace("[database]", DATABASE_NAME)
+                .replace("[retentionPolicy]", tier.getRetentionPolicy())
+                .replace("[nodeIdCondition]", nodeIdCondition)
                 .replace("[from]", from.atZone(UTC).toString())
                 .replace("[to]", to.atZone(UTC).toString());
+    }
 
-        return selectMany(query, Metric.class);
+    @Override
+    public boolean hasUnwrittenMetrics()
+    {
+        return writer.hasUnwritten();
+    }
+
+    /**
+     * Gets the time of the oldest metric that is saved but not yet written to the database, from which on metrics may still be missing from
+     * what is read.
+     *
+     * @return Returns the time in milliseconds since the epoch, rounded down to the second; or {@link Long#MAX_VALUE} if every metric is written.
+     */
+    long getOldestUnwrittenTime()
+    {
+        return writer.getOldestUnwrittenTime();
+    }
+
+    @Override
+    public WriteStatistics getWriteStatistics()
+    {
+        return writer.getStatistics();
     }
 }
@@ -0,0 +1,124 @@
+/**
+ * Copyright 2017 Anton Johansson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anton.ehome.dao;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.influxdb.dto.QueryResult;
+import org.influxdb.dto.QueryResult.Result;
+import org.influxdb.dto.QueryResult.Series;
+
+/**
+ * Iterates over the {@code time} and {@code value} columns of a {@link QueryResult}, without mapping each row to an object.
+ * <p>
+ * Rows without a value are skipped. A result that holds an error is rejected, rather than read as if there were no metrics.
+ * </p>
+ */
+final class QueryResultCursor implements IMetricCursor
+{
+    private final List<Series> series = new ArrayList<>();
+    private int currentSeries;
+    private int row = -1;
+    private int timeColumn;
+    private int valueColumn;
+    private long time;
+    private double value;
+
+    QueryResultCursor(QueryResult result)
+    {
+        ResultMapper.throwIfError(result);
+        if (result.getResults() != null)
+        {
+            for (Result item : result.getResults())
+            {
+                if (item.getSeries() != null)
+                {
+                    series.addAll(item.getSeries());
+                }
+            }
+        }
+        if (!series.isEmpty())
+        {
+            selectColumns(series.get(0));
+        }
+    }
+
+    QueryResultCursor(List<Series> series)
+    {
+        this.series.addAll(series);
+        if (!series.isEmpty())
+        {
+            selectColumns(series.get(0));
+        }
+    }
+
+    @Override
+    public boolean next()
+    {
+        while (currentSeries < series.size())
+        {
+            List<List<Object>> values = series.get(currentSeries).getValues();
+            while (values != null && ++row < values.size())
+            {
+                List<Object> columns = values.get(row);
+                Object valueColumnValue = columns.get(valueColumn);
+                if (valueColumnValue instanceof Number)
+                {
+                    time = toEpochMilli(columns.get(timeColumn));
+                    value = ((Number) valueColumnValue).doubleValue();
+                    return true;
+                }
+            }
+
+            currentSeries++;
+            row = -1;
+            if (currentSeries < series.size())
+            {
+                selectColumns(series.get(currentSeries));
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public long getTime()
+    {
+        return time;
+    }
+
+    @Override
+    public double getValue()
+    {
+        return value;
+    }
+
+    private void selectColumns(Series item)
+    {
+        timeColumn = item.getColumns().indexOf("time");
+        valueColumn = item.getColumns().indexOf("value");
+    }
+
+    private long toEpochMilli(Object time)
+    {
+        if (time instanceof Number)
+        {
+            return ((Number) time).longValue();
+        }
+        return Instant.parse(String.valueOf(time)).toEpochMilli();
+    }
+}
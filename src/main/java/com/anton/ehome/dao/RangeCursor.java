@@ -0,0 +1,72 @@
+/**
+ * Copyright 2017 Anton Johansson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anton.ehome.dao;
+
+import java.util.List;
+
+/**
+ * Iterates over the metrics of the given cursors, one after the other, that are within the given range.
+ */
+final class RangeCursor implements IMetricCursor
+{
+    private final List<IMetricCursor> cursors;
+    private final long from;
+    private final long to;
+    private int current;
+
+    RangeCursor(List<IMetricCursor> cursors, long from, long to)
+    {
+        this.cursors = cursors;
+        this.from = from;
+        this.to = to;
+    }
+
+    @Override
+    public boolean next()
+    {
+        while (current < cursors.size())
+        {
+            IMetricCursor cursor = cursors.get(current);
+            while (cursor.next())
+            {
+                long time = cursor.getTime();
+                if (time > to)
+                {
+                    current = cursors.size();
+                    return false;
+                }
+                if (time >= from)
+                {
+                    return true;
+                }
+            }
+            current++;
+        }
+        return false;
+    }
+
+    @Override
+    public long getTime()
+    {
+        return cursors.get(current).getTime();
+    }
+
+    @Override
+    public double getValue()
+    {
+        return cursors.get(current).getValue();
+    }
+}
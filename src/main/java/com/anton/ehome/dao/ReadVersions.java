@@ -0,0 +1,135 @@
+/**
+ * Copyright 2017 Anton Johansson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anton.ehome.dao;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+import com.anton.ehome.dao.Rollups.Tier;
+
+/**
+ * Keeps a version of the metrics of each device and {@link Tier tier}, that changes only when newly saved metrics can be read from the tier.
+ * <p>
+ * The save time of a metric is its version. Saved metrics are queued, so their save times wait here until the {@link BatchWriter} has written
+ * every metric that was saved before them. The version of the raw tier then becomes the latest written save time, and the versions of the
+ * rollups become that save time when their continuous queries have run.
+ * </p>
+ */
+final class ReadVersions
+{
+    /** The most save times that wait to be written for a device; older ones are dropped, and become readable together with a newer one. */
+    private static final int MAX_PENDING = 1024;
+    private static final int DEVICES = 256;
+
+    private final Tier[] tiers = Tier.values();
+    private final long[][] versions = new long[tiers.length][DEVICES];
+    private final List<Deque<Long>> unwritten = newDeques();
+    private final List<List<Deque<long[]>>> unrolled = new ArrayList<>(tiers.length);
+
+    ReadVersions()
+    {
+        for (int tier = 0; tier < tiers.length; tier++)
+        {
+            unrolled.add(newDeques());
+        }
+    }
+
+    private static <T> List<Deque<T>> newDeques()
+    {
+        List<Deque<T>> deques = new ArrayList<>(DEVICES);
+        for (int index = 0; index < DEVICES; index++)
+        {
+            deques.add(new ArrayDeque<>());
+        }
+        return deques;
+    }
+
+    /**
+     * Records that a metric of the device was queued for writing.
+     *
+     * @param nodeId The identifier of the device.
+     * @param saveTime The save time of the metric.
+     */
+    synchronized void saved(byte nodeId, long saveTime)
+    {
+        Deque<Long> saveTimes = unwritten.get(nodeId & 0xFF);
+        if (saveTimes.size() >= MAX_PENDING)
+        {
+            saveTimes.poll();
+        }
+        saveTimes.add(saveTime);
+    }
+
+    /**
+     * Records that all metrics that were saved before the given time are written.
+     *
+     * @param until The time before which all saved metrics are written.
+     * @param now The current time, in milliseconds since the epoch.
+     */
+    synchronized void written(long until, long now)
+    {
+        for (int device = 0; device < DEVICES; device++)
+        {
+            Deque<Long> saveTimes = unwritten.get(device);
+            long version = 0;
+            while (!saveTimes.isEmpty() && saveTimes.peek() < until)
+            {
+                version = saveTimes.poll();
+            }
+            if (version == 0)
+            {
+                continue;
+            }
+
+            versions[Tier.RAW.ordinal()][device] = version;
+            for (int tier = Tier.RAW.ordinal() + 1; tier < tiers.length; tier++)
+            {
+                // A later save time that becomes readable at the same time replaces the earlier one, so only a few are kept for each device
+                long readableTime = tiers[tier].getReadableTime(now);
+                Deque<long[]> pending = unrolled.get(tier).get(device);
+                if (!pending.isEmpty() && pending.peekLast()[0] == readableTime)
+                {
+                    pending.peekLast()[1] = version;
+                }
+                else
+                {
+                    pending.add(new long[] {readableTime, version});
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets the version of the metrics of the device in the given tier.
+     *
+     * @param nodeId The identifier of the device.
+     * @param tier The tier that the metrics are read from.
+     * @param now The current time, in milliseconds since the epoch.
+     * @return Returns the latest save time of a metric of the device that can be read from the tier; or zero if there is none.
+     */
+    synchronized long get(byte nodeId, Tier tier, long now)
+    {
+        int device = nodeId & 0xFF;
+        Deque<long[]> pending = unrolled.get(tier.ordinal()).get(device);
+        while (!pending.isEmpty() && pending.peek()[0] <= now)
+        {
+            versions[tier.ordinal()][device] = pending.poll()[1];
+        }
+        return versions[tier.ordinal()][device];
+    }
+}
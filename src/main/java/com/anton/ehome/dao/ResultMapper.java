@@ -0,0 +1,390 @@
+/**
+ * Copyright 2017 Anton Johansson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anton.ehome.dao;
+
+import static java.time.temporal.ChronoField.NANO_OF_SECOND;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+
+import org.influxdb.InfluxDBMapperException;
+import org.influxdb.annotation.Column;
+import org.influxdb.annotation.Measurement;
+import org.influxdb.dto.QueryResult;
+import org.influxdb.dto.QueryResult.Result;
+import org.influxdb.dto.QueryResult.Series;
+import org.influxdb.impl.InfluxDBResultMapper;
+
+/**
+ * Maps query results to objects of a class annotated with {@link Measurement}, as a replacement of the {@link InfluxDBResultMapper}.
+ * <p>
+ * The annotations of a class are resolved once, when its mapper is first requested, into method handles that create objects and set the value
+ * of each column. The columns of each series are bound to their setters once per series, so mapping a row is a plain loop over the column
+ * values, without looking up fields by name or changing their accessibility. Times in the format that InfluxDB returns are parsed directly,
+ * since a {@link DateTimeFormatter} creates several objects for each time it parses.
+ * </p>
+ * <p>
+ * Results are mapped the same way as by the {@link InfluxDBResultMapper}: only series named after the measurement are mapped, unknown columns
+ * are ignored, tags are mapped to fields of the same name, and {@code null} values leave fields untouched.
+ * </p>
+ *
+ * @param <T> The type of objects to map to.
+ */
+final class ResultMapper<T>
+{
+    private static final ConcurrentMap<Class<?>, ResultMapper<?>> MAPPERS = new ConcurrentHashMap<>();
+    private static final DateTimeFormatter ISO8601_FORMATTER = new DateTimeFormatterBuilder()
+            .appendPattern("yyyy-MM-dd'T'HH:mm:ss")
+            .appendFraction(NANO_OF_SECOND, 0, 9, true)
+            .appendPattern("X")
+            .toFormatter();
+    private static final int[] FRACTION_SCALES = {100_000_000, 10_000_000, 1_000_000, 100_000, 10_000, 1000, 100, 10, 1};
+    private static final int SECONDS_PER_DAY = 86_400;
+
+    private final Class<T> clazz;
+    private final String measurement;
+    private final MethodHandle constructor;
+    private final Map<String, Setter> setters;
+
+    private ResultMapper(Class<T> clazz)
+    {
+        Measurement annotation = clazz.getAnnotation(Measurement.class);
+        if (annotation == null)
+        {
+            throw new IllegalArgumentException("Class " + clazz.getName() + " is not annotated with @" + Measurement.class.getSimpleName());
+        }
+
+        this.clazz = clazz;
+        this.measurement = annotation.name();
+        this.constructor = findConstructor(clazz);
+        this.setters = findSetters(clazz);
+    }
+
+    /**
+     * Gets the mapper of the given class, creating it the first time it is requested.
+     *
+     * @param clazz The class to map to.
+     * @return Returns the mapper.
+     */
+    @SuppressWarnings("unchecked")
+    static <T> ResultMapper<T> of(Class<T> clazz)
+    {
+        return (ResultMapper<T>) MAPPERS.computeIfAbsent(clazz, ResultMapper::new);
+    }
+
+    /**
+     * Maps the given query result to objects.
+     *
+     * @param queryResult The result to map.
+     * @return Returns the objects, one for each row of each series of the measurement.
+     */
+    List<T> map(QueryResult queryResult)
+    {
+        throwIfError(queryResult);
+
+        List<T> objects = new ArrayList<>();
+        if (queryResult.getResults() == null)
+        {
+            return objects;
+        }
+        for (Result result : queryResult.getResults())
+        {
+            if (result.getSeries() == null)
+            {
+                continue;
+            }
+            for (Series series : result.getSeries())
+            {
+                if (measurement.equals(series.getName()))
+                {
+                    map(series, objects);
+                }
+            }
+        }
+        return objects;
+    }
+
+    private void map(Series series, List<T> objects)
+    {
+        List<String> columns = series.getColumns();
+        Setter[] columnSetters = new Setter[columns.size()];
+        for (int i = 0; i < columnSetters.length; i++)
+        {
+            columnSetters[i] = setters.get(columns.get(i));
+        }
+
+        Map<String, String> tags = series.getTags();
+        List<Setter> tagSetters = new ArrayList<>();
+        List<String> tagValues = new ArrayList<>();
+        if (tags != null)
+        {
+            tags.forEach((tag, value) ->
+            {
+                Setter setter = setters.get(tag);
+                if (setter != null)
+                {
+                    tagSetters.add(setter);
+                    tagValues.add(value);
+                }
+            });
+        }
+
+        if (series.getValues() == null)
+        {
+            return;
+        }
+        try
+        {
+            for (List<Object> row : series.getValues())
+            {
+                Object object = constructor.invoke();
+                for (int i = 0; i < columnSetters.length; i++)
+                {
+                    if (columnSetters[i] != null)
+                    {
+                        columnSetters[i].set(object, row.get(i));
+                    }
+                }
+                for (int i = 0; i < tagSetters.size(); i++)
+                {
+                    tagSetters.get(i).set(object, tagValues.get(i));
+                }
+                objects.add(clazz.cast(object));
+            }
+        }
+        catch (InfluxDBMapperException e)
+        {
+            throw e;
+        }
+        catch (Throwable e)
+        {
+            throw new InfluxDBMapperException(e);
+        }
+    }
+
+    /**
+     * Throws if InfluxDB returned an error for the query, or for any of its statements, instead of a result.
+     *
+     * @param queryResult The result of the query.
+     */
+    static void throwIfError(QueryResult queryResult)
+    {
+        if (queryResult.getError() != null)
+        {
+            throw new InfluxDBMapperException("InfluxDB returned an error: " + queryResult.getError());
+        }
+        if (queryResult.getResults() != null)
+        {
+            for (Result result : queryResult.getResults())
+            {
+                if (result.getError() != null)
+                {
+                    throw new InfluxDBMapperException("InfluxDB returned an error with Series: " + result.getError());
+                }
+            }
+        }
+    }
+
+    private static MethodHandle findConstructor(Class<?> clazz)
+    {
+        try
+        {
+            Constructor<?> constructor = clazz.getDeclaredConstructor();
+            constructor.setAccessible(true);
+            return MethodHandles.lookup()
+                    .unreflectConstructor(constructor)
+                    .asType(MethodType.methodType(Object.class));
+        }
+        catch (ReflectiveOperationException e)
+        {
+            throw new IllegalArgumentException("Class " + clazz.getName() + " must have a constructor without parameters", e);
+        }
+    }
+
+    private static Map<String, Setter> findSetters(Class<?> clazz)
+    {
+        Map<String, Setter> setters = new HashMap<>();
+        for (Field field : clazz.getDeclaredFields())
+        {
+            Column column = field.getAnnotation(Column.class);
+            if (column == null || Modifier.isStatic(field.getModifiers()))
+            {
+                continue;
+            }
+
+            try
+            {
+                field.setAccessible(true);
+                MethodHandle setter = MethodHandles.lookup()
+                        .unreflectSetter(field)
+                        .asType(MethodType.methodType(void.class, Object.class, Object.class));
+                setters.put(column.name(), new Setter(field, setter, converter(field)));
+            }
+            catch (IllegalAccessException e)
+            {
+                throw new IllegalArgumentException("Field " + field.getName() + " of class " + clazz.getName() + " can't be set", e);
+            }
+        }
+        return setters;
+    }
+
+    private static Function<Object, Object> converter(Field field)
+    {
+        Class<?> type = field.getType();
+        if (type == String.class)
+        {
+            return String::valueOf;
+        }
+        else if (type == Instant.class)
+        {
+            return ResultMapper::toInstant;
+        }
+        else if (type == double.class || type == Double.class)
+        {
+            return value -> value instanceof Double ? value : ((Number) value).doubleValue();
+        }
+        else if (type == long.class || type == Long.class)
+        {
+            return value -> value instanceof Long ? value : ((Number) value).longValue();
+        }
+        else if (type == int.class || type == Integer.class)
+        {
+            return value -> value instanceof Integer ? value : ((Number) value).intValue();
+        }
+        else if (type == boolean.class || type == Boolean.class)
+        {
+            return value -> value instanceof Boolean ? value : Boolean.valueOf(String.valueOf(value));
+        }
+        throw new IllegalArgumentException("Field " + field.getName() + " of class " + field.getDeclaringClass().getName()
+            + " has an unsupported type " + type.getName());
+    }
+
+    private static Instant toInstant(Object value)
+    {
+        if (value instanceof String)
+        {
+            return parseTime((String) value);
+        }
+        else if (value instanceof Number)
+        {
+            return Instant.ofEpochMilli(((Number) value).longValue());
+        }
+        throw new InfluxDBMapperException("Unsupported type " + value.getClass() + " for time");
+    }
+
+    /**
+     * Parses a time in the format that InfluxDB returns times in, such as {@code 2017-06-01T00:00:01.25Z}, without the intermediate objects
+     * of a {@link DateTimeFormatter}. Times in other formats, such as with an offset, are parsed with the formatter.
+     */
+    private static Instant parseTime(String value)
+    {
+        int length = value.length();
+        int fractionLength = length - 21;
+        if (length < 20
+            || value.charAt(4) != '-' || value.charAt(7) != '-' || value.charAt(10) != 'T' || value.charAt(13) != ':' || value.charAt(16) != ':'
+            || value.charAt(length - 1) != 'Z'
+            || (length > 20 && (value.charAt(19) != '.' || fractionLength < 1 || fractionLength > FRACTION_SCALES.length)))
+        {
+            return Instant.from(ISO8601_FORMATTER.parse(value));
+        }
+
+        int year = parseDigits(value, 0, 4);
+        int month = parseDigits(value, 5, 7);
+        int day = parseDigits(value, 8, 10);
+        int hour = parseDigits(value, 11, 13);
+        int minute = parseDigits(value, 14, 16);
+        int second = parseDigits(value, 17, 19);
+        int fraction = length > 20 ? parseDigits(value, 20, length - 1) : 0;
+        if (year < 0 || month < 0 || day < 0 || hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 59 || fraction < 0)
+        {
+            return Instant.from(ISO8601_FORMATTER.parse(value));
+        }
+
+        long epochDay = LocalDate.of(year, month, day).toEpochDay();
+        long nanos = length > 20 ? (long) fraction * FRACTION_SCALES[fractionLength - 1] : 0;
+        return Instant.ofEpochSecond(epochDay * SECONDS_PER_DAY + hour * 3600 + minute * 60 + second, nanos);
+    }
+
+    /**
+     * Parses the decimal digits between the given positions; or returns -1 if there is anything else between them.
+     */
+    private static int parseDigits(String value, int from, int to)
+    {
+        int result = 0;
+        for (int index = from; index < to; index++)
+        {
+            char digit = value.charAt(index);
+            if (digit < '0' || digit > '9')
+            {
+                return -1;
+            }
+            result = result * 10 + (digit - '0');
+        }
+        return result;
+    }
+
+    /**
+     * Sets the value of a single field, converting values of the query result to the type of the field.
+     */
+    private static final class Setter
+    {
+        private final Field field;
+        private final MethodHandle setter;
+        private final Function<Object, Object> converter;
+
+        private Setter(Field field, MethodHandle setter, Function<Object, Object> converter)
+        {
+            this.field = field;
+            this.setter = setter;
+            this.converter = converter;
+        }
+
+        private void set(Object object, Object value) throws Throwable
+        {
+            if (value == null)
+            {
+                return;
+            }
+
+            Object converted;
+            try
+            {
+                converted = converter.apply(value);
+            }
+            catch (ClassCastException e)
+            {
+                throw new InfluxDBMapperException("Field " + field.getName() + " of class " + field.getDeclaringClass().getName()
+                    + " can't be set from a value of type " + value.getClass().getName());
+            }
+            setter.invokeExact(object, converted);
+        }
+    }
+}
@@ -0,0 +1,429 @@
+/**
+ * Copyright 2017 Anton Johansson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anton.ehome.dao;
+
+import static com.anton.ehome.dao.InfluxUtils.DATABASE_NAME;
+import static com.anton.ehome.dao.InfluxUtils.INFINITE;
+import static com.anton.ehome.dao.InfluxUtils.RETENTION_POLICY_RAW;
+import static com.anton.ehome.dao.InfluxUtils.RETENTION_POLICY_ROLLUP_HOUR;
+import static com.anton.ehome.dao.InfluxUtils.RETENTION_POLICY_ROLLUP_MINUTE;
+import static com.anton.ehome.dao.InfluxUtils.parseDuration;
+import static java.util.stream.Collectors.joining;
+import static java.util.stream.Collectors.toList;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import org.influxdb.InfluxDB;
+import org.influxdb.dto.Point;
+import org.influxdb.dto.Query;
+import org.influxdb.dto.QueryResult;
+import org.influxdb.dto.QueryResult.Result;
+import org.influxdb.dto.QueryResult.Series;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.anton.ehome.common.IDaemon;
+import com.anton.ehome.conf.IConfigService;
+import com.anton.ehome.conf.RetentionConfig;
+import com.google.inject.Inject;
+
+/**
+ * Keeps metrics at multiple resolutions, each {@link Tier tier} in a retention policy of its own.
+ * <p>
+ * Raw metrics are rolled up by InfluxDB continuous queries into the minimum, maximum, sum, mean and count of each device and minute, and those
+ * are in turn rolled up into hours. The retention of each tier is taken from the {@link RetentionConfig}, and is reapplied whenever the
+ * configuration is modified.
+ * </p>
+ * <p>
+ * The continuous queries resample a few intervals back, so that metrics replayed from the {@link Spool} shortly after an outage still end up in
+ * the rollups. Metrics that are replayed later than that are rolled up again when they are replayed, for the minutes and hours that they fall
+ * in. Until the rollups have been backfilled, metrics stored before there were any tiers, in the default retention policy, are copied
+ * into the raw tier as far back as it retains metrics, and the rollups are backfilled from them. Otherwise, reads of the raw tier would find
+ * nothing from before the upgrade. A completed backfill is recorded in the default retention policy, so that one that fails or is interrupted
+ * is run again at the next start.
+ * </p>
+ */
+class Rollups implements IDaemon
+{
+    private static final Logger LOG = LoggerFactory.getLogger(Rollups.class);
+    private static final String MINUTE_QUERY_NAME = "metric-rollup-1m";
+    private static final String HOUR_QUERY_NAME = "metric-rollup-1h";
+    private static final String RAW_ROLLUP = "SELECT min(value) AS min, max(value) AS max, sum(value) AS sum, mean(value) AS mean, count(value) AS count"
+        + " INTO \"[database]\".\"[into]\".metric FROM \"[database]\".\"[from]\".metric [where] GROUP BY time([interval]), nodeId";
+    private static final String ROLLUP_ROLLUP = "SELECT min(min) AS min, max(max) AS max, sum(sum) AS sum, sum(sum) / sum(count) AS mean, sum(count) AS count"
+        + " INTO \"[database]\".\"[into]\".metric FROM \"[database]\".\"[from]\".metric [where] GROUP BY time([interval]), nodeId";
+    private static final String RAW_COPY = "SELECT * INTO \"[database]\".\"[into]\".metric FROM \"[database]\"..metric [where] GROUP BY *";
+    private static final String CONTINUOUS_QUERY = "CREATE CONTINUOUS QUERY \"[name]\" ON \"[database]\" RESAMPLE EVERY [every] FOR [for] BEGIN [select] END";
+    private static final String BACKFILL_MEASUREMENT = "rollups";
+    private static final String BACKFILLED_FIELD = "backfilled";
+
+    /** The longest time, in milliseconds, after the end of an interval until its continuous queries have run. */
+    private static final long CONTINUOUS_QUERY_DELAY = 10_000;
+
+    private final CountDownLatch setUp = new CountDownLatch(1);
+    private final InfluxDB influx;
+    private final IConfigService configService;
+
+    @Inject
+    Rollups(InfluxDB influx, IConfigService configService, Spool spool)
+    {
+        this.influx = influx;
+        this.configService = configService;
+        spool.onReplayed(this::rollUpReplayed);
+    }
+
+    @Override
+    public boolean start()
+    {
+        LOG.info("Setting up metric rollups");
+        try
+        {
+            applyRetention(getConfig());
+            createContinuousQueries();
+            if (!isBackfilled())
+            {
+                backfill(getConfig());
+            }
+        }
+        catch (Exception e)
+        {
+            LOG.warn("Could not set up metric rollups", e);
+        }
+        finally
+        {
+            setUp.countDown();
+        }
+        configService.onModified(config -> applyRetention(config.getMetricsConfig().getRetentionConfig()));
+        return true;
+    }
+
+    @Override
+    public void stop()
+    {
+    }
+
+    /**
+     * Waits for the tiers to be set up at startup, which includes copying metrics stored before there were any tiers into the raw tier.
+     *
+     * @param timeout The maximum time to wait.
+     * @param unit The unit of the timeout.
+     * @return Returns {@code true} if the tiers were set up; or {@code false} if the timeout elapsed first.
+     */
+    boolean awaitSetUp(long timeout, TimeUnit unit) throws InterruptedException
+    {
+        return setUp.await(timeout, unit);
+    }
+
+    /**
+     * Selects the coarsest tier that has the given resolution, or a finer one, and that still retains metrics from the given time ago.
+     * <p>
+     * If no such tier exists, the finest tier that retains the metrics is selected, giving a coarser resolution than asked for, rather than
+     * missing metrics. If no tier retains the metrics, the tier with the longest retention is selected.
+     * </p>
+     *
+     * @param age How long ago the first metric was read.
+     * @param resolution The resolution that is needed.
+     * @return Returns the selected tier.
+     */
+    Tier select(Duration age, Duration resolution)
+    {
+        RetentionConfig config = getConfig();
+        Tier[] tiers = Tier.values();
+        for (int i = tiers.length - 1; i >= 0; i--)
+        {
+            if (tiers[i].getResolution().compareTo(resolution) <= 0 && tiers[i].retains(config, age))
+            {
+                return tiers[i];
+            }
+        }
+        for (Tier tier : tiers)
+        {
+            if (tier.retains(config, age))
+            {
+                return tier;
+            }
+        }
+
+        Tier longest = tiers[0];
+        for (Tier tier : tiers)
+        {
+            if (tier.getRetention(config).compareTo(longest.getRetention(config)) >= 0)
+            {
+                longest = tier;
+            }
+        }
+        return longest;
+    }
+
+    private RetentionConfig getConfig()
+    {
+        return configService.getCurrentConfig().getMetricsConfig().getRetentionConfig();
+    }
+
+    private void applyRetention(RetentionConfig config)
+    {
+        for (Tier tier : Tier.values())
+        {
+            String duration = tier.retention.apply(config);
+            LOG.debug("Keeping {} metrics for {}", tier.name().toLowerCase(), duration);
+            execute("ALTER RETENTION POLICY \"" + tier.getRetentionPolicy() + "\" ON \"" + DATABASE_NAME + "\" DURATION " + duration);
+        }
+    }
+
+    /**
+     * Checks whether the rollups have been backfilled from the metrics that were stored before there were any tiers.
+     */
+    private boolean isBackfilled()
+    {
+        QueryResult result = influx.query(new Query("SELECT " + BACKFILLED_FIELD + " FROM \"" + DATABASE_NAME + "\"..\"" + BACKFILL_MEASUREMENT
+            + "\" LIMIT 1", DATABASE_NAME));
+        List<Result> results = result.getResults();
+        if (result.hasError() || results == null)
+        {
+            return false;
+        }
+        return results.stream()
+                .filter(r -> r.getSeries() != null)
+                .flatMap(r -> r.getSeries().stream())
+                .map(Series::getValues)
+                .filter(Objects::nonNull)
+                .anyMatch(values -> !values.isEmpty());
+    }
+
+    private void createContinuousQueries()
+    {
+        LOG.debug("Creating continuous queries for metric rollups");
+        execute("DROP CONTINUOUS QUERY \"" + MINUTE_QUERY_NAME + "\" ON \"" + DATABASE_NAME + "\"");
+        execute(continuousQuery(MINUTE_QUERY_NAME, "1m", "10m", rollup(RAW_ROLLUP, RETENTION_POLICY_RAW, Tier.MINUTE, "")));
+        execute("DROP CONTINUOUS QUERY \"" + HOUR_QUERY_NAME + "\" ON \"" + DATABASE_NAME + "\"");
+        execute(continuousQuery(HOUR_QUERY_NAME, "1h", "2h", rollup(ROLLUP_ROLLUP, RETENTION_POLICY_ROLLUP_MINUTE, Tier.HOUR, "")));
+    }
+
+    /**
+     * Copies and rolls up metrics that were stored, in the default retention policy, before there were any tiers, and records that this is done
+     * if every statement succeeded. Copying the same metrics again writes the same points, so a backfill can be repeated.
+     */
+    private void backfill(RetentionConfig config)
+    {
+        LOG.info("Copying previously stored metrics into the raw tier");
+        boolean isCopied = execute(RAW_COPY
+                .replace("[database]", DATABASE_NAME)
+                .replace("[into]", Tier.RAW.getRetentionPolicy())
+                .replace("[where]", getRetainedCondition(Tier.RAW, config)));
+
+        LOG.info("Backfilling metric rollups from previously stored metrics");
+        boolean isMinuteRolledUp = execute(rollup(RAW_ROLLUP, "", Tier.MINUTE, getRetainedCondition(Tier.MINUTE, config)));
+        boolean isHourRolledUp = execute(rollup(RAW_ROLLUP, "", Tier.HOUR, "WHERE time <= now()"));
+
+        if (isCopied && isMinuteRolledUp && isHourRolledUp)
+        {
+            influx.write(DATABASE_NAME, null, Point.measurement(BACKFILL_MEASUREMENT).addField(BACKFILLED_FIELD, true).build());
+        }
+        else
+        {
+            LOG.warn("Could not backfill metric rollups, retrying at the next start");
+        }
+    }
+
+    /**
+     * Rolls up the minutes and hours of metrics that were replayed from the spool, which the continuous queries may no longer resample.
+     */
+    private void rollUpReplayed(long from, long to)
+    {
+        LOG.debug("Rolling up metrics that were replayed between {} and {}", from, to);
+        execute(rollup(RAW_ROLLUP, RETENTION_POLICY_RAW, Tier.MINUTE, getIntervalsCondition(Tier.MINUTE, from, to)));
+        execute(rollup(ROLLUP_ROLLUP, RETENTION_POLICY_ROLLUP_MINUTE, Tier.HOUR, getIntervalsCondition(Tier.HOUR, from, to)));
+    }
+
+    /**
+     * Gets the condition that selects the whole intervals of the given tier that contain any of the times between the given ones.
+     */
+    private String getIntervalsCondition(Tier tier, long from, long to)
+    {
+        long interval = tier.getResolution().toMillis();
+        Instant start = Instant.ofEpochMilli(from - Math.floorMod(from, interval));
+        Instant end = Instant.ofEpochMilli(to - Math.floorMod(to, interval) + interval);
+        return "WHERE time >= '" + start + "' AND time < '" + end + "'";
+    }
+
+    private String getRetainedCondition(Tier tier, RetentionConfig config)
+    {
+        Duration retention = tier.getRetention(config);
+        return retention.equals(INFINITE)
+            ? "WHERE time <= now()"
+            : "WHERE time > now() - " + retention.getSeconds() + "s AND time <= now()";
+    }
+
+    private String continuousQuery(String name, String every, String resampleFor, String select)
+    {
+        return CONTINUOUS_QUERY
+                .replace("[name]", name)
+                .replace("[database]", DATABASE_NAME)
+                .replace("[every]", every)
+                .replace("[for]", resampleFor)
+                .replace("[select]", select);
+    }
+
+    private String rollup(String select, String from, Tier into, String where)
+    {
+        Duration resolution = into.getResolution();
+        String interval = resolution.toHours() > 0 ? resolution.toHours() + "h" : resolution.toMinutes() + "m";
+        return select
+                .replace("[database]", DATABASE_NAME)
+                .replace("[into]", into.getRetentionPolicy())
+                .replace("[interval]", interval)
+                .replace("\"[from]\"", from.isEmpty() ? "" : "\"" + from + "\"")
+                .replace(" [where]", where.isEmpty() ? "" : " " + where);
+    }
+
+    /**
+     * Executes the given statement, logging any errors.
+     *
+     * @return Returns whether or not the statement succeeded.
+     */
+    private boolean execute(String statement)
+    {
+        LOG.debug("Executing statement: {}", statement);
+        QueryResult result = influx.query(new Query(statement, DATABASE_NAME, true));
+        if (result.hasError())
+        {
+            LOG.warn("Statement '{}' failed: {}", statement, result.getError());
+            return false;
+        }
+        else if (result.getResults() != null)
+        {
+            List<Result> failed = result.getResults()
+                    .stream()
+                    .filter(Result::hasError)
+                    .collect(toList());
+            failed.forEach(r -> LOG.warn("Statement '{}' failed: {}", statement, r.getError()));
+            return failed.isEmpty();
+        }
+        return true;
+    }
+
+    /**
+     * Defines the resolutions that metrics are kept at, from the finest to the coarsest.
+     */
+    enum Tier
+    {
+        /** Metrics exactly as they were read. */
+        RAW(RETENTION_POLICY_RAW, Duration.ZERO, Duration.ofMinutes(1), "value", RetentionConfig::getRawRetention),
+
+        /** The minimum, maximum, sum, mean and count of metrics for each minute. */
+        MINUTE(RETENTION_POLICY_ROLLUP_MINUTE, Duration.ofMinutes(1), Duration.ofMinutes(10), "mean", RetentionConfig::getMinuteRollupRetention),
+
+        /** The minimum, maximum, sum, mean and count of metrics for each hour. */
+        HOUR(RETENTION_POLICY_ROLLUP_HOUR, Duration.ofHours(1), Duration.ofHours(2), "mean", RetentionConfig::getHourRollupRetention);
+
+        private final String retentionPolicy;
+        private final Duration resolution;
+        private final Duration settleTime;
+        private final String valueField;
+        private final Function<RetentionConfig, String> retention;
+
+        Tier(String retentionPolicy, Duration resolution, Duration settleTime, String valueField, Function<RetentionConfig, String> retention)
+        {
+            this.retentionPolicy = retentionPolicy;
+            this.resolution = resolution;
+            this.settleTime = settleTime;
+            this.valueField = valueField;
+            this.retention = retention;
+        }
+
+        String getRetentionPolicy()
+        {
+            return retentionPolicy;
+        }
+
+        Duration getResolution()
+        {
+            return resolution;
+        }
+
+        /**
+         * Gets how long the metrics of a time may still change after that time. Raw metrics are written in batches, and rollups are resampled
+         * by their continuous queries for a while after their interval ends.
+         */
+        Duration getSettleTime()
+        {
+            return settleTime;
+        }
+
+        /**
+         * Gets the time when a metric that is written to the raw tier at the given time can be read from this tier. A rollup gets the metric
+         * when its continuous query runs, at the end of the first interval that ends after the metric reached the tier it rolls up from.
+         *
+         * @param writeTime The time when the metric is written, in milliseconds since the epoch.
+         * @return Returns the time, in milliseconds since the epoch.
+         */
+        long getReadableTime(long writeTime)
+        {
+            if (this == RAW)
+            {
+                return writeTime;
+            }
+
+            long source = values()[ordinal() - 1].getReadableTime(writeTime);
+            long interval = resolution.toMillis();
+            return (source / interval + 1) * interval + CONTINUOUS_QUERY_DELAY;
+        }
+
+        /**
+         * Gets the field that holds the value of a metric, which is the mean for rollups.
+         */
+        String getValueField()
+        {
+            return valueField;
+        }
+
+        /**
+         * Gets the condition that selects the metrics of the given node. Raw metrics have the node identifier as a field too, while rollups only
+         * have it as a tag.
+         */
+        String getNodeIdCondition(byte nodeId)
+        {
+            return this == RAW ? "nodeId = " + nodeId : "nodeId = '" + nodeId + "'";
+        }
+
+        /**
+         * Gets the condition that selects the metrics of any of the given nodes, using the tag that both raw metrics and rollups have.
+         */
+        String getNodeIdsCondition(Collection<Byte> nodeIds)
+        {
+            return nodeIds.stream()
+                    .map(String::valueOf)
+                    .collect(joining("|", "nodeId::tag =~ /^(", ")$/"));
+        }
+
+        Duration getRetention(RetentionConfig config)
+        {
+            return parseDuration(retention.apply(config));
+        }
+
+        boolean retains(RetentionConfig config, Duration age)
+        {
+            return getRetention(config).compareTo(age) >= 0;
+        }
+    }
+}
@@ -0,0 +1,714 @@
+/**
+ * Copyright 2017 Anton Johansson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anton.ehome.dao;
+
+import static com.anton.ehome.dao.InfluxUtils.DATABASE_NAME;
+import static com.anton.ehome.dao.InfluxUtils.RETENTION_POLICY_RAW;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.CREATE_NEW;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import org.influxdb.InfluxDB;
+import org.influxdb.InfluxDB.ConsistencyLevel;
+import org.influxdb.dto.Point;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.anton.ehome.common.IDaemon;
+import com.anton.ehome.conf.IConfigService;
+import com.anton.ehome.conf.SpoolConfig;
+import com.anton.ehome.conf.SyncPolicy;
+import com.google.inject.Inject;
+
+/**
+ * Keeps {@link Point points} that could not be written to the {@link InfluxDB} in append-only, memory mapped segment files, and replays them
+ * in batches once the database answers to pings again.
+ * <p>
+ * Each record holds the length of the point, a checksum and the point in line protocol, which includes its timestamp. Records that are torn by
+ * a crash fail their checksum and end the segment. Segments are deleted when they are fully replayed, so a crash while replaying only causes
+ * points to be written again, which the database treats as the same points.
+ * </p>
+ * <p>
+ * Line protocol takes about three times the space of a binary record with the timestamp, node and value of a metric, so a segment holds fewer
+ * points. It is kept because a {@link Point} only exposes its line protocol, so a binary record would have to be parsed out of it when spooled
+ * and turned back into line protocol when replayed, and because the checksummed line protocol is written to the database exactly as it was
+ * spooled. The points carry no controller or scale to record either, since metrics are only tagged with their node.
+ * </p>
+ * <p>
+ * Replaying reads from the active segment as well, without closing it, so that points keep being appended to it while the database can't be
+ * written to. The active segment is only closed when it is full or fully replayed.
+ * </p>
+ * <p>
+ * Points that are replayed long after their time are missed by whatever only looks at recent metrics, such as continuous queries, so the
+ * {@link #onReplayed(IReplayListener) replay listeners} are told the time range of each replayed batch.
+ * </p>
+ */
+class Spool implements IDaemon
+{
+    private static final Logger LOG = LoggerFactory.getLogger(Spool.class);
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".spool";
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final long NANOSECONDS_PER_MILLISECOND = 1_000_000;
+    private static final long NO_TIME = -1;
+
+    private final Deque<Segment> segments = new ArrayDeque<>();
+    private final AtomicLong spooled = new AtomicLong();
+    private final AtomicLong replayed = new AtomicLong();
+    private final AtomicLong discarded = new AtomicLong();
+    private final List<IReplayListener> replayListeners = new CopyOnWriteArrayList<>();
+    private final Thread thread = new Thread(new ReplayLoop(), "metrics-spool-replayer");
+    private final InfluxDB influx;
+    private final IConfigService configService;
+    private Path directory;
+    private Segment active;
+    private long nextSequence;
+    private int replayPosition;
+    private int recovered;
+    private boolean dirty;
+    private volatile boolean isDone;
+
+    @Inject
+    Spool(InfluxDB influx, IConfigService configService)
+    {
+        this.influx = influx;
+        this.configService = configService;
+    }
+
+    @Override
+    public boolean start()
+    {
+        SpoolConfig config = getConfig();
+        if (!config.isEnabled())
+        {
+            LOG.info("The spool is disabled");
+            return true;
+        }
+
+        try
+        {
+            open(Paths.get(config.getDirectory()));
+        }
+        catch (IOException e)
+        {
+            LOG.error("Could not open the spool in '{}'", config.getDirectory(), e);
+            return false;
+        }
+        thread.start();
+        return true;
+    }
+
+    @Override
+    public void stop()
+    {
+        LOG.info("Stopping the spool");
+        isDone = true;
+        thread.interrupt();
+        synchronized (this)
+        {
+            if (active != null)
+            {
+                active.force();
+            }
+        }
+    }
+
+    /**
+     * Opens the spool in the given directory, picking up any segments that were left from earlier runs.
+     *
+     * @param directory The directory to keep segments in.
+     */
+    synchronized void open(Path directory) throws IOException
+    {
+        Files.createDirectories(directory);
+        this.directory = directory;
+
+        List<Path> paths = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX))
+        {
+            stream.forEach(paths::add);
+        }
+        paths.sort(null);
+
+        for (Path path : paths)
+        {
+            Segment segment = Segment.open(path);
+            nextSequence = Math.max(nextSequence, sequence(path) + 1);
+            if (segment.getCount() == 0)
+            {
+                segment.delete();
+                continue;
+            }
+            LOG.info("Found {} spooled points in '{}'", segment.getCount(), path);
+            segments.add(segment);
+        }
+        recovered = segments.size();
+    }
+
+    private static long sequence(Path path)
+    {
+        String name = path.getFileName().toString();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    /**
+     * Appends points to the spool.
+     *
+     * @param points The points to append.
+     * @return Returns the number of points that were spooled, which are the first points of the given list.
+     */
+    synchronized int append(List<Point> points)
+    {
+        SpoolConfig config = getConfig();
+        if (directory == null || !config.isEnabled())
+        {
+            return 0;
+        }
+
+        int count = 0;
+        try
+        {
+            for (Point point : points)
+            {
+                String line = point.lineProtocol();
+                byte[] bytes = line.getBytes(UTF_8);
+                if (active == null || active.getRemaining() < RECORD_HEADER_SIZE + bytes.length)
+                {
+                    rotate(config, RECORD_HEADER_SIZE + bytes.length);
+                }
+                active.append(bytes, getTime(line));
+                count++;
+            }
+        }
+        catch (IOException e)
+        {
+            LOG.warn("Could not spool {} of {} points", points.size() - count, points.size(), e);
+        }
+
+        if (count == 0)
+        {
+            return 0;
+        }
+        spooled.addAndGet(count);
+        if (config.getSyncPolicy() == SyncPolicy.ALWAYS)
+        {
+            active.force();
+        }
+        else
+        {
+            dirty = true;
+        }
+        return count;
+    }
+
+    /**
+     * Closes the active segment, if any, and opens a new one.
+     */
+    private void rotate(SpoolConfig config, int minimumSize) throws IOException
+    {
+        closeActive();
+
+        long size = Math.max(config.getSegmentSize(), minimumSize);
+        while (!segments.isEmpty() && getSize() + size > config.getMaxDiskUsage())
+        {
+            Segment oldest = segments.poll();
+            LOG.warn("The spool is using more than {} bytes, discarding {} points in '{}'", config.getMaxDiskUsage(), oldest.getCount(), oldest.path);
+            discarded.addAndGet(oldest.getCount());
+            recovered = Math.max(0, recovered - 1);
+            replayPosition = 0;
+            oldest.delete();
+        }
+
+        Path path = directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, nextSequence++, SEGMENT_SUFFIX));
+        LOG.debug("Opening spool segment '{}'", path);
+        active = Segment.create(path, (int) size);
+    }
+
+    private void closeActive()
+    {
+        if (active != null)
+        {
+            active.force();
+            segments.add(active);
+            active = null;
+        }
+    }
+
+    /**
+     * Gets the number of bytes that the segments use on disk.
+     */
+    synchronized long getSize()
+    {
+        long size = active == null ? 0 : active.getSize();
+        for (Segment segment : segments)
+        {
+            size += segment.getSize();
+        }
+        return size;
+    }
+
+    /**
+     * Checks whether there are spooled points that are not yet replayed.
+     */
+    synchronized boolean hasPending()
+    {
+        return !segments.isEmpty() || (active != null && replayPosition < active.getEnd());
+    }
+
+    /**
+     * Checks whether there are points that were spooled before the spool was opened, by an earlier run of the application, that are not yet
+     * replayed. They are older than any point that is spooled after it was opened.
+     */
+    synchronized boolean isRecovering()
+    {
+        return recovered > 0;
+    }
+
+    /**
+     * Gets the time of the oldest point that is not yet replayed, or of an older one in the same segment.
+     *
+     * @return Returns the time in milliseconds since the epoch; or {@link Long#MAX_VALUE} if there is no such point.
+     */
+    synchronized long getOldestTime()
+    {
+        long oldest = Long.MAX_VALUE;
+        for (Segment segment : segments)
+        {
+            oldest = Math.min(oldest, segment.oldestTime);
+        }
+        if (active != null && (!segments.isEmpty() || replayPosition < active.getEnd()))
+        {
+            oldest = Math.min(oldest, active.oldestTime);
+        }
+        return oldest;
+    }
+
+    /**
+     * Gets the oldest segment, which is the active segment when all other segments are replayed.
+     */
+    private Segment getHead()
+    {
+        return segments.isEmpty() ? active : segments.peek();
+    }
+
+    /**
+     * Adds a listener for when spooled points are replayed. Listeners are called on the thread that replays the points.
+     *
+     * @param listener The listener to add.
+     */
+    void onReplayed(IReplayListener listener)
+    {
+        replayListeners.add(listener);
+    }
+
+    long getSpooled()
+    {
+        return spooled.get();
+    }
+
+    long getReplayed()
+    {
+        return replayed.get();
+    }
+
+    long getDiscarded()
+    {
+        return discarded.get();
+    }
+
+    /**
+     * Replays spooled points to the database, oldest first, until the spool is empty or a write fails.
+     */
+    void replay()
+    {
+        int batchSize = getConfig().getReplayBatchSize();
+        List<String> records = new ArrayList<>(batchSize);
+        while (!isDone)
+        {
+            Segment segment;
+            int position;
+            synchronized (this)
+            {
+                segment = getHead();
+                if (segment == null || (segment == active && replayPosition >= segment.getEnd()))
+                {
+                    return;
+                }
+                records.clear();
+                position = segment.read(replayPosition, batchSize, records);
+            }
+
+            if (!records.isEmpty())
+            {
+                try
+                {
+                    influx.write(DATABASE_NAME, RETENTION_POLICY_RAW, ConsistencyLevel.ONE, records);
+                    replayed.addAndGet(records.size());
+                    LOG.debug("Replayed {} spooled points", records.size());
+                }
+                catch (Exception e)
+                {
+                    LOG.warn("Could not replay {} spooled points", records.size(), e);
+                    return;
+                }
+                notifyReplayed(records);
+            }
+
+            synchronized (this)
+            {
+                if (getHead() != segment)
+                {
+                    continue;
+                }
+                if (position < segment.getEnd())
+                {
+                    replayPosition = position;
+                }
+                else
+                {
+                    LOG.debug("Spool segment '{}' is fully replayed", segment.path);
+                    if (segment == active)
+                    {
+                        active = null;
+                    }
+                    else
+                    {
+                        segments.poll();
+                        recovered = Math.max(0, recovered - 1);
+                    }
+                    replayPosition = 0;
+                    segment.delete();
+                }
+            }
+        }
+    }
+
+    private void notifyReplayed(List<String> records)
+    {
+        long from = Long.MAX_VALUE;
+        long to = Long.MIN_VALUE;
+        for (String record : records)
+        {
+            long time = getTime(record);
+            if (time != NO_TIME)
+            {
+                from = Math.min(from, time);
+                to = Math.max(to, time);
+            }
+        }
+        if (from > to)
+        {
+            return;
+        }
+
+        for (IReplayListener listener : replayListeners)
+        {
+            try
+            {
+                listener.replayed(from, to);
+            }
+            catch (Exception e)
+            {
+                LOG.warn("Exception occurred in listener of replayed points", e);
+            }
+        }
+    }
+
+    /**
+     * Gets the time of a point in line protocol, which ends with the timestamp in nanoseconds, if it has one.
+     *
+     * @return Returns the time in milliseconds since the epoch; or {@link #NO_TIME} if the point has no timestamp, and gets its time when written.
+     */
+    private static long getTime(String record)
+    {
+        try
+        {
+            return Long.parseLong(record.substring(record.lastIndexOf(' ') + 1)) / NANOSECONDS_PER_MILLISECOND;
+        }
+        catch (NumberFormatException e)
+        {
+            return NO_TIME;
+        }
+    }
+
+    private synchronized void syncIfDirty()
+    {
+        if (dirty && active != null)
+        {
+            active.force();
+        }
+        dirty = false;
+    }
+
+    private SpoolConfig getConfig()
+    {
+        return configService.getCurrentConfig().getMetricsConfig().getSpoolConfig();
+    }
+
+    /**
+     * Forces spooled points to disk, and replays them when the database is reachable.
+     */
+    private class ReplayLoop implements Runnable
+    {
+        private long lastReplay;
+
+        @Override
+        public void run()
+        {
+            while (!isDone)
+            {
+                try
+                {
+                    SpoolConfig config = getConfig();
+                    Thread.sleep(Math.min(config.getSyncInterval(), config.getReplayInterval()));
+                    if (config.getSyncPolicy() == SyncPolicy.PERIODIC)
+                    {
+                        syncIfDirty();
+                    }
+
+                    long now = System.currentTimeMillis();
+                    if (now - lastReplay >= config.getReplayInterval() && hasPending())
+                    {
+                        lastReplay = now;
+                        influx.ping();
+                        LOG.info("The database is reachable, replaying spooled points");
+                        replay();
+                    }
+                }
+                catch (InterruptedException e)
+                {
+                    LOG.debug("Interrupted while waiting to replay spooled points");
+                }
+                catch (Exception e)
+                {
+                    LOG.debug("The database is not yet reachable, not replaying spooled points", e);
+                }
+            }
+            LOG.info("Spool replayer stopped");
+        }
+    }
+
+    /**
+     * Listens for spooled points being replayed.
+     */
+    @FunctionalInterface
+    interface IReplayListener
+    {
+        /**
+         * Called when a batch of spooled points is replayed.
+         *
+         * @param from The time of the oldest replayed point, in milliseconds since the epoch.
+         * @param to The time of the newest replayed point, in milliseconds since the epoch.
+         */
+        void replayed(long from, long to);
+    }
+
+    /**
+     * A memory mapped segment file of the spool.
+     */
+    private static final class Segment
+    {
+        private final Path path;
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+        private int count;
+        private long oldestTime = Long.MAX_VALUE;
+
+        private Segment(Path path, FileChannel channel, MappedByteBuffer buffer)
+        {
+            this.path = path;
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+
+        /**
+         * Creates a new, empty segment.
+         */
+        private static Segment create(Path path, int size) throws IOException
+        {
+            FileChannel channel = FileChannel.open(path, CREATE_NEW, READ, WRITE);
+            return new Segment(path, channel, channel.map(MapMode.READ_WRITE, 0, size));
+        }
+
+        /**
+         * Opens an existing segment, positioned after its last intact record.
+         */
+        private static Segment open(Path path) throws IOException
+        {
+            FileChannel channel = FileChannel.open(path, READ, WRITE);
+            Segment segment = new Segment(path, channel, channel.map(MapMode.READ_WRITE, 0, channel.size()));
+            int position = 0;
+            while (true)
+            {
+                int next = segment.next(position);
+                if (next < 0)
+                {
+                    break;
+                }
+                position = next;
+                segment.count++;
+            }
+            segment.buffer.position(position);
+
+            List<String> records = new ArrayList<>(segment.count);
+            segment.read(0, segment.count, records);
+            records.forEach(record -> segment.addTime(getTime(record)));
+            return segment;
+        }
+
+        /**
+         * Gets the position after the record at the given position; or -1 if there is no intact record at the position.
+         */
+        private int next(int position)
+        {
+            if (buffer.capacity() - position < RECORD_HEADER_SIZE)
+            {
+                return -1;
+            }
+
+            int length = buffer.getInt(position);
+            if (length <= 0 || length > buffer.capacity() - position - RECORD_HEADER_SIZE)
+            {
+                return -1;
+            }
+
+            ByteBuffer record = buffer.duplicate();
+            record.position(position + RECORD_HEADER_SIZE).limit(position + RECORD_HEADER_SIZE + length);
+            CRC32 checksum = new CRC32();
+            checksum.update(record);
+            return (int) checksum.getValue() == buffer.getInt(position + 4) ? position + RECORD_HEADER_SIZE + length : -1;
+        }
+
+        private void addTime(long time)
+        {
+            if (time != NO_TIME)
+            {
+                oldestTime = Math.min(oldestTime, time);
+            }
+        }
+
+        private void append(byte[] bytes, long time)
+        {
+            addTime(time);
+            CRC32 checksum = new CRC32();
+            checksum.update(bytes);
+
+            int position = buffer.position();
+            buffer.position(position + RECORD_HEADER_SIZE);
+            buffer.put(bytes);
+            buffer.putInt(position + 4, (int) checksum.getValue());
+            buffer.putInt(position, bytes.length);
+            count++;
+        }
+
+        /**
+         * Reads records, starting at the given position.
+         *
+         * @return Returns the position after the last read record.
+         */
+        private int read(int position, int maximum, List<String> records)
+        {
+            while (records.size() < maximum && position < getEnd())
+            {
+                int length = buffer.getInt(position);
+                byte[] bytes = new byte[length];
+                ByteBuffer record = buffer.duplicate();
+                record.position(position + RECORD_HEADER_SIZE);
+                record.get(bytes);
+                records.add(new String(bytes, UTF_8));
+                position += RECORD_HEADER_SIZE + length;
+            }
+            return position;
+        }
+
+        private int getEnd()
+        {
+            return buffer.position();
+        }
+
+        private int getRemaining()
+        {
+            return buffer.remaining();
+        }
+
+        private int getCount()
+        {
+            return count;
+        }
+
+        private long getSize()
+        {
+            return buffer.capacity();
+        }
+
+        private void force()
+        {
+            buffer.force();
+        }
+
+        private void delete()
+        {
+            try
+            {
+                channel.close();
+                unmap();
+                Files.deleteIfExists(path);
+            }
+            catch (IOException e)
+            {
+                LOG.warn("Could not delete spool segment '{}'", path, e);
+            }
+        }
+
+        /**
+         * Releases the mapping of the segment right away, instead of when the buffer is garbage collected, so that the disk space of deleted
+         * segments is freed. Java 8 has no public way of doing this.
+         */
+        private void unmap()
+        {
+            try
+            {
+                Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(buffer);
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+            catch (ReflectiveOperationException | RuntimeException e)
+            {
+                LOG.debug("Could not unmap spool segment '{}', it is unmapped when garbage collected", path, e);
+            }
+        }
+    }
+}
@@ -13,55 +13,56 @@
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
-package com.anton.ehome.http.charts;
+package com.anton.ehome.domain;
 
-import static java.util.Collections.emptyList;
 import static org.apache.commons.lang3.builder.EqualsBuilder.reflectionEquals;
 import static org.apache.commons.lang3.builder.HashCodeBuilder.reflectionHashCode;
 import static org.apache.commons.lang3.builder.ToStringBuilder.reflectionToString;
 import static org.apache.commons.lang3.builder.ToStringStyle.SHORT_PREFIX_STYLE;
 
-import java.util.List;
-
-import com.anton.ehome.domain.Metric;
-
 /**
- * Defines a data set.
+ * Defines the energy used by a device today and this month.
  */
-public class DataSet
+public class Energy
 {
-    private String label = "";
-    private String color = "";
-    private List<Metric> dataPoints = emptyList();
+    private byte nodeId;
+    private double today;
+    private double thisMonth;
 
-    public String getLabel()
+    public byte getNodeId()
     {
-        return label;
+        return nodeId;
     }
 
-    public void setLabel(String label)
+    public void setNodeId(byte nodeId)
     {
-        this.label = label;
+        this.nodeId = nodeId;
     }
 
-    public String getColor()
+    /**
+     * Gets the energy used today, in kilowatt hours.
+     */
+    public double getToday()
     {
-        return color;
+        return today;
     }
 
-    public void setColor(String color)
+    public void setToday(double today)
     {
-        this.color = color;
+        this.today = today;
     }
 
-    public List<Metric> getDataPoints()
+    /**
+     * Gets the energy used this month, in kilowatt hours.
+     */
+    public double getThisMonth()
     {
-        return dataPoints;
+        return thisMonth;
     }
 
-    public void setDataPoints(List<Metric> dataPoints)
+    public void setThisMonth(double thisMonth)
     {
-        this.dataPoints = dataPoints;
+        this.thisMonth = thisMonth;
     }
 
     @Override
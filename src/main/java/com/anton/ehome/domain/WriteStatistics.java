@@ -0,0 +1,200 @@
+/**
+ * Copyright 2017 Anton Johansson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anton.ehome.domain;
+
+import static org.apache.commons.lang3.builder.EqualsBuilder.reflectionEquals;
+import static org.apache.commons.lang3.builder.HashCodeBuilder.reflectionHashCode;
+import static org.apache.commons.lang3.builder.ToStringBuilder.reflectionToString;
+import static org.apache.commons.lang3.builder.ToStringStyle.SHORT_PREFIX_STYLE;
+
+/**
+ * Defines statistics of the metrics write queue.
+ */
+public class WriteStatistics
+{
+    private int queueDepth;
+    private int queueCapacity;
+    private long written;
+    private long dropped;
+    private long spilled;
+    private long failed;
+    private long flushes;
+    private long lastFlushLatency;
+    private long maxFlushLatency;
+    private long averageFlushLatency;
+    private long spooled;
+    private long replayed;
+    private long discarded;
+    private long spoolSize;
+
+    public int getQueueDepth()
+    {
+        return queueDepth;
+    }
+
+    public void setQueueDepth(int queueDepth)
+    {
+        this.queueDepth = queueDepth;
+    }
+
+    public int getQueueCapacity()
+    {
+        return queueCapacity;
+    }
+
+    public void setQueueCapacity(int queueCapacity)
+    {
+        this.queueCapacity = queueCapacity;
+    }
+
+    public long getWritten()
+    {
+        return written;
+    }
+
+    public void setWritten(long written)
+    {
+        this.written = written;
+    }
+
+    public long getDropped()
+    {
+        return dropped;
+    }
+
+    public void setDropped(long dropped)
+    {
+        this.dropped = dropped;
+    }
+
+    public long getSpilled()
+    {
+        return spilled;
+    }
+
+    public void setSpilled(long spilled)
+    {
+        this.spilled = spilled;
+    }
+
+    public long getFailed()
+    {
+        return failed;
+    }
+
+    public void setFailed(long failed)
+    {
+        this.failed = failed;
+    }
+
+    public long getFlushes()
+    {
+        return flushes;
+    }
+
+    public void setFlushes(long flushes)
+    {
+        this.flushes = flushes;
+    }
+
+    public long getLastFlushLatency()
+    {
+        return lastFlushLatency;
+    }
+
+    public void setLastFlushLatency(long lastFlushLatency)
+    {
+        this.lastFlushLatency = lastFlushLatency;
+    }
+
+    public long getMaxFlushLatency()
+    {
+        return maxFlushLatency;
+    }
+
+    public void setMaxFlushLatency(long maxFlushLatency)
+    {
+        this.maxFlushLatency = maxFlushLatency;
+    }
+
+    public long getAverageFlushLatency()
+    {
+        return averageFlushLatency;
+    }
+
+    public void setAverageFlushLatency(long averageFlushLatency)
+    {
+        this.averageFlushLatency = averageFlushLatency;
+    }
+
+    public long getSpooled()
+    {
+        return spooled;
+    }
+
+    public void setSpooled(long spooled)
+    {
+        this.spooled = spooled;
+    }
+
+    public long getReplayed()
+    {
+        return replayed;
+    }
+
+    public void setReplayed(long replayed)
+    {
+        this.replayed = replayed;
+    }
+
+    public long getDiscarded()
+    {
+        return discarded;
+    }
+
+    public void setDiscarded(long discarded)
+    {
+        this.discarded = discarded;
+    }
+
+    public long getSpoolSize()
+    {
+        return spoolSize;
+    }
+
+    public void setSpoolSize(long spoolSize)
+    {
+        this.spoolSize = spoolSize;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return reflectionHashCode(this);
+    }
+
+    @Override
+    public boolean equals(Object that)
+    {
+        return reflectionEquals(this, that);
+    }
+
+    @Override
+    public String toString()
+    {
+        return reflectionToString(this, SHORT_PREFIX_STYLE);
+    }
+}
@@ -15,17 +15,29 @@
  */
 package com.anton.ehome.http;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
 
+import org.eclipse.jetty.http2.server.HTTP2CServerConnectionFactory;
+import org.eclipse.jetty.server.ConnectionFactory;
+import org.eclipse.jetty.server.Handler;
+import org.eclipse.jetty.server.HttpConfiguration;
+import org.eclipse.jetty.server.HttpConnectionFactory;
 import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.gzip.GzipHandler;
 import org.eclipse.jetty.servlet.ServletHandler;
 import org.eclipse.jetty.servlet.ServletHolder;
 import org.eclipse.jetty.servlet.ServletMapping;
+import org.eclipse.jetty.util.BlockingArrayQueue;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.anton.ehome.common.IDaemon;
 import com.anton.ehome.conf.Config;
+import com.anton.ehome.conf.HttpConfig;
 import com.anton.ehome.conf.IConfigService;
 import com.anton.ehome.http.common.IHttpApplication;
 import com.google.inject.Inject;
@@ -36,6 +48,8 @@ import com.google.inject.Inject;
 class HttpDaemon implements IDaemon
 {
     private static final Logger LOG = LoggerFactory.getLogger(HttpDaemon.class);
+    private static final String THREAD_NAME = "http";
+    private static final String JSON_MIME_TYPE = "application/json";
 
     private final IConfigService configService;
     private final Set<IHttpApplication> applications;
@@ -51,13 +65,12 @@ class HttpDaemon implements IDaemon
     @Override
     public boolean start()
     {
-        ServletHandler handler = getHandler();
-
         LOG.info("Starting the HTTP daemon");
         Config config = configService.getCurrentConfig();
-        int port = config.getHttpPort();
-        server = new Server(port);
-        server.setHandler(handler);
+        HttpConfig httpConfig = config.getHttpConfig();
+        server = new Server(getThreadPool(httpConfig));
+        server.addConnector(getConnector(server, config.getHttpPort(), httpConfig));
+        server.setHandler(getHandler(httpConfig));
         try
         {
             server.start();
@@ -71,7 +84,51 @@ class HttpDaemon implements IDaemon
         }
     }
 
-    private ServletHandler getHandler()
+    private QueuedThreadPool getThreadPool(HttpConfig config)
+    {
+        BlockingArrayQueue<Runnable> queue = new BlockingArrayQueue<>(config.getMinThreads(), config.getMinThreads(), config.getMaxQueuedRequests());
+        QueuedThreadPool threadPool = new QueuedThreadPool(config.getMaxThreads(), config.getMinThreads(), config.getThreadIdleTimeout(), queue);
+        threadPool.setName(THREAD_NAME);
+        return threadPool;
+    }
+
+    private ServerConnector getConnector(Server server, int port, HttpConfig config)
+    {
+        HttpConfiguration httpConfiguration = new HttpConfiguration();
+        List<ConnectionFactory> factories = new ArrayList<>();
+        factories.add(new HttpConnectionFactory(httpConfiguration));
+        if (config.isHttp2Enabled())
+        {
+            LOG.info("Enabling HTTP/2 over plain text connections");
+            factories.add(new HTTP2CServerConnectionFactory(httpConfiguration));
+        }
+
+        ServerConnector connector = new ServerConnector(
+                server,
+                config.getAcceptors(),
+                config.getSelectors(),
+                factories.toArray(new ConnectionFactory[factories.size()]));
+        connector.setPort(port);
+        connector.setIdleTimeout(config.getIdleTimeout());
+        return connector;
+    }
+
+    private Handler getHandler(HttpConfig config)
+    {
+        ServletHandler handler = getServletHandler();
+        if (!config.isGzipEnabled())
+        {
+            return handler;
+        }
+
+        GzipHandler gzipHandler = new GzipHandler();
+        gzipHandler.setIncludedMimeTypes(JSON_MIME_TYPE);
+        gzipHandler.setMinGzipSize(config.getGzipMinSize());
+        gzipHandler.setHandler(handler);
+        return gzipHandler;
+    }
+
+    private ServletHandler getServletHandler()
     {
         ServletHandler handler = new ServletHandler();
         for (IHttpApplication application : applications)
@@ -79,6 +136,7 @@ class HttpDaemon implements IDaemon
             ServletHolder holder = new ServletHolder();
             holder.setServlet(application);
             holder.setName(application.getPath());
+            holder.setAsyncSupported(true);
 
             ServletMapping mapping = new ServletMapping();
             mapping.setPathSpec("/" + application.getPath() + "/*");
@@ -15,29 +15,56 @@
  */
 package com.anton.ehome.http.charts;
 
-import static java.util.stream.Collectors.toList;
+import static java.time.ZoneOffset.UTC;
+import static java.util.Collections.singleton;
+import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static java.util.stream.Collectors.toCollection;
+import static java.util.stream.Collectors.toSet;
+import static org.apache.commons.codec.digest.DigestUtils.sha1Hex;
 import static org.apache.commons.lang3.StringUtils.isBlank;
 import static org.eclipse.jetty.http.HttpStatus.BAD_REQUEST_400;
 
 import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.OptionalInt;
+import java.util.OptionalLong;
+import java.util.Set;
 
+import javax.servlet.AsyncContext;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.eclipse.jetty.http.HttpHeader;
 
 import com.anton.ehome.conf.Chart;
 import com.anton.ehome.conf.ChartDataSet;
+import com.anton.ehome.conf.Config;
 import com.anton.ehome.conf.IConfigService;
+import com.anton.ehome.conf.RecordingMode;
+import com.anton.ehome.conf.ZWaveConfig;
+import com.anton.ehome.conf.ZWaveMonitoringConfig;
+import com.anton.ehome.dao.Aggregate;
+import com.anton.ehome.dao.Fill;
+import com.anton.ehome.dao.IAggregateCursor;
+import com.anton.ehome.dao.IMetricCursor;
 import com.anton.ehome.dao.IMetricsDao;
-import com.anton.ehome.domain.Metric;
+import com.anton.ehome.domain.Energy;
 import com.anton.ehome.http.common.AbstractHttpApplication;
+import com.anton.ehome.metrics.IEnergyMeter;
 import com.anton.ehome.utils.JsonUtils;
 import com.google.inject.Inject;
 
@@ -47,16 +74,39 @@ import com.google.inject.Inject;
 class ChartsHttpApplication extends AbstractHttpApplication
 {
     private static final int CHART_HOURS = 12;
+    private static final String RESOURCE_ROOT = "/html-charts";
 
+    /** About the width, in pixels, of a chart that fills the screen; more points than that can't be told apart. */
+    private static final int DEFAULT_MAX_POINTS = 1000;
+    private static final int MIN_MAX_POINTS = 3;
+    private static final String TIME_FORMAT_ISO = "iso";
+    private static final String TIME_FORMAT_EPOCH = "epoch";
+    private static final String JSON_CONTENT_TYPE = "application/json;charset=utf-8";
+    private static final String EVENT_STREAM_CONTENT_TYPE = "text/event-stream;charset=utf-8";
+
+    /**
+     * Tells clients what to pass as {@code since} to get only the metrics that are newer than those of the response. Metrics can be saved
+     * later than their time, so the value can be before the newest metrics of the response, and the next response can repeat some of them.
+     * Clients replace the metrics they have after the value with those of the next response.
+     */
+    private static final String NEXT_SINCE_HEADER = "X-Next-Since";
+
+    /** Tells responses of this process apart from those of earlier processes, that have other data but might have the same save times. */
+    private final long startTime = System.currentTimeMillis();
     private final IConfigService configService;
     private final IMetricsDao metricsDao;
+    private final MetricPublisher publisher;
+    private final IEnergyMeter energyMeter;
 
     @Inject
-    ChartsHttpApplication(IConfigService configService, IMetricsDao metricsDao)
+    ChartsHttpApplication(IConfigService configService, IMetricsDao metricsDao, MetricPublisher publisher, IEnergyMeter energyMeter)
     {
         super("charts");
         this.configService = configService;
         this.metricsDao = metricsDao;
+        this.publisher = publisher;
+        this.energyMeter = energyMeter;
+        preloadResources(RESOURCE_ROOT);
     }
 
     @Override
@@ -69,7 +119,7 @@ class ChartsHttpApplication extends AbstractHttpApplication
         }
         if (isStaticResource(path))
         {
-            proxyToResource("/html-charts" + path, response);
+            proxyToResource(RESOURCE_ROOT, path, request, response);
             return;
         }
         Optional<Chart> optionalChart = getChart(path);
@@ -87,39 +137,246 @@ class ChartsHttpApplication extends AbstractHttpApplication
         }
         if ("/data.json".equals(path))
         {
-            List<DataSet> dataSets = chart.getDataSets()
+            OptionalInt maxPoints = getMaxPoints(request);
+            if (!maxPoints.isPresent())
+            {
+                response.sendError(BAD_REQUEST_400);
+                return;
+            }
+
+            String timeFormat = StringUtils.defaultIfBlank(request.getParameter("timeFormat"), TIME_FORMAT_ISO);
+            if (!TIME_FORMAT_ISO.equals(timeFormat) && !TIME_FORMAT_EPOCH.equals(timeFormat))
+            {
+                response.sendError(BAD_REQUEST_400);
+                return;
+            }
+
+            // Metrics are read from after 'since' up to and including 'to', so 'since' is one millisecond before the start of the range
+            long now = System.currentTimeMillis();
+            OptionalLong to = getTime(request, "to", now);
+            OptionalLong from = to.isPresent() ? getTime(request, "from", to.getAsLong() - HOURS.toMillis(CHART_HOURS)) : OptionalLong.empty();
+            OptionalLong since = from.isPresent() ? getTime(request, "since", from.getAsLong() - 1) : OptionalLong.empty();
+            OptionalLong step = getTime(request, "step", 0);
+            if (!since.isPresent() || !step.isPresent() || from.getAsLong() > to.getAsLong())
+            {
+                response.sendError(BAD_REQUEST_400);
+                return;
+            }
+
+            long after = Math.max(since.getAsLong(), from.getAsLong() - 1);
+            long until = to.getAsLong();
+            Duration interval = Duration.ofMillis(step.getAsLong());
+            if (isNotModified(request, response, chart, maxPoints.getAsInt(), timeFormat, after + 1, interval))
+            {
+                return;
+            }
+
+            Map<Byte, IMetricCursor> cursors = getCursors(chart.getDataSets()
                     .stream()
-                    .map(this::toDataSet)
-                    .collect(toList());
+                    .map(dataSet -> (byte) dataSet.getDeviceId())
+                    .collect(toCollection(LinkedHashSet::new)), after, until, interval);
 
-            JsonUtils.write(dataSets, response.getOutputStream());
+            response.setContentType(JSON_CONTENT_TYPE);
+            long nextSince = metricsDao.hasUnwrittenMetrics() ? after : Math.max(after, Math.min(until, now - getMaximumDelay(chart)));
+            response.setHeader(NEXT_SINCE_HEADER, String.valueOf(nextSince));
+            try (DataSetWriter writer = new DataSetWriter(response.getOutputStream(), TIME_FORMAT_EPOCH.equals(timeFormat)))
+            {
+                for (ChartDataSet dataSet : chart.getDataSets())
+                {
+                    // A cursor can only be read once, so a device that is used by more than one data set is read again
+                    byte deviceId = (byte) dataSet.getDeviceId();
+                    IMetricCursor cursor = cursors.remove(deviceId);
+                    IMetricCursor dataPoints = cursor != null ? cursor : getCursors(singleton(deviceId), after, until, interval).get(deviceId);
+                    IMetricCursor downsampled = Downsampler.downsample(dataPoints, after + 1, until, maxPoints.getAsInt());
+
+                    writer.write(dataSet.getLabel(), dataSet.getColor(), downsampled);
+                }
+            }
         }
         else if ("/meta.json".equals(path))
         {
+            if (isNotModified(request, response, sha1Hex(chart.getTitle() + "\n" + chart.getYAxisLabel())))
+            {
+                return;
+            }
+
             Map<String, Object> meta = new HashMap<>();
             meta.put("title", chart.getTitle());
             meta.put("yAxisLabel", chart.getYAxisLabel());
 
+            response.setContentType(JSON_CONTENT_TYPE);
             JsonUtils.write(meta, response.getOutputStream());
         }
+        else if ("/energy.json".equals(path))
+        {
+            Map<Byte, Energy> energyByNodeId = new HashMap<>();
+            energyMeter.getEnergy().forEach(energy -> energyByNodeId.put(energy.getNodeId(), energy));
+
+            List<Map<String, Object>> dataSets = new ArrayList<>();
+            for (ChartDataSet dataSet : chart.getDataSets())
+            {
+                Energy energy = energyByNodeId.getOrDefault((byte) dataSet.getDeviceId(), new Energy());
+                Map<String, Object> item = new LinkedHashMap<>();
+                item.put("label", dataSet.getLabel());
+                item.put("color", dataSet.getColor());
+                item.put("today", energy.getToday());
+                item.put("thisMonth", energy.getThisMonth());
+                dataSets.add(item);
+            }
+
+            response.setContentType(JSON_CONTENT_TYPE);
+            response.setHeader(HttpHeader.CACHE_CONTROL.asString(), "no-cache");
+            JsonUtils.write(dataSets, response.getOutputStream());
+        }
+        else if ("/stream".equals(path))
+        {
+            response.setContentType(EVENT_STREAM_CONTENT_TYPE);
+            response.setHeader(HttpHeader.CACHE_CONTROL.asString(), "no-cache");
+
+            AsyncContext context = request.startAsync();
+            context.setTimeout(0);
+            new EventStream(context, chart, publisher).start();
+        }
         else
         {
-            proxyToResource("/html-charts" + path, response);
+            proxyToResource(RESOURCE_ROOT, path, request, response);
+        }
+    }
+
+    /**
+     * Checks whether the client already has the data of the given chart. Apart from old metrics falling out of the chart as time passes, the
+     * data only changes when a newly saved metric of one of its devices can be read, so the entity tag is derived from the
+     * {@link IMetricsDao#getVersion(byte, LocalDateTime, Duration) versions} of the devices, and from everything else that the response depends
+     * on.
+     */
+    private boolean isNotModified(
+            HttpServletRequest request, HttpServletResponse response, Chart chart, int maxPoints, String timeFormat, long from, Duration step)
+    {
+        long lastModified = startTime;
+        StringBuilder version = new StringBuilder()
+                .append(startTime).append(':')
+                .append(chart.hashCode()).append(':')
+                .append(maxPoints).append(':')
+                .append(timeFormat).append(':')
+                .append(request.getParameter("from")).append(':')
+                .append(request.getParameter("to")).append(':')
+                .append(request.getParameter("since")).append(':')
+                .append(request.getParameter("step"));
+        for (ChartDataSet dataSet : chart.getDataSets())
+        {
+            long deviceVersion = metricsDao.getVersion((byte) dataSet.getDeviceId(), toDateTime(from), step);
+            lastModified = Math.max(lastModified, deviceVersion);
+            version.append(':').append(deviceVersion);
+        }
+
+        response.setDateHeader(HttpHeader.LAST_MODIFIED.asString(), lastModified);
+        return isNotModified(request, response, sha1Hex(version.toString()));
+    }
+
+    /**
+     * Gets the longest time, in milliseconds, from the time of a metric of the chart until it can be read. Queued metrics are written within the
+     * flush interval. A reading of a value that is recorded with a swinging door is held until a later reading shows whether it is needed, which
+     * is at most a heartbeat and a poll interval later, or at any time if the value has no heartbeat.
+     */
+    private long getMaximumDelay(Chart chart)
+    {
+        Config config = configService.getCurrentConfig();
+        Set<Byte> deviceIds = chart.getDataSets()
+                .stream()
+                .map(dataSet -> (byte) dataSet.getDeviceId())
+                .collect(toSet());
+
+        long flushInterval = config.getMetricsConfig().getFlushInterval();
+        long delay = flushInterval;
+        for (ZWaveConfig zwaveConfig : config.getZwaveConfigs())
+        {
+            for (ZWaveMonitoringConfig value : zwaveConfig.getMonitoringValues())
+            {
+                if (value.getRecordingMode() != RecordingMode.SWINGING_DOOR || !deviceIds.contains(value.getNodeId()))
+                {
+                    continue;
+                }
+                if (value.getHeartbeat() <= 0)
+                {
+                    return Long.MAX_VALUE;
+                }
+                delay = Math.max(delay, flushInterval + SECONDS.toMillis(value.getHeartbeat()) + value.getPollInterval());
+            }
         }
+        return delay;
     }
 
-    private DataSet toDataSet(ChartDataSet config)
+    private OptionalInt getMaxPoints(HttpServletRequest request)
     {
-        LocalDateTime to = LocalDateTime.now();
-        LocalDateTime from = to.minusHours(CHART_HOURS);
+        String maxPoints = request.getParameter("maxPoints");
+        if (isBlank(maxPoints))
+        {
+            return OptionalInt.of(DEFAULT_MAX_POINTS);
+        }
+        int value = NumberUtils.toInt(maxPoints, -1);
+        return value >= MIN_MAX_POINTS ? OptionalInt.of(value) : OptionalInt.empty();
+    }
+
+    /**
+     * Gets cursors over the metrics of the given devices, after one time and up to another. Without a step, every metric is read. With a step,
+     * the database reduces the metrics of each step to their mean, so that a long range doesn't have to be read in full only to be downsampled.
+     */
+    private Map<Byte, IMetricCursor> getCursors(Collection<Byte> deviceIds, long after, long until, Duration step)
+    {
+        if (step.isZero())
+        {
+            return metricsDao.getMetricCursorsSince(deviceIds, after, until, Duration.ZERO);
+        }
 
-        List<Metric> dataPoints = metricsDao.getMetrics((byte) config.getDeviceId(), from, to);
+        Map<Byte, IMetricCursor> cursors = new HashMap<>();
+        metricsDao.getAggregates(deviceIds, toDateTime(after + 1), toDateTime(until), step, Fill.NONE, Aggregate.mean())
+                .forEach((deviceId, cursor) -> cursors.put(deviceId, toMetricCursor(cursor)));
+        return cursors;
+    }
 
-        DataSet dataSet = new DataSet();
-        dataSet.setColor(config.getColor());
-        dataSet.setLabel(config.getLabel());
-        dataSet.setDataPoints(dataPoints);
-        return dataSet;
+    private IMetricCursor toMetricCursor(IAggregateCursor cursor)
+    {
+        return new IMetricCursor()
+        {
+            @Override
+            public boolean next()
+            {
+                return cursor.next();
+            }
+
+            @Override
+            public long getTime()
+            {
+                return cursor.getTime();
+            }
+
+            @Override
+            public double getValue()
+            {
+                return cursor.getValue(0);
+            }
+        };
+    }
+
+    /**
+     * Gets a time parameter, in milliseconds; since the epoch, unless it's a duration.
+     *
+     * @return Returns the time; the given default if the parameter is not set; or {@link OptionalLong#empty()} if it is not a valid time.
+     */
+    private OptionalLong getTime(HttpServletRequest request, String name, long defaultValue)
+    {
+        String time = request.getParameter(name);
+        if (isBlank(time))
+        {
+            return OptionalLong.of(defaultValue);
+        }
+        long value = NumberUtils.toLong(time, -1);
+        return value >= 0 ? OptionalLong.of(value) : OptionalLong.empty();
+    }
+
+    private LocalDateTime toDateTime(long epochMillis)
+    {
+        return LocalDateTime.ofInstant(Instant.ofEpochMilli(epochMillis), UTC);
     }
 
     private boolean isStaticResource(String path)
@@ -17,8 +17,10 @@ package com.anton.ehome.http.charts;
 
 import static com.google.inject.multibindings.Multibinder.newSetBinder;
 
+import com.anton.ehome.common.IDaemon;
 import com.anton.ehome.http.common.IHttpApplication;
 import com.google.inject.AbstractModule;
+import com.google.inject.Singleton;
 
 /**
  * Provides IOC bindings for the charts HTTP application module.
@@ -28,6 +30,8 @@ public class ChartsModule extends AbstractModule
     @Override
     protected void configure()
     {
+        bind(MetricPublisher.class).in(Singleton.class);
+        newSetBinder(binder(), IDaemon.class).addBinding().to(MetricPublisher.class);
         newSetBinder(binder(), IHttpApplication.class).addBinding().to(ChartsHttpApplication.class);
     }
 }
@@ -0,0 +1,144 @@
+/**
+ * Copyright 2017 Anton Johansson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anton.ehome.http.charts;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+
+import com.anton.ehome.dao.IMetricCursor;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Writes chart data sets as a JSON array, streaming the metrics of each data set from a cursor straight to the output.
+ * <p>
+ * Each data set is written as an object with a {@code label}, a {@code color} and its {@code dataPoints}. The time of a data point is either
+ * an ISO 8601 formatted string in UTC, or the number of milliseconds since the epoch.
+ * </p>
+ */
+final class DataSetWriter implements Closeable
+{
+    private static final int SECONDS_PER_DAY = 86_400;
+    private static final int MILLIS_PER_SECOND = 1000;
+
+    private final JsonWriter writer;
+    private final boolean epochMillis;
+    private final StringBuilder time = new StringBuilder(24);
+
+    /**
+     * Starts writing the array of data sets.
+     *
+     * @param stream The stream to write to.
+     * @param epochMillis Whether to write times as milliseconds since the epoch, instead of ISO 8601 formatted strings.
+     */
+    DataSetWriter(OutputStream stream, boolean epochMillis) throws IOException
+    {
+        this.writer = new JsonWriter(new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8)));
+        this.epochMillis = epochMillis;
+        writer.beginArray();
+    }
+
+    /**
+     * Writes a data set.
+     *
+     * @param label The label of the data set.
+     * @param color The color of the data set.
+     * @param dataPoints The metrics of the data set.
+     */
+    void write(String label, String color, IMetricCursor dataPoints) throws IOException
+    {
+        writer.beginObject();
+        writer.name("label").value(label);
+        writer.name("color").value(color);
+        writer.name("dataPoints").beginArray();
+        while (dataPoints.next())
+        {
+            writer.beginObject();
+            writer.name("time");
+            if (epochMillis)
+            {
+                writer.value(dataPoints.getTime());
+            }
+            else
+            {
+                writer.value(formatTime(dataPoints.getTime()));
+            }
+            writer.name("value").value(dataPoints.getValue());
+            writer.endObject();
+        }
+        writer.endArray();
+        writer.endObject();
+    }
+
+    /**
+     * Ends the array of data sets and flushes it to the stream.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        writer.endArray();
+        writer.close();
+    }
+
+    /**
+     * Formats a time the same way as {@code ZonedDateTime} does for UTC, such as {@code 2018-02-18T21:58:51.250Z}, without creating any
+     * date-time objects.
+     */
+    private String formatTime(long epochMillis)
+    {
+        long epochSeconds = Math.floorDiv(epochMillis, MILLIS_PER_SECOND);
+        int millis = (int) Math.floorMod(epochMillis, MILLIS_PER_SECOND);
+        long days = Math.floorDiv(epochSeconds, SECONDS_PER_DAY);
+        int secondOfDay = (int) Math.floorMod(epochSeconds, SECONDS_PER_DAY);
+
+        // Converts days since the epoch to a civil date, in eras of 400 years that start at the first of March
+        long shifted = days + 719_468;
+        long era = Math.floorDiv(shifted, 146_097);
+        long dayOfEra = shifted - era * 146_097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36_524 - dayOfEra / 146_096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long monthIndex = (5 * dayOfYear + 2) / 153;
+        int day = (int) (dayOfYear - (153 * monthIndex + 2) / 5 + 1);
+        int month = (int) (monthIndex < 10 ? monthIndex + 3 : monthIndex - 9);
+        long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+
+        time.setLength(0);
+        time.append(year).append('-');
+        pad(month).append('-');
+        pad(day).append('T');
+        pad(secondOfDay / 3600).append(':');
+        pad(secondOfDay / 60 % 60);
+        int second = secondOfDay % 60;
+        if (second > 0 || millis > 0)
+        {
+            time.append(':');
+            pad(second);
+            if (millis > 0)
+            {
+                time.append('.').append((char) ('0' + millis / 100)).append((char) ('0' + millis / 10 % 10)).append((char) ('0' + millis % 10));
+            }
+        }
+        return time.append('Z').toString();
+    }
+
+    private StringBuilder pad(int value)
+    {
+        return time.append((char) ('0' + value / 10)).append((char) ('0' + value % 10));
+    }
+}
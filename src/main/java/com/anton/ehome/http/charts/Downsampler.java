@@ -0,0 +1,251 @@
+/**
+ * Copyright 2017 Anton Johansson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anton.ehome.http.charts;
+
+import java.util.Arrays;
+
+import com.anton.ehome.dao.IMetricCursor;
+
+/**
+ * Reduces the number of metrics in a chart, while keeping its visual shape.
+ * <p>
+ * Uses the Largest-Triangle-Three-Buckets algorithm: the first and last metrics are always kept, and the metrics in between are split into
+ * buckets. From each bucket, the metric that forms the largest triangle with the metric kept from the previous bucket and the average of the
+ * next bucket is kept. Peaks and valleys form large triangles, so they survive the reduction.
+ * </p>
+ * <p>
+ * Metrics are read from a cursor in one pass. Buckets span equal amounts of time, so only the bucket that a metric is picked from and the
+ * bucket after it are buffered, and memory use does not grow with the number of metrics read.
+ * </p>
+ */
+final class Downsampler
+{
+    // Prevent instantiation
+    private Downsampler()
+    {
+    }
+
+    /**
+     * Reduces the metrics of the given cursor to at most the given number of metrics.
+     *
+     * @param source The metrics to reduce, ordered by time.
+     * @param from The start of the range of the metrics, in milliseconds since the epoch.
+     * @param to The end of the range of the metrics, in milliseconds since the epoch.
+     * @param maxPoints The maximum number of metrics to keep; at least three.
+     * @return Returns a cursor over the kept metrics; all of them if there are few enough.
+     */
+    static IMetricCursor downsample(IMetricCursor source, long from, long to, int maxPoints)
+    {
+        if (maxPoints < 3)
+        {
+            throw new IllegalArgumentException("maxPoints must be at least 3");
+        }
+
+        Bucket head = new Bucket();
+        while (head.size <= maxPoints && source.next())
+        {
+            head.add(source.getTime(), source.getValue());
+        }
+        if (head.size <= maxPoints)
+        {
+            return new ArrayCursor(head.times, head.values, head.size);
+        }
+
+        Reduction reduction = new Reduction(from, to, maxPoints);
+        for (int i = 0; i < head.size; i++)
+        {
+            reduction.add(head.times[i], head.values[i]);
+        }
+        while (source.next())
+        {
+            reduction.add(source.getTime(), source.getValue());
+        }
+        return reduction.finish();
+    }
+
+    /**
+     * Picks metrics from buckets as metrics are added.
+     */
+    private static final class Reduction
+    {
+        private final long from;
+        private final double bucketDuration;
+        private final int numberOfBuckets;
+        private final long[] times;
+        private final double[] values;
+        private int size;
+        private Bucket pending = new Bucket();
+        private Bucket filling = new Bucket();
+
+        private Reduction(long from, long to, int maxPoints)
+        {
+            this.from = from;
+            this.numberOfBuckets = maxPoints - 2;
+            this.bucketDuration = Math.max(1, to - from + 1) / (double) numberOfBuckets;
+            this.times = new long[maxPoints];
+            this.values = new double[maxPoints];
+        }
+
+        void add(long time, double value)
+        {
+            if (size == 0)
+            {
+                keep(time, value);
+                return;
+            }
+
+            int index = (int) Math.max(0, Math.min(numberOfBuckets - 1, (time - from) / bucketDuration));
+            if (filling.size > 0 && filling.index != index)
+            {
+                pickFromPending(filling.getAverageTime(), filling.getAverageValue());
+                Bucket empty = pending;
+                pending = filling;
+                filling = empty;
+            }
+            filling.index = index;
+            filling.add(time, value);
+        }
+
+        IMetricCursor finish()
+        {
+            if (filling.size > 0)
+            {
+                pickFromPending(filling.getAverageTime(), filling.getAverageValue());
+                Bucket empty = pending;
+                pending = filling;
+                filling = empty;
+            }
+            if (pending.size > 0)
+            {
+                int last = --pending.size;
+                pickFromPending(pending.times[last], pending.values[last]);
+                keep(pending.times[last], pending.values[last]);
+            }
+            return new ArrayCursor(times, values, size);
+        }
+
+        private void pickFromPending(double nextTime, double nextValue)
+        {
+            if (pending.size == 0)
+            {
+                return;
+            }
+
+            double keptTime = times[size - 1];
+            double keptValue = values[size - 1];
+            double maxArea = -1;
+            int picked = 0;
+            for (int i = 0; i < pending.size; i++)
+            {
+                double area = Math.abs((keptTime - nextTime) * (pending.values[i] - keptValue) - (keptTime - pending.times[i]) * (nextValue - keptValue));
+                if (area > maxArea)
+                {
+                    maxArea = area;
+                    picked = i;
+                }
+            }
+            keep(pending.times[picked], pending.values[picked]);
+            pending.clear();
+        }
+
+        private void keep(long time, double value)
+        {
+            times[size] = time;
+            values[size] = value;
+            size++;
+        }
+    }
+
+    /**
+     * The metrics of one bucket, in growable primitive arrays that are reused between buckets.
+     */
+    private static final class Bucket
+    {
+        private long[] times = new long[16];
+        private double[] values = new double[16];
+        private int size;
+        private int index;
+        private double timeSum;
+        private double valueSum;
+
+        void add(long time, double value)
+        {
+            if (size == times.length)
+            {
+                times = Arrays.copyOf(times, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+            }
+            times[size] = time;
+            values[size] = value;
+            size++;
+            timeSum += time;
+            valueSum += value;
+        }
+
+        double getAverageTime()
+        {
+            return timeSum / size;
+        }
+
+        double getAverageValue()
+        {
+            return valueSum / size;
+        }
+
+        void clear()
+        {
+            size = 0;
+            timeSum = 0;
+            valueSum = 0;
+        }
+    }
+
+    /**
+     * Iterates over the kept metrics.
+     */
+    private static final class ArrayCursor implements IMetricCursor
+    {
+        private final long[] times;
+        private final double[] values;
+        private final int size;
+        private int position = -1;
+
+        private ArrayCursor(long[] times, double[] values, int size)
+        {
+            this.times = times;
+            this.values = values;
+            this.size = size;
+        }
+
+        @Override
+        public boolean next()
+        {
+            return ++position < size;
+        }
+
+        @Override
+        public long getTime()
+        {
+            return times[position];
+        }
+
+        @Override
+        public double getValue()
+        {
+            return values[position];
+        }
+    }
+}
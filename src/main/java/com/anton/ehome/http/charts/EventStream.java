@@ -0,0 +1,251 @@
+/**
+ * Copyright 2017 Anton Johansson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anton.ehome.http.charts;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.anton.ehome.conf.Chart;
+import com.anton.ehome.conf.ChartDataSet;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Streams the metrics of the devices of a chart to a client as Server-Sent Events, as they are saved.
+ * <p>
+ * Each metric is sent once for every data set of the chart that shows its device, as a {@code data} line with a JSON object that has the
+ * {@code label} of the data set, and the {@code time}, in milliseconds since the epoch, and {@code value} of the metric.
+ * </p>
+ * <p>
+ * Events are written with non-blocking I/O, so a slow client never holds up the thread that saves metrics. Events that can't be written yet are
+ * buffered, up to a fixed number of events. A client that falls further behind than that is disconnected, and has to load the chart again.
+ * </p>
+ */
+final class EventStream implements WriteListener, AsyncListener
+{
+    /** The maximum number of events that are buffered for a client that is not reading them fast enough. */
+    static final int CAPACITY = 256;
+
+    private static final Logger LOG = LoggerFactory.getLogger(EventStream.class);
+    private static final int RETRY_INTERVAL = 10_000;
+    private static final String HEARTBEAT = ": heartbeat\n\n";
+
+    private final Queue<String> events = new ArrayBlockingQueue<>(CAPACITY);
+    private final List<List<String>> labels = new ArrayList<>(256);
+    private final AsyncContext context;
+    private final ServletOutputStream output;
+    private final MetricPublisher publisher;
+    private boolean needsFlush;
+    private boolean isClosed;
+
+    EventStream(AsyncContext context, Chart chart, MetricPublisher publisher) throws IOException
+    {
+        this.context = context;
+        this.output = context.getResponse().getOutputStream();
+        this.publisher = publisher;
+        for (int index = 0; index < 256; index++)
+        {
+            labels.add(null);
+        }
+        for (ChartDataSet dataSet : chart.getDataSets())
+        {
+            int index = dataSet.getDeviceId() & 0xFF;
+            if (labels.get(index) == null)
+            {
+                labels.set(index, new ArrayList<>());
+            }
+            labels.get(index).add(dataSet.getLabel());
+        }
+    }
+
+    /**
+     * Starts streaming, telling the client how long to wait before it reconnects after the stream is closed.
+     */
+    void start() throws IOException
+    {
+        events.add("retry: " + RETRY_INTERVAL + "\n\n");
+        context.addListener(this);
+        publisher.subscribe(this);
+        output.setWriteListener(this);
+    }
+
+    /**
+     * Sends a metric to the client, if its device is shown in the chart.
+     *
+     * @param nodeId The identifier of the device.
+     * @param time The time of the metric, in milliseconds since the epoch.
+     * @param value The value of the metric.
+     */
+    void publish(byte nodeId, long time, double value)
+    {
+        List<String> labelsOfNode = labels.get(nodeId & 0xFF);
+        if (labelsOfNode == null)
+        {
+            return;
+        }
+        for (String label : labelsOfNode)
+        {
+            send(toEvent(label, time, value));
+        }
+    }
+
+    /**
+     * Sends a comment to the client, to keep the connection alive.
+     */
+    void heartbeat()
+    {
+        send(HEARTBEAT);
+    }
+
+    /**
+     * Stops streaming and completes the response.
+     */
+    void close()
+    {
+        synchronized (this)
+        {
+            if (isClosed)
+            {
+                return;
+            }
+            isClosed = true;
+            events.clear();
+        }
+
+        publisher.unsubscribe(this);
+        try
+        {
+            context.complete();
+        }
+        catch (IllegalStateException e)
+        {
+            LOG.trace("The response was already completed", e);
+        }
+    }
+
+    @Override
+    public void onWritePossible() throws IOException
+    {
+        write();
+    }
+
+    @Override
+    public void onError(Throwable throwable)
+    {
+        LOG.debug("Could not write to a live chart stream", throwable);
+        close();
+    }
+
+    @Override
+    public void onComplete(AsyncEvent event)
+    {
+        close();
+    }
+
+    @Override
+    public void onTimeout(AsyncEvent event)
+    {
+        close();
+    }
+
+    @Override
+    public void onError(AsyncEvent event)
+    {
+        close();
+    }
+
+    @Override
+    public void onStartAsync(AsyncEvent event)
+    {
+    }
+
+    private void send(String event)
+    {
+        if (!events.offer(event))
+        {
+            LOG.debug("A live chart stream fell behind by more than {} events, closing it", CAPACITY);
+            close();
+            return;
+        }
+
+        try
+        {
+            write();
+        }
+        catch (IOException | RuntimeException e)
+        {
+            LOG.debug("Could not write to a live chart stream", e);
+            close();
+        }
+    }
+
+    /**
+     * Writes buffered events for as long as the output accepts them without blocking. When it doesn't, the container calls
+     * {@link #onWritePossible()} once it does.
+     */
+    private synchronized void write() throws IOException
+    {
+        while (!isClosed && output.isReady())
+        {
+            String event = events.poll();
+            if (event != null)
+            {
+                output.write(event.getBytes(StandardCharsets.UTF_8));
+                needsFlush = true;
+            }
+            else if (needsFlush)
+            {
+                needsFlush = false;
+                output.flush();
+            }
+            else
+            {
+                return;
+            }
+        }
+    }
+
+    private static String toEvent(String label, long time, double value)
+    {
+        StringWriter data = new StringWriter().append("data: ");
+        try (JsonWriter writer = new JsonWriter(data))
+        {
+            writer.beginObject();
+            writer.name("label").value(label);
+            writer.name("time").value(time);
+            writer.name("value").value(value);
+            writer.endObject();
+        }
+        catch (IOException e)
+        {
+            throw new IllegalStateException("Could not write to a string", e);
+        }
+        return data.append("\n\n").toString();
+    }
+}
@@ -0,0 +1,126 @@
+/**
+ * Copyright 2017 Anton Johansson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anton.ehome.http.charts;
+
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.anton.ehome.common.IDaemon;
+import com.anton.ehome.dao.IMetricsDao;
+import com.google.inject.Inject;
+
+/**
+ * Publishes metrics to the open {@link EventStream live chart streams} as they are saved.
+ * <p>
+ * A single listener of saved metrics fans out to every stream, which buffers the events of its own connection. A heartbeat is sent to every
+ * stream periodically, so that idle connections are not closed by the server, and connections that clients have left are noticed.
+ * </p>
+ */
+class MetricPublisher implements IDaemon
+{
+    private static final Logger LOG = LoggerFactory.getLogger(MetricPublisher.class);
+    private static final long HEARTBEAT_INTERVAL = 15_000;
+
+    private final Set<EventStream> streams = new CopyOnWriteArraySet<>();
+    private final Thread thread = new Thread(new HeartbeatLoop(), "charts-stream-heartbeat");
+    private volatile boolean isDone;
+
+    @Inject
+    MetricPublisher(IMetricsDao metricsDao)
+    {
+        metricsDao.onSaved(this::publish);
+    }
+
+    @Override
+    public boolean start()
+    {
+        LOG.info("Starting the live chart publisher");
+        thread.start();
+        return true;
+    }
+
+    @Override
+    public void stop()
+    {
+        LOG.info("Stopping the live chart publisher, closing {} streams", streams.size());
+        isDone = true;
+        thread.interrupt();
+        streams.forEach(EventStream::close);
+    }
+
+    /**
+     * Starts publishing metrics to the given stream.
+     *
+     * @param stream The stream to publish to.
+     */
+    void subscribe(EventStream stream)
+    {
+        streams.add(stream);
+        LOG.debug("A live chart stream was opened, {} streams are open", streams.size());
+    }
+
+    /**
+     * Stops publishing metrics to the given stream.
+     *
+     * @param stream The stream to stop publishing to.
+     */
+    void unsubscribe(EventStream stream)
+    {
+        if (streams.remove(stream))
+        {
+            LOG.debug("A live chart stream was closed, {} streams are open", streams.size());
+        }
+    }
+
+    private void publish(byte nodeId, long time, double value)
+    {
+        for (EventStream stream : streams)
+        {
+            stream.publish(nodeId, time, value);
+        }
+    }
+
+    /**
+     * Sends heartbeats to all streams.
+     */
+    private class HeartbeatLoop implements Runnable
+    {
+        @Override
+        public void run()
+        {
+            while (!isDone)
+            {
+                try
+                {
+                    Thread.sleep(HEARTBEAT_INTERVAL);
+                    streams.forEach(EventStream::heartbeat);
+                }
+                catch (InterruptedException e)
+                {
+                    LOG.debug("Interrupted while waiting for the next heartbeat");
+                }
+                catch (Exception e)
+                {
+                    LOG.warn("Exception occurred in loop", e);
+                }
+            }
+            LOG.info("Live chart publisher stopped");
+        }
+    }
+}
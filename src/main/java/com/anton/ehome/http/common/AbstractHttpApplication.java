@@ -16,20 +16,39 @@
 package com.anton.ehome.http.common;
 
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.eclipse.jetty.http.HttpHeader;
 import org.eclipse.jetty.http.HttpStatus;
+import org.eclipse.jetty.server.HttpOutput;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.anton.ehome.utils.JsonUtils;
 
 /**
  * Abstract skeleton for HTTP applications.
  */
 public abstract class AbstractHttpApplication extends HttpServlet implements IHttpApplication
 {
+    private static final Logger LOG = LoggerFactory.getLogger(AbstractHttpApplication.class);
+    private static final String ASSET_MANIFEST = "/asset-manifest.json";
+    private static final String[] ROOT_RESOURCES = {"/index.html", ASSET_MANIFEST, "/service-worker.js", "/manifest.json", "/favicon.ico"};
+    private static final String NO_CACHE = "no-cache";
+    private static final String IMMUTABLE = "public, max-age=31536000, immutable";
+    private static final String GZIP = "gzip";
+
+    private final ConcurrentMap<String, StaticAsset> assets = new ConcurrentHashMap<>();
     private final String path;
 
     protected AbstractHttpApplication(String path)
@@ -63,23 +82,167 @@ public abstract class AbstractHttpApplication extends HttpServlet implements IHt
     }
 
     /**
-     * Performs a proxy for a given resource path.
+     * Sets the given entity tag of the response, and checks whether the client already has a response with that tag.
+     * <p>
+     * The response is marked so that clients always revalidate it. If the {@code If-None-Match} header of the request matches the tag, the
+     * response is completed with {@code 304 Not Modified} and the caller should not write a body.
+     * </p>
      *
-     * @param resourcePath The path of the resource to proxy.
-     * @param response The response to send to.
+     * @param request The request to check.
+     * @param response The response to set the tag of.
+     * @param etag The entity tag of the response, without quotes.
+     * @return Returns {@code true} if the client already has the response.
+     */
+    protected final boolean isNotModified(HttpServletRequest request, HttpServletResponse response, String etag)
+    {
+        return isNotModified(request, response, etag, NO_CACHE);
+    }
+
+    private boolean isNotModified(HttpServletRequest request, HttpServletResponse response, String etag, String cacheControl)
+    {
+        String quotedEtag = "\"" + etag + "\"";
+        response.setHeader(HttpHeader.ETAG.asString(), quotedEtag);
+        response.setHeader(HttpHeader.CACHE_CONTROL.asString(), cacheControl);
+
+        String ifNoneMatch = request.getHeader(HttpHeader.IF_NONE_MATCH.asString());
+        if (ifNoneMatch == null)
+        {
+            return false;
+        }
+        for (String candidate : StringUtils.split(ifNoneMatch, ','))
+        {
+            String tag = StringUtils.removeStart(candidate.trim(), "W/");
+            if ("*".equals(tag) || quotedEtag.equals(tag))
+            {
+                response.setStatus(HttpStatus.NOT_MODIFIED_304);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Loads the resources of a web application bundle into memory, so that they are served without reading the class path.
+     * <p>
+     * The bundle is expected to be a build of a {@code create-react-app} application, where {@code asset-manifest.json} lists the files of the
+     * build. Other resources of the bundle are loaded the first time they are requested.
+     * </p>
+     *
+     * @param root The class path directory of the bundle, such as {@code /html-charts}.
      */
-    protected final void proxyToResource(String resourcePath, HttpServletResponse response) throws IOException
+    protected final void preloadResources(String root)
     {
-        try (InputStream stream = AbstractHttpApplication.class.getResourceAsStream(resourcePath))
+        try
         {
-            if (stream == null)
+            for (String resource : ROOT_RESOURCES)
             {
-                response.sendError(HttpStatus.NOT_FOUND_404);
+                getResource(root, resource);
             }
-            else
+
+            Optional<StaticAsset> manifest = getResource(root, ASSET_MANIFEST);
+            if (manifest.isPresent())
+            {
+                ByteBuffer content = manifest.get().getContent();
+                byte[] bytes = new byte[content.remaining()];
+                content.get(bytes);
+                Map<?, ?> files = JsonUtils.read(new String(bytes, "UTF-8"), Map.class);
+                for (Object file : files.values())
+                {
+                    getResource(root, "/" + file);
+                }
+            }
+            LOG.info("Loaded {} resources of '{}'", assets.size(), root);
+        }
+        catch (IOException | RuntimeException e)
+        {
+            LOG.warn("Could not load the resources of '{}', they are loaded when they are requested instead", root, e);
+        }
+    }
+
+    /**
+     * Serves a resource of a web application bundle.
+     * <p>
+     * The response is compressed if the client accepts it, and has an entity tag. Resources in the {@code /static/} directory have hashes in
+     * their names and are cached by clients for a year, while other resources are always revalidated.
+     * </p>
+     *
+     * @param root The class path directory of the bundle, such as {@code /html-charts}.
+     * @param resourcePath The path of the resource within the directory.
+     * @param request The request to serve.
+     * @param response The response to send to.
+     */
+    protected final void proxyToResource(String root, String resourcePath, HttpServletRequest request, HttpServletResponse response)
+            throws IOException
+    {
+        Optional<StaticAsset> optionalAsset = getResource(root, resourcePath);
+        if (!optionalAsset.isPresent())
+        {
+            response.sendError(HttpStatus.NOT_FOUND_404);
+            return;
+        }
+
+        StaticAsset asset = optionalAsset.get();
+        Optional<ByteBuffer> gzipContent = asset.getGzipContent();
+        if (gzipContent.isPresent())
+        {
+            response.setHeader(HttpHeader.VARY.asString(), HttpHeader.ACCEPT_ENCODING.asString());
+        }
+        boolean gzip = gzipContent.isPresent() && acceptsGzip(request);
+        if (isNotModified(request, response, asset.getEtag(gzip), asset.isImmutable() ? IMMUTABLE : NO_CACHE))
+        {
+            return;
+        }
+
+        ByteBuffer content = gzip ? gzipContent.get() : asset.getContent();
+        response.setContentType(asset.getContentType());
+        response.setContentLength(content.remaining());
+        if (gzip)
+        {
+            response.setHeader(HttpHeader.CONTENT_ENCODING.asString(), GZIP);
+        }
+
+        OutputStream output = response.getOutputStream();
+        if (output instanceof HttpOutput)
+        {
+            ((HttpOutput) output).sendContent(content);
+        }
+        else
+        {
+            byte[] bytes = new byte[content.remaining()];
+            content.get(bytes);
+            output.write(bytes);
+        }
+    }
+
+    private Optional<StaticAsset> getResource(String root, String resourcePath) throws IOException
+    {
+        String key = root + resourcePath;
+        StaticAsset asset = assets.get(key);
+        if (asset != null)
+        {
+            return Optional.of(asset);
+        }
+
+        Optional<StaticAsset> loaded = StaticAsset.load(root, resourcePath);
+        loaded.ifPresent(item -> assets.putIfAbsent(key, item));
+        return loaded;
+    }
+
+    private boolean acceptsGzip(HttpServletRequest request)
+    {
+        String acceptEncoding = request.getHeader(HttpHeader.ACCEPT_ENCODING.asString());
+        if (acceptEncoding == null)
+        {
+            return false;
+        }
+        for (String encoding : StringUtils.split(acceptEncoding, ','))
+        {
+            String[] parts = StringUtils.split(encoding, ';');
+            if (parts.length > 0 && GZIP.equalsIgnoreCase(parts[0].trim()))
             {
-                IOUtils.copy(stream, response.getOutputStream());
+                return parts.length == 1 || !parts[1].replace(" ", "").matches("q=0(\\.0*)?");
             }
         }
+        return false;
     }
 }
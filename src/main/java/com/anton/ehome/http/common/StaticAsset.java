@@ -0,0 +1,159 @@
+/**
+ * Copyright 2017 Anton Johansson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anton.ehome.http.common;
+
+import static org.apache.commons.codec.digest.DigestUtils.sha1Hex;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Optional;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.eclipse.jetty.http.MimeTypes;
+
+/**
+ * Defines a static resource that is held in memory, together with everything needed to serve it.
+ * <p>
+ * The content is kept in a read-only direct buffer, so it can be written to responses without being copied. Compressible content also has a
+ * gzip variant, if compressing it makes it smaller.
+ * </p>
+ */
+final class StaticAsset
+{
+    private static final String STATIC_PREFIX = "/static/";
+    private static final String DEFAULT_CONTENT_TYPE = "application/octet-stream";
+
+    private final String contentType;
+    private final ByteBuffer content;
+    private final ByteBuffer gzipContent;
+    private final String etag;
+    private final boolean immutable;
+
+    private StaticAsset(String contentType, byte[] content, byte[] gzipContent, String etag, boolean immutable)
+    {
+        this.contentType = contentType;
+        this.content = toBuffer(content);
+        this.gzipContent = gzipContent == null ? null : toBuffer(gzipContent);
+        this.etag = etag;
+        this.immutable = immutable;
+    }
+
+    /**
+     * Loads the given class path resource.
+     *
+     * @param root The directory that the resource belongs to, such as {@code /html-charts}.
+     * @param path The path of the resource within the directory, such as {@code /index.html}.
+     * @return Returns the loaded resource; or an empty optional if there is no such resource.
+     */
+    static Optional<StaticAsset> load(String root, String path) throws IOException
+    {
+        try (InputStream stream = StaticAsset.class.getResourceAsStream(root + path))
+        {
+            if (stream == null)
+            {
+                return Optional.empty();
+            }
+
+            byte[] content = IOUtils.toByteArray(stream);
+            String contentType = getContentType(path);
+            byte[] gzipContent = isCompressible(contentType) ? gzip(content) : null;
+            if (gzipContent != null && gzipContent.length >= content.length)
+            {
+                gzipContent = null;
+            }
+            return Optional.of(new StaticAsset(contentType, content, gzipContent, sha1Hex(content), path.startsWith(STATIC_PREFIX)));
+        }
+    }
+
+    String getContentType()
+    {
+        return contentType;
+    }
+
+    /**
+     * Gets the content, as a new buffer that the caller may consume.
+     */
+    ByteBuffer getContent()
+    {
+        return content.duplicate();
+    }
+
+    /**
+     * Gets the gzip compressed content, as a new buffer that the caller may consume.
+     */
+    Optional<ByteBuffer> getGzipContent()
+    {
+        return gzipContent == null ? Optional.empty() : Optional.of(gzipContent.duplicate());
+    }
+
+    /**
+     * Gets the entity tag of the content, without quotes. The gzip variant has a tag of its own, since it is a different representation.
+     */
+    String getEtag(boolean gzip)
+    {
+        return gzip ? etag + "-gzip" : etag;
+    }
+
+    /**
+     * Gets whether the asset never changes. The build of the charts UI puts a hash of the content in the names of everything in
+     * {@code /static/}, so a changed file gets a new path.
+     */
+    boolean isImmutable()
+    {
+        return immutable;
+    }
+
+    private static String getContentType(String path)
+    {
+        String contentType = path.endsWith(".map") ? "application/json" : MimeTypes.getDefaultMimeByExtension(path);
+        if (contentType == null)
+        {
+            return DEFAULT_CONTENT_TYPE;
+        }
+        return isText(contentType) ? contentType + ";charset=utf-8" : contentType;
+    }
+
+    private static boolean isText(String contentType)
+    {
+        return StringUtils.startsWithAny(contentType, "text/", "application/javascript", "application/json");
+    }
+
+    private static boolean isCompressible(String contentType)
+    {
+        return isText(contentType) || StringUtils.startsWithAny(contentType, "image/svg+xml", "image/x-icon");
+    }
+
+    private static byte[] gzip(byte[] content) throws IOException
+    {
+        ByteArrayOutputStream output = new ByteArrayOutputStream(content.length / 2);
+        try (GZIPOutputStream stream = new GZIPOutputStream(output))
+        {
+            stream.write(content);
+        }
+        return output.toByteArray();
+    }
+
+    private static ByteBuffer toBuffer(byte[] bytes)
+    {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+        buffer.put(bytes).flip();
+        return buffer.asReadOnlyBuffer();
+    }
+}
@@ -0,0 +1,439 @@
+/**
+ * Copyright 2017 Anton Johansson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anton.ehome.metrics;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.anton.ehome.common.IDaemon;
+import com.anton.ehome.conf.IConfigService;
+import com.anton.ehome.conf.MetricsConfig;
+import com.anton.ehome.dao.IEnergyDao;
+import com.anton.ehome.domain.Energy;
+import com.anton.ehome.domain.EnergyPeriod;
+import com.anton.ehome.utils.VisibleForTesting;
+import com.google.inject.Inject;
+
+/**
+ * Counts the energy used by each device today and this month, by integrating its readings of power as they are collected.
+ * <p>
+ * The energy between two consecutive readings is the area under a straight line between them, by the trapezoidal rule. Every reading is
+ * counted, including the ones that are never stored, and getting the energy never reads any metrics. No energy is counted for a gap between
+ * readings that is longer than the configured maximum, since nothing is known about the power during it. Days and months follow the time zone
+ * of the system, and a gap that spans midnight is split at midnight.
+ * </p>
+ * <p>
+ * The energy of each period is saved periodically while it is counted, and once more when the period ends. At startup, the energy that was
+ * saved for the current day and month is loaded, so counting continues where it was.
+ * </p>
+ */
+class EnergyAccumulator implements IDaemon, IEnergyMeter
+{
+    private static final Logger LOG = LoggerFactory.getLogger(EnergyAccumulator.class);
+    private static final long NONE = Long.MIN_VALUE;
+    private static final double MILLIS_PER_HOUR = 3_600_000;
+    private static final double WATT_HOURS_PER_KILOWATT_HOUR = 1000;
+
+    private final Counter[] counters = new Counter[256];
+    private final List<Total> unsaved = new ArrayList<>();
+    private final Thread thread = new Thread(new SaveLoop(), "energy-accumulator");
+    private final IEnergyDao energyDao;
+    private final IConfigService configService;
+    private final ZoneId zone;
+    private final LongSupplier clock;
+    private boolean isLoaded;
+    private volatile boolean isDone;
+
+    @Inject
+    EnergyAccumulator(IEnergyDao energyDao, IConfigService configService)
+    {
+        this(energyDao, configService, ZoneId.systemDefault(), System::currentTimeMillis);
+    }
+
+    @VisibleForTesting
+    EnergyAccumulator(IEnergyDao energyDao, IConfigService configService, ZoneId zone, LongSupplier clock)
+    {
+        this.energyDao = energyDao;
+        this.configService = configService;
+        this.zone = zone;
+        this.clock = clock;
+    }
+
+    @Override
+    public boolean start()
+    {
+        LOG.info("Starting the energy accumulator");
+        try
+        {
+            load();
+        }
+        catch (Exception e)
+        {
+            LOG.warn("Could not load the energy that was saved for today and this month, trying again later", e);
+        }
+        thread.start();
+        return true;
+    }
+
+    @Override
+    public void stop()
+    {
+        LOG.info("Stopping the energy accumulator");
+        isDone = true;
+        thread.interrupt();
+    }
+
+    /**
+     * Adds a reading of the power of a device.
+     *
+     * @param nodeId The identifier of the device.
+     * @param time The time of the reading, in milliseconds since the epoch.
+     * @param watts The power, in watts.
+     */
+    synchronized void add(byte nodeId, long time, double watts)
+    {
+        int index = nodeId & 0xFF;
+        if (counters[index] == null)
+        {
+            counters[index] = new Counter(nodeId);
+        }
+
+        Counter counter = counters[index];
+        if (counter.lastTime != NONE && time <= counter.lastTime)
+        {
+            LOG.trace("Ignoring reading of node {} that is not newer than the previous one", nodeId);
+            return;
+        }
+
+        long maxGap = SECONDS.toMillis(getConfig().getEnergyMaxGap());
+        if (counter.lastTime != NONE && time - counter.lastTime <= maxGap)
+        {
+            long start = counter.lastTime;
+            double startPower = counter.lastPower;
+            while (start < time)
+            {
+                counter.moveTo(start);
+                long end = Math.min(time, counter.dayEnd);
+                double endPower = counter.lastPower + (watts - counter.lastPower) * (end - counter.lastTime) / (time - counter.lastTime);
+                counter.add((startPower + endPower) / 2 * (end - start) / MILLIS_PER_HOUR);
+                start = end;
+                startPower = endPower;
+            }
+        }
+        else
+        {
+            counter.moveTo(time);
+        }
+        counter.lastTime = time;
+        counter.lastPower = watts;
+    }
+
+    @Override
+    public synchronized List<Energy> getEnergy()
+    {
+        LocalDate today = toDate(clock.getAsLong());
+        long dayStart = getDayStart(today);
+        long monthStart = getMonthStart(today);
+
+        List<Energy> energy = new ArrayList<>();
+        for (Counter counter : counters)
+        {
+            if (counter == null || counter.month == null || counter.month.start != monthStart)
+            {
+                continue;
+            }
+
+            Energy item = new Energy();
+            item.setNodeId(counter.nodeId);
+            item.setToday(counter.day.start == dayStart ? counter.day.wattHours / WATT_HOURS_PER_KILOWATT_HOUR : 0);
+            item.setThisMonth(counter.month.wattHours / WATT_HOURS_PER_KILOWATT_HOUR);
+            energy.add(item);
+        }
+        energy.sort((a, b) -> Integer.compare(a.getNodeId() & 0xFF, b.getNodeId() & 0xFF));
+        return energy;
+    }
+
+    /**
+     * Saves the energy of the periods that changed since they were last saved. Nothing is saved until the energy that was saved before is
+     * loaded, since it would be overwritten.
+     */
+    @VisibleForTesting
+    void save()
+    {
+        synchronized (this)
+        {
+            if (!isLoaded)
+            {
+                load();
+            }
+        }
+
+        List<Total> totals = new ArrayList<>();
+        synchronized (this)
+        {
+            totals.addAll(unsaved);
+            unsaved.clear();
+            for (Counter counter : counters)
+            {
+                if (counter != null && counter.day != null)
+                {
+                    counter.day.copyIfModified(totals);
+                    counter.month.copyIfModified(totals);
+                }
+            }
+        }
+
+        for (int i = 0; i < totals.size(); i++)
+        {
+            Total total = totals.get(i);
+            try
+            {
+                energyDao.saveEnergy(total.nodeId, total.period, total.start, total.wattHours / WATT_HOURS_PER_KILOWATT_HOUR);
+            }
+            catch (Exception e)
+            {
+                LOG.warn("Could not save energy, trying again later", e);
+                synchronized (this)
+                {
+                    unsaved.addAll(totals.subList(i, totals.size()));
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Loads the energy that was saved for today and this month, and adds it to the energy that was counted so far.
+     */
+    private synchronized void load()
+    {
+        LocalDate today = toDate(clock.getAsLong());
+        long dayStart = getDayStart(today);
+        long monthStart = getMonthStart(today);
+        Map<Byte, Double> day = energyDao.getEnergy(EnergyPeriod.DAY, dayStart);
+        Map<Byte, Double> month = energyDao.getEnergy(EnergyPeriod.MONTH, monthStart);
+        LOG.debug("Loaded the energy of {} devices for today and {} devices for this month", day.size(), month.size());
+
+        Map<Byte, Double> merged = new HashMap<>(month);
+        day.keySet().forEach(nodeId -> merged.putIfAbsent(nodeId, 0.0));
+        for (byte nodeId : merged.keySet())
+        {
+            int index = nodeId & 0xFF;
+            if (counters[index] == null)
+            {
+                counters[index] = new Counter(nodeId);
+                counters[index].moveTo(clock.getAsLong());
+            }
+        }
+
+        for (Counter counter : counters)
+        {
+            if (counter == null || counter.day == null)
+            {
+                continue;
+            }
+            for (Total total : counter.getTotals(unsaved))
+            {
+                Map<Byte, Double> saved = total.period == EnergyPeriod.DAY ? day : month;
+                long start = total.period == EnergyPeriod.DAY ? dayStart : monthStart;
+                Double kilowattHours = saved.get(counter.nodeId);
+                if (total.start == start && kilowattHours != null)
+                {
+                    total.wattHours += kilowattHours * WATT_HOURS_PER_KILOWATT_HOUR;
+                }
+            }
+        }
+        isLoaded = true;
+    }
+
+    private MetricsConfig getConfig()
+    {
+        return configService.getCurrentConfig().getMetricsConfig();
+    }
+
+    private LocalDate toDate(long time)
+    {
+        return Instant.ofEpochMilli(time).atZone(zone).toLocalDate();
+    }
+
+    private long getDayStart(LocalDate date)
+    {
+        return date.atStartOfDay(zone).toInstant().toEpochMilli();
+    }
+
+    private long getMonthStart(LocalDate date)
+    {
+        return getDayStart(date.withDayOfMonth(1));
+    }
+
+    /**
+     * Counts the energy of a device in the current day and month.
+     */
+    private class Counter
+    {
+        private final byte nodeId;
+        private long lastTime = NONE;
+        private double lastPower;
+        private Total day;
+        private Total month;
+        private long dayEnd = NONE;
+
+        private Counter(byte nodeId)
+        {
+            this.nodeId = nodeId;
+        }
+
+        /**
+         * Makes the day and month that contains the given time the current ones, queueing the previous ones to be saved if they changed.
+         */
+        private void moveTo(long time)
+        {
+            if (day != null && time >= day.start && time < dayEnd)
+            {
+                return;
+            }
+
+            LocalDate date = toDate(time);
+            long dayStart = getDayStart(date);
+            if (day == null || day.start != dayStart)
+            {
+                if (day != null)
+                {
+                    day.copyIfModified(unsaved);
+                }
+                day = new Total(nodeId, EnergyPeriod.DAY, dayStart);
+                dayEnd = getDayStart(date.plusDays(1));
+            }
+
+            long monthStart = getMonthStart(date);
+            if (month == null || month.start != monthStart)
+            {
+                if (month != null)
+                {
+                    month.copyIfModified(unsaved);
+                }
+                month = new Total(nodeId, EnergyPeriod.MONTH, monthStart);
+            }
+        }
+
+        private void add(double wattHours)
+        {
+            day.add(wattHours);
+            month.add(wattHours);
+        }
+
+        /**
+         * Gets the totals of the device, both current and unsaved ones.
+         */
+        private List<Total> getTotals(List<Total> unsavedTotals)
+        {
+            List<Total> totals = new ArrayList<>();
+            totals.add(day);
+            totals.add(month);
+            unsavedTotals.stream()
+                    .filter(total -> total.nodeId == nodeId)
+                    .forEach(totals::add);
+            return totals;
+        }
+    }
+
+    /**
+     * Defines the energy used by a device in a period.
+     */
+    private static class Total
+    {
+        private final byte nodeId;
+        private final EnergyPeriod period;
+        private final long start;
+        private double wattHours;
+        private boolean isModified;
+
+        private Total(byte nodeId, EnergyPeriod period, long start)
+        {
+            this.nodeId = nodeId;
+            this.period = period;
+            this.start = start;
+        }
+
+        private void add(double energy)
+        {
+            wattHours += energy;
+            isModified = true;
+        }
+
+        /**
+         * Adds a copy of this total to the given list, if it was modified since it was last copied.
+         */
+        private void copyIfModified(List<Total> totals)
+        {
+            if (isModified)
+            {
+                Total copy = new Total(nodeId, period, start);
+                copy.wattHours = wattHours;
+                totals.add(copy);
+                isModified = false;
+            }
+        }
+    }
+
+    /**
+     * Saves the energy periodically.
+     */
+    private class SaveLoop implements Runnable
+    {
+        @Override
+        public void run()
+        {
+            while (!isDone)
+            {
+                try
+                {
+                    Thread.sleep(SECONDS.toMillis(getConfig().getEnergySaveInterval()));
+                    save();
+                }
+                catch (InterruptedException e)
+                {
+                    LOG.debug("Interrupted while waiting to save energy");
+                }
+                catch (Exception e)
+                {
+                    LOG.warn("Exception occurred in loop", e);
+                }
+            }
+
+            try
+            {
+                save();
+            }
+            catch (Exception e)
+            {
+                LOG.warn("Could not save energy when stopping", e);
+            }
+            LOG.info("Energy accumulator stopped");
+        }
+    }
+}
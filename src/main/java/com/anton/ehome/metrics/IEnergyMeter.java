@@ -0,0 +1,33 @@
+/**
+ * Copyright 2017 Anton Johansson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anton.ehome.metrics;
+
+import java.util.List;
+
+import com.anton.ehome.domain.Energy;
+
+/**
+ * Keeps count of the energy used by monitored devices, from their readings of power.
+ */
+public interface IEnergyMeter
+{
+    /**
+     * Gets the energy used by each device that has reported its power today or this month.
+     *
+     * @return Returns the energy of each device, ordered by the identifier of the device.
+     */
+    List<Energy> getEnergy();
+}
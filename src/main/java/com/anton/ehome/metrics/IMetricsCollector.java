@@ -0,0 +1,29 @@
+/**
+ * Copyright 2017 Anton Johansson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anton.ehome.metrics;
+
+/**
+ * Collects metrics from monitored devices.
+ */
+public interface IMetricsCollector
+{
+    /**
+     * Gets the number of readings that were not stored, because they carried no new information.
+     *
+     * @return Returns the number of suppressed readings.
+     */
+    long getSuppressed();
+}
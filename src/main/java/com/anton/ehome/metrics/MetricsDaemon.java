@@ -15,25 +15,28 @@
  */
 package com.anton.ehome.metrics;
 
-import static com.anton.ehome.utils.ThreadUtils.sleepQuietly;
-import static java.lang.System.currentTimeMillis;
-import static org.apache.commons.lang3.builder.ToStringBuilder.reflectionToString;
-import static org.apache.commons.lang3.builder.ToStringStyle.SHORT_PREFIX_STYLE;
+import static com.anton.ehome.metrics.PollScheduler.SLOTS_PER_CONTROLLER;
+import static java.util.Arrays.asList;
 
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
 
-import org.apache.commons.lang3.builder.EqualsBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.anton.ehome.common.IDaemon;
-import com.anton.ehome.conf.Config;
 import com.anton.ehome.conf.IConfigService;
-import com.anton.ehome.conf.ZWaveConfig;
+import com.anton.ehome.conf.Scale;
 import com.anton.ehome.conf.ZWaveMonitoringConfig;
 import com.anton.ehome.dao.IMetricsDao;
+import com.anton.ehome.metrics.MonitoringIndex.Entry;
+import com.anton.ehome.utils.VisibleForTesting;
 import com.anton.ehome.zwave.Device;
 import com.anton.ehome.zwave.IZWaveController;
 import com.anton.ehome.zwave.IZWaveManager;
@@ -43,33 +46,62 @@ import com.whizzosoftware.wzwave.commandclass.MeterCommandClass.MeterReadingValu
 
 /**
  * Polls devices for new metrics and stores in the database.
+ * <p>
+ * Devices are polled by a {@link PollScheduler scheduler}, so the daemon only wakes up when a device is due. Devices that report new values by
+ * themselves are recorded as soon as they send a new meter report, throttled to their monitoring interval, which also postpones their next
+ * poll. Polling therefore only remains as a fallback for devices that never report by themselves. A device also reports other updates than
+ * meter reports, so a pushed reading is only recorded if it's another reading than the one that was last recorded for the monitored value.
+ * </p>
+ * <p>
+ * Readings are passed through a {@link RecordingFilter}, which skips readings that carry no new information according to the recording mode of
+ * the monitored value. Readings of power are first counted by the {@link EnergyAccumulator}, so that all of them are integrated into energy.
+ * </p>
+ * <p>
+ * Monitored values are looked up in a {@link MonitoringIndex}, which is rebuilt when the configuration, the controllers or the devices change.
+ * Controllers that are removed are no longer listened to.
+ * </p>
  */
-class MetricsDaemon implements IDaemon
+class MetricsDaemon implements IDaemon, IMetricsCollector
 {
     private static final Logger LOG = LoggerFactory.getLogger(MetricsDaemon.class);
-    private static final int MILLISECONDS_PER_SECOND = 1000;
-    private static final int INTERVAL = 1000;
+    private static final int CONTROLLER_CHECK_INTERVAL = 10_000;
+    private static final int RETRY_INTERVAL = 1000;
 
-    private final Map<Object, Long> timestamps = new HashMap<>();
+    private final RecordingFilter filter = new RecordingFilter();
+    private final Map<IZWaveController, List<Consumer<Device>>> subscriptions = new IdentityHashMap<>();
     private final MetricsLoop loop = new MetricsLoop();
-    private final Thread thread = new Thread(loop);
+    private final Thread thread = new Thread(loop, "metrics-daemon");
     private final IZWaveManager zwaveManager;
     private final IConfigService configService;
     private final IMetricsDao metricsDao;
-    private boolean isDone;
+    private final EnergyAccumulator energyAccumulator;
+    private final PollScheduler scheduler;
+    private MeterReadingValue[] lastReadings = new MeterReadingValue[SLOTS_PER_CONTROLLER];
+    private volatile MonitoringIndex index = MonitoringIndex.EMPTY;
+    private volatile boolean isDone;
 
     @Inject
-    MetricsDaemon(IZWaveManager zwaveManager, IConfigService configService, IMetricsDao metricsDao)
+    MetricsDaemon(IZWaveManager zwaveManager, IConfigService configService, IMetricsDao metricsDao, EnergyAccumulator energyAccumulator)
+    {
+        this(zwaveManager, configService, metricsDao, energyAccumulator, new PollScheduler());
+    }
+
+    @VisibleForTesting
+    MetricsDaemon(IZWaveManager zwaveManager, IConfigService configService, IMetricsDao metricsDao, EnergyAccumulator energyAccumulator,
+            PollScheduler scheduler)
     {
         this.zwaveManager = zwaveManager;
         this.configService = configService;
         this.metricsDao = metricsDao;
+        this.energyAccumulator = energyAccumulator;
+        this.scheduler = scheduler;
     }
 
     @Override
     public boolean start()
     {
         LOG.info("Starting the metrics daemon");
+        configService.onModified(config -> rebuildIndex());
         thread.start();
         return true;
     }
@@ -79,136 +111,244 @@ class MetricsDaemon implements IDaemon
     {
         LOG.info("Stopping the metrics daemon");
         isDone = true;
+        thread.interrupt();
+        unsubscribe(Collections.emptyList());
+    }
+
+    @Override
+    public long getSuppressed()
+    {
+        return filter.getSuppressed();
     }
 
     /**
-     * Handles the loop.
+     * Rebuilds the index of monitored values, and makes sure that every monitored value is scheduled, and that nothing else is.
      */
-    private class MetricsLoop implements Runnable
+    private synchronized void rebuildIndex()
     {
-        @Override
-        public void run()
+        LOG.debug("Rebuilding the index of monitored values");
+        List<IZWaveController> controllers = zwaveManager.getControllers();
+        MonitoringIndex newIndex = MonitoringIndex.build(configService.getCurrentConfig(), controllers, index);
+        unsubscribe(controllers);
+        for (IZWaveController controller : controllers)
         {
-            while (!isDone)
+            if (!subscriptions.containsKey(controller))
             {
-                LOG.trace("Running new iteration");
-                Config config = configService.getCurrentConfig();
-
-                try
-                {
-                    handleZWave(config);
-                }
-                catch (Exception e)
-                {
-                    LOG.warn("Exception occurred in loop", e);
-                }
-                finally
-                {
-                    sleepQuietly(INTERVAL);
-                }
+                LOG.debug("Listening for devices in controller '{}'", controller.getName());
+                Consumer<Device> added = device -> onDeviceAdded(controller, device);
+                Consumer<Device> updated = device -> onDeviceUpdated(controller, device);
+                controller.onDeviceAdded(added);
+                controller.onDeviceUpdated(updated);
+                subscriptions.put(controller, asList(added, updated));
             }
         }
 
-        private void handleZWave(Config config)
+        for (Entry entry : newIndex.getEntries())
         {
-            List<IZWaveController> controllers = zwaveManager.getControllers();
-            for (IZWaveController controller : controllers)
+            scheduler.schedule(entry.getSlot(), entry.getInterval());
+        }
+        for (Entry entry : index.getEntries())
+        {
+            if (newIndex.get(entry.getSlot()) == null)
             {
-                ZWaveConfig zwaveConfig = config.getZwaveConfigs()
-                        .stream()
-                        .filter(c -> c.getName().equals(controller.getName()))
-                        .findAny()
-                        .orElse(null);
+                LOG.debug("No longer polling Z-Wave device {} in controller '{}'", entry.getMonitoringConfig().getNodeId(), entry.getController().getName());
+                scheduler.remove(entry.getSlot());
+                filter.reset(entry.getSlot());
+                setLastReading(entry.getSlot(), null);
+            }
+        }
+        index = newIndex;
+    }
 
-                if (zwaveConfig == null)
-                {
-                    LOG.info("Could not find any configuration for controller '{}'", controller.getName());
-                    continue;
-                }
+    /**
+     * Stops listening to the controllers that are not among the given ones.
+     */
+    private synchronized void unsubscribe(List<IZWaveController> controllers)
+    {
+        Set<IZWaveController> remaining = Collections.newSetFromMap(new IdentityHashMap<>());
+        remaining.addAll(controllers);
 
-                for (ZWaveMonitoringConfig monitoringConfig : zwaveConfig.getMonitoringValues())
-                {
-                    byte nodeId = monitoringConfig.getNodeId();
-                    Device device = controller.getDevices()
-                            .stream()
-                            .filter(d -> d.getNodeId() == nodeId)
-                            .findAny()
-                            .orElse(null);
-
-                    if (device == null)
-                    {
-                        LOG.info("Could not find a Z-Wave device with nodeId {} in controller '{}'", nodeId, controller.getName());
-                        continue;
-                    }
+        Iterator<Map.Entry<IZWaveController, List<Consumer<Device>>>> iterator = subscriptions.entrySet().iterator();
+        while (iterator.hasNext())
+        {
+            Map.Entry<IZWaveController, List<Consumer<Device>>> subscription = iterator.next();
+            if (!remaining.contains(subscription.getKey()))
+            {
+                LOG.debug("No longer listening for devices in controller '{}'", subscription.getKey().getName());
+                subscription.getValue().forEach(subscription.getKey()::removeListener);
+                iterator.remove();
+            }
+        }
+    }
 
-                    ZWaveDeviceKey key = new ZWaveDeviceKey(controller.getName(), nodeId);
-                    long lastTimestamp = timestamps.getOrDefault(key, 0L);
-                    if (currentTimeMillis() - lastTimestamp < monitoringConfig.getInterval() * MILLISECONDS_PER_SECOND)
-                    {
-                        LOG.trace("Not yet ready to poll Z-Wave device {} in controller", nodeId, controller.getName());
-                        continue;
-                    }
+    /**
+     * Gets the last reading of the given monitored value that the device reported.
+     */
+    private MeterReadingValue getReading(Entry entry, Device device)
+    {
+        MeterCommandClass commandClass = (MeterCommandClass) device.getNode().getCommandClass(MeterCommandClass.ID);
+        return commandClass == null ? null : commandClass.getLastValue(entry.getMonitoringConfig().getScale().getZWaveEquivalent());
+    }
 
-                    MeterCommandClass commandClass = (MeterCommandClass) device.getNode().getCommandClass(MeterCommandClass.ID);
-                    MeterReadingValue reading = commandClass.getLastValue(monitoringConfig.getScale().getZWaveEquivalent());
-                    if (reading == null)
-                    {
-                        LOG.info("No reading was found for Z-Wave device {} in controller '{}' for scale {}", nodeId, controller.getName(), monitoringConfig.getScale());
-                        continue;
-                    }
+    /**
+     * Checks whether the given reading is another one than the one that was last recorded for the given slot. The meter command class of a
+     * device replaces its reading when a new meter report arrives, and keeps it through other updates of the device.
+     */
+    private synchronized boolean isNewReading(int slot, MeterReadingValue reading)
+    {
+        return slot >= lastReadings.length || lastReadings[slot] != reading;
+    }
 
-                    double value = reading.getCurrentValue();
-                    LOG.info("Storing metric for Z-Wave device {} in controller '{}': {}", nodeId, controller.getName(), value);
-                    metricsDao.save(nodeId, value);
-                    timestamps.put(key, currentTimeMillis());
-                }
-            }
+    private synchronized void setLastReading(int slot, MeterReadingValue reading)
+    {
+        if (slot >= lastReadings.length)
+        {
+            lastReadings = Arrays.copyOf(lastReadings, (slot / SLOTS_PER_CONTROLLER + 1) * SLOTS_PER_CONTROLLER);
         }
+        lastReadings[slot] = reading;
     }
 
     /**
-     * A key of a Z-Wave device.
+     * Stores the given reading of the given monitored value.
+     *
+     * @return Returns whether or not a reading was found.
      */
-    private static class ZWaveDeviceKey
+    private boolean store(Entry entry, Device device, MeterReadingValue reading)
     {
-        private final String controllerName;
-        private final byte nodeId;
+        byte nodeId = device.getNodeId();
+        String controllerName = entry.getController().getName();
+        ZWaveMonitoringConfig monitoringConfig = entry.getMonitoringConfig();
+        if (reading == null)
+        {
+            LOG.info("No reading was found for Z-Wave device {} in controller '{}' for scale {}", nodeId, controllerName, monitoringConfig.getScale());
+            return false;
+        }
+        setLastReading(entry.getSlot(), reading);
 
-        private ZWaveDeviceKey(String controllerName, byte nodeId)
+        long now = System.currentTimeMillis();
+        if (monitoringConfig.getScale() == Scale.WATTS)
         {
-            this.controllerName = controllerName;
-            this.nodeId = nodeId;
+            energyAccumulator.add(nodeId, now, reading.getCurrentValue());
         }
 
-        @Override
-        public int hashCode()
+        filter.offer(entry.getSlot(), monitoringConfig, now, reading.getCurrentValue(), (time, value) ->
         {
-            return java.util.Objects.hash(controllerName, nodeId);
+            LOG.info("Storing metric for Z-Wave device {} in controller '{}': {}", nodeId, controllerName, value);
+            metricsDao.save(nodeId, value, time);
+        });
+        return true;
+    }
+
+    /**
+     * Handles a device that was found by a controller.
+     */
+    private void onDeviceAdded(IZWaveController controller, Device device)
+    {
+        Entry entry = index.get(controller.getName(), device.getNodeId());
+        if (entry != null && entry.getDevice() != device)
+        {
+            rebuildIndex();
         }
+    }
 
-        @Override
-        public boolean equals(Object obj)
+    /**
+     * Handles a device that reported new values by itself.
+     */
+    private void onDeviceUpdated(IZWaveController controller, Device device)
+    {
+        try
         {
-            if (obj == null || obj.getClass() != getClass())
+            if (!configService.getCurrentConfig().getMetricsConfig().isPushEnabled())
             {
-                return false;
+                return;
             }
-            if (obj == this)
+
+            Entry entry = index.get(controller.getName(), device.getNodeId());
+            if (entry == null)
             {
-                return true;
+                LOG.trace("Z-Wave device {} in controller '{}' is not monitored", device.getNodeId(), controller.getName());
+                return;
             }
 
-            ZWaveDeviceKey that = (ZWaveDeviceKey) obj;
-            return new EqualsBuilder()
-                    .append(this.controllerName, that.controllerName)
-                    .append(this.nodeId, that.nodeId)
-                    .isEquals();
+            MeterReadingValue reading = getReading(entry, device);
+            if (reading == null || !isNewReading(entry.getSlot(), reading))
+            {
+                LOG.trace("Z-Wave device {} in controller '{}' did not report a new meter reading", device.getNodeId(), controller.getName());
+                return;
+            }
+
+            if (!scheduler.tryAcquire(entry.getSlot()))
+            {
+                LOG.trace("Not yet ready to store metric for Z-Wave device {} in controller '{}'", device.getNodeId(), controller.getName());
+                return;
+            }
+
+            if (!store(entry, device, reading))
+            {
+                scheduler.retry(entry.getSlot(), RETRY_INTERVAL);
+            }
+        }
+        catch (Exception e)
+        {
+            LOG.warn("Exception occurred while handling update from Z-Wave device {} in controller '{}'", device.getNodeId(), controller.getName(), e);
         }
+    }
 
+    /**
+     * Handles the loop.
+     */
+    private class MetricsLoop implements Runnable
+    {
         @Override
-        public String toString()
+        public void run()
         {
-            return reflectionToString(this, SHORT_PREFIX_STYLE);
+            while (!isDone)
+            {
+                try
+                {
+                    if (!index.isBuiltFrom(zwaveManager.getControllers()))
+                    {
+                        rebuildIndex();
+                    }
+
+                    int slot = scheduler.poll(CONTROLLER_CHECK_INTERVAL);
+                    if (slot != PollScheduler.NONE)
+                    {
+                        poll(slot);
+                    }
+                }
+                catch (InterruptedException e)
+                {
+                    LOG.debug("Interrupted while waiting for devices to poll");
+                }
+                catch (Exception e)
+                {
+                    LOG.warn("Exception occurred in loop", e);
+                }
+            }
+        }
+
+        private void poll(int slot)
+        {
+            Entry entry = index.get(slot);
+            if (entry == null)
+            {
+                LOG.debug("Slot {} is no longer monitored", slot);
+                return;
+            }
+
+            Device device = entry.getDevice();
+            if (device == null)
+            {
+                LOG.info("Could not find a Z-Wave device with nodeId {} in controller '{}'", entry.getMonitoringConfig().getNodeId(), entry.getController().getName());
+                scheduler.retry(slot, RETRY_INTERVAL);
+                return;
+            }
+
+            if (!store(entry, device, getReading(entry, device)))
+            {
+                scheduler.retry(slot, RETRY_INTERVAL);
+            }
         }
     }
 }
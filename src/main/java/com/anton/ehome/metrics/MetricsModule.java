@@ -19,6 +19,7 @@ import static com.google.inject.multibindings.Multibinder.newSetBinder;
 
 import com.anton.ehome.common.IDaemon;
 import com.google.inject.AbstractModule;
+import com.google.inject.Singleton;
 
 /**
  * Contains IOC bindings of the metrics module.
@@ -28,6 +29,11 @@ public class MetricsModule extends AbstractModule
     @Override
     protected void configure()
     {
+        bind(MetricsDaemon.class).in(Singleton.class);
+        bind(IMetricsCollector.class).to(MetricsDaemon.class);
         newSetBinder(binder(), IDaemon.class).addBinding().to(MetricsDaemon.class);
+        bind(EnergyAccumulator.class).in(Singleton.class);
+        bind(IEnergyMeter.class).to(EnergyAccumulator.class);
+        newSetBinder(binder(), IDaemon.class).addBinding().to(EnergyAccumulator.class);
     }
 }
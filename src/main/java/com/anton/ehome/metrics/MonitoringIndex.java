@@ -0,0 +1,234 @@
+/**
+ * Copyright 2017 Anton Johansson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anton.ehome.metrics;
+
+import static java.util.Collections.emptyList;
+import static java.util.Collections.emptyMap;
+import static java.util.Collections.unmodifiableList;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.anton.ehome.conf.Config;
+import com.anton.ehome.conf.ZWaveConfig;
+import com.anton.ehome.conf.ZWaveMonitoringConfig;
+import com.anton.ehome.zwave.Device;
+import com.anton.ehome.zwave.IZWaveController;
+
+/**
+ * An immutable index of the monitored values in the configuration, resolved against the connected controllers and their devices.
+ * <p>
+ * The index is built when the configuration or the devices change, so that looking up a monitored value is a direct array access. Each
+ * monitored value is given a {@link PollScheduler} slot, made up of a number that is assigned to its controller the first time it is indexed,
+ * and the identifier of the node.
+ * </p>
+ */
+final class MonitoringIndex
+{
+    private static final Logger LOG = LoggerFactory.getLogger(MonitoringIndex.class);
+    private static final int NUMBER_OF_NODES = PollScheduler.SLOTS_PER_CONTROLLER;
+
+    /** An index without any monitored values. */
+    static final MonitoringIndex EMPTY = new MonitoringIndex(emptyList(), emptyMap(), emptyMap(), new Entry[0], emptyList());
+
+    private final List<IZWaveController> controllers;
+    private final Map<String, Integer> controllerNumbers;
+    private final Map<String, Entry[]> entriesByController;
+    private final Entry[] entriesBySlot;
+    private final List<Entry> entries;
+
+    private MonitoringIndex(List<IZWaveController> controllers, Map<String, Integer> controllerNumbers, Map<String, Entry[]> entriesByController, Entry[] entriesBySlot, List<Entry> entries)
+    {
+        this.controllers = controllers;
+        this.controllerNumbers = controllerNumbers;
+        this.entriesByController = entriesByController;
+        this.entriesBySlot = entriesBySlot;
+        this.entries = entries;
+    }
+
+    /**
+     * Builds an index of the monitored values in the given configuration.
+     *
+     * @param config The configuration to index.
+     * @param controllers The connected controllers.
+     * @param previous The previous index, whose controller numbers are kept so that slots stay the same between indexes.
+     * @return Returns the built index.
+     */
+    static MonitoringIndex build(Config config, List<IZWaveController> controllers, MonitoringIndex previous)
+    {
+        Map<String, ZWaveConfig> zwaveConfigs = new HashMap<>();
+        config.getZwaveConfigs().forEach(zwaveConfig -> zwaveConfigs.put(zwaveConfig.getName(), zwaveConfig));
+
+        Map<String, Integer> controllerNumbers = new HashMap<>(previous.controllerNumbers);
+        Map<String, Entry[]> entriesByController = new HashMap<>();
+        List<Entry> entries = new ArrayList<>();
+        for (IZWaveController controller : controllers)
+        {
+            int controllerNumber = controllerNumbers.computeIfAbsent(controller.getName(), name -> controllerNumbers.size());
+            ZWaveConfig zwaveConfig = zwaveConfigs.get(controller.getName());
+            if (zwaveConfig == null)
+            {
+                LOG.info("Could not find any configuration for controller '{}'", controller.getName());
+                continue;
+            }
+
+            Entry[] controllerEntries = new Entry[NUMBER_OF_NODES];
+            for (ZWaveMonitoringConfig monitoringConfig : zwaveConfig.getMonitoringValues())
+            {
+                byte nodeId = monitoringConfig.getNodeId();
+                if (monitoringConfig.getPollInterval() <= 0)
+                {
+                    LOG.warn("Invalid interval for Z-Wave device {} in controller '{}': {} ms", nodeId, controller.getName(), monitoringConfig.getPollInterval());
+                    continue;
+                }
+
+                Device device = controller.getDevice(nodeId).orElse(null);
+                int slot = controllerNumber * NUMBER_OF_NODES + index(nodeId);
+                Entry entry = new Entry(slot, controller, monitoringConfig, device);
+                controllerEntries[index(nodeId)] = entry;
+                entries.add(entry);
+            }
+            entriesByController.put(controller.getName(), controllerEntries);
+        }
+
+        Entry[] entriesBySlot = new Entry[controllerNumbers.size() * NUMBER_OF_NODES];
+        entries.forEach(entry -> entriesBySlot[entry.getSlot()] = entry);
+        return new MonitoringIndex(new ArrayList<>(controllers), controllerNumbers, entriesByController, entriesBySlot, unmodifiableList(entries));
+    }
+
+    private static int index(byte nodeId)
+    {
+        return nodeId & 0xFF;
+    }
+
+    /**
+     * Gets the monitored value of the given device.
+     *
+     * @param controllerName The name of the controller of the device.
+     * @param nodeId The identifier of the device.
+     * @return Returns the monitored value; or {@code null} if the device is not monitored.
+     */
+    Entry get(String controllerName, byte nodeId)
+    {
+        Entry[] controllerEntries = entriesByController.get(controllerName);
+        return controllerEntries == null ? null : controllerEntries[index(nodeId)];
+    }
+
+    /**
+     * Gets the monitored value of the given slot.
+     *
+     * @param slot The slot of the monitored value.
+     * @return Returns the monitored value; or {@code null} if nothing is monitored in the slot.
+     */
+    Entry get(int slot)
+    {
+        return slot >= 0 && slot < entriesBySlot.length ? entriesBySlot[slot] : null;
+    }
+
+    /**
+     * Gets all monitored values.
+     *
+     * @return Returns the monitored values.
+     */
+    List<Entry> getEntries()
+    {
+        return entries;
+    }
+
+    /**
+     * Checks whether this index was built from exactly the given controllers.
+     *
+     * @param controllers The currently connected controllers.
+     * @return Returns {@code true} if the index is built from the same controllers.
+     */
+    boolean isBuiltFrom(List<IZWaveController> controllers)
+    {
+        if (this.controllers.size() != controllers.size())
+        {
+            return false;
+        }
+        for (int i = 0; i < controllers.size(); i++)
+        {
+            if (this.controllers.get(i) != controllers.get(i))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * A monitored value, resolved against its controller and device.
+     */
+    static final class Entry
+    {
+        private final int slot;
+        private final IZWaveController controller;
+        private final ZWaveMonitoringConfig monitoringConfig;
+        private final Device device;
+        private final long interval;
+
+        private Entry(int slot, IZWaveController controller, ZWaveMonitoringConfig monitoringConfig, Device device)
+        {
+            this.slot = slot;
+            this.controller = controller;
+            this.monitoringConfig = monitoringConfig;
+            this.device = device;
+            this.interval = monitoringConfig.getPollInterval();
+        }
+
+        /**
+         * Gets the {@link PollScheduler} slot of the monitored value.
+         */
+        int getSlot()
+        {
+            return slot;
+        }
+
+        IZWaveController getController()
+        {
+            return controller;
+        }
+
+        ZWaveMonitoringConfig getMonitoringConfig()
+        {
+            return monitoringConfig;
+        }
+
+        /**
+         * Gets the monitored device.
+         *
+         * @return Returns the device; or {@code null} if the controller has not yet found it.
+         */
+        Device getDevice()
+        {
+            return device;
+        }
+
+        /**
+         * Gets the interval of the monitored value, in milliseconds.
+         */
+        long getInterval()
+        {
+            return interval;
+        }
+    }
+}
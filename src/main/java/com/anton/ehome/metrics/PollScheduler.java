@@ -0,0 +1,290 @@
+/**
+ * Copyright 2017 Anton Johansson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anton.ehome.metrics;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.function.LongSupplier;
+
+import com.anton.ehome.utils.VisibleForTesting;
+
+/**
+ * Keeps track of when slots are due to be polled, ordered by their next due time on a monotonic clock.
+ * <p>
+ * Slots are small non-negative integers, typically a controller number times {@link #SLOTS_PER_CONTROLLER} plus a node identifier. The due times
+ * and intervals of the slots are kept in primitive arrays, ordered by a binary heap of slot numbers, so deciding what to poll next never
+ * allocates.
+ * </p>
+ * <p>
+ * Newly scheduled slots get a random initial offset within their interval, so that slots sharing the same interval are spread out instead of
+ * all becoming due at the same time.
+ * </p>
+ */
+class PollScheduler
+{
+    /** The number of slots reserved for each controller, one for each possible node identifier. */
+    static final int SLOTS_PER_CONTROLLER = 256;
+
+    /** Returned by {@link #poll(long)} when no slot became due. */
+    static final int NONE = -1;
+
+    private final LongSupplier clock;
+    private final Random random;
+    private long[] due = new long[SLOTS_PER_CONTROLLER];
+    private long[] interval = new long[SLOTS_PER_CONTROLLER];
+    private int[] positions = new int[SLOTS_PER_CONTROLLER];
+    private int[] heap = new int[SLOTS_PER_CONTROLLER];
+    private int size;
+
+    PollScheduler()
+    {
+        this(System::nanoTime, new Random());
+    }
+
+    @VisibleForTesting
+    PollScheduler(LongSupplier clock, Random random)
+    {
+        this.clock = clock;
+        this.random = random;
+        Arrays.fill(positions, NONE);
+    }
+
+    /**
+     * Schedules the given slot to be polled with the given interval. If the slot is already scheduled, only its interval is updated.
+     *
+     * @param slot The slot to schedule.
+     * @param intervalInMilliseconds The interval, in milliseconds.
+     */
+    synchronized void schedule(int slot, long intervalInMilliseconds)
+    {
+        if (slot < 0)
+        {
+            throw new IllegalArgumentException("slot can't be negative");
+        }
+        if (intervalInMilliseconds <= 0)
+        {
+            throw new IllegalArgumentException("intervalInMilliseconds must be greater than zero");
+        }
+
+        ensureCapacity(slot);
+        long newInterval = MILLISECONDS.toNanos(intervalInMilliseconds);
+        long now = clock.getAsLong();
+        if (positions[slot] == NONE)
+        {
+            interval[slot] = newInterval;
+            insert(slot, now + (long) (random.nextDouble() * newInterval));
+        }
+        else if (interval[slot] != newInterval)
+        {
+            interval[slot] = newInterval;
+            reschedule(slot, Math.min(due[slot], now + newInterval));
+        }
+    }
+
+    /**
+     * Stops polling the given slot.
+     *
+     * @param slot The slot to remove.
+     * @return Returns {@code true} if the slot was scheduled.
+     */
+    synchronized boolean remove(int slot)
+    {
+        if (!isScheduled(slot))
+        {
+            return false;
+        }
+
+        int position = positions[slot];
+        int last = heap[--size];
+        positions[slot] = NONE;
+        if (position < size)
+        {
+            heap[position] = last;
+            positions[last] = position;
+            siftDown(position);
+            siftUp(positions[last]);
+        }
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Checks whether the given slot is scheduled.
+     *
+     * @param slot The slot to check.
+     * @return Returns {@code true} if the slot is scheduled.
+     */
+    synchronized boolean isScheduled(int slot)
+    {
+        return slot >= 0 && slot < positions.length && positions[slot] != NONE;
+    }
+
+    /**
+     * Claims the given slot if it is due, moving its next due time one interval forward.
+     *
+     * @param slot The slot to claim.
+     * @return Returns {@code true} if the slot was due and is now claimed by the caller.
+     */
+    synchronized boolean tryAcquire(int slot)
+    {
+        long now = clock.getAsLong();
+        if (!isScheduled(slot) || due[slot] > now)
+        {
+            return false;
+        }
+        reschedule(slot, now + interval[slot]);
+        return true;
+    }
+
+    /**
+     * Makes the given slot due again after the given delay, or after its interval if that is shorter.
+     *
+     * @param slot The slot to retry.
+     * @param delayInMilliseconds The delay, in milliseconds.
+     */
+    synchronized void retry(int slot, long delayInMilliseconds)
+    {
+        if (isScheduled(slot))
+        {
+            reschedule(slot, clock.getAsLong() + Math.min(MILLISECONDS.toNanos(delayInMilliseconds), interval[slot]));
+        }
+    }
+
+    /**
+     * Waits for the next slot to become due and claims it, moving its next due time one interval forward.
+     *
+     * @param timeoutInMilliseconds The maximum time to wait, in milliseconds.
+     * @return Returns the claimed slot; or {@link #NONE} if no slot became due before the timeout.
+     */
+    synchronized int poll(long timeoutInMilliseconds) throws InterruptedException
+    {
+        long deadline = clock.getAsLong() + MILLISECONDS.toNanos(timeoutInMilliseconds);
+        while (true)
+        {
+            long now = clock.getAsLong();
+            if (size > 0 && due[heap[0]] <= now)
+            {
+                int slot = heap[0];
+                reschedule(slot, now + interval[slot]);
+                return slot;
+            }
+
+            long wakeUp = size == 0 ? deadline : Math.min(due[heap[0]], deadline);
+            long remaining = wakeUp - now;
+            if (remaining <= 0)
+            {
+                return NONE;
+            }
+            NANOSECONDS.timedWait(this, remaining);
+        }
+    }
+
+    private void ensureCapacity(int slot)
+    {
+        if (slot < positions.length)
+        {
+            return;
+        }
+
+        int capacity = (slot / SLOTS_PER_CONTROLLER + 1) * SLOTS_PER_CONTROLLER;
+        int oldCapacity = positions.length;
+        due = Arrays.copyOf(due, capacity);
+        interval = Arrays.copyOf(interval, capacity);
+        heap = Arrays.copyOf(heap, capacity);
+        positions = Arrays.copyOf(positions, capacity);
+        Arrays.fill(positions, oldCapacity, capacity, NONE);
+    }
+
+    private void insert(int slot, long dueTime)
+    {
+        due[slot] = dueTime;
+        heap[size] = slot;
+        positions[slot] = size;
+        size++;
+        siftUp(size - 1);
+        if (heap[0] == slot)
+        {
+            notifyAll();
+        }
+    }
+
+    private void reschedule(int slot, long dueTime)
+    {
+        long previous = due[slot];
+        due[slot] = dueTime;
+        if (dueTime < previous)
+        {
+            siftUp(positions[slot]);
+            if (heap[0] == slot)
+            {
+                notifyAll();
+            }
+        }
+        else
+        {
+            siftDown(positions[slot]);
+        }
+    }
+
+    private void siftUp(int position)
+    {
+        int slot = heap[position];
+        while (position > 0)
+        {
+            int parent = (position - 1) >>> 1;
+            if (due[heap[parent]] <= due[slot])
+            {
+                break;
+            }
+            move(heap[parent], position);
+            position = parent;
+        }
+        move(slot, position);
+    }
+
+    private void siftDown(int position)
+    {
+        int slot = heap[position];
+        while (true)
+        {
+            int child = 2 * position + 1;
+            if (child >= size)
+            {
+                break;
+            }
+            if (child + 1 < size && due[heap[child + 1]] < due[heap[child]])
+            {
+                child++;
+            }
+            if (due[slot] <= due[heap[child]])
+            {
+                break;
+            }
+            move(heap[child], position);
+            position = child;
+        }
+        move(slot, position);
+    }
+
+    private void move(int slot, int position)
+    {
+        heap[position] = slot;
+        positions[slot] = position;
+    }
+}
@@ -0,0 +1,203 @@
+/**
+ * Copyright 2017 Anton Johansson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anton.ehome.metrics;
+
+import static com.anton.ehome.metrics.PollScheduler.SLOTS_PER_CONTROLLER;
+
+import java.util.Arrays;
+
+import com.anton.ehome.conf.DeadbandType;
+import com.anton.ehome.conf.RecordingMode;
+import com.anton.ehome.conf.ZWaveMonitoringConfig;
+
+/**
+ * Decides which readings of monitored values carry enough new information to be stored, according to their {@link RecordingMode}.
+ * <p>
+ * The state of each monitored value is kept in primitive arrays, indexed by the same slots as the {@link PollScheduler}.
+ * </p>
+ */
+class RecordingFilter
+{
+    private static final long NONE = Long.MIN_VALUE;
+    private static final int MILLISECONDS_PER_SECOND = 1000;
+    private static final double PERCENT = 100;
+
+    private RecordingMode[] modes = new RecordingMode[SLOTS_PER_CONTROLLER];
+    private long[] storedTimes = new long[SLOTS_PER_CONTROLLER];
+    private double[] storedValues = new double[SLOTS_PER_CONTROLLER];
+    private long[] heldTimes = new long[SLOTS_PER_CONTROLLER];
+    private double[] heldValues = new double[SLOTS_PER_CONTROLLER];
+    private double[] upperSlopes = new double[SLOTS_PER_CONTROLLER];
+    private double[] lowerSlopes = new double[SLOTS_PER_CONTROLLER];
+    private long suppressed;
+
+    /**
+     * Stores readings.
+     */
+    interface Recorder
+    {
+        /**
+         * Stores a reading.
+         *
+         * @param time The time of the reading, in milliseconds since the epoch.
+         * @param value The value of the reading.
+         */
+        void record(long time, double value);
+    }
+
+    /**
+     * Offers a new reading of a monitored value, storing readings through the given recorder if they are needed.
+     * <p>
+     * When using {@link RecordingMode#SWINGING_DOOR}, the stored reading can be an earlier reading that was held back.
+     * </p>
+     *
+     * @param slot The slot of the monitored value.
+     * @param config The configuration of the monitored value.
+     * @param time The time of the reading, in milliseconds since the epoch.
+     * @param value The value of the reading.
+     * @param recorder The recorder to store readings with.
+     */
+    synchronized void offer(int slot, ZWaveMonitoringConfig config, long time, double value, Recorder recorder)
+    {
+        ensureCapacity(slot);
+        RecordingMode mode = config.getRecordingMode();
+        if (modes[slot] != mode || storedTimes[slot] == NONE || time <= storedTimes[slot])
+        {
+            modes[slot] = mode;
+            store(slot, time, value, recorder);
+            return;
+        }
+
+        long heartbeat = (long) config.getHeartbeat() * MILLISECONDS_PER_SECOND;
+        boolean isHeartbeatDue = heartbeat > 0 && time - storedTimes[slot] >= heartbeat;
+        double deadband = getDeadband(config, storedValues[slot]);
+        switch (mode)
+        {
+            case DEADBAND:
+                if (isHeartbeatDue || Math.abs(value - storedValues[slot]) > deadband)
+                {
+                    store(slot, time, value, recorder);
+                }
+                else
+                {
+                    suppressed++;
+                }
+                break;
+
+            case SWINGING_DOOR:
+                swingDoor(slot, time, value, deadband, isHeartbeatDue, recorder);
+                break;
+
+            case ALL:
+            default:
+                store(slot, time, value, recorder);
+                break;
+        }
+    }
+
+    private void swingDoor(int slot, long time, double value, double deadband, boolean isHeartbeatDue, Recorder recorder)
+    {
+        if (isHeartbeatDue)
+        {
+            if (heldTimes[slot] != NONE)
+            {
+                store(slot, heldTimes[slot], heldValues[slot], recorder);
+            }
+            store(slot, time, value, recorder);
+            return;
+        }
+
+        long elapsed = time - storedTimes[slot];
+        double upperSlope = Math.max(upperSlopes[slot], (value - storedValues[slot] - deadband) / elapsed);
+        double lowerSlope = Math.min(lowerSlopes[slot], (value - storedValues[slot] + deadband) / elapsed);
+        if (upperSlope > lowerSlope && heldTimes[slot] != NONE)
+        {
+            // The doors have opened past parallel, so the held reading is the last one that the line from the stored reading describes
+            store(slot, heldTimes[slot], heldValues[slot], recorder);
+            elapsed = time - storedTimes[slot];
+            upperSlope = (value - storedValues[slot] - deadband) / elapsed;
+            lowerSlope = (value - storedValues[slot] + deadband) / elapsed;
+        }
+        else if (heldTimes[slot] != NONE)
+        {
+            suppressed++;
+        }
+
+        upperSlopes[slot] = upperSlope;
+        lowerSlopes[slot] = lowerSlope;
+        heldTimes[slot] = time;
+        heldValues[slot] = value;
+    }
+
+    private double getDeadband(ZWaveMonitoringConfig config, double storedValue)
+    {
+        return config.getDeadbandType() == DeadbandType.PERCENT
+            ? Math.abs(storedValue) * config.getDeadband() / PERCENT
+            : config.getDeadband();
+    }
+
+    private void store(int slot, long time, double value, Recorder recorder)
+    {
+        storedTimes[slot] = time;
+        storedValues[slot] = value;
+        heldTimes[slot] = NONE;
+        upperSlopes[slot] = Double.NEGATIVE_INFINITY;
+        lowerSlopes[slot] = Double.POSITIVE_INFINITY;
+        recorder.record(time, value);
+    }
+
+    /**
+     * Forgets the state of the given slot, so that its next reading is stored.
+     *
+     * @param slot The slot to forget.
+     */
+    synchronized void reset(int slot)
+    {
+        if (slot >= 0 && slot < modes.length)
+        {
+            modes[slot] = null;
+            storedTimes[slot] = NONE;
+            heldTimes[slot] = NONE;
+        }
+    }
+
+    /**
+     * Gets the number of readings that were not stored, because they carried no new information.
+     *
+     * @return Returns the number of suppressed readings.
+     */
+    synchronized long getSuppressed()
+    {
+        return suppressed;
+    }
+
+    private void ensureCapacity(int slot)
+    {
+        if (slot < modes.length)
+        {
+            return;
+        }
+
+        int capacity = (slot / SLOTS_PER_CONTROLLER + 1) * SLOTS_PER_CONTROLLER;
+        modes = Arrays.copyOf(modes, capacity);
+        storedTimes = Arrays.copyOf(storedTimes, capacity);
+        storedValues = Arrays.copyOf(storedValues, capacity);
+        heldTimes = Arrays.copyOf(heldTimes, capacity);
+        heldValues = Arrays.copyOf(heldValues, capacity);
+        upperSlopes = Arrays.copyOf(upperSlopes, capacity);
+        lowerSlopes = Arrays.copyOf(lowerSlopes, capacity);
+    }
+}
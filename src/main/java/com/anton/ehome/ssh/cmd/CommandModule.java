@@ -23,6 +23,7 @@ import com.anton.ehome.ssh.cmd.charts.ChartsCommandModule;
 import com.anton.ehome.ssh.cmd.common.AbstractCommandModule;
 import com.anton.ehome.ssh.cmd.common.ICommand;
 import com.anton.ehome.ssh.cmd.config.ConfigCommandModule;
+import com.anton.ehome.ssh.cmd.metrics.MetricsCommandModule;
 import com.anton.ehome.ssh.cmd.notification.NotificationCommandModule;
 import com.anton.ehome.ssh.cmd.zwave.ZWaveCommandModule;
 
@@ -37,6 +38,7 @@ public class CommandModule extends AbstractCommandModule
         super.configure();
         install(new ChartsCommandModule());
         install(new ConfigCommandModule());
+        install(new MetricsCommandModule());
         install(new NotificationCommandModule());
         install(new ZWaveCommandModule());
     }
@@ -0,0 +1,61 @@
+/**
+ * Copyright 2017 Anton Johansson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anton.ehome.ssh.cmd.metrics;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Locale;
+
+import com.anton.ehome.domain.Energy;
+import com.anton.ehome.metrics.IEnergyMeter;
+import com.anton.ehome.ssh.cmd.annotation.Command;
+import com.anton.ehome.ssh.cmd.common.ICommand;
+import com.anton.ehome.ssh.cmd.common.ICommunicator;
+import com.anton.ehome.ssh.cmd.execption.CommandExecutionException;
+import com.google.inject.Inject;
+
+/**
+ * Shows the energy used by each device today and this month.
+ */
+@Command(group = "metrics", name = "energy", description = "Shows the energy used by each device today and this month")
+class ShowEnergyCommand implements ICommand
+{
+    private final IEnergyMeter energyMeter;
+
+    @Inject
+    ShowEnergyCommand(IEnergyMeter energyMeter)
+    {
+        this.energyMeter = energyMeter;
+    }
+
+    @Override
+    public void execute(String user, ICommunicator communicator) throws IOException, CommandExecutionException
+    {
+        List<Energy> energy = energyMeter.getEnergy();
+        if (energy.isEmpty())
+        {
+            communicator.newLine().write("No device has reported its power this month");
+            return;
+        }
+
+        communicator.newLine().write(String.format(Locale.ROOT, "%-6s %12s %12s", "Node", "Today", "This month"));
+        for (Energy item : energy)
+        {
+            int nodeId = item.getNodeId() & 0xFF;
+            communicator.newLine().write(String.format(Locale.ROOT, "%-6d %8.3f kWh %8.3f kWh", nodeId, item.getToday(), item.getThisMonth()));
+        }
+    }
+}
@@ -0,0 +1,72 @@
+/**
+ * Copyright 2017 Anton Johansson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anton.ehome.ssh.cmd.metrics;
+
+import static org.apache.commons.lang3.StringUtils.rightPad;
+
+import java.io.IOException;
+
+import com.anton.ehome.dao.IMetricsDao;
+import com.anton.ehome.domain.WriteStatistics;
+import com.anton.ehome.metrics.IMetricsCollector;
+import com.anton.ehome.ssh.cmd.annotation.Command;
+import com.anton.ehome.ssh.cmd.common.ICommand;
+import com.anton.ehome.ssh.cmd.common.ICommunicator;
+import com.anton.ehome.ssh.cmd.execption.CommandExecutionException;
+import com.google.inject.Inject;
+
+/**
+ * Shows statistics of how metrics are stored.
+ */
+@Command(group = "metrics", name = "statistics", description = "Shows statistics of how metrics are stored")
+class ShowStatisticsCommand implements ICommand
+{
+    private static final int LABEL_LENGTH = 16;
+
+    private final IMetricsDao metricsDao;
+    private final IMetricsCollector metricsCollector;
+
+    @Inject
+    ShowStatisticsCommand(IMetricsDao metricsDao, IMetricsCollector metricsCollector)
+    {
+        this.metricsDao = metricsDao;
+        this.metricsCollector = metricsCollector;
+    }
+
+    @Override
+    public void execute(String user, ICommunicator communicator) throws IOException, CommandExecutionException
+    {
+        WriteStatistics statistics = metricsDao.getWriteStatistics();
+
+        write(communicator, "Suppressed", metricsCollector.getSuppressed());
+        write(communicator, "Queue depth", statistics.getQueueDepth() + " / " + statistics.getQueueCapacity());
+        write(communicator, "Written", statistics.getWritten());
+        write(communicator, "Dropped", statistics.getDropped());
+        write(communicator, "Spilled", statistics.getSpilled());
+        write(communicator, "Failed", statistics.getFailed());
+        write(communicator, "Flushes", statistics.getFlushes());
+        write(communicator, "Flush latency", statistics.getLastFlushLatency() + " ms (average " + statistics.getAverageFlushLatency() + " ms, max "
+            + statistics.getMaxFlushLatency() + " ms)");
+        write(communicator, "Spooled", statistics.getSpooled() + " (" + statistics.getSpoolSize() + " bytes on disk)");
+        write(communicator, "Replayed", statistics.getReplayed());
+        write(communicator, "Discarded", statistics.getDiscarded());
+    }
+
+    private void write(ICommunicator communicator, String label, Object value) throws IOException
+    {
+        communicator.newLine().write(rightPad(label + ":", LABEL_LENGTH) + value);
+    }
+}
@@ -126,10 +126,7 @@ public class RemoveMonitoredValueCommand implements ICommand
 
     private Device getDevice(IZWaveController controller) throws CommandExecutionException
     {
-        return controller.getDevices()
-                .stream()
-                .filter(device -> nodeId == device.getNodeId())
-                .findAny()
+        return controller.getDevice(nodeId)
                 .orElseThrow(() -> new CommandExecutionException("No device with the given identifier was found"));
     }
 }
@@ -15,6 +15,7 @@
  */
 package com.anton.ehome.utils;
 
+import static java.lang.annotation.ElementType.CONSTRUCTOR;
 import static java.lang.annotation.ElementType.METHOD;
 import static java.lang.annotation.RetentionPolicy.SOURCE;
 
@@ -24,7 +25,7 @@ import java.lang.annotation.Target;
 /**
  * Indicates that a member is visible for testing purposes only.
  */
-@Target(METHOD)
+@Target({METHOD, CONSTRUCTOR})
 @Retention(SOURCE)
 public @interface VisibleForTesting
 {
@@ -16,12 +16,16 @@
 package com.anton.ehome.zwave;
 
 import static com.anton.ehome.utils.Assert.requireNonBlank;
+import static java.util.Collections.emptyList;
 import static java.util.Collections.unmodifiableList;
 
 import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.function.Consumer;
 
 import org.slf4j.Logger;
@@ -42,12 +46,15 @@ import com.whizzosoftware.wzwave.node.specific.PCController;
 class Controller implements IZWaveController
 {
     private static final Logger LOG = LoggerFactory.getLogger(Controller.class);
+    private static final int NUMBER_OF_NODES = 256;
 
-    private final List<Device> devices = new ArrayList<>();
-    private final List<Consumer<Device>> deviceAddedListeners = new ArrayList<>();
+    private final AtomicReferenceArray<Device> deviceTable = new AtomicReferenceArray<>(NUMBER_OF_NODES);
+    private final List<Consumer<Device>> deviceAddedListeners = new CopyOnWriteArrayList<>();
+    private final List<Consumer<Device>> deviceUpdatedListeners = new CopyOnWriteArrayList<>();
     private final String name;
     private final String serialPort;
     private final Set<Byte> monitoredDevices;
+    private volatile List<Device> devices = emptyList();
     private ZWaveController controller;
 
     Controller(String name, String serialPort, Set<Byte> monitoredDevices)
@@ -72,7 +79,32 @@ class Controller implements IZWaveController
     @Override
     public List<Device> getDevices()
     {
-        return unmodifiableList(devices);
+        return devices;
+    }
+
+    @Override
+    public Optional<Device> getDevice(byte nodeId)
+    {
+        return Optional.ofNullable(deviceTable.get(nodeId & 0xFF));
+    }
+
+    /**
+     * Puts a device in the device table, replacing any previous device with the same identifier, and publishes a new snapshot of the devices.
+     */
+    private synchronized void putDevice(Device device)
+    {
+        deviceTable.set(device.getNodeId() & 0xFF, device);
+
+        List<Device> snapshot = new ArrayList<>(devices.size() + 1);
+        for (int i = 0; i < NUMBER_OF_NODES; i++)
+        {
+            Device existing = deviceTable.get(i);
+            if (existing != null)
+            {
+                snapshot.add(existing);
+            }
+        }
+        devices = unmodifiableList(snapshot);
     }
 
     @Override
@@ -81,6 +113,19 @@ class Controller implements IZWaveController
         deviceAddedListeners.add(listener);
     }
 
+    @Override
+    public void onDeviceUpdated(Consumer<Device> listener)
+    {
+        deviceUpdatedListeners.add(listener);
+    }
+
+    @Override
+    public void removeListener(Consumer<Device> listener)
+    {
+        deviceAddedListeners.remove(listener);
+        deviceUpdatedListeners.remove(listener);
+    }
+
     @Override
     public void startMonitor(byte nodeId)
     {
@@ -130,7 +175,7 @@ class Controller implements IZWaveController
             LOG.trace("#onZWaveNodeAdded: {}", node);
 
             Device device = new Device(node.getNodeId(), getDeviceType(node), (ZWaveNode) node);
-            devices.add(device);
+            putDevice(device);
             deviceAddedListeners.forEach(listener -> listener.accept(device));
         }
 
@@ -152,6 +197,15 @@ class Controller implements IZWaveController
         public void onZWaveNodeUpdated(ZWaveEndpoint node)
         {
             LOG.trace("#onZWaveNodeUpdated: {}", node);
+
+            byte nodeId = node.getNodeId();
+            Device device = deviceTable.get(nodeId & 0xFF);
+            if (device == null)
+            {
+                LOG.debug("Received update from unknown Z-Wave device {} in controller '{}'", nodeId, name);
+                return;
+            }
+            deviceUpdatedListeners.forEach(listener -> listener.accept(device));
         }
 
         @Override
@@ -16,6 +16,7 @@
 package com.anton.ehome.zwave;
 
 import java.util.List;
+import java.util.Optional;
 import java.util.function.Consumer;
 
 /**
@@ -40,10 +41,18 @@ public interface IZWaveController
     /**
      * Gets the devices connected to this controller.
      *
-     * @return Returns the conneted devices.
+     * @return Returns a snapshot of the conneted devices, ordered by their identifiers.
      */
     List<Device> getDevices();
 
+    /**
+     * Gets the device with the given identifier.
+     *
+     * @param nodeId The identifier of the device.
+     * @return Returns the device, if it is connected.
+     */
+    Optional<Device> getDevice(byte nodeId);
+
     /**
      * Adds a listener for when devices are added to the controller.
      *
@@ -51,6 +60,23 @@ public interface IZWaveController
      */
     void onDeviceAdded(Consumer<Device> listener);
 
+    /**
+     * Adds a listener for when devices connected to the controller reports updated values.
+     * <p>
+     * Listeners are invoked on the thread that communicates with the controller, so they should return quickly.
+     * </p>
+     *
+     * @param listener The listener to add.
+     */
+    void onDeviceUpdated(Consumer<Device> listener);
+
+    /**
+     * Removes a listener that was added for when devices are added or report updated values.
+     *
+     * @param listener The listener to remove.
+     */
+    void removeListener(Consumer<Device> listener);
+
     /**
      * Starts to monitor the values of the device with the given identifier.
      *
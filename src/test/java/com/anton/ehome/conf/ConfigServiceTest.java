@@ -19,6 +19,7 @@ import static java.util.Arrays.asList;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.util.ArrayList;
 import java.util.List;
 
 import org.junit.Assert;
@@ -74,6 +75,18 @@ public class ConfigServiceTest extends Assert
         verify(dao).persist("some reason", "some-user", config);
     }
 
+    @Test
+    public void testModifyNotifiesListeners()
+    {
+        List<Config> modified = new ArrayList<>();
+        service.onModified(modified::add);
+        service.modify("some reason", "some-user", config -> config.getMetricsConfig().setBatchSize(100));
+
+        assertEquals(1, modified.size());
+        assertSame(service.getCurrentConfig(), modified.get(0));
+        assertEquals(100, modified.get(0).getMetricsConfig().getBatchSize());
+    }
+
     @Test
     public void testGettingHistory()
     {
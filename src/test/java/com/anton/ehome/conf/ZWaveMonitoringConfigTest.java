@@ -0,0 +1,53 @@
+/**
+ * Copyright 2017 Anton Johansson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anton.ehome.conf;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.anton.ehome.utils.JsonUtils;
+
+/**
+ * Unit tests of {@link ZWaveMonitoringConfig}.
+ */
+public class ZWaveMonitoringConfigTest extends Assert
+{
+    @Test
+    public void testPollingIntervalInSeconds()
+    {
+        ZWaveMonitoringConfig config = JsonUtils.read("{\"nodeId\": 5, \"scale\": \"WATTS\", \"interval\": 30}", ZWaveMonitoringConfig.class);
+
+        assertEquals(0, config.getIntervalMillis());
+        assertEquals(30_000, config.getPollInterval());
+    }
+
+    @Test
+    public void testDefaultPollingInterval()
+    {
+        ZWaveMonitoringConfig config = JsonUtils.read("{\"nodeId\": 5, \"scale\": \"WATTS\"}", ZWaveMonitoringConfig.class);
+
+        assertEquals(10_000, config.getPollInterval());
+    }
+
+    @Test
+    public void testPollingIntervalInMilliseconds()
+    {
+        ZWaveMonitoringConfig config = JsonUtils.read("{\"nodeId\": 5, \"scale\": \"WATTS\", \"interval\": 30, \"intervalMillis\": 250}",
+                ZWaveMonitoringConfig.class);
+
+        assertEquals(250, config.getPollInterval());
+    }
+}
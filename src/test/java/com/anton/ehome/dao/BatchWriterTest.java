@@ -0,0 +1,464 @@
+/**
+ * Copyright 2017 Anton Johansson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anton.ehome.dao;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static java.util.stream.Collectors.toList;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.isA;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+
+import org.influxdb.InfluxDB;
+import org.influxdb.InfluxDBIOException;
+import org.influxdb.dto.BatchPoints;
+import org.influxdb.dto.Point;
+import org.junit.Test;
+import org.mockito.Mock;
+
+import com.anton.ehome.common.AbstractTest;
+import com.anton.ehome.conf.Config;
+import com.anton.ehome.conf.IConfigService;
+import com.anton.ehome.conf.MetricsConfig;
+import com.anton.ehome.conf.OverflowPolicy;
+import com.anton.ehome.domain.WriteStatistics;
+
+/**
+ * Unit tests of {@link BatchWriter}.
+ */
+public class BatchWriterTest extends AbstractTest
+{
+    private @Mock InfluxDB influx;
+    private @Mock Spool spool;
+    private @Mock IConfigService configService;
+    private final BlockingQueue<Long> writtenUntil = new LinkedBlockingQueue<>();
+    private final BlockingQueue<List<Point>> batches = new LinkedBlockingQueue<>();
+    private final List<BatchWriter> writers = new ArrayList<>();
+    private MetricsConfig config;
+
+    @Override
+    protected void initMocks() throws Exception
+    {
+        Config config = new Config();
+        this.config = config.getMetricsConfig();
+        this.config.setFlushInterval(50);
+        when(configService.getCurrentConfig()).thenReturn(config);
+        doAnswer(invocation ->
+        {
+            batches.add(invocation.<BatchPoints> getArgument(0).getPoints());
+            return null;
+        }).when(influx).write(isA(BatchPoints.class));
+    }
+
+    @Override
+    public void tearDown() throws Exception
+    {
+        super.tearDown();
+        writers.forEach(BatchWriter::stop);
+    }
+
+    private BatchWriter writer()
+    {
+        BatchWriter writer = new BatchWriter(influx, spool, configService);
+        writer.onWritten(writtenUntil::add);
+        writers.add(writer);
+        return writer;
+    }
+
+    private Point point(int value)
+    {
+        return Point.measurement("metric")
+                .time(time(value), MILLISECONDS)
+                .addField("value", value)
+                .build();
+    }
+
+    private long time(int value)
+    {
+        return 1_500_000_000_000L + value;
+    }
+
+    private List<String> lines(int... values)
+    {
+        List<String> lines = new ArrayList<>();
+        for (int value : values)
+        {
+            lines.add(point(value).lineProtocol());
+        }
+        return lines;
+    }
+
+    private List<String> lines(List<Point> points)
+    {
+        return points.stream().map(Point::lineProtocol).collect(toList());
+    }
+
+    /**
+     * Waits until the written listeners are told a time after the given one.
+     *
+     * @return Returns the time that the listeners were told.
+     */
+    private long awaitWrittenAfter(long time) throws InterruptedException
+    {
+        while (true)
+        {
+            Long until = writtenUntil.poll(5, SECONDS);
+            assertNotNull("Timed out waiting for points to be written", until);
+            if (until > time)
+            {
+                return until;
+            }
+        }
+    }
+
+    /**
+     * Takes written batches until the given number of points are written.
+     */
+    private List<String> takeWritten(int count) throws InterruptedException
+    {
+        List<String> written = new ArrayList<>();
+        while (written.size() < count)
+        {
+            List<Point> batch = batches.poll(5, SECONDS);
+            assertNotNull("Timed out waiting for points to be written", batch);
+            written.addAll(lines(batch));
+        }
+        return written;
+    }
+
+    @Test
+    public void testFlushingWhenBatchIsFull() throws Exception
+    {
+        config.setBatchSize(3);
+        config.setFlushInterval(1000);
+        BatchWriter writer = writer();
+        writer.start();
+        writer.add(point(1), time(1));
+        writer.add(point(2), time(2));
+        writer.add(point(3), time(3));
+        writer.add(point(4), time(4));
+
+        assertEquals(lines(1, 2, 3), lines(batches.poll(5, SECONDS)));
+        assertNull(batches.poll(200, MILLISECONDS));
+    }
+
+    @Test
+    public void testFlushingWhenOldestPointIsDue() throws Exception
+    {
+        config.setFlushInterval(200);
+        BatchWriter writer = writer();
+        writer.start();
+        long start = System.nanoTime();
+        writer.add(point(1), time(1));
+        writer.add(point(2), time(2));
+
+        assertEquals(lines(1, 2), lines(batches.poll(5, SECONDS)));
+        assertTrue(System.nanoTime() - start >= MILLISECONDS.toNanos(200));
+    }
+
+    @Test
+    public void testDroppingOldestPointsWhenQueueIsFull() throws Exception
+    {
+        config.setQueueCapacity(2);
+        config.setOverflowPolicy(OverflowPolicy.DROP_OLDEST);
+        BatchWriter writer = writer();
+        writer.add(point(1), time(1));
+        writer.add(point(2), time(2));
+        writer.add(point(3), time(3));
+
+        WriteStatistics statistics = writer.getStatistics();
+        assertEquals(1, statistics.getDropped());
+        assertEquals(2, statistics.getQueueDepth());
+        assertEquals(2, statistics.getQueueCapacity());
+
+        writer.start();
+        assertEquals(lines(2, 3), takeWritten(2));
+    }
+
+    @Test
+    public void testSpillingToSpoolWhenQueueIsFull() throws Exception
+    {
+        config.setQueueCapacity(1);
+        config.setOverflowPolicy(OverflowPolicy.SPILL);
+        when(spool.append(anyList())).thenReturn(1);
+        BatchWriter writer = writer();
+        writer.add(point(1), time(1));
+        writer.add(point(2), time(2));
+
+        verify(spool).append(Collections.singletonList(point(2)));
+        verify(influx, never()).write(isA(BatchPoints.class));
+        assertEquals(1, writer.getStatistics().getSpilled());
+        assertEquals(1, writer.getStatistics().getQueueDepth());
+    }
+
+    @Test
+    public void testSpillingDirectlyToDatabaseWhenSpoolIsDisabled() throws Exception
+    {
+        config.setQueueCapacity(1);
+        config.setOverflowPolicy(OverflowPolicy.SPILL);
+        BatchWriter writer = writer();
+        writer.add(point(1), time(1));
+        writer.add(point(2), time(2));
+
+        assertEquals(lines(2), lines(batches.poll(5, SECONDS)));
+        assertEquals(1, writer.getStatistics().getSpilled());
+        assertEquals(1, writer.getStatistics().getWritten());
+    }
+
+    @Test
+    public void testBlockingWhenQueueIsFull() throws Exception
+    {
+        config.setQueueCapacity(1);
+        config.setOverflowPolicy(OverflowPolicy.BLOCK);
+        BatchWriter writer = writer();
+        writer.add(point(1), time(1));
+
+        Thread caller = new Thread(() -> writer.add(point(2), time(2)));
+        caller.start();
+        caller.join(200);
+        assertTrue(caller.isAlive());
+
+        writer.start();
+        caller.join(5000);
+        assertFalse(caller.isAlive());
+        assertEquals(lines(1, 2), takeWritten(2));
+        assertEquals(0, writer.getStatistics().getDropped());
+    }
+
+    @Test
+    public void testWakingBlockedCallersWhenStopped() throws Exception
+    {
+        config.setQueueCapacity(1);
+        config.setOverflowPolicy(OverflowPolicy.BLOCK);
+        BatchWriter writer = writer();
+        writer.add(point(1), time(1));
+
+        Thread caller = new Thread(() -> writer.add(point(2), time(2)));
+        caller.start();
+        caller.join(200);
+        assertTrue(caller.isAlive());
+
+        // The background thread was never started, so nothing but stopping makes room in the queue
+        writer.stop();
+        caller.join(5000);
+        assertFalse(caller.isAlive());
+        assertEquals(new HashSet<>(lines(1, 2)), new HashSet<>(takeWritten(2)));
+    }
+
+    @Test
+    public void testFlushingQueuedPointsWhenStopped() throws Exception
+    {
+        config.setFlushInterval(500);
+        BatchWriter writer = writer();
+        writer.start();
+        writer.add(point(1), time(1));
+        writer.add(point(2), time(2));
+        writer.stop();
+
+        assertEquals(2, writer.getStatistics().getWritten());
+        assertEquals(0, writer.getStatistics().getQueueDepth());
+        assertEquals(lines(1, 2), takeWritten(2));
+
+        writer.add(point(3), time(3));
+        assertEquals(lines(3), takeWritten(1));
+    }
+
+    @Test
+    public void testCountingWritesAndFailures() throws Exception
+    {
+        config.setBatchSize(2);
+        BatchWriter writer = writer();
+        writer.start();
+        writer.add(point(1), time(1));
+        writer.add(point(2), time(2));
+        takeWritten(2);
+
+        doThrow(new InfluxDBIOException(new IOException("Connection refused"))).when(influx).write(isA(BatchPoints.class));
+        writer.add(point(3), time(3));
+        writer.add(point(4), time(4));
+        verify(spool, timeout(5000)).append(anyList());
+        writer.stop();
+
+        WriteStatistics statistics = writer.getStatistics();
+        assertEquals(2, statistics.getWritten());
+        assertEquals(2, statistics.getFailed());
+        assertEquals(2, statistics.getFlushes());
+        assertEquals(0, statistics.getDropped());
+        assertEquals(0, statistics.getSpilled());
+        assertTrue(statistics.getMaxFlushLatency() >= statistics.getLastFlushLatency());
+    }
+
+    @Test
+    public void testCountingOnlyPointsThatAreNotSpooledAsFailed() throws Exception
+    {
+        config.setBatchSize(2);
+        doThrow(new InfluxDBIOException(new IOException("Connection refused"))).when(influx).write(isA(BatchPoints.class));
+        when(spool.append(anyList())).thenReturn(1);
+        BatchWriter writer = writer();
+        writer.start();
+        writer.add(point(1), time(1));
+        writer.add(point(2), time(2));
+        verify(spool, timeout(5000)).append(anyList());
+        writer.stop();
+
+        assertEquals(1, writer.getStatistics().getFailed());
+    }
+
+    @Test
+    public void testNotifyingWhenPointsAreWritten() throws Exception
+    {
+        BatchWriter writer = writer();
+        writer.start();
+        writer.add(point(1), time(1));
+        long added = System.currentTimeMillis();
+
+        awaitWrittenAfter(added);
+        assertEquals(lines(1), takeWritten(1));
+    }
+
+    @Test
+    public void testNotifyingWhilePointsKeepBeingAdded() throws Exception
+    {
+        Semaphore writes = new Semaphore(0);
+        doAnswer(invocation ->
+        {
+            writes.acquire();
+            batches.add(invocation.<BatchPoints> getArgument(0).getPoints());
+            return null;
+        }).when(influx).write(isA(BatchPoints.class));
+        config.setBatchSize(1);
+        BatchWriter writer = writer();
+        writer.start();
+
+        writer.add(point(1), time(1));
+        verify(influx, timeout(5000)).write(isA(BatchPoints.class));
+        writer.add(point(2), time(2));
+        long added = System.currentTimeMillis();
+        Thread.sleep(5);
+        writer.add(point(3), time(3));
+        long addedLast = System.currentTimeMillis();
+
+        // The queue is never empty after the second batch is collected, since the third point waits in it
+        writes.release(2);
+        long until = awaitWrittenAfter(added);
+        assertTrue(until <= addedLast);
+        assertEquals(lines(1, 2), takeWritten(2));
+        writes.release();
+    }
+
+    @Test
+    public void testGettingOldestUnwrittenTime() throws Exception
+    {
+        Semaphore writes = new Semaphore(0);
+        doAnswer(invocation ->
+        {
+            writes.acquire();
+            batches.add(invocation.<BatchPoints> getArgument(0).getPoints());
+            return null;
+        }).when(influx).write(isA(BatchPoints.class));
+        when(spool.getOldestTime()).thenReturn(Long.MAX_VALUE);
+        config.setBatchSize(1);
+        BatchWriter writer = writer();
+        assertEquals(Long.MAX_VALUE, writer.getOldestUnwrittenTime());
+        writer.start();
+
+        writer.add(point(5_000), time(5_000));
+        writer.add(point(2_500), time(2_500));
+        assertEquals(time(2_000), writer.getOldestUnwrittenTime());
+
+        writes.release();
+        assertEquals(lines(5_000), takeWritten(1));
+        assertEquals(time(2_000), writer.getOldestUnwrittenTime());
+
+        // Spooled points are counted by the spool
+        when(spool.getOldestTime()).thenReturn(time(1_000));
+        assertEquals(time(1_000), writer.getOldestUnwrittenTime());
+        when(spool.getOldestTime()).thenReturn(Long.MAX_VALUE);
+
+        writes.release();
+        assertEquals(lines(2_500), takeWritten(1));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (writer.getOldestUnwrittenTime() != Long.MAX_VALUE && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(10);
+        }
+        assertEquals(Long.MAX_VALUE, writer.getOldestUnwrittenTime());
+    }
+
+    @Test
+    public void testNotNotifyingPastSpooledPoints() throws Exception
+    {
+        doThrow(new InfluxDBIOException(new IOException("Connection refused"))).when(influx).write(isA(BatchPoints.class));
+        when(spool.append(anyList())).thenReturn(1);
+        when(spool.hasPending()).thenReturn(true);
+        BatchWriter writer = writer();
+        writer.start();
+        writer.add(point(1), time(1));
+        long added = System.currentTimeMillis();
+
+        verify(spool, timeout(5000)).append(anyList());
+        Thread.sleep(200);
+        for (Long until : writtenUntil)
+        {
+            assertTrue(until <= added);
+        }
+        assertTrue(writer.hasUnwritten());
+        assertEquals(1, writer.getStatistics().getFlushes());
+    }
+
+    @Test
+    public void testNotifyingWhenSpooledPointsAreReplayed() throws Exception
+    {
+        doThrow(new InfluxDBIOException(new IOException("Connection refused"))).doAnswer(invocation ->
+        {
+            batches.add(invocation.<BatchPoints> getArgument(0).getPoints());
+            return null;
+        }).when(influx).write(isA(BatchPoints.class));
+        when(spool.append(anyList())).thenReturn(1);
+        when(spool.hasPending()).thenReturn(true);
+        BatchWriter writer = writer();
+        writer.start();
+        writer.add(point(1), time(1));
+        long spooled = System.currentTimeMillis();
+        verify(spool, timeout(5000)).append(anyList());
+
+        // Points that are written while the spool drains are only read once the spooled points before them are replayed
+        writer.add(point(2), time(2));
+        long added = System.currentTimeMillis();
+        assertEquals(lines(2), takeWritten(1));
+        Thread.sleep(200);
+        for (Long until : writtenUntil)
+        {
+            assertTrue(until <= spooled);
+        }
+
+        when(spool.hasPending()).thenReturn(false);
+        awaitWrittenAfter(added);
+    }
+}
@@ -0,0 +1,363 @@
+/**
+ * Copyright 2017 Anton Johansson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anton.ehome.dao;
+
+import static java.time.ZoneOffset.UTC;
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static org.mockito.ArgumentMatchers.anyByte;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.influxdb.InfluxDB;
+import org.influxdb.InfluxDB.ConsistencyLevel;
+import org.influxdb.dto.Point;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+
+import com.anton.ehome.common.AbstractTest;
+import com.anton.ehome.conf.Config;
+import com.anton.ehome.conf.IConfigService;
+import com.anton.ehome.dao.Rollups.Tier;
+
+/**
+ * Unit tests of {@link CachingMetricsDao}.
+ */
+public class CachingMetricsDaoTest extends AbstractTest
+{
+    private static final LocalDateTime NOW = LocalDateTime.of(2017, 6, 2, 12, 0);
+    private static final LocalDateTime FROM = LocalDateTime.of(2017, 6, 1, 0, 0);
+    private static final LocalDateTime TO = LocalDateTime.of(2017, 6, 1, 6, 0);
+
+    private final Map<Byte, NavigableMap<Long, Double>> database = new HashMap<>();
+    private @Mock MetricsDao metricsDao;
+    public @Rule TemporaryFolder folder = new TemporaryFolder();
+    private @Mock Rollups rollups;
+    private @Mock Spool spool;
+    private @Mock InfluxDB influx;
+    private @Mock IConfigService configService;
+    private Config config;
+    private CachingMetricsDao dao;
+
+    @Override
+    protected void initMocks() throws Exception
+    {
+        config = new Config();
+        when(configService.getCurrentConfig()).thenReturn(config);
+        when(rollups.select(any(), any())).thenReturn(Tier.RAW);
+        when(metricsDao.getFromMemory(any(), anyByte(), any(), any())).thenReturn(Optional.empty());
+        when(metricsDao.getMetricCursors(eq(Tier.RAW), any(), any(), any())).thenAnswer(this::query);
+        when(metricsDao.getOldestUnwrittenTime()).thenReturn(Long.MAX_VALUE);
+        dao = new CachingMetricsDao(metricsDao, rollups, spool, configService, () -> toMillis(NOW));
+
+        add(1, LocalDateTime.of(2017, 6, 1, 1, 30), 1.0);
+        add(1, LocalDateTime.of(2017, 6, 1, 5, 59), 2.0);
+        add(1, LocalDateTime.of(2017, 6, 1, 6, 30), 3.0);
+        add(2, LocalDateTime.of(2017, 6, 1, 3, 0), 4.0);
+        add(1, LocalDateTime.of(2017, 6, 2, 10, 30), 5.0);
+        add(1, LocalDateTime.of(2017, 6, 2, 11, 30), 6.0);
+    }
+
+    @Test
+    public void testReadingClosedBucketsOnce()
+    {
+        Map<Byte, List<Double>> first = values(dao.getMetricCursors(asList((byte) 1, (byte) 2), FROM, TO, Duration.ZERO));
+        Map<Byte, List<Double>> second = values(dao.getMetricCursors(asList((byte) 1, (byte) 2), FROM, TO, Duration.ZERO));
+
+        assertEquals(asList(1.0, 2.0), first.get((byte) 1));
+        assertEquals(asList(4.0), first.get((byte) 2));
+        assertEquals(first, second);
+        verify(metricsDao).getMetricCursors(eq(Tier.RAW), eq(nodeIds(1, 2)), eq(FROM), eq(LocalDateTime.of(2017, 6, 1, 6, 59, 59, 999_000_000)));
+        verify(metricsDao, times(1)).getMetricCursors(eq(Tier.RAW), any(), any(), any());
+    }
+
+    @Test
+    public void testReadingPartOfCachedBuckets()
+    {
+        dao.getMetricCursors(singletonList((byte) 1), FROM, TO, Duration.ZERO);
+
+        IMetricCursor cursor = dao.getMetricCursor((byte) 1, LocalDateTime.of(2017, 6, 1, 5, 0), LocalDateTime.of(2017, 6, 1, 6, 30), Duration.ZERO);
+
+        assertEquals(asList(2.0, 3.0), values(cursor));
+        verify(metricsDao, times(1)).getMetricCursors(eq(Tier.RAW), any(), any(), any());
+    }
+
+    @Test
+    public void testReadingOpenBucketLive()
+    {
+        LocalDateTime from = LocalDateTime.of(2017, 6, 2, 10, 0);
+        LocalDateTime closedUntil = LocalDateTime.of(2017, 6, 2, 11, 0);
+
+        assertEquals(asList(5.0, 6.0), values(dao.getMetricCursor((byte) 1, from, NOW, Duration.ZERO)));
+        assertEquals(asList(5.0, 6.0), values(dao.getMetricCursor((byte) 1, from, NOW, Duration.ZERO)));
+
+        verify(metricsDao, times(1)).getMetricCursors(eq(Tier.RAW), eq(nodeIds(1)), eq(from), eq(closedUntil.minusNanos(1_000_000)));
+        verify(metricsDao, times(2)).getMetricCursors(eq(Tier.RAW), eq(nodeIds(1)), eq(closedUntil), eq(NOW));
+    }
+
+    @Test
+    public void testReadingOnlyOpenBucket()
+    {
+        LocalDateTime from = LocalDateTime.of(2017, 6, 2, 11, 15);
+
+        assertEquals(asList(6.0), values(dao.getMetricCursor((byte) 1, from, NOW, Duration.ZERO)));
+        verify(metricsDao).getMetricCursors(eq(Tier.RAW), eq(singletonList((byte) 1)), eq(from), eq(NOW));
+        verify(metricsDao, times(1)).getMetricCursors(eq(Tier.RAW), any(), any(), any());
+    }
+
+    @Test
+    public void testReadingFromMemory()
+    {
+        IMetricCursor cursor = new RangeCursor(new ArrayList<>(), 0, 0);
+        when(metricsDao.getFromMemory(Tier.RAW, (byte) 1, FROM, TO)).thenReturn(Optional.of(cursor));
+
+        assertSame(cursor, dao.getMetricCursor((byte) 1, FROM, TO, Duration.ZERO));
+        verify(metricsDao, times(0)).getMetricCursors(eq(Tier.RAW), any(), any(), any());
+    }
+
+    @Test
+    public void testNotCachingWhenDisabled()
+    {
+        config.getMetricsConfig().setCacheCapacity(0);
+
+        dao.getMetricCursor((byte) 1, FROM, TO, Duration.ZERO);
+        dao.getMetricCursor((byte) 1, FROM, TO, Duration.ZERO);
+
+        verify(metricsDao, times(2)).getMetricCursors(eq(Tier.RAW), eq(singletonList((byte) 1)), eq(FROM), eq(TO));
+        assertEquals(0, dao.getWeight());
+    }
+
+    @Test
+    public void testEvictingLeastRecentlyUsedBuckets()
+    {
+        config.getMetricsConfig().setCacheCapacity(4);
+        LocalDateTime first = LocalDateTime.of(2017, 6, 1, 1, 0);
+        LocalDateTime second = LocalDateTime.of(2017, 6, 1, 5, 0);
+
+        dao.getMetricCursor((byte) 1, first, first.plusMinutes(59), Duration.ZERO);
+        dao.getMetricCursor((byte) 1, second, second.plusMinutes(59), Duration.ZERO);
+        assertEquals(4, dao.getWeight());
+        dao.getMetricCursor((byte) 1, first, first.plusMinutes(59), Duration.ZERO);
+        dao.getMetricCursor((byte) 1, LocalDateTime.of(2017, 6, 1, 2, 0), LocalDateTime.of(2017, 6, 1, 2, 59), Duration.ZERO);
+        assertEquals(3, dao.getWeight());
+        dao.getMetricCursor((byte) 1, first, first.plusMinutes(59), Duration.ZERO);
+        dao.getMetricCursor((byte) 1, second, second.plusMinutes(59), Duration.ZERO);
+
+        verify(metricsDao, times(1)).getMetricCursors(eq(Tier.RAW), any(), eq(first), any());
+        verify(metricsDao, times(2)).getMetricCursors(eq(Tier.RAW), any(), eq(second), any());
+    }
+
+    @Test
+    public void testEvictingBucketsWhenMetricIsSavedLate()
+    {
+        dao.getMetricCursors(singletonList((byte) 1), FROM, TO, Duration.ZERO);
+        dao.save((byte) 1, 7.0, toMillis(NOW.minusSeconds(30)));
+        dao.save((byte) 2, 7.0, toMillis(LocalDateTime.of(2017, 6, 1, 2, 30)));
+        dao.getMetricCursors(singletonList((byte) 1), FROM, TO, Duration.ZERO);
+        verify(metricsDao, times(1)).getMetricCursors(eq(Tier.RAW), any(), any(), any());
+
+        add(1, LocalDateTime.of(2017, 6, 1, 2, 30), 7.0);
+        dao.save((byte) 1, 7.0, toMillis(LocalDateTime.of(2017, 6, 1, 2, 30)));
+
+        assertEquals(asList(1.0, 7.0, 2.0), values(dao.getMetricCursor((byte) 1, FROM, TO, Duration.ZERO)));
+        verify(metricsDao).getMetricCursors(eq(Tier.RAW), eq(nodeIds(1)), eq(LocalDateTime.of(2017, 6, 1, 2, 0)), any());
+        verify(metricsDao).save((byte) 1, 7.0, toMillis(LocalDateTime.of(2017, 6, 1, 2, 30)));
+    }
+
+    @Test
+    public void testNotCachingBucketsWithUnwrittenMetrics()
+    {
+        when(metricsDao.getOldestUnwrittenTime()).thenReturn(toMillis(LocalDateTime.of(2017, 6, 1, 2, 30)));
+        LocalDateTime closedUntil = LocalDateTime.of(2017, 6, 1, 2, 0);
+
+        dao.getMetricCursor((byte) 1, FROM, TO, Duration.ZERO);
+        add(1, LocalDateTime.of(2017, 6, 1, 2, 30), 7.0);
+        when(metricsDao.getOldestUnwrittenTime()).thenReturn(Long.MAX_VALUE);
+
+        assertEquals(asList(1.0, 7.0, 2.0), values(dao.getMetricCursor((byte) 1, FROM, TO, Duration.ZERO)));
+        verify(metricsDao, times(1)).getMetricCursors(eq(Tier.RAW), any(), eq(FROM), any());
+        verify(metricsDao).getMetricCursors(eq(Tier.RAW), eq(nodeIds(1)), eq(closedUntil), eq(TO));
+        verify(metricsDao).getMetricCursors(eq(Tier.RAW), eq(nodeIds(1)), eq(closedUntil), eq(LocalDateTime.of(2017, 6, 1, 6, 59, 59, 999_000_000)));
+    }
+
+    @Test
+    public void testEvictingBucketsWhenSpooledMetricsAreReplayed() throws Exception
+    {
+        Spool spool = new Spool(influx, configService);
+        spool.open(folder.getRoot().toPath());
+        when(metricsDao.getOldestUnwrittenTime()).thenAnswer(invocation -> spool.getOldestTime());
+        doAnswer(invocation ->
+        {
+            add(1, LocalDateTime.of(2017, 6, 1, 2, 30), 7.0);
+            return null;
+        }).when(influx).write(eq(InfluxUtils.DATABASE_NAME), eq(InfluxUtils.RETENTION_POLICY_RAW), eq(ConsistencyLevel.ONE), anyList());
+        dao = new CachingMetricsDao(metricsDao, rollups, spool, configService, () -> toMillis(NOW));
+
+        // A bucket that is cached before a metric of its time is spooled, which happens when the metric is saved late while the database is down
+        dao.getMetricCursor((byte) 1, FROM, TO, Duration.ZERO);
+        spool.append(singletonList(Point.measurement("metric")
+                .time(toMillis(LocalDateTime.of(2017, 6, 1, 2, 30)), TimeUnit.MILLISECONDS)
+                .tag("nodeId", "1")
+                .addField("value", 7.0)
+                .build()));
+        assertEquals(asList(1.0, 2.0), values(dao.getMetricCursor((byte) 1, FROM, TO, Duration.ZERO)));
+
+        spool.replay();
+
+        assertEquals(asList(1.0, 7.0, 2.0), values(dao.getMetricCursor((byte) 1, FROM, TO, Duration.ZERO)));
+        assertEquals(asList(1.0, 7.0, 2.0), values(dao.getMetricCursor((byte) 1, FROM, TO, Duration.ZERO)));
+        // Read live while the metric was spooled, and cached again once it was replayed
+        verify(metricsDao, times(2)).getMetricCursors(eq(Tier.RAW), any(), eq(LocalDateTime.of(2017, 6, 1, 2, 0)), any());
+    }
+
+    @Test
+    public void testReadingBucketOnlyOnceForConcurrentCallers() throws Exception
+    {
+        CountDownLatch reading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        doAnswer(invocation ->
+        {
+            reading.countDown();
+            assertTrue(release.await(10, TimeUnit.SECONDS));
+            return query(invocation);
+        }).when(metricsDao).getMetricCursors(eq(Tier.RAW), any(), any(), any());
+
+        List<List<Double>> results = new ArrayList<>();
+        Thread first = new Thread(() -> results.add(values(dao.getMetricCursor((byte) 1, FROM, TO, Duration.ZERO))));
+        first.start();
+        assertTrue(reading.await(10, TimeUnit.SECONDS));
+
+        Thread second = new Thread(() -> results.add(values(dao.getMetricCursor((byte) 1, FROM, TO, Duration.ZERO))));
+        second.start();
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (second.getState() != Thread.State.WAITING && System.currentTimeMillis() < deadline)
+        {
+            Thread.yield();
+        }
+        release.countDown();
+        first.join();
+        second.join();
+
+        assertEquals(asList(asList(1.0, 2.0), asList(1.0, 2.0)), results);
+        verify(metricsDao, times(1)).getMetricCursors(eq(Tier.RAW), any(), any(), any());
+    }
+
+    private void add(int nodeId, LocalDateTime time, double value)
+    {
+        database.computeIfAbsent((byte) nodeId, key -> new TreeMap<>()).put(toMillis(time), value);
+    }
+
+    private Map<Byte, IMetricCursor> query(InvocationOnMock invocation)
+    {
+        Collection<Byte> nodeIds = invocation.getArgument(1);
+        long from = toMillis(invocation.getArgument(2));
+        long to = toMillis(invocation.getArgument(3));
+
+        Map<Byte, IMetricCursor> cursors = new HashMap<>();
+        for (byte nodeId : nodeIds)
+        {
+            NavigableMap<Long, Double> metrics = database.getOrDefault(nodeId, new TreeMap<>()).subMap(from, true, to, true);
+            cursors.put(nodeId, new RangeCursor(singletonList(new MapCursor(metrics)), from, to));
+        }
+        return cursors;
+    }
+
+    private static Map<Byte, List<Double>> values(Map<Byte, IMetricCursor> cursors)
+    {
+        Map<Byte, List<Double>> values = new HashMap<>();
+        cursors.forEach((nodeId, cursor) -> values.put(nodeId, values(cursor)));
+        return values;
+    }
+
+    private static List<Double> values(IMetricCursor cursor)
+    {
+        List<Double> values = new ArrayList<>();
+        while (cursor.next())
+        {
+            values.add(cursor.getValue());
+        }
+        return values;
+    }
+
+    private static Set<Byte> nodeIds(int... nodeIds)
+    {
+        Set<Byte> set = new LinkedHashSet<>();
+        for (int nodeId : nodeIds)
+        {
+            set.add((byte) nodeId);
+        }
+        return set;
+    }
+
+    private static long toMillis(LocalDateTime time)
+    {
+        return time.toInstant(UTC).toEpochMilli();
+    }
+
+    /**
+     * Iterates over the metrics of a map, from time to value.
+     */
+    private static final class MapCursor implements IMetricCursor
+    {
+        private final Iterator<Map.Entry<Long, Double>> iterator;
+        private Map.Entry<Long, Double> current;
+
+        private MapCursor(Map<Long, Double> metrics)
+        {
+            this.iterator = new ArrayList<>(metrics.entrySet()).iterator();
+        }
+
+        @Override
+        public boolean next()
+        {
+            current = iterator.hasNext() ? iterator.next() : null;
+            return current != null;
+        }
+
+        @Override
+        public long getTime()
+        {
+            return current.getKey();
+        }
+
+        @Override
+        public double getValue()
+        {
+            return current.getValue();
+        }
+    }
+}
@@ -0,0 +1,196 @@
+/**
+ * Copyright 2017 Anton Johansson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anton.ehome.dao;
+
+import static java.util.Arrays.asList;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.influxdb.InfluxDBException;
+import org.influxdb.dto.QueryResult;
+import org.junit.Test;
+
+import com.anton.ehome.common.AbstractTest;
+
+import okhttp3.OkHttpClient;
+
+/**
+ * Unit tests of {@link ChunkedReader}.
+ */
+public class ChunkedReaderTest extends AbstractTest
+{
+    private static final String QUERY = "SELECT time, value FROM metric";
+
+    private final List<String> queries = new ArrayList<>();
+    private final CountDownLatch responded = new CountDownLatch(1);
+    private Server server;
+    private ChunkedReader reader;
+    private volatile Responder responder;
+
+    @Override
+    protected void initMocks() throws Exception
+    {
+        server = new Server(0);
+        server.setHandler(new AbstractHandler()
+        {
+            @Override
+            public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException
+            {
+                baseRequest.setHandled(true);
+                queries.add(target + "?" + request.getQueryString());
+                try
+                {
+                    responder.respond(response);
+                }
+                finally
+                {
+                    responded.countDown();
+                }
+            }
+        });
+        server.start();
+
+        Properties properties = new Properties();
+        properties.setProperty("ehome.influx.url", "http://localhost:" + ((ServerConnector) server.getConnectors()[0]).getLocalPort());
+        reader = new ChunkedReader(new OkHttpClient(), new InfluxSettings(properties));
+    }
+
+    @Override
+    public void tearDown() throws Exception
+    {
+        server.stop();
+    }
+
+    @Test
+    public void testReadingChunks()
+    {
+        responder = response -> response.getWriter()
+                .append(chunk(1000, 2000)).append("\n")
+                .append(chunk(3000)).append("\n");
+
+        List<Integer> sizes = new ArrayList<>();
+        reader.select(QUERY, 2, chunk -> sizes.add(chunk.getResults().get(0).getSeries().get(0).getValues().size()));
+
+        assertEquals(asList(2, 1), sizes);
+        assertEquals(asList("/query?u=root&p=root&db=e-home&q=SELECT%20time,%20value%20FROM%20metric&chunked=true&chunk_size=2"), queries);
+    }
+
+    @Test
+    public void testFailingOnHttpError()
+    {
+        responder = response ->
+        {
+            response.setStatus(400);
+            response.getWriter().append("{\"error\":\"error parsing query: found EOF, expected FROM\"}");
+        };
+
+        try
+        {
+            reader.select(QUERY, 2, chunk -> true);
+            fail("Expected an exception");
+        }
+        catch (InfluxDBException e)
+        {
+            assertEquals("error parsing query: found EOF, expected FROM", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testFailingWhenDatabaseIsUnreachable() throws Exception
+    {
+        server.stop();
+
+        try
+        {
+            reader.select(QUERY, 2, chunk -> true);
+            fail("Expected an exception");
+        }
+        catch (InfluxDBException e)
+        {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+    }
+
+    @Test
+    public void testFailingOnErrorInChunk()
+    {
+        responder = response -> response.getWriter()
+                .append(chunk(1000)).append("\n")
+                .append("{\"results\":[{\"statement_id\":0,\"error\":\"timeout\"}]}").append("\n");
+
+        List<QueryResult> chunks = new ArrayList<>();
+        try
+        {
+            reader.select(QUERY, 2, chunks::add);
+            fail("Expected an exception");
+        }
+        catch (InfluxDBException e)
+        {
+            assertEquals("timeout", e.getMessage());
+            assertEquals(1, chunks.size());
+        }
+    }
+
+    @Test
+    public void testStoppingEarlyClosesTheResponse() throws Exception
+    {
+        responder = response ->
+        {
+            PrintWriter writer = response.getWriter();
+            for (int i = 0; i < 1_000_000 && !writer.checkError(); i++)
+            {
+                writer.append(chunk(i)).append("\n").flush();
+            }
+        };
+
+        List<QueryResult> chunks = new ArrayList<>();
+        reader.select(QUERY, 1, chunk -> chunks.add(chunk) && chunks.size() < 2);
+
+        assertEquals(2, chunks.size());
+        assertTrue(responded.await(10, SECONDS));
+    }
+
+    private static String chunk(long... times)
+    {
+        StringBuilder values = new StringBuilder();
+        for (long time : times)
+        {
+            values.append(values.length() == 0 ? "" : ",").append("[").append(time).append(",1.0]");
+        }
+        return "{\"results\":[{\"statement_id\":0,\"series\":[{\"name\":\"metric\",\"columns\":[\"time\",\"value\"],\"values\":[" + values + "]}]}]}";
+    }
+
+    /**
+     * Writes the response of the fake database.
+     */
+    private interface Responder
+    {
+        void respond(HttpServletResponse response) throws IOException;
+    }
+}
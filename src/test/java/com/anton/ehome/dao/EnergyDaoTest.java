@@ -0,0 +1,85 @@
+/**
+ * Copyright 2017 Anton Johansson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anton.ehome.dao;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static org.mockito.Mockito.verify;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.influxdb.InfluxDB;
+import org.influxdb.dto.Point;
+import org.influxdb.dto.Query;
+import org.influxdb.dto.QueryResult;
+import org.influxdb.dto.QueryResult.Result;
+import org.influxdb.dto.QueryResult.Series;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+
+import com.anton.ehome.common.AbstractTest;
+import com.anton.ehome.domain.EnergyPeriod;
+
+/**
+ * Unit tests of {@link EnergyDao}.
+ */
+public class EnergyDaoTest extends AbstractTest
+{
+    private @Mock InfluxDB influx;
+    private EnergyDao dao;
+
+    @Override
+    protected void initMocks() throws Exception
+    {
+        dao = new EnergyDao(influx);
+    }
+
+    @Test
+    public void testSavingEnergy()
+    {
+        dao.saveEnergy((byte) 3, EnergyPeriod.DAY, 1520982000000L, 1.5);
+
+        ArgumentCaptor<Point> point = ArgumentCaptor.forClass(Point.class);
+        verify(influx).write(eq("e-home"), eq(null), point.capture());
+        assertEquals("energy,nodeId=3,period=day value=1.5 1520982000000000000", point.getValue().lineProtocol());
+    }
+
+    @Test
+    public void testGettingEnergy()
+    {
+        Series series = new Series();
+        series.setName("energy");
+        series.setColumns(asList("time", "value", "nodeId"));
+        series.setValues(asList(asList("2018-03-13T23:00:00Z", 1.5, "3"), asList("2018-03-13T23:00:00Z", 0.25, "-4")));
+        Result result = new Result();
+        result.setSeries(singletonList(series));
+        QueryResult queryResult = new QueryResult();
+        queryResult.setResults(singletonList(result));
+        when(influx.query(any())).thenReturn(queryResult);
+
+        Map<Byte, Double> energy = dao.getEnergy(EnergyPeriod.MONTH, 1520982000000L);
+
+        ArgumentCaptor<Query> query = ArgumentCaptor.forClass(Query.class);
+        verify(influx).query(query.capture());
+        assertEquals("SELECT value, nodeId FROM \"e-home\"..energy WHERE period = 'month' AND time = '2018-03-13T23:00:00Z'", query.getValue().getCommand());
+        Map<Byte, Double> expected = new HashMap<>();
+        expected.put((byte) 3, 1.5);
+        expected.put((byte) -4, 0.25);
+        assertEquals(expected, energy);
+    }
+}
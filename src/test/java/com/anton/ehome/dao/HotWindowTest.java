@@ -0,0 +1,268 @@
+/**
+ * Copyright 2017 Anton Johansson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anton.ehome.dao;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.inOrder;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+import org.influxdb.InfluxDB;
+import org.influxdb.dto.Query;
+import org.influxdb.dto.QueryResult;
+import org.influxdb.dto.QueryResult.Result;
+import org.influxdb.dto.QueryResult.Series;
+import org.junit.Test;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+
+import com.anton.ehome.common.AbstractTest;
+import com.anton.ehome.conf.Config;
+import com.anton.ehome.conf.IConfigService;
+import com.anton.ehome.conf.ZWaveConfig;
+import com.anton.ehome.conf.ZWaveMonitoringConfig;
+
+/**
+ * Unit tests of {@link HotWindow}.
+ */
+public class HotWindowTest extends AbstractTest
+{
+    private static final long START = 1_500_000_000_000L;
+
+    private @Mock InfluxDB influx;
+    private @Mock IConfigService configService;
+    private @Mock Rollups rollups;
+    private @Mock Spool spool;
+    private Config config;
+    private HotWindow hotWindow;
+
+    @Override
+    protected void initMocks() throws Exception
+    {
+        config = new Config();
+        config.getMetricsConfig().setHotWindowCapacity(4);
+        when(configService.getCurrentConfig()).thenReturn(config);
+        when(influx.query(any())).thenReturn(new QueryResult());
+        when(rollups.awaitSetUp(anyLong(), any())).thenReturn(true);
+        hotWindow = new HotWindow(influx, configService, rollups, spool, () -> START);
+    }
+
+    @Test
+    public void testGettingMetricsSinceStartup()
+    {
+        hotWindow.add((byte) 2, START + 1000, 1.0);
+        hotWindow.add((byte) 2, START + 2000, 2.0);
+        hotWindow.add((byte) 3, START + 2000, 3.0);
+
+        assertEquals(asList(START + 1000, START + 2000), times(hotWindow.get((byte) 2, START, START + 5000)));
+        assertEquals(asList(START + 2000), times(hotWindow.get((byte) 2, START + 1500, START + 2000)));
+        assertEquals(asList(), times(hotWindow.get((byte) 4, START, START + 5000)));
+        assertEquals(asList(3.0), values(hotWindow.get((byte) 3, START, START + 5000)));
+    }
+
+    @Test
+    public void testGettingMetricsFromBeforeStartup()
+    {
+        hotWindow.add((byte) 2, START + 1000, 1.0);
+
+        assertFalse(hotWindow.get((byte) 2, START - 1, START + 5000).isPresent());
+        assertFalse(hotWindow.get((byte) 4, START - 1, START + 5000).isPresent());
+    }
+
+    @Test
+    public void testAddingMetricsOutOfOrder()
+    {
+        hotWindow.add((byte) 2, START + 3000, 3.0);
+        hotWindow.add((byte) 2, START + 1000, 1.0);
+        hotWindow.add((byte) 2, START + 2000, 2.0);
+
+        assertEquals(asList(START + 1000, START + 2000, START + 3000), times(hotWindow.get((byte) 2, START, START + 5000)));
+    }
+
+    @Test
+    public void testMovingEvictedMetricsToHistory()
+    {
+        for (int i = 1; i <= 1000; i++)
+        {
+            hotWindow.add((byte) 2, START + i * 1000, i % 10);
+        }
+
+        assertEquals(MetricBlock.SIZE, hotWindow.getHistorySize());
+        List<Long> times = times(hotWindow.get((byte) 2, START, START + 2_000_000));
+        assertEquals(1000, times.size());
+        assertEquals(START + 1000, (long) times.get(0));
+        assertEquals(asList(START + 499_000, START + 500_000, START + 501_000), times(hotWindow.get((byte) 2, START + 498_500, START + 501_000)));
+        assertEquals(asList(9.0, 0.0), values(hotWindow.get((byte) 2, START + 998_500, START + 1_001_000)));
+    }
+
+    @Test
+    public void testReleasingOldestHistoryWhenBudgetIsUsedUp()
+    {
+        config.getMetricsConfig().setHotWindowHistorySize(MetricBlock.SIZE);
+        for (int i = 1; i <= 10_000; i++)
+        {
+            hotWindow.add((byte) 2, START + i * 1000, Math.sin(i));
+        }
+
+        assertEquals(MetricBlock.SIZE, hotWindow.getHistorySize());
+        assertFalse(hotWindow.get((byte) 2, START, START + 20_000_000).isPresent());
+        assertFalse(hotWindow.get((byte) 2, START + 5_000_000, START + 20_000_000).isPresent());
+        assertEquals(11, times(hotWindow.get((byte) 2, START + 9_990_000, START + 20_000_000)).size());
+    }
+
+    @Test
+    public void testEvictingOldestMetricsWithoutHistory()
+    {
+        config.getMetricsConfig().setHotWindowHistorySize(0);
+        for (int i = 1; i <= 6; i++)
+        {
+            hotWindow.add((byte) 2, START + i * 1000, i);
+        }
+
+        assertFalse(hotWindow.get((byte) 2, START, START + 10_000).isPresent());
+        assertFalse(hotWindow.get((byte) 2, START + 2000, START + 10_000).isPresent());
+        assertEquals(asList(START + 3000, START + 4000, START + 5000, START + 6000), times(hotWindow.get((byte) 2, START + 2001, START + 10_000)));
+    }
+
+    @Test
+    public void testWarming()
+    {
+        monitor((byte) 2);
+        when(influx.query(new Query("SELECT time, value FROM \"e-home\".\"raw\".metric WHERE nodeId = 2"
+            + " AND time >= 1499956800000ms AND time < 1500000000000ms", "e-home"))).thenReturn(result(START - 2000, START - 1000));
+        hotWindow.add((byte) 2, START + 1000, 1.0);
+
+        hotWindow.warm();
+
+        assertEquals(asList(START - 2000, START - 1000, START + 1000), times(hotWindow.get((byte) 2, START - 12 * 3_600_000L, START + 5000)));
+        assertFalse(hotWindow.get((byte) 2, START - 12 * 3_600_000L - 1, START + 5000).isPresent());
+    }
+
+    @Test
+    public void testWarmingAfterTiersAreSetUp() throws Exception
+    {
+        monitor((byte) 2);
+
+        hotWindow.warm();
+
+        InOrder inOrder = inOrder(rollups, influx);
+        inOrder.verify(rollups).awaitSetUp(5, MINUTES);
+        inOrder.verify(influx).query(any());
+    }
+
+    @Test
+    public void testWarmingAfterSpooledMetricsAreReplayed() throws Exception
+    {
+        monitor((byte) 2);
+        when(spool.isRecovering()).thenReturn(true, true, false);
+
+        hotWindow.warm();
+
+        InOrder inOrder = inOrder(spool, influx);
+        inOrder.verify(spool, Mockito.times(3)).isRecovering();
+        inOrder.verify(influx).query(any());
+    }
+
+    @Test
+    public void testWarmingWithMoreMetricsThanCapacity()
+    {
+        config.getMetricsConfig().setHotWindowHistorySize(0);
+        monitor((byte) 2);
+        when(influx.query(any())).thenReturn(result(START - 4000, START - 3000, START - 2000, START - 1000));
+        hotWindow.add((byte) 2, START + 1000, 1.0);
+
+        hotWindow.warm();
+
+        assertFalse(hotWindow.get((byte) 2, START - 4000, START + 5000).isPresent());
+        assertEquals(asList(START - 3000, START - 2000, START - 1000, START + 1000), times(hotWindow.get((byte) 2, START - 3999, START + 5000)));
+    }
+
+    @Test
+    public void testWarmingHistoryWithMoreMetricsThanCapacity()
+    {
+        monitor((byte) 2);
+        when(influx.query(any())).thenReturn(result(START - 4000, START - 3000, START - 2000, START - 1000));
+        hotWindow.add((byte) 2, START + 1000, 1.0);
+
+        hotWindow.warm();
+
+        assertEquals(asList(START - 4000, START - 3000, START - 2000, START - 1000, START + 1000),
+                times(hotWindow.get((byte) 2, START - 12 * 3_600_000L, START + 5000)));
+    }
+
+    @Test
+    public void testDisabled()
+    {
+        config.getMetricsConfig().setHotWindowCapacity(0);
+        hotWindow.add((byte) 2, START + 1000, 1.0);
+
+        assertFalse(hotWindow.get((byte) 2, START, START + 5000).isPresent());
+    }
+
+    private void monitor(byte nodeId)
+    {
+        ZWaveMonitoringConfig monitoringConfig = new ZWaveMonitoringConfig();
+        monitoringConfig.setNodeId(nodeId);
+        ZWaveConfig zwaveConfig = new ZWaveConfig();
+        zwaveConfig.getMonitoringValues().add(monitoringConfig);
+        config.setZwaveConfigs(singletonList(zwaveConfig));
+    }
+
+    private QueryResult result(long... times)
+    {
+        List<List<Object>> values = new ArrayList<>();
+        for (long time : times)
+        {
+            values.add(asList(Instant.ofEpochMilli(time).toString(), 1.0));
+        }
+        Series series = new Series();
+        series.setName("metric");
+        series.setColumns(asList("time", "value"));
+        series.setValues(values);
+        Result result = new Result();
+        result.setSeries(singletonList(series));
+        QueryResult queryResult = new QueryResult();
+        queryResult.setResults(singletonList(result));
+        return queryResult;
+    }
+
+    private List<Long> times(Optional<IMetricCursor> cursor)
+    {
+        List<Long> times = new ArrayList<>();
+        while (cursor.get().next())
+        {
+            times.add(cursor.get().getTime());
+        }
+        return times;
+    }
+
+    private List<Double> values(Optional<IMetricCursor> cursor)
+    {
+        List<Double> values = new ArrayList<>();
+        while (cursor.get().next())
+        {
+            values.add(cursor.get().getValue());
+        }
+        return values;
+    }
+}
@@ -0,0 +1,159 @@
+/**
+ * Copyright 2017 Anton Johansson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anton.ehome.dao;
+
+import static com.anton.ehome.dao.InfluxUtils.DATABASE_NAME;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.io.IOException;
+import java.util.Properties;
+
+import org.influxdb.InfluxDB;
+import org.influxdb.InfluxDBIOException;
+import org.influxdb.dto.Pong;
+import org.junit.Test;
+import org.mockito.Mock;
+
+import com.anton.ehome.common.AbstractTest;
+
+import okhttp3.OkHttpClient;
+
+/**
+ * Unit tests of {@link InfluxConnection}.
+ */
+public class InfluxConnectionTest extends AbstractTest
+{
+    private final Properties properties = new Properties();
+    private @Mock InfluxDB influx;
+    private InfluxConnection connection;
+
+    @Override
+    protected void initMocks() throws Exception
+    {
+        Pong pong = new Pong();
+        pong.setVersion("1.4.2");
+        when(influx.ping()).thenReturn(pong);
+        connection = connection();
+    }
+
+    @Override
+    public void tearDown() throws Exception
+    {
+        connection.stop();
+    }
+
+    @Test
+    public void testSettings()
+    {
+        InfluxSettings settings = new InfluxSettings(properties);
+        assertEquals("http://127.0.0.1:8086", settings.getUrl());
+        assertEquals(5, settings.getMaxIdleConnections());
+        assertEquals(300, settings.getKeepAlive());
+        assertTrue(settings.isGzip());
+        assertEquals(10, settings.getStartupTimeout());
+
+        properties.setProperty("ehome.influx.url", "http://influxdb:8086");
+        properties.setProperty("ehome.influx.maxIdleConnections", "10");
+        properties.setProperty("ehome.influx.gzip", "false");
+        settings = new InfluxSettings(properties);
+        assertEquals("http://influxdb:8086", settings.getUrl());
+        assertEquals(10, settings.getMaxIdleConnections());
+        assertFalse(settings.isGzip());
+    }
+
+    @Test
+    public void testPreparingDatabaseOnlyOnFirstCheck()
+    {
+        assertEquals(30_000, connection.check());
+        assertEquals(30_000, connection.check());
+
+        verify(influx, times(2)).ping();
+        verify(influx).createDatabase(DATABASE_NAME);
+        verify(influx, times(4)).createRetentionPolicy(anyString(), eq(DATABASE_NAME), anyString(), anyInt(), anyBoolean());
+    }
+
+    @Test
+    public void testBackingOffWhileUnreachable()
+    {
+        properties.setProperty("ehome.influx.maxReconnectDelay", "5");
+        connection = connection();
+        doThrow(new InfluxDBIOException(new IOException("Connection refused"))).when(influx).ping();
+
+        assertEquals(1000, connection.check());
+        assertEquals(2000, connection.check());
+        assertEquals(4000, connection.check());
+        assertEquals(5000, connection.check());
+        assertEquals(5000, connection.check());
+        verify(influx, never()).createDatabase(anyString());
+    }
+
+    @Test
+    public void testPreparingDatabaseAgainAfterReconnecting()
+    {
+        Pong pong = new Pong();
+        doReturn(pong).doThrow(new InfluxDBIOException(new IOException("Connection reset"))).doReturn(pong).when(influx).ping();
+
+        assertEquals(30_000, connection.check());
+        assertEquals(1000, connection.check());
+        assertEquals(30_000, connection.check());
+        assertEquals(30_000, connection.check());
+
+        verify(influx, times(2)).createDatabase(DATABASE_NAME);
+    }
+
+    @Test
+    public void testRetryingWhenDatabaseCannotBePrepared()
+    {
+        doThrow(new InfluxDBIOException(new IOException("Connection reset"))).doNothing().when(influx).createDatabase(DATABASE_NAME);
+
+        assertEquals(1000, connection.check());
+        assertEquals(30_000, connection.check());
+        assertEquals(30_000, connection.check());
+
+        verify(influx, times(2)).createDatabase(DATABASE_NAME);
+    }
+
+    @Test
+    public void testNotWaitingForUnreachableDatabaseLongerThanStartupTimeout()
+    {
+        properties.setProperty("ehome.influx.startupTimeout", "0");
+        connection = connection();
+        doThrow(new InfluxDBIOException(new IOException("Connection refused"))).when(influx).ping();
+
+        assertSame(influx, connection.getClient());
+        verify(influx, never()).createDatabase(anyString());
+    }
+
+    @Test
+    public void testWaitingForDatabaseAtStartup()
+    {
+        assertSame(influx, connection.getClient());
+        verify(influx, atLeastOnce()).createDatabase(DATABASE_NAME);
+    }
+
+    private InfluxConnection connection()
+    {
+        return new InfluxConnection(new InfluxSettings(properties), new OkHttpClient(), influx);
+    }
+}
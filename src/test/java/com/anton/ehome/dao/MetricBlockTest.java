@@ -0,0 +1,103 @@
+/**
+ * Copyright 2017 Anton Johansson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anton.ehome.dao;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.anton.ehome.common.AbstractTest;
+
+/**
+ * Unit tests of {@link MetricBlock}.
+ */
+public class MetricBlockTest extends AbstractTest
+{
+    private static final long START = 1_500_000_000_000L;
+
+    @Test
+    public void testReadingAppendedMetrics()
+    {
+        Random random = new Random(1);
+        long[] times = new long[200];
+        double[] values = new double[200];
+        long time = START;
+        for (int i = 0; i < times.length; i++)
+        {
+            time += random.nextInt(5) == 0 ? random.nextInt(100_000) : 10_000 + random.nextInt(50) - 25;
+            times[i] = time;
+            values[i] = i % 3 == 0 ? random.nextGaussian() * 1000 : Math.round(random.nextDouble() * 100) / 10.0;
+        }
+        values[10] = Double.NaN;
+        values[11] = Double.NEGATIVE_INFINITY;
+        values[12] = 0;
+        times[13] = times[12];
+
+        MetricBlock block = new MetricBlock();
+        for (int i = 0; i < times.length; i++)
+        {
+            assertTrue(block.append(times[i], values[i]));
+        }
+
+        IMetricCursor cursor = block.cursor();
+        for (int i = 0; i < times.length; i++)
+        {
+            assertTrue(cursor.next());
+            assertEquals(times[i], cursor.getTime());
+            assertEquals(Double.doubleToRawLongBits(values[i]), Double.doubleToRawLongBits(cursor.getValue()));
+        }
+        assertFalse(cursor.next());
+        assertEquals(START + 0, block.getFirstTime() - (times[0] - START));
+        assertEquals(times[times.length - 1], block.getLastTime());
+    }
+
+    @Test
+    public void testCompressingRegularMetrics()
+    {
+        MetricBlock block = new MetricBlock();
+        int count = 0;
+        while (block.append(START + count * 10_000L, 20.0 + (count / 30) * 0.5))
+        {
+            count++;
+        }
+
+        assertEquals(count, block.getCount());
+        assertTrue("Only " + count + " metrics fit", count > MetricBlock.SIZE / 2);
+    }
+
+    @Test
+    public void testCursorOnlySeesMetricsAppendedBeforeItWasCreated()
+    {
+        MetricBlock block = new MetricBlock();
+        block.append(START, 1.0);
+        block.append(START + 1000, 2.0);
+        IMetricCursor cursor = block.cursor();
+        block.append(START + 2000, 3.0);
+
+        assertTrue(cursor.next());
+        assertTrue(cursor.next());
+        assertEquals(2.0, cursor.getValue(), 0);
+        assertFalse(cursor.next());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testAppendingOutOfOrder()
+    {
+        MetricBlock block = new MetricBlock();
+        block.append(START, 1.0);
+        block.append(START - 1, 2.0);
+    }
+}
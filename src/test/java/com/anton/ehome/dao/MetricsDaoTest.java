@@ -0,0 +1,347 @@
+/**
+ * Copyright 2017 Anton Johansson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anton.ehome.dao;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static java.util.Collections.singletonMap;
+import static org.mockito.ArgumentMatchers.anyByte;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.verify;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongConsumer;
+import java.util.function.Predicate;
+
+import org.influxdb.InfluxDB;
+import org.influxdb.InfluxDBMapperException;
+import org.influxdb.dto.Query;
+import org.influxdb.dto.QueryResult;
+import org.influxdb.dto.QueryResult.Result;
+import org.influxdb.dto.QueryResult.Series;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+
+import com.anton.ehome.common.AbstractTest;
+import com.anton.ehome.dao.Rollups.Tier;
+
+/**
+ * Unit tests of {@link MetricsDao}.
+ */
+public class MetricsDaoTest extends AbstractTest
+{
+    private static final LocalDateTime FROM = LocalDateTime.of(2017, 6, 1, 0, 0);
+    private static final LocalDateTime TO = LocalDateTime.of(2017, 6, 2, 0, 0);
+
+    private @Mock InfluxDB influx;
+    private @Mock BatchWriter writer;
+    private @Mock Rollups rollups;
+    private @Mock HotWindow hotWindow;
+    private @Mock ChunkedReader chunkedReader;
+    private MetricsDao dao;
+
+    @Override
+    protected void initMocks() throws Exception
+    {
+        when(rollups.select(any(), any())).thenReturn(Tier.RAW);
+        when(hotWindow.get(anyByte(), anyLong(), anyLong())).thenReturn(Optional.empty());
+        dao = new MetricsDao(influx, writer, rollups, hotWindow, chunkedReader);
+    }
+
+    @Test
+    public void testGettingLastSaveTime()
+    {
+        assertEquals(0, dao.getLastSaveTime((byte) 2));
+
+        long before = System.currentTimeMillis();
+        dao.save((byte) 2, 1.0);
+        long first = dao.getLastSaveTime((byte) 2);
+        dao.save((byte) 2, 2.0);
+        long second = dao.getLastSaveTime((byte) 2);
+        dao.save((byte) -2, 3.0);
+
+        assertTrue(first >= before);
+        assertTrue(second > first);
+        assertEquals(second, dao.getLastSaveTime((byte) 2));
+        assertTrue(dao.getLastSaveTime((byte) -2) > second);
+        assertEquals(0, dao.getLastSaveTime((byte) 3));
+    }
+
+    @Test
+    public void testGettingVersionWhenSavedMetricsAreWritten()
+    {
+        ArgumentCaptor<LongConsumer> written = ArgumentCaptor.forClass(LongConsumer.class);
+        verify(writer).onWritten(written.capture());
+
+        dao.save((byte) 2, 1.0);
+        long saveTime = dao.getLastSaveTime((byte) 2);
+        assertEquals(0, dao.getVersion((byte) 2, FROM, Duration.ZERO));
+
+        written.getValue().accept(saveTime);
+        assertEquals(0, dao.getVersion((byte) 2, FROM, Duration.ZERO));
+
+        written.getValue().accept(saveTime + 1);
+        assertEquals(saveTime, dao.getVersion((byte) 2, FROM, Duration.ZERO));
+        assertEquals(0, dao.getVersion((byte) 3, FROM, Duration.ZERO));
+
+        // The minute rollup doesn't have the metric until its continuous query has run
+        when(rollups.select(any(), any())).thenReturn(Tier.MINUTE);
+        assertEquals(0, dao.getVersion((byte) 2, FROM, Duration.ofMinutes(1)));
+    }
+
+    @Test(expected = InfluxDBMapperException.class)
+    public void testGettingMetricsWhenQueryFails()
+    {
+        QueryResult result = chunk();
+        result.getResults().get(0).setError("database not found: e-home");
+        when(influx.query(any())).thenReturn(result);
+
+        dao.getMetricCursor((byte) 2, FROM, TO, Duration.ZERO);
+    }
+
+    @Test
+    public void testGettingMetricsOfSeveralNodesInOneQuery()
+    {
+        QueryResult result = chunk(1000, 2000);
+        Series other = series(3000);
+        result.getResults().get(0).getSeries().get(0).setTags(singletonMap("nodeId", "2"));
+        other.setTags(singletonMap("nodeId", "3"));
+        result.getResults().get(0).setSeries(asList(result.getResults().get(0).getSeries().get(0), other));
+        when(influx.query(any())).thenReturn(result);
+
+        Map<Byte, IMetricCursor> cursors = dao.getMetricCursors(asList((byte) 2, (byte) 3, (byte) 4), FROM, TO, Duration.ZERO);
+
+        ArgumentCaptor<Query> query = ArgumentCaptor.forClass(Query.class);
+        verify(influx).query(query.capture());
+        assertTrue(query.getValue().getCommand().contains("nodeId::tag =~ /^(2|3|4)$/"));
+        assertTrue(query.getValue().getCommand().endsWith("GROUP BY nodeId"));
+        assertEquals(asList(1000L, 2000L), times(cursors.get((byte) 2)));
+        assertEquals(asList(3000L), times(cursors.get((byte) 3)));
+        assertEquals(asList(), times(cursors.get((byte) 4)));
+    }
+
+    @Test(expected = InfluxDBMapperException.class)
+    public void testGettingMetricsOfSeveralNodesWhenQueryFails()
+    {
+        QueryResult result = chunk();
+        result.getResults().get(0).setError("timeout");
+        when(influx.query(any())).thenReturn(result);
+
+        dao.getMetricCursors(asList((byte) 2, (byte) 3), FROM, TO, Duration.ZERO);
+    }
+
+    @Test(expected = InfluxDBMapperException.class)
+    public void testAggregatingWhenQueryFails()
+    {
+        QueryResult result = new QueryResult();
+        result.setError("error parsing query");
+        when(influx.query(any())).thenReturn(result);
+
+        dao.getAggregates(asList((byte) 2), FROM, TO, Duration.ofMinutes(5), Fill.NULL, Aggregate.mean());
+    }
+
+    @Test
+    public void testGettingMetricsOfSeveralNodesFromMemory()
+    {
+        when(hotWindow.get(eq((byte) 2), anyLong(), anyLong())).thenReturn(Optional.of(new QueryResultCursor(chunk(1000))));
+        Series series = series(3000);
+        series.setTags(singletonMap("nodeId", "3"));
+        QueryResult result = chunk();
+        result.getResults().get(0).setSeries(singletonList(series));
+        when(influx.query(any())).thenReturn(result);
+
+        Map<Byte, IMetricCursor> cursors = dao.getMetricCursors(asList((byte) 2, (byte) 3), FROM, TO, Duration.ZERO);
+
+        ArgumentCaptor<Query> query = ArgumentCaptor.forClass(Query.class);
+        verify(influx).query(query.capture());
+        assertTrue(query.getValue().getCommand().contains("nodeId::tag =~ /^(3)$/"));
+        assertEquals(asList(1000L), times(cursors.get((byte) 2)));
+        assertEquals(asList(3000L), times(cursors.get((byte) 3)));
+    }
+
+    @Test
+    public void testGettingMetricsSinceTime()
+    {
+        long since = LocalDateTime.of(2017, 6, 1, 12, 0).toInstant(ZoneOffset.UTC).toEpochMilli();
+        long to = since + 60_000;
+        when(influx.query(any())).thenReturn(chunk());
+
+        dao.getMetricCursorsSince(asList((byte) 2), since, to, Duration.ZERO);
+
+        ArgumentCaptor<Query> query = ArgumentCaptor.forClass(Query.class);
+        verify(influx).query(query.capture());
+        assertTrue(query.getValue().getCommand().contains("time >= '2017-06-01T12:00:00.001Z' AND time <= '2017-06-01T12:01Z'"));
+        verify(hotWindow).get((byte) 2, since + 1, to);
+    }
+
+    @Test
+    public void testAggregatingMetrics()
+    {
+        Series series = new Series();
+        series.setColumns(asList("time", "aggregate0", "aggregate1"));
+        series.setValues(asList(asList(1000.0, 1.5, 3.0), asList(2000.0, null, null)));
+        series.setTags(singletonMap("nodeId", "2"));
+        QueryResult result = chunk();
+        result.getResults().get(0).setSeries(singletonList(series));
+        when(influx.query(any())).thenReturn(result);
+
+        Map<Byte, IAggregateCursor> cursors = dao.getAggregates(
+                asList((byte) 2, (byte) 3), FROM, TO, Duration.ofMinutes(5), Fill.NULL, Aggregate.mean(), Aggregate.percentile(95));
+
+        ArgumentCaptor<Query> query = ArgumentCaptor.forClass(Query.class);
+        verify(influx).query(query.capture());
+        assertEquals("SELECT mean(value) AS aggregate0, percentile(value, 95.0) AS aggregate1 FROM \"e-home\".\"raw\".metric"
+            + " WHERE nodeId::tag =~ /^(2|3)$/ AND time >= '2017-06-01T00:00Z' AND time <= '2017-06-02T00:00Z'"
+            + " GROUP BY time(300000ms), nodeId fill(null)", query.getValue().getCommand());
+
+        IAggregateCursor cursor = cursors.get((byte) 2);
+        assertTrue(cursor.next());
+        assertEquals(1000, cursor.getTime());
+        assertEquals(1.5, cursor.getValue(0), 0.0);
+        assertEquals(3.0, cursor.getValue(1), 0.0);
+        assertTrue(cursor.next());
+        assertEquals(2000, cursor.getTime());
+        assertTrue(Double.isNaN(cursor.getValue(0)));
+        assertFalse(cursor.next());
+        assertFalse(cursors.get((byte) 3).next());
+    }
+
+    @Test
+    public void testAggregatingRollups()
+    {
+        when(rollups.select(any(), any())).thenReturn(Tier.HOUR);
+        when(influx.query(any())).thenReturn(chunk());
+
+        dao.getAggregates(asList((byte) 2), FROM, TO, Duration.ofDays(1), Fill.NONE,
+                Aggregate.mean(), Aggregate.min(), Aggregate.max(), Aggregate.count(), Aggregate.sum(), Aggregate.integral(Duration.ofHours(1)));
+
+        ArgumentCaptor<Query> query = ArgumentCaptor.forClass(Query.class);
+        verify(influx).query(query.capture());
+        verify(rollups).select(any(), eq(Duration.ofDays(1)));
+        assertTrue(query.getValue().getCommand().startsWith("SELECT sum(sum) / sum(count) AS aggregate0, min(min) AS aggregate1, max(max) AS aggregate2,"
+            + " sum(count) AS aggregate3, sum(sum) AS aggregate4, integral(mean, 3600000ms) AS aggregate5 FROM \"e-home\".\"rollup-1h\".metric"));
+        assertTrue(query.getValue().getCommand().endsWith(" GROUP BY time(86400000ms), nodeId fill(none)"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testAggregatingWithoutStep()
+    {
+        dao.getAggregates(asList((byte) 2), FROM, TO, Duration.ZERO, Fill.NONE, Aggregate.mean());
+    }
+
+    @Test
+    public void testStreamingMetricsInChunks()
+    {
+        respondWithChunks(new AtomicInteger(), chunk(1000, 2000), chunk(3000));
+
+        List<Long> times = new ArrayList<>();
+        dao.streamMetrics((byte) 2, FROM, TO, Duration.ZERO, (time, value) -> times.add(time));
+
+        assertEquals(asList(1000L, 2000L, 3000L), times);
+        verify(chunkedReader).select(eq("SELECT time, value AS value FROM \"e-home\".\"raw\".metric WHERE nodeId = 2"
+            + " AND time >= '2017-06-01T00:00Z' AND time <= '2017-06-02T00:00Z'"), anyInt(), any());
+    }
+
+    @Test
+    public void testStreamingMetricsFromMemory()
+    {
+        when(hotWindow.get(anyByte(), anyLong(), anyLong())).thenReturn(Optional.of(new QueryResultCursor(chunk(1000, 2000))));
+
+        List<Long> times = new ArrayList<>();
+        dao.streamMetrics((byte) 2, FROM, TO, Duration.ZERO, (time, value) -> times.add(time));
+
+        assertEquals(asList(1000L, 2000L), times);
+    }
+
+    @Test
+    public void testStoppingTheStreamStopsReadingChunks()
+    {
+        QueryResult[] chunks = new QueryResult[20];
+        for (int i = 0; i < chunks.length; i++)
+        {
+            chunks[i] = chunk(i * 1000);
+        }
+        AtomicInteger read = new AtomicInteger();
+        respondWithChunks(read, chunks);
+
+        List<Long> times = new ArrayList<>();
+        dao.streamMetrics((byte) 2, FROM, TO, Duration.ZERO, (time, value) -> times.add(time) && times.size() < 2);
+
+        assertEquals(asList(0L, 1000L), times);
+        assertEquals(2, read.get());
+    }
+
+    private void respondWithChunks(AtomicInteger read, QueryResult... chunks)
+    {
+        doAnswer(invocation ->
+        {
+            Predicate<QueryResult> consumer = invocation.getArgument(2);
+            for (QueryResult chunk : chunks)
+            {
+                read.incrementAndGet();
+                if (!consumer.test(chunk))
+                {
+                    break;
+                }
+            }
+            return null;
+        }).when(chunkedReader).select(any(), anyInt(), any());
+    }
+
+    private List<Long> times(IMetricCursor cursor)
+    {
+        List<Long> times = new ArrayList<>();
+        while (cursor.next())
+        {
+            times.add(cursor.getTime());
+        }
+        return times;
+    }
+
+    private QueryResult chunk(long... times)
+    {
+        Result result = new Result();
+        result.setSeries(singletonList(series(times)));
+        QueryResult queryResult = new QueryResult();
+        queryResult.setResults(singletonList(result));
+        return queryResult;
+    }
+
+    private Series series(long... times)
+    {
+        List<List<Object>> values = new ArrayList<>();
+        for (long time : times)
+        {
+            values.add(asList(time, 1.0));
+        }
+
+        Series series = new Series();
+        series.setName("metric");
+        series.setColumns(asList("time", "value"));
+        series.setValues(values);
+        return series;
+    }
+}
@@ -0,0 +1,79 @@
+/**
+ * Copyright 2017 Anton Johansson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anton.ehome.dao;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+
+import org.junit.Test;
+
+import com.anton.ehome.common.AbstractTest;
+import com.anton.ehome.dao.Rollups.Tier;
+
+/**
+ * Unit tests of {@link ReadVersions}.
+ */
+public class ReadVersionsTest extends AbstractTest
+{
+    private final ReadVersions versions = new ReadVersions();
+
+    private long time(int hour, int minute, int second)
+    {
+        return LocalDateTime.of(2017, 6, 1, hour, minute, second).toInstant(ZoneOffset.UTC).toEpochMilli();
+    }
+
+    @Test
+    public void testGettingVersionOfRawTierWhenWritten()
+    {
+        versions.saved((byte) 2, 1000);
+        versions.saved((byte) 2, 2000);
+        assertEquals(0, versions.get((byte) 2, Tier.RAW, time(0, 0, 0)));
+
+        versions.written(1500, time(0, 0, 0));
+        assertEquals(1000, versions.get((byte) 2, Tier.RAW, time(0, 0, 0)));
+
+        versions.written(2001, time(0, 0, 1));
+        assertEquals(2000, versions.get((byte) 2, Tier.RAW, time(0, 0, 1)));
+        assertEquals(0, versions.get((byte) 3, Tier.RAW, time(0, 0, 1)));
+    }
+
+    @Test
+    public void testGettingVersionOfRollupsWhenTheirContinuousQueriesHaveRun()
+    {
+        versions.saved((byte) 2, 1000);
+        versions.written(1001, time(0, 0, 30));
+        versions.saved((byte) 2, 2000);
+        versions.written(2001, time(0, 0, 40));
+
+        assertEquals(0, versions.get((byte) 2, Tier.MINUTE, time(0, 1, 9)));
+        assertEquals(2000, versions.get((byte) 2, Tier.MINUTE, time(0, 1, 10)));
+        assertEquals(0, versions.get((byte) 2, Tier.HOUR, time(1, 0, 9)));
+        assertEquals(2000, versions.get((byte) 2, Tier.HOUR, time(1, 0, 10)));
+    }
+
+    @Test
+    public void testGettingVersionOfRollupsWhenWrittenInDifferentIntervals()
+    {
+        versions.saved((byte) 2, 1000);
+        versions.written(1001, time(0, 0, 30));
+        versions.saved((byte) 2, 2000);
+        versions.written(2001, time(0, 1, 30));
+
+        assertEquals(1000, versions.get((byte) 2, Tier.MINUTE, time(0, 1, 10)));
+        assertEquals(1000, versions.get((byte) 2, Tier.MINUTE, time(0, 2, 9)));
+        assertEquals(2000, versions.get((byte) 2, Tier.MINUTE, time(0, 2, 10)));
+    }
+}
@@ -0,0 +1,110 @@
+/**
+ * Copyright 2017 Anton Johansson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anton.ehome.dao;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.influxdb.dto.QueryResult;
+import org.influxdb.dto.QueryResult.Result;
+import org.influxdb.dto.QueryResult.Series;
+import org.influxdb.impl.InfluxDBResultMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.anton.ehome.domain.Metric;
+
+/**
+ * Benchmarks of mapping query results of {@link Metric metrics} with {@link ResultMapper}, compared to the {@link InfluxDBResultMapper}.
+ * <p>
+ * Run with the main method. The score is the number of rows mapped per second.
+ * </p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ResultMapperBenchmark
+{
+    private static final int NUMBER_OF_ROWS = 10_000;
+
+    private final InfluxDBResultMapper influxMapper = new InfluxDBResultMapper();
+    private final ResultMapper<Metric> mapper = ResultMapper.of(Metric.class);
+    private QueryResult result;
+
+    @Setup
+    public void setUp()
+    {
+        List<List<Object>> rows = new ArrayList<>(NUMBER_OF_ROWS);
+        Instant time = Instant.parse("2017-06-01T00:00:00Z");
+        for (int row = 0; row < NUMBER_OF_ROWS; row++)
+        {
+            rows.add(asList(time.plusMillis(row * 1500L).toString(), (double) row));
+        }
+
+        Series series = new Series();
+        series.setName("metric");
+        series.setColumns(asList("time", "value"));
+        series.setValues(rows);
+        Result item = new Result();
+        item.setSeries(singletonList(series));
+        result = new QueryResult();
+        result.setResults(singletonList(item));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NUMBER_OF_ROWS)
+    public List<Metric> influxDBResultMapper()
+    {
+        return influxMapper.toPOJO(result, Metric.class);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NUMBER_OF_ROWS)
+    public List<Metric> resultMapper()
+    {
+        return mapper.map(result);
+    }
+
+    public static void main(String[] args) throws RunnerException
+    {
+        new Runner(new OptionsBuilder()
+                .include(ResultMapperBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build())
+                .run();
+    }
+}
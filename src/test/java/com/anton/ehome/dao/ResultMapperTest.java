@@ -0,0 +1,190 @@
+/**
+ * Copyright 2017 Anton Johansson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anton.ehome.dao;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static java.util.Collections.singletonMap;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.influxdb.InfluxDBMapperException;
+import org.influxdb.annotation.Column;
+import org.influxdb.annotation.Measurement;
+import org.influxdb.dto.QueryResult;
+import org.influxdb.dto.QueryResult.Result;
+import org.influxdb.dto.QueryResult.Series;
+import org.influxdb.impl.InfluxDBResultMapper;
+import org.junit.Test;
+
+import com.anton.ehome.common.AbstractTest;
+import com.anton.ehome.domain.Metric;
+
+/**
+ * Unit tests of {@link ResultMapper}.
+ */
+public class ResultMapperTest extends AbstractTest
+{
+    @Test
+    public void testMappingMetrics()
+    {
+        QueryResult result = result(series("metric", asList("time", "value"),
+                asList("2017-06-01T00:00:00Z", 1.5),
+                asList("2017-06-01T00:00:01.25Z", 2.0)));
+
+        List<Metric> metrics = ResultMapper.of(Metric.class).map(result);
+
+        assertEquals(2, metrics.size());
+        assertEquals(Instant.parse("2017-06-01T00:00:00Z"), metrics.get(0).getTime());
+        assertEquals(1.5, metrics.get(0).getValue(), 0);
+        assertEquals(Instant.parse("2017-06-01T00:00:01.25Z"), metrics.get(1).getTime());
+        assertEquals(2.0, metrics.get(1).getValue(), 0);
+        assertEquals(new InfluxDBResultMapper().toPOJO(result, Metric.class), metrics);
+    }
+
+    @Test
+    public void testMappingTimesInDifferentFormats()
+    {
+        QueryResult result = result(series("metric", asList("time", "value"),
+                asList("2016-02-29T23:59:59.123456789Z", 1.0),
+                asList("1969-12-31T23:59:59.5Z", 2.0),
+                asList("2017-06-01T02:00:00+0200", 3.0),
+                asList("2017-06-01T00:00:00.000Z", 4.0)));
+
+        List<Metric> metrics = ResultMapper.of(Metric.class).map(result);
+
+        assertEquals(Instant.parse("2016-02-29T23:59:59.123456789Z"), metrics.get(0).getTime());
+        assertEquals(Instant.parse("1969-12-31T23:59:59.5Z"), metrics.get(1).getTime());
+        assertEquals(Instant.parse("2017-06-01T00:00:00Z"), metrics.get(2).getTime());
+        assertEquals(Instant.parse("2017-06-01T00:00:00Z"), metrics.get(3).getTime());
+        assertEquals(new InfluxDBResultMapper().toPOJO(result, Metric.class), metrics);
+    }
+
+    @Test(expected = InfluxDBMapperException.class)
+    public void testMappingInvalidTime()
+    {
+        ResultMapper.of(Metric.class).map(result(series("metric", asList("time", "value"), asList("2017-02-30T00:00:00Z", 1.0))));
+    }
+
+    @Test
+    public void testMappingTagsAndUnknownColumns()
+    {
+        Series series = series("sample", asList("time", "unknown", "count", "enabled"), asList(1000.0, "x", 3.0, true));
+        series.setTags(singletonMap("name", "kitchen"));
+
+        List<Sample> samples = ResultMapper.of(Sample.class).map(result(series));
+
+        assertEquals(1, samples.size());
+        assertEquals(Instant.ofEpochMilli(1000), samples.get(0).time);
+        assertEquals("kitchen", samples.get(0).name);
+        assertEquals(3, samples.get(0).count);
+        assertEquals(Boolean.TRUE, samples.get(0).enabled);
+    }
+
+    @Test
+    public void testMappingNullValues()
+    {
+        List<Sample> samples = ResultMapper.of(Sample.class).map(result(series("sample", asList("time", "count"), asList(null, null))));
+
+        assertEquals(1, samples.size());
+        assertNull(samples.get(0).time);
+        assertEquals(0, samples.get(0).count);
+    }
+
+    @Test
+    public void testMappingOnlySeriesOfTheMeasurement()
+    {
+        QueryResult result = result(
+                series("other", asList("time", "value"), asList("2017-06-01T00:00:00Z", 1.0)),
+                series("metric", asList("time", "value"), asList("2017-06-01T00:00:00Z", 2.0)));
+
+        List<Metric> metrics = ResultMapper.of(Metric.class).map(result);
+
+        assertEquals(1, metrics.size());
+        assertEquals(2.0, metrics.get(0).getValue(), 0);
+    }
+
+    @Test
+    public void testMappingEmptyResult()
+    {
+        assertEquals(asList(), ResultMapper.of(Metric.class).map(new QueryResult()));
+    }
+
+    @Test
+    public void testReusingMapper()
+    {
+        assertSame(ResultMapper.of(Metric.class), ResultMapper.of(Metric.class));
+    }
+
+    @Test(expected = InfluxDBMapperException.class)
+    public void testMappingResultWithError()
+    {
+        QueryResult result = new QueryResult();
+        result.setError("database not found");
+        ResultMapper.of(Metric.class).map(result);
+    }
+
+    @Test(expected = InfluxDBMapperException.class)
+    public void testMappingValueOfWrongType()
+    {
+        ResultMapper.of(Sample.class).map(result(series("sample", asList("count"), asList("three"))));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMappingClassWithoutMeasurement()
+    {
+        ResultMapper.of(String.class);
+    }
+
+    private QueryResult result(Series... series)
+    {
+        Result result = new Result();
+        result.setSeries(asList(series));
+        QueryResult queryResult = new QueryResult();
+        queryResult.setResults(singletonList(result));
+        return queryResult;
+    }
+
+    @SafeVarargs
+    private static Series series(String name, List<String> columns, List<Object>... rows)
+    {
+        List<List<Object>> values = new ArrayList<>(rows.length);
+        for (List<Object> row : rows)
+        {
+            values.add(row);
+        }
+
+        Series series = new Series();
+        series.setName(name);
+        series.setColumns(columns);
+        series.setValues(values);
+        return series;
+    }
+
+    /**
+     * A measurement with fields of different types.
+     */
+    @Measurement(name = "sample")
+    private static class Sample
+    {
+        private @Column(name = "time") Instant time;
+        private @Column(name = "name") String name;
+        private @Column(name = "count") int count;
+        private @Column(name = "enabled") Boolean enabled;
+    }
+}
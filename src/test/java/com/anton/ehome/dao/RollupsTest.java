@@ -0,0 +1,254 @@
+/**
+ * Copyright 2017 Anton Johansson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anton.ehome.dao;
+
+import static com.anton.ehome.dao.InfluxUtils.DATABASE_NAME;
+import static com.anton.ehome.dao.InfluxUtils.INFINITE;
+import static com.anton.ehome.dao.InfluxUtils.parseDuration;
+import static java.time.Duration.ZERO;
+import static java.time.Duration.ofDays;
+import static java.time.Duration.ofHours;
+import static java.time.Duration.ofMinutes;
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+import org.influxdb.InfluxDB;
+import org.influxdb.dto.Point;
+import org.influxdb.dto.Query;
+import org.influxdb.dto.QueryResult;
+import org.influxdb.dto.QueryResult.Result;
+import org.influxdb.dto.QueryResult.Series;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mock;
+
+import com.anton.ehome.common.AbstractTest;
+import com.anton.ehome.conf.Config;
+import com.anton.ehome.conf.IConfigService;
+import com.anton.ehome.conf.RetentionConfig;
+import com.anton.ehome.dao.Rollups.Tier;
+
+/**
+ * Unit tests of {@link Rollups}.
+ */
+public class RollupsTest extends AbstractTest
+{
+    private @Mock InfluxDB influx;
+    private @Mock IConfigService configService;
+    private @Mock Spool spool;
+    private Config config;
+    private Rollups rollups;
+
+    @Override
+    protected void initMocks() throws Exception
+    {
+        config = new Config();
+        when(configService.getCurrentConfig()).thenReturn(config);
+        when(influx.query(any())).thenReturn(new QueryResult());
+        rollups = new Rollups(influx, configService, spool);
+    }
+
+    @Test
+    public void testSelectingTheFinestTierForRecentMetrics()
+    {
+        assertEquals(Tier.RAW, rollups.select(ofHours(12), ZERO));
+        assertEquals(Tier.RAW, rollups.select(ofDays(7), Duration.ofSeconds(30)));
+    }
+
+    @Test
+    public void testSelectingTheCoarsestTierThatSatisfiesTheResolution()
+    {
+        assertEquals(Tier.MINUTE, rollups.select(ofHours(12), ofMinutes(5)));
+        assertEquals(Tier.HOUR, rollups.select(ofHours(12), ofHours(1)));
+        assertEquals(Tier.HOUR, rollups.select(ofDays(365), ofDays(1)));
+    }
+
+    @Test
+    public void testSelectingACoarserTierWhenFinerMetricsAreExpired()
+    {
+        assertEquals(Tier.MINUTE, rollups.select(ofDays(8), ZERO));
+        assertEquals(Tier.HOUR, rollups.select(ofDays(31), ZERO));
+        assertEquals(Tier.HOUR, rollups.select(ofDays(31), ofMinutes(1)));
+    }
+
+    @Test
+    public void testSelectingTheLongestRetentionWhenNoTierRetainsTheMetrics()
+    {
+        RetentionConfig retentionConfig = config.getMetricsConfig().getRetentionConfig();
+        retentionConfig.setMinuteRollupRetention("90d");
+        retentionConfig.setHourRollupRetention("52w");
+
+        assertEquals(Tier.HOUR, rollups.select(ofDays(365 * 2), ZERO));
+
+        retentionConfig.setMinuteRollupRetention("INF");
+        assertEquals(Tier.MINUTE, rollups.select(ofDays(365 * 2), ofDays(1)));
+    }
+
+    @Test
+    public void testParsingDurations()
+    {
+        assertEquals(ofDays(7), parseDuration("7d"));
+        assertEquals(ofDays(14), parseDuration("2w"));
+        assertEquals(ofMinutes(90), parseDuration("1h30m"));
+        assertEquals(Duration.ofMillis(1500), parseDuration("1s500ms"));
+        assertEquals(INFINITE, parseDuration("INF"));
+        assertEquals(INFINITE, parseDuration("inf"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testParsingInvalidDuration()
+    {
+        parseDuration("7 days");
+    }
+
+    @Test
+    public void testStartingForTheFirstTime()
+    {
+        rollups.start();
+
+        List<String> statements = getStatements();
+        assertEquals(asList(
+                "ALTER RETENTION POLICY \"raw\" ON \"e-home\" DURATION 7d",
+                "ALTER RETENTION POLICY \"rollup-1m\" ON \"e-home\" DURATION 30d",
+                "ALTER RETENTION POLICY \"rollup-1h\" ON \"e-home\" DURATION INF",
+                "DROP CONTINUOUS QUERY \"metric-rollup-1m\" ON \"e-home\"",
+                "CREATE CONTINUOUS QUERY \"metric-rollup-1m\" ON \"e-home\" RESAMPLE EVERY 1m FOR 10m BEGIN"
+                    + " SELECT min(value) AS min, max(value) AS max, sum(value) AS sum, mean(value) AS mean, count(value) AS count"
+                    + " INTO \"e-home\".\"rollup-1m\".metric FROM \"e-home\".\"raw\".metric GROUP BY time(1m), nodeId END",
+                "DROP CONTINUOUS QUERY \"metric-rollup-1h\" ON \"e-home\"",
+                "CREATE CONTINUOUS QUERY \"metric-rollup-1h\" ON \"e-home\" RESAMPLE EVERY 1h FOR 2h BEGIN"
+                    + " SELECT min(min) AS min, max(max) AS max, sum(sum) AS sum, sum(sum) / sum(count) AS mean, sum(count) AS count"
+                    + " INTO \"e-home\".\"rollup-1h\".metric FROM \"e-home\".\"rollup-1m\".metric GROUP BY time(1h), nodeId END",
+                "SELECT backfilled FROM \"e-home\"..\"rollups\" LIMIT 1",
+                "SELECT * INTO \"e-home\".\"raw\".metric FROM \"e-home\"..metric WHERE time > now() - 604800s AND time <= now() GROUP BY *",
+                "SELECT min(value) AS min, max(value) AS max, sum(value) AS sum, mean(value) AS mean, count(value) AS count"
+                    + " INTO \"e-home\".\"rollup-1m\".metric FROM \"e-home\"..metric WHERE time > now() - 2592000s AND time <= now()"
+                    + " GROUP BY time(1m), nodeId",
+                "SELECT min(value) AS min, max(value) AS max, sum(value) AS sum, mean(value) AS mean, count(value) AS count"
+                    + " INTO \"e-home\".\"rollup-1h\".metric FROM \"e-home\"..metric WHERE time <= now() GROUP BY time(1h), nodeId"),
+                statements);
+        verify(influx).write(ArgumentMatchers.eq(DATABASE_NAME), ArgumentMatchers.isNull(), ArgumentMatchers.<Point> argThat(
+                point -> point.lineProtocol().startsWith("rollups backfilled=true")));
+    }
+
+    @Test
+    public void testRetryingBackfillThatFailed()
+    {
+        QueryResult failed = new QueryResult();
+        failed.setError("timeout");
+        when(influx.query(ArgumentMatchers.argThat(query -> query.getCommand().startsWith("SELECT * INTO")))).thenReturn(failed);
+        rollups.start();
+        verify(influx, never()).write(ArgumentMatchers.anyString(), ArgumentMatchers.any(), ArgumentMatchers.any(Point.class));
+
+        rollups = new Rollups(influx, configService, spool);
+        rollups.start();
+        assertEquals(2, getStatements().stream().filter(statement -> statement.startsWith("SELECT * INTO")).count());
+    }
+
+    @Test
+    public void testCopyingPreviouslyStoredMetricsIntoTheRawTierWhenUpgrading()
+    {
+        config.getMetricsConfig().getRetentionConfig().setRawRetention("14d");
+        rollups.start();
+
+        List<String> statements = getStatements();
+        int copy = statements.indexOf(
+                "SELECT * INTO \"e-home\".\"raw\".metric FROM \"e-home\"..metric WHERE time > now() - 1209600s AND time <= now() GROUP BY *");
+        int createQuery = statements.indexOf("DROP CONTINUOUS QUERY \"metric-rollup-1m\" ON \"e-home\"");
+        assertTrue(copy > createQuery);
+        assertTrue(statements.indexOf("ALTER RETENTION POLICY \"raw\" ON \"e-home\" DURATION 14d") < copy);
+
+        config.getMetricsConfig().getRetentionConfig().setRawRetention("INF");
+        rollups = new Rollups(influx, configService, spool);
+        rollups.start();
+        assertTrue(getStatements().contains("SELECT * INTO \"e-home\".\"raw\".metric FROM \"e-home\"..metric WHERE time <= now() GROUP BY *"));
+    }
+
+    @Test
+    public void testStartingWhenRollupsAreAlreadyBackfilled()
+    {
+        Series series = new Series();
+        series.setName("rollups");
+        series.setColumns(asList("time", "backfilled"));
+        series.setValues(singletonList(asList("2017-06-01T00:00:00Z", true)));
+        Result result = new Result();
+        result.setSeries(singletonList(series));
+        QueryResult queryResult = new QueryResult();
+        queryResult.setResults(singletonList(result));
+        when(influx.query(new Query("SELECT backfilled FROM \"e-home\"..\"rollups\" LIMIT 1", DATABASE_NAME))).thenReturn(queryResult);
+
+        rollups.start();
+
+        List<String> statements = getStatements();
+        assertEquals(8, statements.size());
+        assertFalse(statements.stream().anyMatch(statement -> statement.startsWith("SELECT") && statement.contains(" INTO ")));
+        verify(influx, never()).write(ArgumentMatchers.anyString(), ArgumentMatchers.any(), ArgumentMatchers.any(Point.class));
+    }
+
+    @Test
+    public void testRollingUpReplayedMetrics()
+    {
+        ArgumentCaptor<Spool.IReplayListener> listener = ArgumentCaptor.forClass(Spool.IReplayListener.class);
+        verify(spool).onReplayed(listener.capture());
+
+        listener.getValue().replayed(Instant.parse("2017-06-01T10:59:30Z").toEpochMilli(), Instant.parse("2017-06-01T12:00:00Z").toEpochMilli());
+
+        assertEquals(asList(
+                "SELECT min(value) AS min, max(value) AS max, sum(value) AS sum, mean(value) AS mean, count(value) AS count"
+                    + " INTO \"e-home\".\"rollup-1m\".metric FROM \"e-home\".\"raw\".metric"
+                    + " WHERE time >= '2017-06-01T10:59:00Z' AND time < '2017-06-01T12:01:00Z' GROUP BY time(1m), nodeId",
+                "SELECT min(min) AS min, max(max) AS max, sum(sum) AS sum, sum(sum) / sum(count) AS mean, sum(count) AS count"
+                    + " INTO \"e-home\".\"rollup-1h\".metric FROM \"e-home\".\"rollup-1m\".metric"
+                    + " WHERE time >= '2017-06-01T10:00:00Z' AND time < '2017-06-01T13:00:00Z' GROUP BY time(1h), nodeId"),
+                getStatements());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testReapplyingRetentionWhenConfigurationIsModified()
+    {
+        rollups.start();
+
+        ArgumentCaptor<Consumer<Config>> listener = ArgumentCaptor.forClass(Consumer.class);
+        verify(configService).onModified(listener.capture());
+
+        Config modified = new Config();
+        modified.getMetricsConfig().getRetentionConfig().setRawRetention("14d");
+        listener.getValue().accept(modified);
+
+        assertTrue(getStatements().contains("ALTER RETENTION POLICY \"raw\" ON \"e-home\" DURATION 14d"));
+    }
+
+    private List<String> getStatements()
+    {
+        ArgumentCaptor<Query> captor = ArgumentCaptor.forClass(Query.class);
+        verify(influx, atLeastOnce()).query(captor.capture());
+        return captor.getAllValues()
+                .stream()
+                .map(Query::getCommand)
+                .collect(Collectors.toList());
+    }
+}
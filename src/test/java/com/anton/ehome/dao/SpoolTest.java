@@ -0,0 +1,322 @@
+/**
+ * Copyright 2017 Anton Johansson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anton.ehome.dao;
+
+import static com.anton.ehome.dao.InfluxUtils.DATABASE_NAME;
+import static com.anton.ehome.dao.InfluxUtils.RETENTION_POLICY_RAW;
+import static java.util.Arrays.asList;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.influxdb.InfluxDB;
+import org.influxdb.InfluxDB.ConsistencyLevel;
+import org.influxdb.InfluxDBIOException;
+import org.influxdb.dto.Point;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Mock;
+
+import com.anton.ehome.common.AbstractTest;
+import com.anton.ehome.conf.Config;
+import com.anton.ehome.conf.IConfigService;
+import com.anton.ehome.conf.SpoolConfig;
+
+/**
+ * Unit tests of {@link Spool}.
+ */
+public class SpoolTest extends AbstractTest
+{
+    public @Rule TemporaryFolder folder = new TemporaryFolder();
+    private @Mock InfluxDB influx;
+    private @Mock IConfigService configService;
+    private final List<String> written = new ArrayList<>();
+    private Config config;
+
+    @Override
+    protected void initMocks() throws Exception
+    {
+        config = new Config();
+        when(configService.getCurrentConfig()).thenReturn(config);
+        doAnswer(invocation ->
+        {
+            written.addAll(invocation.getArgument(3));
+            return null;
+        }).when(influx).write(eq(DATABASE_NAME), eq(RETENTION_POLICY_RAW), eq(ConsistencyLevel.ONE), anyList());
+    }
+
+    private Spool spool() throws IOException
+    {
+        Spool spool = new Spool(influx, configService);
+        spool.open(folder.getRoot().toPath());
+        return spool;
+    }
+
+    private List<Point> points(int from, int to)
+    {
+        List<Point> points = new ArrayList<>();
+        for (int i = from; i < to; i++)
+        {
+            points.add(Point.measurement("metric")
+                    .time(1_500_000_000_000L + i, MILLISECONDS)
+                    .tag("nodeId", "2")
+                    .addField("value", i)
+                    .build());
+        }
+        return points;
+    }
+
+    private List<String> lines(List<Point> points)
+    {
+        List<String> lines = new ArrayList<>();
+        points.forEach(point -> lines.add(point.lineProtocol()));
+        return lines;
+    }
+
+    private int numberOfSegments()
+    {
+        return folder.getRoot().listFiles((File directory, String name) -> name.endsWith(".spool")).length;
+    }
+
+    @Test
+    public void testAppendingAndReplaying() throws IOException
+    {
+        Spool spool = spool();
+        assertFalse(spool.hasPending());
+        assertEquals(10, spool.append(points(0, 10)));
+        assertEquals(10, spool.append(points(10, 20)));
+        assertTrue(spool.hasPending());
+
+        spool.replay();
+
+        assertEquals(lines(points(0, 20)), written);
+        assertFalse(spool.hasPending());
+        assertEquals(20, spool.getSpooled());
+        assertEquals(20, spool.getReplayed());
+        assertEquals(0, numberOfSegments());
+    }
+
+    @Test
+    public void testNotifyingReplayedTimes() throws IOException
+    {
+        config.getMetricsConfig().getSpoolConfig().setReplayBatchSize(7);
+        Spool spool = spool();
+        List<long[]> replayed = new ArrayList<>();
+        spool.onReplayed((from, to) -> replayed.add(new long[] {from, to}));
+        spool.append(points(0, 10));
+        spool.append(asList(Point.measurement("metric").addField("value", 1).build()));
+        spool.append(points(10, 13));
+
+        spool.replay();
+
+        assertEquals(2, replayed.size());
+        assertArrayEquals(new long[] {1_500_000_000_000L, 1_500_000_000_006L}, replayed.get(0));
+        assertArrayEquals(new long[] {1_500_000_000_007L, 1_500_000_000_012L}, replayed.get(1));
+    }
+
+    @Test
+    public void testReplayingInBatches() throws IOException
+    {
+        config.getMetricsConfig().getSpoolConfig().setReplayBatchSize(7);
+        Spool spool = spool();
+        spool.append(points(0, 20));
+
+        spool.replay();
+
+        assertEquals(lines(points(0, 20)), written);
+        verify(influx, times(3)).write(eq(DATABASE_NAME), eq(RETENTION_POLICY_RAW), eq(ConsistencyLevel.ONE), anyList());
+    }
+
+    @Test
+    public void testRotatingSegments() throws IOException
+    {
+        config.getMetricsConfig().getSpoolConfig().setSegmentSize(256);
+        Spool spool = spool();
+        spool.append(points(0, 20));
+
+        assertTrue(numberOfSegments() > 1);
+        assertEquals(256L * numberOfSegments(), spool.getSize());
+
+        spool.replay();
+        assertEquals(lines(points(0, 20)), written);
+        assertEquals(0, numberOfSegments());
+    }
+
+    @Test
+    public void testReopening() throws IOException
+    {
+        config.getMetricsConfig().getSpoolConfig().setSegmentSize(256);
+        spool().append(points(0, 20));
+
+        Spool spool = spool();
+        assertTrue(spool.hasPending());
+        spool.append(points(20, 25));
+        spool.replay();
+
+        assertEquals(lines(points(0, 25)), written);
+    }
+
+    @Test
+    public void testGettingOldestTime() throws IOException
+    {
+        config.getMetricsConfig().getSpoolConfig().setSegmentSize(256);
+        Spool earlier = spool();
+        assertEquals(Long.MAX_VALUE, earlier.getOldestTime());
+        earlier.append(points(5, 20));
+        earlier.append(points(0, 5));
+        assertEquals(1_500_000_000_000L, earlier.getOldestTime());
+
+        Spool spool = spool();
+        assertEquals(1_500_000_000_000L, spool.getOldestTime());
+        spool.replay();
+        assertEquals(Long.MAX_VALUE, spool.getOldestTime());
+    }
+
+    @Test
+    public void testRecoveringPointsOfEarlierRuns() throws IOException
+    {
+        config.getMetricsConfig().getSpoolConfig().setSegmentSize(256);
+        Spool earlier = spool();
+        earlier.append(points(0, 20));
+        assertFalse(earlier.isRecovering());
+
+        Spool spool = spool();
+        assertTrue(spool.isRecovering());
+        spool.append(points(20, 25));
+        spool.replay();
+
+        assertFalse(spool.isRecovering());
+    }
+
+    @Test
+    public void testDiscardingWhenExceedingMaxDiskUsage() throws IOException
+    {
+        SpoolConfig spoolConfig = config.getMetricsConfig().getSpoolConfig();
+        spoolConfig.setSegmentSize(256);
+        spoolConfig.setMaxDiskUsage(512);
+        Spool spool = spool();
+        spool.append(points(0, 20));
+
+        assertEquals(2, numberOfSegments());
+        assertTrue(spool.getDiscarded() > 0);
+
+        spool.replay();
+        assertEquals(lines(points((int) spool.getDiscarded(), 20)), written);
+    }
+
+    @Test
+    public void testReplayingAfterFailure() throws IOException
+    {
+        Spool spool = spool();
+        spool.append(points(0, 5));
+        doThrow(new InfluxDBIOException(new IOException("Connection refused")))
+                .doAnswer(invocation ->
+                {
+                    written.addAll(invocation.getArgument(3));
+                    return null;
+                })
+                .when(influx).write(eq(DATABASE_NAME), eq(RETENTION_POLICY_RAW), eq(ConsistencyLevel.ONE), anyList());
+
+        spool.replay();
+        assertTrue(written.isEmpty());
+        assertTrue(spool.hasPending());
+
+        spool.replay();
+        assertEquals(lines(points(0, 5)), written);
+        assertFalse(spool.hasPending());
+    }
+
+    @Test
+    public void testAppendingToActiveSegmentBetweenFailedReplays() throws IOException
+    {
+        Spool spool = spool();
+        doThrow(new InfluxDBIOException(new IOException("Connection refused")))
+                .when(influx).write(eq(DATABASE_NAME), eq(RETENTION_POLICY_RAW), eq(ConsistencyLevel.ONE), anyList());
+        for (int i = 0; i < 5; i++)
+        {
+            spool.append(points(i * 10, i * 10 + 10));
+            spool.replay();
+        }
+
+        assertEquals(1, numberOfSegments());
+        assertEquals(0, spool.getDiscarded());
+    }
+
+    @Test
+    public void testAppendingWhileReplayingActiveSegment() throws IOException
+    {
+        config.getMetricsConfig().getSpoolConfig().setReplayBatchSize(5);
+        Spool spool = spool();
+        spool.append(points(0, 10));
+        doAnswer(invocation ->
+        {
+            written.addAll(invocation.getArgument(3));
+            return null;
+        })
+                .doThrow(new InfluxDBIOException(new IOException("Connection refused")))
+                .doAnswer(invocation ->
+                {
+                    written.addAll(invocation.getArgument(3));
+                    return null;
+                })
+                .when(influx).write(eq(DATABASE_NAME), eq(RETENTION_POLICY_RAW), eq(ConsistencyLevel.ONE), anyList());
+
+        spool.replay();
+        assertEquals(lines(points(0, 5)), written);
+        spool.append(points(10, 15));
+        spool.replay();
+
+        assertEquals(lines(points(0, 15)), written);
+        assertFalse(spool.hasPending());
+        assertEquals(0, numberOfSegments());
+    }
+
+    @Test
+    public void testAppendingWhenOnlySomePointsCanBeSpooled() throws IOException
+    {
+        config.getMetricsConfig().getSpoolConfig().setSegmentSize(256);
+        Spool spool = spool();
+        spool.append(points(0, 1));
+        for (File file : folder.getRoot().listFiles())
+        {
+            assertTrue(file.delete());
+        }
+        assertTrue(folder.getRoot().delete());
+
+        int count = spool.append(points(1, 20));
+        assertTrue(count > 0 && count < 19);
+        assertEquals(1 + count, spool.getSpooled());
+    }
+
+    @Test
+    public void testAppendingWhenDisabled() throws IOException
+    {
+        config.getMetricsConfig().getSpoolConfig().setEnabled(false);
+        Spool spool = spool();
+
+        assertEquals(0, spool.append(points(0, 5)));
+        assertEquals(asList(), asList(folder.getRoot().list()));
+    }
+}
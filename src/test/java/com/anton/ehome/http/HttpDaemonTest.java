@@ -16,10 +16,12 @@
 package com.anton.ehome.http;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.zip.GZIPInputStream;
 
 import javax.servlet.ServletException;
 import javax.servlet.ServletOutputStream;
@@ -28,6 +30,7 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
 import org.junit.Test;
 import org.mockito.Mock;
 
@@ -41,7 +44,10 @@ import com.anton.ehome.http.common.IHttpApplication;
  */
 public class HttpDaemonTest extends AbstractTest
 {
+    private static final String LARGE_JSON = "[\"" + StringUtils.repeat("value", 1000) + "\"]";
+
     private @Mock IConfigService configService;
+    private Config config;
     private HttpDaemon daemon;
 
     @Override
@@ -53,6 +59,7 @@ public class HttpDaemonTest extends AbstractTest
 
         Set<IHttpApplication> applications = new HashSet<>();
         applications.add(application);
+        applications.add(new JsonApplication());
         daemon = new HttpDaemon(configService, applications);
         boolean success = daemon.start();
         assertTrue("Server did not start", success);
@@ -67,7 +74,7 @@ public class HttpDaemonTest extends AbstractTest
     @Override
     protected void initMocks()
     {
-        Config config = new Config();
+        config = new Config();
         config.setHttpPort(1337);
 
         when(configService.getCurrentConfig()).thenReturn(config);
@@ -93,6 +100,83 @@ public class HttpDaemonTest extends AbstractTest
         assertEquals(404, responseCode);
     }
 
+    @Test
+    public void testCompressingJson() throws Exception
+    {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:1337/json/large").openConnection();
+        connection.setRequestProperty("Accept-Encoding", "gzip");
+
+        assertEquals("gzip", connection.getContentEncoding());
+        try (InputStream stream = new GZIPInputStream(connection.getInputStream()))
+        {
+            assertEquals(LARGE_JSON, IOUtils.toString(stream, "UTF-8"));
+        }
+    }
+
+    @Test
+    public void testNotCompressingSmallJson() throws Exception
+    {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:1337/json/small").openConnection();
+        connection.setRequestProperty("Accept-Encoding", "gzip");
+
+        assertNull(connection.getContentEncoding());
+        assertEquals("[]", IOUtils.toString(connection.getInputStream(), "UTF-8"));
+    }
+
+    @Test
+    public void testNotCompressingOtherContent() throws Exception
+    {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:1337/test").openConnection();
+        connection.setRequestProperty("Accept-Encoding", "gzip");
+
+        assertNull(connection.getContentEncoding());
+        assertEquals("Hello world", IOUtils.toString(connection.getInputStream(), "UTF-8"));
+    }
+
+    @Test
+    public void testNotCompressingWhenDisabled() throws Exception
+    {
+        config.getHttpConfig().setGzipEnabled(false);
+        restart();
+
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:1337/json/large").openConnection();
+        connection.setRequestProperty("Accept-Encoding", "gzip");
+
+        assertNull(connection.getContentEncoding());
+        assertEquals(LARGE_JSON, IOUtils.toString(connection.getInputStream(), "UTF-8"));
+    }
+
+    @Test
+    public void testStartingWithHttp2AndTunedConnector() throws Exception
+    {
+        config.getHttpConfig().setHttp2Enabled(true);
+        config.getHttpConfig().setAcceptors(1);
+        config.getHttpConfig().setSelectors(1);
+        config.getHttpConfig().setMaxThreads(8);
+        restart();
+
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:1337/test").openConnection();
+
+        assertEquals(200, connection.getResponseCode());
+    }
+
+    @Test
+    public void testStartingWithTooFewThreads()
+    {
+        config.getHttpConfig().setAcceptors(2);
+        config.getHttpConfig().setSelectors(2);
+        config.getHttpConfig().setMaxThreads(3);
+        daemon.stop();
+
+        assertFalse(daemon.start());
+    }
+
+    private void restart()
+    {
+        daemon.stop();
+        assertTrue("Server did not start", daemon.start());
+    }
+
     /**
      * Defines a servlet used for tests.
      */
@@ -111,4 +195,23 @@ public class HttpDaemonTest extends AbstractTest
             IOUtils.write("Hello world", stream, "UTF-8");
         }
     }
+
+    /**
+     * Defines a servlet that writes JSON, used for tests.
+     */
+    private static class JsonApplication extends HttpServlet implements IHttpApplication
+    {
+        @Override
+        public String getPath()
+        {
+            return "json";
+        }
+
+        @Override
+        protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException
+        {
+            resp.setContentType("application/json;charset=utf-8");
+            IOUtils.write(req.getRequestURI().endsWith("/large") ? LARGE_JSON : "[]", resp.getOutputStream(), "UTF-8");
+        }
+    }
 }
@@ -16,11 +16,24 @@
 package com.anton.ehome.http.charts;
 
 import static java.util.Arrays.asList;
+import static java.util.Collections.singleton;
+import static java.util.Collections.singletonMap;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 
 import org.apache.commons.io.IOUtils;
 import org.eclipse.jetty.server.Server;
@@ -28,6 +41,8 @@ import org.eclipse.jetty.servlet.ServletHandler;
 import org.eclipse.jetty.servlet.ServletHolder;
 import org.eclipse.jetty.servlet.ServletMapping;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.ArgumentMatchers;
 import org.mockito.Mock;
 
 import com.anton.ehome.common.AbstractTest;
@@ -35,8 +50,17 @@ import com.anton.ehome.conf.Chart;
 import com.anton.ehome.conf.ChartDataSet;
 import com.anton.ehome.conf.Config;
 import com.anton.ehome.conf.IConfigService;
+import com.anton.ehome.conf.RecordingMode;
+import com.anton.ehome.conf.ZWaveConfig;
+import com.anton.ehome.conf.ZWaveMonitoringConfig;
+import com.anton.ehome.dao.Aggregate;
+import com.anton.ehome.dao.Fill;
+import com.anton.ehome.dao.IAggregateCursor;
+import com.anton.ehome.dao.IMetricCursor;
+import com.anton.ehome.dao.IMetricListener;
 import com.anton.ehome.dao.IMetricsDao;
-import com.anton.ehome.domain.Metric;
+import com.anton.ehome.domain.Energy;
+import com.anton.ehome.metrics.IEnergyMeter;
 
 /**
  * Unit tests of {@link ChartsHttpApplication}.
@@ -45,6 +69,8 @@ public class ChartsHttpApplicationTest extends AbstractTest
 {
     private @Mock IConfigService configService;
     private @Mock IMetricsDao metricsDao;
+    private @Mock IEnergyMeter energyMeter;
+    private MetricPublisher publisher;
     private Server server;
 
     @Override
@@ -52,13 +78,15 @@ public class ChartsHttpApplicationTest extends AbstractTest
     {
         super.setUp();
 
-        ChartsHttpApplication servlet = new ChartsHttpApplication(configService, metricsDao);
+        publisher = new MetricPublisher(metricsDao);
+        ChartsHttpApplication servlet = new ChartsHttpApplication(configService, metricsDao, publisher, energyMeter);
 
         ServletHandler handler = new ServletHandler();
 
         ServletHolder holder = new ServletHolder();
         holder.setServlet(servlet);
         holder.setName("charts");
+        holder.setAsyncSupported(true);
 
         ServletMapping mapping = new ServletMapping();
         mapping.setPathSpec("/charts/*");
@@ -76,6 +104,7 @@ public class ChartsHttpApplicationTest extends AbstractTest
     public void tearDown() throws Exception
     {
         super.tearDown();
+        publisher.stop();
         server.stop();
     }
 
@@ -98,15 +127,62 @@ public class ChartsHttpApplicationTest extends AbstractTest
 
         when(configService.getCurrentConfig()).thenReturn(config);
 
-        Metric metric1 = new Metric();
-        metric1.setTime(LocalDateTime.of(2018, 2, 18, 21, 58, 12).toInstant(ZoneOffset.UTC));
-        metric1.setValue(12.3);
+        long time1 = LocalDateTime.of(2018, 2, 18, 21, 58, 12).toInstant(ZoneOffset.UTC).toEpochMilli();
+        long time2 = LocalDateTime.of(2018, 2, 18, 21, 58, 51, 250_000_000).toInstant(ZoneOffset.UTC).toEpochMilli();
 
-        Metric metric2 = new Metric();
-        metric1.setTime(LocalDateTime.of(2018, 2, 18, 21, 58, 51).toInstant(ZoneOffset.UTC));
-        metric2.setValue(66.6);
+        when(metricsDao.getMetricCursorsSince(eq(singleton((byte) 1)), anyLong(), anyLong(), any()))
+                .thenAnswer(invocation -> new HashMap<>(singletonMap((byte) 1, cursor(new long[] {time1, time2}, new double[] {12.3, 66.6}))));
+    }
+
+    private IAggregateCursor aggregateCursor(long time, double value)
+    {
+        IMetricCursor cursor = cursor(new long[] {time}, new double[] {value});
+        return new IAggregateCursor()
+        {
+            @Override
+            public boolean next()
+            {
+                return cursor.next();
+            }
+
+            @Override
+            public long getTime()
+            {
+                return cursor.getTime();
+            }
+
+            @Override
+            public double getValue(int index)
+            {
+                return cursor.getValue();
+            }
+        };
+    }
 
-        when(metricsDao.getMetrics(eq((byte) 1), any(), any())).thenReturn(asList(metric1, metric2));
+    private IMetricCursor cursor(long[] times, double[] values)
+    {
+        return new IMetricCursor()
+        {
+            private int position = -1;
+
+            @Override
+            public boolean next()
+            {
+                return ++position < times.length;
+            }
+
+            @Override
+            public long getTime()
+            {
+                return times[position];
+            }
+
+            @Override
+            public double getValue()
+            {
+                return values[position];
+            }
+        };
     }
 
     @Test
@@ -128,7 +204,195 @@ public class ChartsHttpApplicationTest extends AbstractTest
         String body = IOUtils.toString(connection.getInputStream(), "UTF-8");
 
         assertEquals(200, responseCode);
-        assertEquals("[{\"label\":\"Washing machine\",\"color\":\"green\",\"dataPoints\":[{\"time\":\"2018-02-18T21:58:51Z\",\"value\":12.3},{\"value\":66.6}]}]", body);
+        assertEquals("[{\"label\":\"Washing machine\",\"color\":\"green\",\"dataPoints\":[{\"time\":\"2018-02-18T21:58:12Z\",\"value\":12.3},"
+            + "{\"time\":\"2018-02-18T21:58:51.250Z\",\"value\":66.6}]}]", body);
+    }
+
+    @Test
+    public void testGettingUnmodifiedData() throws Exception
+    {
+        long lastSaveTime = System.currentTimeMillis() + 60_000;
+        when(metricsDao.getVersion(eq((byte) 1), any(), eq(Duration.ZERO))).thenReturn(lastSaveTime);
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:1337/charts/electrics/data.json").openConnection();
+        String etag = connection.getHeaderField("ETag");
+        assertEquals(200, connection.getResponseCode());
+        assertEquals(lastSaveTime / 1000 * 1000, connection.getHeaderFieldDate("Last-Modified", 0));
+
+        connection = (HttpURLConnection) new URL("http://localhost:1337/charts/electrics/data.json").openConnection();
+        connection.setRequestProperty("If-None-Match", etag);
+        assertEquals(304, connection.getResponseCode());
+        verify(metricsDao, times(1)).getMetricCursorsSince(any(), anyLong(), anyLong(), any());
+
+        when(metricsDao.getVersion(eq((byte) 1), any(), eq(Duration.ZERO))).thenReturn(lastSaveTime + 1);
+        connection = (HttpURLConnection) new URL("http://localhost:1337/charts/electrics/data.json").openConnection();
+        connection.setRequestProperty("If-None-Match", etag);
+        assertEquals(200, connection.getResponseCode());
+        assertNotEquals(etag, connection.getHeaderField("ETag"));
+    }
+
+    @Test
+    public void testGettingUnmodifiedDataWithOtherTimeFormat() throws Exception
+    {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:1337/charts/electrics/data.json").openConnection();
+        String etag = connection.getHeaderField("ETag");
+
+        connection = (HttpURLConnection) new URL("http://localhost:1337/charts/electrics/data.json?timeFormat=epoch").openConnection();
+        connection.setRequestProperty("If-None-Match", etag);
+        assertEquals(200, connection.getResponseCode());
+    }
+
+    @Test
+    public void testGettingUnmodifiedMeta() throws Exception
+    {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:1337/charts/electrics/meta.json").openConnection();
+        String etag = connection.getHeaderField("ETag");
+        assertEquals(200, connection.getResponseCode());
+
+        connection = (HttpURLConnection) new URL("http://localhost:1337/charts/electrics/meta.json").openConnection();
+        connection.setRequestProperty("If-None-Match", "\"other\", " + etag);
+        assertEquals(304, connection.getResponseCode());
+    }
+
+    @Test
+    public void testGettingDataWithEpochTimes() throws Exception
+    {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:1337/charts/electrics/data.json?timeFormat=epoch").openConnection();
+        int responseCode = connection.getResponseCode();
+        String body = IOUtils.toString(connection.getInputStream(), "UTF-8");
+
+        assertEquals(200, responseCode);
+        assertEquals("[{\"label\":\"Washing machine\",\"color\":\"green\",\"dataPoints\":[{\"time\":1518991092000,\"value\":12.3},"
+            + "{\"time\":1518991131250,\"value\":66.6}]}]", body);
+    }
+
+    @Test
+    public void testGettingDataSinceTime() throws Exception
+    {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:1337/charts/electrics/data.json?since=1518991100000&from=1518991000000&to=1518991200000").openConnection();
+        assertEquals(200, connection.getResponseCode());
+        assertEquals("1518991200000", connection.getHeaderField("X-Next-Since"));
+        verify(metricsDao).getMetricCursorsSince(eq(singleton((byte) 1)), ArgumentMatchers.eq(1518991100000L), ArgumentMatchers.eq(1518991200000L), any());
+
+        connection = (HttpURLConnection) new URL("http://localhost:1337/charts/electrics/data.json?since=1518990000000&from=1518991000000&to=1518991200000").openConnection();
+        assertEquals(200, connection.getResponseCode());
+        verify(metricsDao).getMetricCursorsSince(eq(singleton((byte) 1)), ArgumentMatchers.eq(1518990999999L), ArgumentMatchers.eq(1518991200000L), any());
+    }
+
+    @Test
+    public void testGettingAggregatedData() throws Exception
+    {
+        when(metricsDao.getAggregates(eq(singleton((byte) 1)), any(), any(), eq(Duration.ofMinutes(5)), eq(Fill.NONE), eq(Aggregate.mean())))
+                .thenReturn(singletonMap((byte) 1, aggregateCursor(1518991200000L, 12.5)));
+
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:1337/charts/electrics/data.json?timeFormat=epoch&step=300000").openConnection();
+        assertEquals(200, connection.getResponseCode());
+        assertEquals("[{\"label\":\"Washing machine\",\"color\":\"green\",\"dataPoints\":[{\"time\":1518991200000,\"value\":12.5}]}]",
+                IOUtils.toString(connection.getInputStream(), "UTF-8"));
+        verify(metricsDao, never()).getMetricCursorsSince(any(), anyLong(), anyLong(), any());
+    }
+
+    @Test
+    public void testGettingEnergy() throws Exception
+    {
+        Energy energy = new Energy();
+        energy.setNodeId((byte) 1);
+        energy.setToday(1.5);
+        energy.setThisMonth(42.25);
+        when(energyMeter.getEnergy()).thenReturn(asList(energy));
+
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:1337/charts/electrics/energy.json").openConnection();
+        assertEquals(200, connection.getResponseCode());
+        assertEquals("[{\"label\":\"Washing machine\",\"color\":\"green\",\"today\":1.5,\"thisMonth\":42.25}]",
+                IOUtils.toString(connection.getInputStream(), "UTF-8"));
+    }
+
+    @Test
+    public void testGettingDataWithDefaultRange() throws Exception
+    {
+        long before = System.currentTimeMillis();
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:1337/charts/electrics/data.json").openConnection();
+        assertEquals(200, connection.getResponseCode());
+
+        ArgumentCaptor<Long> since = ArgumentCaptor.forClass(Long.class);
+        ArgumentCaptor<Long> to = ArgumentCaptor.forClass(Long.class);
+        verify(metricsDao).getMetricCursorsSince(any(), since.capture(), to.capture(), any());
+        assertTrue(to.getValue() >= before);
+        assertEquals(12 * 3_600_000L + 1, to.getValue() - since.getValue());
+        assertEquals(String.valueOf(to.getValue() - 1000), connection.getHeaderField("X-Next-Since"));
+    }
+
+    @Test
+    public void testGettingMetricThatIsSavedLaterThanItsTime() throws Exception
+    {
+        ZWaveMonitoringConfig value = new ZWaveMonitoringConfig();
+        value.setNodeId((byte) 1);
+        value.setRecordingMode(RecordingMode.SWINGING_DOOR);
+        value.setInterval(10);
+        value.setHeartbeat(60);
+        ZWaveConfig zwaveConfig = new ZWaveConfig();
+        zwaveConfig.setMonitoringValues(asList(value));
+        configService.getCurrentConfig().setZwaveConfigs(asList(zwaveConfig));
+
+        long now = System.currentTimeMillis();
+        List<long[]> saved = new ArrayList<>();
+        saved.add(new long[] {now - 120_000, 1});
+        when(metricsDao.getMetricCursorsSince(eq(singleton((byte) 1)), anyLong(), anyLong(), any())).thenAnswer(invocation ->
+        {
+            long since = invocation.getArgument(1);
+            long to = invocation.getArgument(2);
+            long[] times = saved.stream().filter(metric -> metric[0] > since && metric[0] <= to).mapToLong(metric -> metric[0]).toArray();
+            return new HashMap<>(singletonMap((byte) 1, cursor(times, new double[times.length])));
+        });
+
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:1337/charts/electrics/data.json?timeFormat=epoch&since=" + (now - 300_000)).openConnection();
+        assertEquals(200, connection.getResponseCode());
+        assertEquals("[{\"label\":\"Washing machine\",\"color\":\"green\",\"dataPoints\":[{\"time\":" + (now - 120_000) + ",\"value\":0.0}]}]",
+                IOUtils.toString(connection.getInputStream(), "UTF-8"));
+        long nextSince = Long.parseLong(connection.getHeaderField("X-Next-Since"));
+        assertTrue(nextSince <= System.currentTimeMillis() - 71_000);
+
+        // A reading from half a minute ago was held back by the swinging door, and is saved with its own time between the two requests
+        saved.add(new long[] {now - 30_000, 1});
+
+        connection = (HttpURLConnection) new URL("http://localhost:1337/charts/electrics/data.json?timeFormat=epoch&since=" + nextSince).openConnection();
+        assertEquals(200, connection.getResponseCode());
+        assertEquals("[{\"label\":\"Washing machine\",\"color\":\"green\",\"dataPoints\":[{\"time\":" + (now - 30_000) + ",\"value\":0.0}]}]", IOUtils.toString(connection.getInputStream(), "UTF-8"));
+    }
+
+    @Test
+    public void testGettingDataSinceTimeWhileMetricsAreSpooled() throws Exception
+    {
+        when(metricsDao.hasUnwrittenMetrics()).thenReturn(true);
+
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:1337/charts/electrics/data.json?since=1518991100000&from=1518991000000&to=1518991200000").openConnection();
+        assertEquals(200, connection.getResponseCode());
+        assertEquals("1518991100000", connection.getHeaderField("X-Next-Since"));
+    }
+
+    @Test
+    public void testGettingDataWithInvalidRange() throws Exception
+    {
+        assertEquals(400, ((HttpURLConnection) new URL("http://localhost:1337/charts/electrics/data.json?from=2000&to=1000").openConnection()).getResponseCode());
+        assertEquals(400, ((HttpURLConnection) new URL("http://localhost:1337/charts/electrics/data.json?since=yesterday").openConnection()).getResponseCode());
+        assertEquals(400, ((HttpURLConnection) new URL("http://localhost:1337/charts/electrics/data.json?to=-1").openConnection()).getResponseCode());
+    }
+
+    @Test
+    public void testGettingDataWithInvalidTimeFormat() throws Exception
+    {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:1337/charts/electrics/data.json?timeFormat=unix").openConnection();
+        int responseCode = connection.getResponseCode();
+
+        assertEquals(400, responseCode);
+    }
+
+    @Test
+    public void testGettingDataWithInvalidMaxPoints() throws Exception
+    {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:1337/charts/electrics/data.json?maxPoints=2").openConnection();
+        int responseCode = connection.getResponseCode();
+
+        assertEquals(400, responseCode);
     }
 
     @Test
@@ -150,4 +414,26 @@ public class ChartsHttpApplicationTest extends AbstractTest
         assertEquals(200, responseCode);
         assertEquals("<!DOCTYPE html><html><head><meta charset=\"utf-8\"/><title>Hello world</title></head><body><noscript>You need to enable JavaScript to run this application.</noscript><div id=\"root\"></div><script type=\"text/javascript\" src=\"./static/js/main.c51a02b9.js\"></script></body></html>", body);
     }
+
+    @Test
+    public void testStreamingMetrics() throws Exception
+    {
+        ArgumentCaptor<IMetricListener> listener = ArgumentCaptor.forClass(IMetricListener.class);
+        verify(metricsDao).onSaved(listener.capture());
+
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:1337/charts/electrics/stream").openConnection();
+        assertEquals(200, connection.getResponseCode());
+        assertEquals("text/event-stream;charset=utf-8", connection.getContentType());
+
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8)))
+        {
+            assertEquals("retry: 10000", reader.readLine());
+            assertEquals("", reader.readLine());
+
+            listener.getValue().saved((byte) 2, 1518991092000L, 1.0);
+            listener.getValue().saved((byte) 1, 1518991131250L, 66.6);
+            assertEquals("data: {\"label\":\"Washing machine\",\"time\":1518991131250,\"value\":66.6}", reader.readLine());
+            assertEquals("", reader.readLine());
+        }
+    }
 }
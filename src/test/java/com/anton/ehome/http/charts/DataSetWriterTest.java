@@ -0,0 +1,98 @@
+/**
+ * Copyright 2017 Anton Johansson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anton.ehome.http.charts;
+
+import static java.time.ZoneOffset.UTC;
+
+import java.io.ByteArrayOutputStream;
+import java.time.Instant;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.anton.ehome.common.AbstractTest;
+import com.anton.ehome.dao.IMetricCursor;
+
+/**
+ * Unit tests of {@link DataSetWriter}.
+ */
+public class DataSetWriterTest extends AbstractTest
+{
+    @Test
+    public void testWritingTimesLikeZonedDateTime() throws Exception
+    {
+        Random random = new Random(1);
+        long[] times = new long[1000];
+        StringBuilder expected = new StringBuilder("[{\"label\":\"Label\",\"color\":\"red\",\"dataPoints\":[");
+        for (int i = 0; i < times.length; i++)
+        {
+            times[i] = (long) (random.nextDouble() * 4_000_000_000_000L);
+            if (i % 3 == 0)
+            {
+                times[i] -= times[i] % 60_000;
+            }
+            else if (i % 3 == 1)
+            {
+                times[i] -= times[i] % 1000;
+            }
+            expected.append(i == 0 ? "" : ",")
+                    .append("{\"time\":\"")
+                    .append(Instant.ofEpochMilli(times[i]).atZone(UTC))
+                    .append("\",\"value\":1.5}");
+        }
+        expected.append("]}]");
+
+        assertEquals(expected.toString(), write(times, false));
+    }
+
+    @Test
+    public void testWritingEpochTimes() throws Exception
+    {
+        assertEquals("[{\"label\":\"Label\",\"color\":\"red\",\"dataPoints\":[{\"time\":1518991092000,\"value\":1.5}]}]",
+                write(new long[] {1518991092000L}, true));
+    }
+
+    private String write(long[] times, boolean epochMillis) throws Exception
+    {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        try (DataSetWriter writer = new DataSetWriter(stream, epochMillis))
+        {
+            writer.write("Label", "red", new IMetricCursor()
+            {
+                private int position = -1;
+
+                @Override
+                public boolean next()
+                {
+                    return ++position < times.length;
+                }
+
+                @Override
+                public long getTime()
+                {
+                    return times[position];
+                }
+
+                @Override
+                public double getValue()
+                {
+                    return 1.5;
+                }
+            });
+        }
+        return stream.toString("UTF-8");
+    }
+}
@@ -0,0 +1,131 @@
+/**
+ * Copyright 2017 Anton Johansson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anton.ehome.http.charts;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.anton.ehome.common.AbstractTest;
+import com.anton.ehome.dao.IMetricCursor;
+
+/**
+ * Unit tests of {@link Downsampler}.
+ */
+public class DownsamplerTest extends AbstractTest
+{
+    private final List<Long> times = new ArrayList<>();
+    private final List<Double> values = new ArrayList<>();
+
+    @Test
+    public void testKeepingFewMetrics()
+    {
+        read(Downsampler.downsample(cursor(1, 2, 3), 0, 3000, 3));
+
+        assertEquals(3, times.size());
+    }
+
+    @Test
+    public void testKeepingFirstLastAndPeaks()
+    {
+        double[] source = new double[10_000];
+        for (int i = 0; i < source.length; i++)
+        {
+            source[i] = i % 2;
+        }
+        source[1234] = 100;
+        source[7777] = -50;
+
+        read(Downsampler.downsample(cursor(source), 0, 9_999_000, 50));
+
+        assertEquals(50, times.size());
+        assertEquals(0, (long) times.get(0));
+        assertEquals(9_999_000, (long) times.get(49));
+        assertTrue(values.contains(100.0));
+        assertTrue(values.contains(-50.0));
+    }
+
+    @Test
+    public void testKeepingTimeOrder()
+    {
+        double[] source = new double[5000];
+        for (int i = 0; i < source.length; i++)
+        {
+            source[i] = Math.sin(i / 10.0);
+        }
+
+        read(Downsampler.downsample(cursor(source), 0, 4_999_000, 37));
+
+        assertTrue(times.size() <= 37);
+        for (int i = 1; i < times.size(); i++)
+        {
+            assertTrue(times.get(i) > times.get(i - 1));
+        }
+    }
+
+    @Test
+    public void testSkippingEmptyBuckets()
+    {
+        double[] source = new double[1000];
+        read(Downsampler.downsample(cursor(source), 0, 100_000_000, 100));
+
+        assertEquals(0, (long) times.get(0));
+        assertEquals(999_000, (long) times.get(times.size() - 1));
+        assertTrue(times.size() <= 3);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTooFewMaxPoints()
+    {
+        Downsampler.downsample(cursor(1, 2, 3), 0, 3000, 2);
+    }
+
+    private void read(IMetricCursor cursor)
+    {
+        while (cursor.next())
+        {
+            times.add(cursor.getTime());
+            values.add(cursor.getValue());
+        }
+    }
+
+    private IMetricCursor cursor(double... source)
+    {
+        return new IMetricCursor()
+        {
+            private int position = -1;
+
+            @Override
+            public boolean next()
+            {
+                return ++position < source.length;
+            }
+
+            @Override
+            public long getTime()
+            {
+                return position * 1000L;
+            }
+
+            @Override
+            public double getValue()
+            {
+                return source[position];
+            }
+        };
+    }
+}
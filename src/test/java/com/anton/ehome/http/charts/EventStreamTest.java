@@ -0,0 +1,95 @@
+/**
+ * Copyright 2017 Anton Johansson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anton.ehome.http.charts;
+
+import static java.util.Arrays.asList;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.nio.charset.StandardCharsets;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletResponse;
+
+import org.junit.Test;
+import org.mockito.Mock;
+
+import com.anton.ehome.common.AbstractTest;
+import com.anton.ehome.conf.Chart;
+import com.anton.ehome.conf.ChartDataSet;
+
+/**
+ * Unit tests of {@link EventStream}.
+ */
+public class EventStreamTest extends AbstractTest
+{
+    private @Mock AsyncContext context;
+    private @Mock ServletResponse response;
+    private @Mock ServletOutputStream output;
+    private @Mock MetricPublisher publisher;
+    private EventStream stream;
+
+    @Override
+    protected void initMocks() throws Exception
+    {
+        when(context.getResponse()).thenReturn(response);
+        when(response.getOutputStream()).thenReturn(output);
+
+        ChartDataSet dataSet = new ChartDataSet();
+        dataSet.setLabel("Washing machine");
+        dataSet.setDeviceId(1);
+
+        Chart chart = new Chart();
+        chart.setDataSets(asList(dataSet));
+
+        stream = new EventStream(context, chart, publisher);
+    }
+
+    @Test
+    public void testPublishing() throws Exception
+    {
+        when(output.isReady()).thenReturn(true);
+        stream.start();
+        stream.onWritePossible();
+        stream.publish((byte) 2, 1000, 1.0);
+        stream.publish((byte) 1, 2000, 2.5);
+
+        verify(publisher).subscribe(stream);
+        verify(output).write("retry: 10000\n\n".getBytes(StandardCharsets.UTF_8));
+        verify(output).write("data: {\"label\":\"Washing machine\",\"time\":2000,\"value\":2.5}\n\n".getBytes(StandardCharsets.UTF_8));
+        verify(output, times(2)).write(any());
+        verify(output, times(2)).flush();
+    }
+
+    @Test
+    public void testSlowConsumer() throws Exception
+    {
+        when(output.isReady()).thenReturn(false);
+        stream.start();
+        for (int index = 1; index < EventStream.CAPACITY; index++)
+        {
+            stream.heartbeat();
+        }
+        verify(context, never()).complete();
+
+        stream.heartbeat();
+        verify(publisher).unsubscribe(stream);
+        verify(context).complete();
+        verify(output, never()).write(any());
+    }
+}
@@ -0,0 +1,177 @@
+/**
+ * Copyright 2017 Anton Johansson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anton.ehome.http.common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.zip.GZIPInputStream;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.io.IOUtils;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.servlet.ServletHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.servlet.ServletMapping;
+import org.junit.Test;
+
+import com.anton.ehome.common.AbstractTest;
+
+/**
+ * Unit tests of {@link AbstractHttpApplication}.
+ */
+public class AbstractHttpApplicationTest extends AbstractTest
+{
+    private static final String MAIN_JS = "http://localhost:1338/test/static/js/main.0123abcd.js";
+
+    private Server server;
+
+    @Override
+    public void setUp() throws Exception
+    {
+        super.setUp();
+
+        ServletHolder holder = new ServletHolder();
+        holder.setServlet(new TestHttpApplication());
+        holder.setName("test");
+
+        ServletMapping mapping = new ServletMapping();
+        mapping.setPathSpec("/test/*");
+        mapping.setServletName("test");
+
+        ServletHandler handler = new ServletHandler();
+        handler.addServlet(holder);
+        handler.addServletMapping(mapping);
+
+        server = new Server(1338);
+        server.setHandler(handler);
+        server.start();
+    }
+
+    @Override
+    public void tearDown() throws Exception
+    {
+        super.tearDown();
+        server.stop();
+    }
+
+    @Test
+    public void testGettingResource() throws Exception
+    {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:1338/test/index.html").openConnection();
+        String body = IOUtils.toString(connection.getInputStream(), "UTF-8");
+
+        assertEquals(200, connection.getResponseCode());
+        assertEquals(expected("/index.html"), body);
+        assertEquals("text/html;charset=utf-8", connection.getContentType());
+        assertEquals(body.length(), connection.getContentLength());
+        assertEquals("no-cache", connection.getHeaderField("Cache-Control"));
+        assertNull(connection.getContentEncoding());
+        assertNotNull(connection.getHeaderField("ETag"));
+    }
+
+    @Test
+    public void testGettingStaticResource() throws Exception
+    {
+        HttpURLConnection connection = (HttpURLConnection) new URL(MAIN_JS).openConnection();
+        String body = IOUtils.toString(connection.getInputStream(), "UTF-8");
+
+        assertEquals(expected("/static/js/main.0123abcd.js"), body);
+        assertEquals("application/javascript;charset=utf-8", connection.getContentType());
+        assertEquals("public, max-age=31536000, immutable", connection.getHeaderField("Cache-Control"));
+        assertEquals("Accept-Encoding", connection.getHeaderField("Vary"));
+    }
+
+    @Test
+    public void testGettingCompressedResource() throws Exception
+    {
+        HttpURLConnection connection = (HttpURLConnection) new URL(MAIN_JS).openConnection();
+        connection.setRequestProperty("Accept-Encoding", "deflate, gzip");
+        String body;
+        try (InputStream stream = new GZIPInputStream(connection.getInputStream()))
+        {
+            body = IOUtils.toString(stream, "UTF-8");
+        }
+
+        assertEquals("gzip", connection.getContentEncoding());
+        assertTrue(connection.getContentLength() < body.length());
+        assertEquals(expected("/static/js/main.0123abcd.js"), body);
+        assertTrue(connection.getHeaderField("ETag").endsWith("-gzip\""));
+    }
+
+    @Test
+    public void testGettingResourceWhenGzipIsNotAcceptable() throws Exception
+    {
+        HttpURLConnection connection = (HttpURLConnection) new URL(MAIN_JS).openConnection();
+        connection.setRequestProperty("Accept-Encoding", "gzip;q=0, deflate");
+
+        assertEquals(200, connection.getResponseCode());
+        assertNull(connection.getContentEncoding());
+    }
+
+    @Test
+    public void testGettingUnmodifiedResource() throws Exception
+    {
+        HttpURLConnection connection = (HttpURLConnection) new URL(MAIN_JS).openConnection();
+        String etag = connection.getHeaderField("ETag");
+
+        connection = (HttpURLConnection) new URL(MAIN_JS).openConnection();
+        connection.setRequestProperty("If-None-Match", etag);
+        assertEquals(304, connection.getResponseCode());
+
+        connection = (HttpURLConnection) new URL(MAIN_JS).openConnection();
+        connection.setRequestProperty("If-None-Match", etag);
+        connection.setRequestProperty("Accept-Encoding", "gzip");
+        assertEquals(200, connection.getResponseCode());
+    }
+
+    @Test
+    public void testGettingMissingResource() throws Exception
+    {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:1338/test/missing.js").openConnection();
+
+        assertEquals(404, connection.getResponseCode());
+    }
+
+    private String expected(String path) throws IOException
+    {
+        try (InputStream stream = AbstractHttpApplicationTest.class.getResourceAsStream("/html-test" + path))
+        {
+            return IOUtils.toString(stream, "UTF-8");
+        }
+    }
+
+    /**
+     * An HTTP application that serves the test bundle.
+     */
+    private static class TestHttpApplication extends AbstractHttpApplication
+    {
+        private TestHttpApplication()
+        {
+            super("test");
+            preloadResources("/html-test");
+        }
+
+        @Override
+        protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException
+        {
+            proxyToResource("/html-test", getActualPath(request), request, response);
+        }
+    }
+}
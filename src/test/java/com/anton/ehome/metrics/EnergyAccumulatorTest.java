@@ -0,0 +1,194 @@
+/**
+ * Copyright 2017 Anton Johansson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anton.ehome.metrics;
+
+import static java.util.Collections.emptyMap;
+import static java.util.Collections.singletonMap;
+import static org.mockito.ArgumentMatchers.anyByte;
+import static org.mockito.ArgumentMatchers.anyDouble;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+import org.mockito.Mock;
+
+import com.anton.ehome.common.AbstractTest;
+import com.anton.ehome.conf.Config;
+import com.anton.ehome.conf.IConfigService;
+import com.anton.ehome.dao.IEnergyDao;
+import com.anton.ehome.domain.Energy;
+import com.anton.ehome.domain.EnergyPeriod;
+
+/**
+ * Unit tests of {@link EnergyAccumulator}.
+ */
+public class EnergyAccumulatorTest extends AbstractTest
+{
+    private static final ZoneId ZONE = ZoneOffset.ofHours(1);
+    private static final long DAY = time(2018, 3, 14, 0, 0);
+    private static final long MONTH = time(2018, 3, 1, 0, 0);
+
+    private final AtomicLong clock = new AtomicLong(time(2018, 3, 14, 12, 0));
+    private @Mock IEnergyDao energyDao;
+    private @Mock IConfigService configService;
+    private EnergyAccumulator accumulator;
+
+    @Override
+    protected void initMocks() throws Exception
+    {
+        when(configService.getCurrentConfig()).thenReturn(new Config());
+        when(energyDao.getEnergy(any(), anyLong())).thenReturn(emptyMap());
+        accumulator = new EnergyAccumulator(energyDao, configService, ZONE, clock::get);
+    }
+
+    private static long time(int year, int month, int day, int hour, int minute)
+    {
+        return LocalDateTime.of(year, month, day, hour, minute).atZone(ZONE).toInstant().toEpochMilli();
+    }
+
+    @Test
+    public void testIntegratingWithTrapezoidalRule()
+    {
+        accumulator.add((byte) 3, time(2018, 3, 14, 10, 0), 1000);
+        accumulator.add((byte) 3, time(2018, 3, 14, 10, 30), 2000);
+        accumulator.add((byte) 3, time(2018, 3, 14, 11, 0), 2000);
+
+        List<Energy> energy = accumulator.getEnergy();
+        assertEquals(1, energy.size());
+        assertEquals(3, energy.get(0).getNodeId());
+        assertEquals(1.75, energy.get(0).getToday(), 1e-9);
+        assertEquals(1.75, energy.get(0).getThisMonth(), 1e-9);
+    }
+
+    @Test
+    public void testIgnoringLongGapsAndOldReadings()
+    {
+        accumulator.add((byte) 3, time(2018, 3, 14, 8, 0), 1000);
+        accumulator.add((byte) 3, time(2018, 3, 14, 10, 0), 1000);
+        accumulator.add((byte) 3, time(2018, 3, 14, 11, 0), 1000);
+        accumulator.add((byte) 3, time(2018, 3, 14, 10, 30), 5000);
+
+        assertEquals(1.0, accumulator.getEnergy().get(0).getToday(), 1e-9);
+    }
+
+    @Test
+    public void testSplittingAtMidnight()
+    {
+        clock.set(time(2018, 3, 14, 0, 30));
+        accumulator.add((byte) 3, time(2018, 3, 13, 23, 30), 0);
+        accumulator.add((byte) 3, time(2018, 3, 14, 0, 30), 2000);
+
+        Energy energy = accumulator.getEnergy().get(0);
+        assertEquals(0.75, energy.getToday(), 1e-9);
+        assertEquals(1.0, energy.getThisMonth(), 1e-9);
+
+        accumulator.save();
+        verify(energyDao).saveEnergy((byte) 3, EnergyPeriod.DAY, time(2018, 3, 13, 0, 0), 0.25);
+        verify(energyDao).saveEnergy((byte) 3, EnergyPeriod.DAY, DAY, 0.75);
+        verify(energyDao).saveEnergy((byte) 3, EnergyPeriod.MONTH, MONTH, 1.0);
+    }
+
+    @Test
+    public void testOldPeriodsAreNotReported()
+    {
+        accumulator.add((byte) 3, time(2018, 3, 13, 10, 0), 1000);
+        accumulator.add((byte) 3, time(2018, 3, 13, 11, 0), 1000);
+
+        Energy energy = accumulator.getEnergy().get(0);
+        assertEquals(0.0, energy.getToday(), 0.0);
+        assertEquals(1.0, energy.getThisMonth(), 1e-9);
+
+        clock.set(time(2018, 4, 1, 0, 0));
+        assertTrue(accumulator.getEnergy().isEmpty());
+    }
+
+    @Test
+    public void testSavingOnlyModifiedPeriods()
+    {
+        accumulator.add((byte) 3, time(2018, 3, 14, 10, 0), 1000);
+        accumulator.add((byte) 3, time(2018, 3, 14, 11, 0), 1000);
+        accumulator.save();
+        accumulator.save();
+
+        verify(energyDao).saveEnergy((byte) 3, EnergyPeriod.DAY, DAY, 1.0);
+        verify(energyDao).saveEnergy((byte) 3, EnergyPeriod.MONTH, MONTH, 1.0);
+    }
+
+    @Test
+    public void testContinuingFromSavedEnergy()
+    {
+        when(energyDao.getEnergy(EnergyPeriod.DAY, DAY)).thenReturn(singletonMap((byte) 3, 2.0));
+        when(energyDao.getEnergy(EnergyPeriod.MONTH, MONTH)).thenReturn(singletonMap((byte) 3, 20.0));
+        accumulator.start();
+        accumulator.stop();
+
+        Energy energy = accumulator.getEnergy().get(0);
+        assertEquals(2.0, energy.getToday(), 1e-9);
+        assertEquals(20.0, energy.getThisMonth(), 1e-9);
+
+        accumulator.add((byte) 3, time(2018, 3, 14, 10, 0), 1000);
+        accumulator.add((byte) 3, time(2018, 3, 14, 11, 0), 1000);
+        energy = accumulator.getEnergy().get(0);
+        assertEquals(3.0, energy.getToday(), 1e-9);
+        assertEquals(21.0, energy.getThisMonth(), 1e-9);
+    }
+
+    @Test
+    public void testNotSavingBeforeSavedEnergyIsLoaded()
+    {
+        when(energyDao.getEnergy(any(), anyLong())).thenThrow(new RuntimeException("Unreachable"));
+        accumulator.add((byte) 3, time(2018, 3, 14, 10, 0), 1000);
+        accumulator.add((byte) 3, time(2018, 3, 14, 11, 0), 1000);
+        try
+        {
+            accumulator.save();
+            fail("Expected the energy to not be saved");
+        }
+        catch (RuntimeException e)
+        {
+            assertEquals("Unreachable", e.getMessage());
+        }
+        verify(energyDao, never()).saveEnergy(anyByte(), any(), anyLong(), anyDouble());
+
+        doReturn(singletonMap((byte) 3, 2.0)).when(energyDao).getEnergy(any(), anyLong());
+        accumulator.save();
+        verify(energyDao).saveEnergy((byte) 3, EnergyPeriod.DAY, DAY, 3.0);
+        verify(energyDao).saveEnergy((byte) 3, EnergyPeriod.MONTH, MONTH, 3.0);
+    }
+
+    @Test
+    public void testSavingAgainAfterFailure()
+    {
+        doThrow(new RuntimeException("Unreachable")).doNothing().when(energyDao).saveEnergy(anyByte(), eq(EnergyPeriod.MONTH), anyLong(), anyDouble());
+        accumulator.add((byte) 3, time(2018, 3, 14, 10, 0), 1000);
+        accumulator.add((byte) 3, time(2018, 3, 14, 11, 0), 1000);
+        accumulator.save();
+        accumulator.save();
+
+        verify(energyDao, times(1)).saveEnergy((byte) 3, EnergyPeriod.DAY, DAY, 1.0);
+        verify(energyDao, times(2)).saveEnergy((byte) 3, EnergyPeriod.MONTH, MONTH, 1.0);
+    }
+}
@@ -0,0 +1,321 @@
+/**
+ * Copyright 2017 Anton Johansson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anton.ehome.metrics;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static java.util.stream.Collectors.toList;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mock;
+
+import com.anton.ehome.common.AbstractTest;
+import com.anton.ehome.conf.Config;
+import com.anton.ehome.conf.IConfigService;
+import com.anton.ehome.conf.Scale;
+import com.anton.ehome.conf.ZWaveConfig;
+import com.anton.ehome.conf.ZWaveMonitoringConfig;
+import com.anton.ehome.dao.IMetricsDao;
+import com.anton.ehome.zwave.Device;
+import com.anton.ehome.zwave.IZWaveController;
+import com.anton.ehome.zwave.IZWaveManager;
+import com.whizzosoftware.wzwave.commandclass.MeterCommandClass;
+import com.whizzosoftware.wzwave.commandclass.MeterCommandClass.MeterReadingValue;
+import com.whizzosoftware.wzwave.node.ZWaveNode;
+
+/**
+ * Unit tests of {@link MetricsDaemon}.
+ */
+public class MetricsDaemonTest extends AbstractTest
+{
+    private static final byte NODE_ID = 5;
+    private static final int INTERVAL = 3600;
+
+    private @Mock IZWaveManager zwaveManager;
+    private @Mock IConfigService configService;
+    private @Mock IMetricsDao metricsDao;
+    private @Mock EnergyAccumulator energyAccumulator;
+    private @Mock ZWaveNode node;
+    private @Mock MeterCommandClass commandClass;
+    private final FakeController controller = new FakeController("home");
+    private volatile long now;
+    private MeterReadingValue reading;
+    private MetricsDaemon daemon;
+
+    @Override
+    protected void initMocks() throws Exception
+    {
+        ZWaveMonitoringConfig monitoringConfig = new ZWaveMonitoringConfig();
+        monitoringConfig.setNodeId(NODE_ID);
+        monitoringConfig.setScale(Scale.WATTS);
+        monitoringConfig.setInterval(INTERVAL);
+
+        ZWaveConfig zwaveConfig = new ZWaveConfig();
+        zwaveConfig.setName("home");
+        zwaveConfig.setMonitoringValues(asList(monitoringConfig));
+
+        Config config = new Config();
+        config.setZwaveConfigs(asList(zwaveConfig));
+        when(configService.getCurrentConfig()).thenReturn(config);
+
+        when(node.getCommandClass(MeterCommandClass.ID)).thenReturn(commandClass);
+        when(commandClass.getLastValue(any())).thenAnswer(invocation -> reading);
+        controller.devices.add(new Device(NODE_ID, "Meter", node));
+        when(zwaveManager.getControllers()).thenReturn(asList(controller));
+
+        // The first poll is due halfway into the interval, and the clock only moves for the test thread, so the daemon never polls by itself
+        Thread testThread = Thread.currentThread();
+        PollScheduler scheduler = new PollScheduler(() -> Thread.currentThread() == testThread ? now : 0, new Random()
+        {
+            @Override
+            public double nextDouble()
+            {
+                return 0.5;
+            }
+        });
+        daemon = new MetricsDaemon(zwaveManager, configService, metricsDao, energyAccumulator, scheduler);
+    }
+
+    @Override
+    public void tearDown() throws Exception
+    {
+        super.tearDown();
+        daemon.stop();
+    }
+
+    /**
+     * Starts the daemon, and rebuilds its index right away, as a modified configuration does.
+     */
+    private Consumer<Config> start()
+    {
+        daemon.start();
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<Consumer<Config>> listener = ArgumentCaptor.forClass(Consumer.class);
+        verify(configService).onModified(listener.capture());
+        listener.getValue().accept(configService.getCurrentConfig());
+        return listener.getValue();
+    }
+
+    private void advance(long seconds)
+    {
+        now += SECONDS.toNanos(seconds);
+    }
+
+    private void advanceMillis(long millis)
+    {
+        now += MILLISECONDS.toNanos(millis);
+    }
+
+    private MeterReadingValue reading(double value)
+    {
+        MeterReadingValue reading = mock(MeterReadingValue.class);
+        when(reading.getCurrentValue()).thenReturn(value);
+        return reading;
+    }
+
+    @Test
+    public void testStoppingWithoutWaitingForTheLoop() throws Exception
+    {
+        start();
+        List<Thread> threads = Thread.getAllStackTraces().keySet().stream()
+                .filter(thread -> thread.getName().equals("metrics-daemon"))
+                .collect(toList());
+        assertFalse(threads.isEmpty());
+
+        // The loop otherwise waits for ten seconds before it checks the controllers again
+        daemon.stop();
+        for (Thread thread : threads)
+        {
+            thread.join(SECONDS.toMillis(2));
+            assertFalse(thread.isAlive());
+        }
+    }
+
+    @Test
+    public void testStoringPushedMeterReports()
+    {
+        start();
+
+        reading = reading(100.0);
+        advance(INTERVAL / 2);
+        controller.update(NODE_ID);
+        verify(metricsDao).save(ArgumentMatchers.eq(NODE_ID), ArgumentMatchers.eq(100.0), anyLong());
+
+        // Another update of the device, without a new meter report, is not stored even though the interval has passed
+        advance(INTERVAL);
+        controller.update(NODE_ID);
+        verify(metricsDao, times(1)).save(ArgumentMatchers.anyByte(), ArgumentMatchers.anyDouble(), anyLong());
+
+        reading = reading(200.0);
+        controller.update(NODE_ID);
+        verify(metricsDao).save(ArgumentMatchers.eq(NODE_ID), ArgumentMatchers.eq(200.0), anyLong());
+    }
+
+    @Test
+    public void testThrottlingPushedMeterReportsToInterval()
+    {
+        start();
+
+        reading = reading(100.0);
+        controller.update(NODE_ID);
+        verify(metricsDao, never()).save(ArgumentMatchers.anyByte(), ArgumentMatchers.anyDouble(), anyLong());
+
+        advance(INTERVAL / 2);
+        controller.update(NODE_ID);
+        verify(metricsDao).save(ArgumentMatchers.eq(NODE_ID), ArgumentMatchers.eq(100.0), anyLong());
+    }
+
+    @Test
+    public void testThrottlingPushedMeterReportsToIntervalInMilliseconds()
+    {
+        configService.getCurrentConfig().getZwaveConfigs().get(0).getMonitoringValues().get(0).setIntervalMillis(250);
+        start();
+
+        reading = reading(100.0);
+        advanceMillis(125);
+        controller.update(NODE_ID);
+        verify(metricsDao).save(ArgumentMatchers.eq(NODE_ID), ArgumentMatchers.eq(100.0), anyLong());
+
+        reading = reading(200.0);
+        advanceMillis(100);
+        controller.update(NODE_ID);
+        verify(metricsDao, never()).save(ArgumentMatchers.eq(NODE_ID), ArgumentMatchers.eq(200.0), anyLong());
+
+        advanceMillis(150);
+        controller.update(NODE_ID);
+        verify(metricsDao).save(ArgumentMatchers.eq(NODE_ID), ArgumentMatchers.eq(200.0), anyLong());
+    }
+
+    @Test
+    public void testNotStoringUpdatesOfDevicesThatAreNotMonitored()
+    {
+        start();
+
+        reading = reading(100.0);
+        advance(INTERVAL / 2);
+        controller.devices.add(new Device((byte) 6, "Meter", node));
+        controller.update((byte) 6);
+        verify(metricsDao, never()).save(ArgumentMatchers.anyByte(), ArgumentMatchers.anyDouble(), anyLong());
+    }
+
+    @Test
+    public void testUnsubscribingFromRemovedControllers()
+    {
+        Consumer<Config> rebuild = start();
+        assertEquals(1, controller.addedListeners.size());
+        assertEquals(1, controller.updatedListeners.size());
+
+        // A rebuild with the same controller doesn't subscribe again
+        rebuild.accept(configService.getCurrentConfig());
+        assertEquals(1, controller.updatedListeners.size());
+
+        when(zwaveManager.getControllers()).thenReturn(emptyList());
+        rebuild.accept(configService.getCurrentConfig());
+        assertTrue(controller.addedListeners.isEmpty());
+        assertTrue(controller.updatedListeners.isEmpty());
+    }
+
+    /**
+     * A controller that devices can be added to and updated in by the test.
+     */
+    private static class FakeController implements IZWaveController
+    {
+        private final List<Device> devices = new ArrayList<>();
+        private final List<Consumer<Device>> addedListeners = new CopyOnWriteArrayList<>();
+        private final List<Consumer<Device>> updatedListeners = new CopyOnWriteArrayList<>();
+        private final String name;
+
+        private FakeController(String name)
+        {
+            this.name = name;
+        }
+
+        private void update(byte nodeId)
+        {
+            Device device = getDevice(nodeId).get();
+            updatedListeners.forEach(listener -> listener.accept(device));
+        }
+
+        @Override
+        public String getName()
+        {
+            return name;
+        }
+
+        @Override
+        public String getSerialPort()
+        {
+            return "/dev/ttyACM0";
+        }
+
+        @Override
+        public List<Device> getDevices()
+        {
+            return devices;
+        }
+
+        @Override
+        public Optional<Device> getDevice(byte nodeId)
+        {
+            return devices.stream().filter(device -> device.getNodeId() == nodeId).findFirst();
+        }
+
+        @Override
+        public void onDeviceAdded(Consumer<Device> listener)
+        {
+            addedListeners.add(listener);
+        }
+
+        @Override
+        public void onDeviceUpdated(Consumer<Device> listener)
+        {
+            updatedListeners.add(listener);
+        }
+
+        @Override
+        public void removeListener(Consumer<Device> listener)
+        {
+            addedListeners.remove(listener);
+            updatedListeners.remove(listener);
+        }
+
+        @Override
+        public void startMonitor(byte nodeId)
+        {
+        }
+
+        @Override
+        public boolean stopMonitor(byte nodeId)
+        {
+            return true;
+        }
+    }
+}
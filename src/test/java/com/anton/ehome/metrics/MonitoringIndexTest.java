@@ -0,0 +1,128 @@
+/**
+ * Copyright 2017 Anton Johansson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anton.ehome.metrics;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.List;
+import java.util.Optional;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.anton.ehome.conf.Config;
+import com.anton.ehome.conf.Scale;
+import com.anton.ehome.conf.ZWaveConfig;
+import com.anton.ehome.conf.ZWaveMonitoringConfig;
+import com.anton.ehome.metrics.MonitoringIndex.Entry;
+import com.anton.ehome.zwave.Device;
+import com.anton.ehome.zwave.IZWaveController;
+
+/**
+ * Unit tests of {@link MonitoringIndex}.
+ */
+public class MonitoringIndexTest extends Assert
+{
+    private Config config;
+    private Device device;
+    private IZWaveController controller;
+
+    @Before
+    public void setUp()
+    {
+        device = new Device((byte) 2, "deviceType", null);
+        controller = mock(IZWaveController.class);
+        when(controller.getName()).thenReturn("default");
+        when(controller.getDevice((byte) 2)).thenReturn(Optional.of(device));
+
+        ZWaveConfig zwaveConfig = new ZWaveConfig();
+        zwaveConfig.setName("default");
+        zwaveConfig.getMonitoringValues().add(monitoringConfig((byte) 2, 10));
+        zwaveConfig.getMonitoringValues().add(monitoringConfig((byte) 200, 60));
+        zwaveConfig.getMonitoringValues().add(monitoringConfig((byte) 3, 0));
+        zwaveConfig.getMonitoringValues().add(monitoringConfig((byte) 4, 0));
+        zwaveConfig.getMonitoringValues().get(3).setIntervalMillis(500);
+
+        config = new Config();
+        config.setZwaveConfigs(singletonList(zwaveConfig));
+    }
+
+    private ZWaveMonitoringConfig monitoringConfig(byte nodeId, int interval)
+    {
+        ZWaveMonitoringConfig monitoringConfig = new ZWaveMonitoringConfig();
+        monitoringConfig.setNodeId(nodeId);
+        monitoringConfig.setScale(Scale.WATTS);
+        monitoringConfig.setInterval(interval);
+        return monitoringConfig;
+    }
+
+    @Test
+    public void test_build()
+    {
+        MonitoringIndex index = MonitoringIndex.build(config, singletonList(controller), MonitoringIndex.EMPTY);
+
+        Entry entry = index.get("default", (byte) 2);
+        assertEquals(2, entry.getSlot());
+        assertSame(entry, index.get(2));
+        assertSame(controller, entry.getController());
+        assertSame(device, entry.getDevice());
+        assertEquals(10_000, entry.getInterval());
+
+        Entry missingDevice = index.get("default", (byte) 200);
+        assertNull(missingDevice.getDevice());
+        assertEquals(200, missingDevice.getSlot());
+        assertEquals(60_000, missingDevice.getInterval());
+
+        Entry subSecond = index.get("default", (byte) 4);
+        assertEquals(500, subSecond.getInterval());
+
+        assertNull(index.get("default", (byte) 3));
+        assertNull(index.get("default", (byte) 5));
+        assertNull(index.get("unknown", (byte) 2));
+        assertEquals(asList(entry, missingDevice, subSecond), index.getEntries());
+    }
+
+    @Test
+    public void test_slots_are_kept_between_indexes()
+    {
+        IZWaveController other = mock(IZWaveController.class);
+        when(other.getName()).thenReturn("other");
+
+        MonitoringIndex first = MonitoringIndex.build(config, singletonList(controller), MonitoringIndex.EMPTY);
+        MonitoringIndex second = MonitoringIndex.build(config, asList(other, controller), first);
+
+        assertEquals(2, second.get("default", (byte) 2).getSlot());
+        assertEquals(200, second.get("default", (byte) 200).getSlot());
+        assertNull(second.get(258));
+        assertNull(second.get(-1));
+    }
+
+    @Test
+    public void test_isBuiltFrom()
+    {
+        List<IZWaveController> controllers = singletonList(controller);
+        MonitoringIndex index = MonitoringIndex.build(config, controllers, MonitoringIndex.EMPTY);
+
+        assertTrue(index.isBuiltFrom(controllers));
+        assertFalse(index.isBuiltFrom(asList(controller, mock(IZWaveController.class))));
+        assertFalse(index.isBuiltFrom(singletonList(mock(IZWaveController.class))));
+        assertFalse(MonitoringIndex.EMPTY.isBuiltFrom(controllers));
+    }
+}
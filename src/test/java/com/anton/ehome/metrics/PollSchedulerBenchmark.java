@@ -0,0 +1,103 @@
+/**
+ * Copyright 2017 Anton Johansson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anton.ehome.metrics;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import java.util.Random;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Benchmarks of the poll decisions of {@link PollScheduler}.
+ * <p>
+ * Run with the main method, which attaches the GC profiler. The {@code gc.alloc.rate.norm} metric shows the number of bytes allocated per
+ * operation, which is expected to be zero.
+ * </p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PollSchedulerBenchmark
+{
+    private static final int NUMBER_OF_SLOTS = 2 * PollScheduler.SLOTS_PER_CONTROLLER;
+
+    private long now;
+    private int next;
+    private PollScheduler scheduler;
+
+    @Setup
+    public void setUp()
+    {
+        scheduler = new PollScheduler(() -> now, new Random(0));
+        for (int slot = 0; slot < NUMBER_OF_SLOTS; slot++)
+        {
+            scheduler.schedule(slot, 1000);
+        }
+    }
+
+    @Benchmark
+    public int poll() throws InterruptedException
+    {
+        now += 1_000_000;
+        return scheduler.poll(0);
+    }
+
+    @Benchmark
+    public boolean tryAcquire()
+    {
+        now += 1_000_000;
+        next = (next + 1) % NUMBER_OF_SLOTS;
+        return scheduler.tryAcquire(next);
+    }
+
+    @Benchmark
+    public int retry() throws InterruptedException
+    {
+        now += 1_000_000;
+        int slot = scheduler.poll(0);
+        if (slot != PollScheduler.NONE)
+        {
+            scheduler.retry(slot, 100);
+        }
+        return slot;
+    }
+
+    public static void main(String[] args) throws RunnerException
+    {
+        new Runner(new OptionsBuilder()
+                .include(PollSchedulerBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build())
+                .run();
+    }
+}
@@ -0,0 +1,214 @@
+/**
+ * Copyright 2017 Anton Johansson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anton.ehome.metrics;
+
+import static com.anton.ehome.metrics.PollScheduler.NONE;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.management.ThreadMXBean;
+
+/**
+ * Unit tests of {@link PollScheduler}.
+ */
+public class PollSchedulerTest extends Assert
+{
+    private long now;
+    private double offset;
+    private PollScheduler scheduler;
+
+    @Before
+    public void setUp()
+    {
+        now = 0;
+        offset = 0;
+        scheduler = new PollScheduler(() -> now, new Random()
+        {
+            @Override
+            public double nextDouble()
+            {
+                return offset;
+            }
+        });
+    }
+
+    private void advance(long milliseconds)
+    {
+        now += MILLISECONDS.toNanos(milliseconds);
+    }
+
+    @Test
+    public void test_poll_in_order_of_due_time() throws InterruptedException
+    {
+        offset = 0.5;
+        scheduler.schedule(1, 900);
+        scheduler.schedule(2, 200);
+
+        assertEquals(NONE, scheduler.poll(0));
+        advance(100);
+        assertEquals(2, scheduler.poll(0));
+        assertEquals(NONE, scheduler.poll(0));
+        advance(200);
+        assertEquals(2, scheduler.poll(0));
+        advance(200);
+        assertEquals(1, scheduler.poll(0));
+        assertEquals(2, scheduler.poll(0));
+        assertEquals(NONE, scheduler.poll(0));
+    }
+
+    @Test
+    public void test_poll_many_slots() throws InterruptedException
+    {
+        for (int slot = 0; slot < 1000; slot++)
+        {
+            offset = ((slot * 7919) % 1000) / 1000.0;
+            scheduler.schedule(slot, 1000);
+        }
+        for (int slot = 0; slot < 1000; slot += 3)
+        {
+            assertTrue(scheduler.remove(slot));
+        }
+
+        advance(1000);
+        long previous = Long.MIN_VALUE;
+        int polled = 0;
+        for (int slot = scheduler.poll(0); slot != NONE; slot = scheduler.poll(0))
+        {
+            assertNotEquals(0, slot % 3);
+            long position = (slot * 7919) % 1000;
+            assertTrue(position >= previous);
+            previous = position;
+            polled++;
+            if (polled == 666)
+            {
+                break;
+            }
+        }
+        assertEquals(666, polled);
+    }
+
+    @Test
+    public void test_schedule_with_shorter_interval() throws InterruptedException
+    {
+        scheduler.schedule(1, 1000);
+        assertEquals(1, scheduler.poll(0));
+
+        scheduler.schedule(1, 100);
+        advance(100);
+        assertEquals(1, scheduler.poll(0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void test_schedule_with_invalid_interval()
+    {
+        scheduler.schedule(1, 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void test_schedule_with_invalid_slot()
+    {
+        scheduler.schedule(-1, 1000);
+    }
+
+    @Test
+    public void test_remove() throws InterruptedException
+    {
+        scheduler.schedule(1, 1000);
+        scheduler.schedule(300, 1000);
+        assertTrue(scheduler.isScheduled(1));
+        assertTrue(scheduler.isScheduled(300));
+
+        assertTrue(scheduler.remove(1));
+        assertFalse(scheduler.remove(1));
+        assertFalse(scheduler.remove(1000));
+        assertFalse(scheduler.isScheduled(1));
+        assertEquals(300, scheduler.poll(0));
+        assertEquals(NONE, scheduler.poll(0));
+    }
+
+    @Test
+    public void test_tryAcquire() throws InterruptedException
+    {
+        assertFalse(scheduler.tryAcquire(1));
+
+        scheduler.schedule(1, 1000);
+        assertTrue(scheduler.tryAcquire(1));
+        assertFalse(scheduler.tryAcquire(1));
+        assertEquals(NONE, scheduler.poll(0));
+
+        advance(1000);
+        assertTrue(scheduler.tryAcquire(1));
+        assertEquals(NONE, scheduler.poll(0));
+    }
+
+    @Test
+    public void test_retry() throws InterruptedException
+    {
+        scheduler.schedule(1, 10_000);
+        assertEquals(1, scheduler.poll(0));
+
+        scheduler.retry(1, 1000);
+        advance(999);
+        assertEquals(NONE, scheduler.poll(0));
+        advance(1);
+        assertEquals(1, scheduler.poll(0));
+    }
+
+    @Test
+    public void test_retry_is_limited_by_interval() throws InterruptedException
+    {
+        scheduler.schedule(1, 500);
+        assertEquals(1, scheduler.poll(0));
+
+        scheduler.retry(1, 1000);
+        advance(500);
+        assertEquals(1, scheduler.poll(0));
+    }
+
+    @Test
+    public void test_poll_decisions_do_not_allocate() throws InterruptedException
+    {
+        ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        for (int slot = 0; slot < 512; slot++)
+        {
+            scheduler.schedule(slot, 1000);
+        }
+
+        long before = threads.getThreadAllocatedBytes(threadId);
+        long baseline = threads.getThreadAllocatedBytes(threadId) - before;
+        before = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < 10_000; i++)
+        {
+            advance(10);
+            int slot = scheduler.poll(0);
+            if (slot != NONE)
+            {
+                scheduler.retry(slot, 100);
+            }
+            scheduler.tryAcquire(i % 512);
+        }
+        long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+
+        assertEquals(baseline, allocated);
+    }
+}
@@ -0,0 +1,169 @@
+/**
+ * Copyright 2017 Anton Johansson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anton.ehome.metrics;
+
+import static java.util.Arrays.asList;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.anton.ehome.conf.DeadbandType;
+import com.anton.ehome.conf.RecordingMode;
+import com.anton.ehome.conf.ZWaveMonitoringConfig;
+
+/**
+ * Unit tests of {@link RecordingFilter}.
+ */
+public class RecordingFilterTest extends Assert
+{
+    private final List<String> stored = new ArrayList<>();
+    private RecordingFilter filter;
+    private ZWaveMonitoringConfig config;
+
+    @Before
+    public void setUp()
+    {
+        filter = new RecordingFilter();
+        config = new ZWaveMonitoringConfig();
+        config.setHeartbeat(0);
+    }
+
+    private void offer(long time, double value)
+    {
+        filter.offer(300, config, time, value, (t, v) -> stored.add(t + "=" + v));
+    }
+
+    @Test
+    public void test_all()
+    {
+        offer(1000, 5);
+        offer(2000, 5);
+        offer(3000, 5);
+
+        assertEquals(asList("1000=5.0", "2000=5.0", "3000=5.0"), stored);
+        assertEquals(0, filter.getSuppressed());
+    }
+
+    @Test
+    public void test_absolute_deadband()
+    {
+        config.setRecordingMode(RecordingMode.DEADBAND);
+        config.setDeadband(2);
+
+        offer(1000, 10);
+        offer(2000, 11);
+        offer(3000, 12);
+        offer(4000, 12.5);
+        offer(5000, 9.5);
+
+        assertEquals(asList("1000=10.0", "4000=12.5", "5000=9.5"), stored);
+        assertEquals(2, filter.getSuppressed());
+    }
+
+    @Test
+    public void test_percent_deadband()
+    {
+        config.setRecordingMode(RecordingMode.DEADBAND);
+        config.setDeadband(10);
+        config.setDeadbandType(DeadbandType.PERCENT);
+
+        offer(1000, 200);
+        offer(2000, 219);
+        offer(3000, 221);
+        offer(4000, 240);
+
+        assertEquals(asList("1000=200.0", "3000=221.0"), stored);
+        assertEquals(2, filter.getSuppressed());
+    }
+
+    @Test
+    public void test_heartbeat()
+    {
+        config.setRecordingMode(RecordingMode.DEADBAND);
+        config.setDeadband(100);
+        config.setHeartbeat(5);
+
+        offer(1000, 10);
+        offer(3000, 10);
+        offer(6000, 10);
+        offer(8000, 10);
+
+        assertEquals(asList("1000=10.0", "6000=10.0"), stored);
+        assertEquals(2, filter.getSuppressed());
+    }
+
+    @Test
+    public void test_swinging_door()
+    {
+        config.setRecordingMode(RecordingMode.SWINGING_DOOR);
+        config.setDeadband(1);
+
+        // A straight line, which only needs its end points
+        offer(1000, 0);
+        offer(2000, 10);
+        offer(3000, 20);
+        offer(4000, 30);
+        assertEquals(asList("1000=0.0"), stored);
+
+        // A break in the line stores the last reading on the line
+        offer(5000, 30);
+        assertEquals(asList("1000=0.0", "4000=30.0"), stored);
+
+        offer(6000, 30.5);
+        offer(7000, 29.5);
+        assertEquals(asList("1000=0.0", "4000=30.0"), stored);
+        assertEquals(4, filter.getSuppressed());
+    }
+
+    @Test
+    public void test_swinging_door_with_heartbeat()
+    {
+        config.setRecordingMode(RecordingMode.SWINGING_DOOR);
+        config.setDeadband(1);
+        config.setHeartbeat(3);
+
+        offer(1000, 10);
+        offer(2000, 10);
+        offer(3000, 10);
+        offer(4000, 10);
+
+        assertEquals(asList("1000=10.0", "3000=10.0", "4000=10.0"), stored);
+        assertEquals(1, filter.getSuppressed());
+    }
+
+    @Test
+    public void test_changing_mode_and_reset()
+    {
+        config.setRecordingMode(RecordingMode.DEADBAND);
+        config.setDeadband(100);
+        offer(1000, 10);
+        offer(2000, 10);
+
+        config.setRecordingMode(RecordingMode.ALL);
+        offer(3000, 10);
+
+        config.setRecordingMode(RecordingMode.DEADBAND);
+        offer(4000, 10);
+        filter.reset(300);
+        offer(5000, 10);
+
+        assertEquals(asList("1000=10.0", "3000=10.0", "4000=10.0", "5000=10.0"), stored);
+    }
+}
@@ -78,6 +78,30 @@ public class ShowCurrentConfigCommandTest extends Assert
         inOrder.verify(communicator).newLine();
         inOrder.verify(communicator).write("  \"httpPort\": 8080,");
         inOrder.verify(communicator).newLine();
+        inOrder.verify(communicator).write("  \"httpConfig\": {");
+        inOrder.verify(communicator).newLine();
+        inOrder.verify(communicator).write("    \"minThreads\": 4,");
+        inOrder.verify(communicator).newLine();
+        inOrder.verify(communicator).write("    \"maxThreads\": 32,");
+        inOrder.verify(communicator).newLine();
+        inOrder.verify(communicator).write("    \"maxQueuedRequests\": 256,");
+        inOrder.verify(communicator).newLine();
+        inOrder.verify(communicator).write("    \"threadIdleTimeout\": 60000,");
+        inOrder.verify(communicator).newLine();
+        inOrder.verify(communicator).write("    \"acceptors\": -1,");
+        inOrder.verify(communicator).newLine();
+        inOrder.verify(communicator).write("    \"selectors\": -1,");
+        inOrder.verify(communicator).newLine();
+        inOrder.verify(communicator).write("    \"idleTimeout\": 30000,");
+        inOrder.verify(communicator).newLine();
+        inOrder.verify(communicator).write("    \"http2Enabled\": false,");
+        inOrder.verify(communicator).newLine();
+        inOrder.verify(communicator).write("    \"gzipEnabled\": true,");
+        inOrder.verify(communicator).newLine();
+        inOrder.verify(communicator).write("    \"gzipMinSize\": 1024");
+        inOrder.verify(communicator).newLine();
+        inOrder.verify(communicator).write("  },");
+        inOrder.verify(communicator).newLine();
         inOrder.verify(communicator).write("  \"zwaveConfigs\": [");
         inOrder.verify(communicator).newLine();
         inOrder.verify(communicator).write("    {");
@@ -100,6 +124,64 @@ public class ShowCurrentConfigCommandTest extends Assert
         inOrder.verify(communicator).newLine();
         inOrder.verify(communicator).write("    \"token2\": \"\"");
         inOrder.verify(communicator).newLine();
+        inOrder.verify(communicator).write("  },");
+        inOrder.verify(communicator).newLine();
+        inOrder.verify(communicator).write("  \"metricsConfig\": {");
+        inOrder.verify(communicator).newLine();
+        inOrder.verify(communicator).write("    \"queueCapacity\": 10000,");
+        inOrder.verify(communicator).newLine();
+        inOrder.verify(communicator).write("    \"batchSize\": 500,");
+        inOrder.verify(communicator).newLine();
+        inOrder.verify(communicator).write("    \"flushInterval\": 1000,");
+        inOrder.verify(communicator).newLine();
+        inOrder.verify(communicator).write("    \"overflowPolicy\": \"BLOCK\",");
+        inOrder.verify(communicator).newLine();
+        inOrder.verify(communicator).write("    \"pushEnabled\": true,");
+        inOrder.verify(communicator).newLine();
+        inOrder.verify(communicator).write("    \"hotWindowHours\": 12,");
+        inOrder.verify(communicator).newLine();
+        inOrder.verify(communicator).write("    \"hotWindowCapacity\": 43200,");
+        inOrder.verify(communicator).newLine();
+        inOrder.verify(communicator).write("    \"hotWindowHistorySize\": 16777216,");
+        inOrder.verify(communicator).newLine();
+        inOrder.verify(communicator).write("    \"energySaveInterval\": 60,");
+        inOrder.verify(communicator).newLine();
+        inOrder.verify(communicator).write("    \"energyMaxGap\": 3600,");
+        inOrder.verify(communicator).newLine();
+        inOrder.verify(communicator).write("    \"cacheBucketSize\": 3600,");
+        inOrder.verify(communicator).newLine();
+        inOrder.verify(communicator).write("    \"cacheCapacity\": 1000000,");
+        inOrder.verify(communicator).newLine();
+        inOrder.verify(communicator).write("    \"spoolConfig\": {");
+        inOrder.verify(communicator).newLine();
+        inOrder.verify(communicator).write("      \"enabled\": true,");
+        inOrder.verify(communicator).newLine();
+        inOrder.verify(communicator).write("      \"directory\": \"spool\",");
+        inOrder.verify(communicator).newLine();
+        inOrder.verify(communicator).write("      \"segmentSize\": 16777216,");
+        inOrder.verify(communicator).newLine();
+        inOrder.verify(communicator).write("      \"maxDiskUsage\": 268435456,");
+        inOrder.verify(communicator).newLine();
+        inOrder.verify(communicator).write("      \"syncPolicy\": \"PERIODIC\",");
+        inOrder.verify(communicator).newLine();
+        inOrder.verify(communicator).write("      \"syncInterval\": 1000,");
+        inOrder.verify(communicator).newLine();
+        inOrder.verify(communicator).write("      \"replayInterval\": 10000,");
+        inOrder.verify(communicator).newLine();
+        inOrder.verify(communicator).write("      \"replayBatchSize\": 5000");
+        inOrder.verify(communicator).newLine();
+        inOrder.verify(communicator).write("    },");
+        inOrder.verify(communicator).newLine();
+        inOrder.verify(communicator).write("    \"retentionConfig\": {");
+        inOrder.verify(communicator).newLine();
+        inOrder.verify(communicator).write("      \"rawRetention\": \"7d\",");
+        inOrder.verify(communicator).newLine();
+        inOrder.verify(communicator).write("      \"minuteRollupRetention\": \"30d\",");
+        inOrder.verify(communicator).newLine();
+        inOrder.verify(communicator).write("      \"hourRollupRetention\": \"INF\"");
+        inOrder.verify(communicator).newLine();
+        inOrder.verify(communicator).write("    }");
+        inOrder.verify(communicator).newLine();
         inOrder.verify(communicator).write("  }");
         inOrder.verify(communicator).newLine();
         inOrder.verify(communicator).write("}");
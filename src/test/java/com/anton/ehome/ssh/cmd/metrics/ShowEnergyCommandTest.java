@@ -0,0 +1,96 @@
+/**
+ * Copyright 2017 Anton Johansson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anton.ehome.ssh.cmd.metrics;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.inOrder;
+
+import java.io.IOException;
+
+import org.junit.Test;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+
+import com.anton.ehome.common.AbstractTest;
+import com.anton.ehome.domain.Energy;
+import com.anton.ehome.metrics.IEnergyMeter;
+import com.anton.ehome.ssh.cmd.common.ICommunicator;
+import com.anton.ehome.ssh.cmd.execption.CommandExecutionException;
+
+/**
+ * Unit tests of {@link ShowEnergyCommand}.
+ */
+public class ShowEnergyCommandTest extends AbstractTest
+{
+    private ShowEnergyCommand command;
+    private @Mock IEnergyMeter energyMeter;
+    private @Mock ICommunicator communicator;
+
+    @Override
+    public void setUp() throws Exception
+    {
+        super.setUp();
+        command = new ShowEnergyCommand(energyMeter);
+    }
+
+    @Override
+    protected void initMocks() throws Exception
+    {
+        when(communicator.newLine()).thenReturn(communicator);
+        when(communicator.write(anyString())).thenReturn(communicator);
+    }
+
+    @Test
+    public void testExecuting() throws IOException, CommandExecutionException
+    {
+        when(energyMeter.getEnergy()).thenReturn(asList(energy(3, 1.2345, 40), energy(-56, 0, 123.5)));
+
+        command.execute(null, communicator);
+
+        InOrder inOrder = inOrder(communicator);
+        inOrder.verify(communicator).newLine();
+        inOrder.verify(communicator).write("Node          Today   This month");
+        inOrder.verify(communicator).newLine();
+        inOrder.verify(communicator).write("3         1.235 kWh   40.000 kWh");
+        inOrder.verify(communicator).newLine();
+        inOrder.verify(communicator).write("200       0.000 kWh  123.500 kWh");
+        inOrder.verifyNoMoreInteractions();
+    }
+
+    @Test
+    public void testExecutingWithoutEnergy() throws IOException, CommandExecutionException
+    {
+        when(energyMeter.getEnergy()).thenReturn(emptyList());
+
+        command.execute(null, communicator);
+
+        InOrder inOrder = inOrder(communicator);
+        inOrder.verify(communicator).newLine();
+        inOrder.verify(communicator).write("No device has reported its power this month");
+        inOrder.verifyNoMoreInteractions();
+    }
+
+    private Energy energy(int nodeId, double today, double thisMonth)
+    {
+        Energy energy = new Energy();
+        energy.setNodeId((byte) nodeId);
+        energy.setToday(today);
+        energy.setThisMonth(thisMonth);
+        return energy;
+    }
+}
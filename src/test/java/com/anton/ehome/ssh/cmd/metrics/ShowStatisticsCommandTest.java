@@ -0,0 +1,106 @@
+/**
+ * Copyright 2017 Anton Johansson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anton.ehome.ssh.cmd.metrics;
+
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.inOrder;
+
+import java.io.IOException;
+
+import org.junit.Test;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+
+import com.anton.ehome.common.AbstractTest;
+import com.anton.ehome.dao.IMetricsDao;
+import com.anton.ehome.domain.WriteStatistics;
+import com.anton.ehome.metrics.IMetricsCollector;
+import com.anton.ehome.ssh.cmd.common.ICommunicator;
+import com.anton.ehome.ssh.cmd.execption.CommandExecutionException;
+
+/**
+ * Unit tests of {@link ShowStatisticsCommand}.
+ */
+public class ShowStatisticsCommandTest extends AbstractTest
+{
+    private ShowStatisticsCommand command;
+    private @Mock IMetricsDao metricsDao;
+    private @Mock IMetricsCollector metricsCollector;
+    private @Mock ICommunicator communicator;
+
+    @Override
+    public void setUp() throws Exception
+    {
+        super.setUp();
+        command = new ShowStatisticsCommand(metricsDao, metricsCollector);
+    }
+
+    @Override
+    protected void initMocks() throws Exception
+    {
+        WriteStatistics statistics = new WriteStatistics();
+        statistics.setQueueDepth(12);
+        statistics.setQueueCapacity(10000);
+        statistics.setWritten(1500);
+        statistics.setDropped(3);
+        statistics.setSpilled(4);
+        statistics.setFailed(5);
+        statistics.setFlushes(6);
+        statistics.setLastFlushLatency(7);
+        statistics.setAverageFlushLatency(8);
+        statistics.setMaxFlushLatency(90);
+        statistics.setSpooled(11);
+        statistics.setReplayed(9);
+        statistics.setDiscarded(2);
+        statistics.setSpoolSize(16777216);
+
+        when(communicator.newLine()).thenReturn(communicator);
+        when(communicator.write(anyString())).thenReturn(communicator);
+        when(metricsDao.getWriteStatistics()).thenReturn(statistics);
+        when(metricsCollector.getSuppressed()).thenReturn(42L);
+    }
+
+    @Test
+    public void testExecuting() throws IOException, CommandExecutionException
+    {
+        command.execute(null, communicator);
+
+        InOrder inOrder = inOrder(communicator);
+        inOrder.verify(communicator).newLine();
+        inOrder.verify(communicator).write("Suppressed:     42");
+        inOrder.verify(communicator).newLine();
+        inOrder.verify(communicator).write("Queue depth:    12 / 10000");
+        inOrder.verify(communicator).newLine();
+        inOrder.verify(communicator).write("Written:        1500");
+        inOrder.verify(communicator).newLine();
+        inOrder.verify(communicator).write("Dropped:        3");
+        inOrder.verify(communicator).newLine();
+        inOrder.verify(communicator).write("Spilled:        4");
+        inOrder.verify(communicator).newLine();
+        inOrder.verify(communicator).write("Failed:         5");
+        inOrder.verify(communicator).newLine();
+        inOrder.verify(communicator).write("Flushes:        6");
+        inOrder.verify(communicator).newLine();
+        inOrder.verify(communicator).write("Flush latency:  7 ms (average 8 ms, max 90 ms)");
+        inOrder.verify(communicator).newLine();
+        inOrder.verify(communicator).write("Spooled:        11 (16777216 bytes on disk)");
+        inOrder.verify(communicator).newLine();
+        inOrder.verify(communicator).write("Replayed:       9");
+        inOrder.verify(communicator).newLine();
+        inOrder.verify(communicator).write("Discarded:      2");
+        inOrder.verifyNoMoreInteractions();
+    }
+}
@@ -18,6 +18,7 @@ package com.anton.ehome.ssh.cmd.zwave;
 import static java.util.Arrays.asList;
 import static java.util.Collections.emptyList;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyByte;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.inOrder;
@@ -26,6 +27,7 @@ import static org.mockito.Mockito.when;
 
 import java.io.IOException;
 import java.util.List;
+import java.util.Optional;
 
 import org.junit.Assert;
 import org.junit.Before;
@@ -80,7 +82,9 @@ public class AddMonitoredValueCommandTest extends Assert
 
         IZWaveController controller = mock(IZWaveController.class);
         when(controller.getName()).thenReturn("controller" + id);
-        when(controller.getDevices()).thenReturn(asList(device1, device2));
+        when(controller.getDevice(anyByte())).thenReturn(Optional.empty());
+        when(controller.getDevice((byte) 1)).thenReturn(Optional.of(device1));
+        when(controller.getDevice((byte) 2)).thenReturn(Optional.of(device2));
         return controller;
     }
 
@@ -173,7 +177,7 @@ public class AddMonitoredValueCommandTest extends Assert
         InOrder inOrder = inOrder(manager, controller1, configService, communicator);
         inOrder.verify(manager).getControllers();
         inOrder.verify(controller1, new Times(2)).getName();
-        inOrder.verify(controller1).getDevices();
+        inOrder.verify(controller1).getDevice((byte) 2);
         inOrder.verify(configService).modify(eq("Started monitoring device"), eq("anton"), any());
         inOrder.verify(controller1).startMonitor((byte) 2);
         inOrder.verify(communicator).write("Started monitoring device");
@@ -191,7 +195,7 @@ public class AddMonitoredValueCommandTest extends Assert
         InOrder inOrder = inOrder(manager, controller1, configService, communicator);
         inOrder.verify(manager).getControllers();
         inOrder.verify(controller1).getName();
-        inOrder.verify(controller1).getDevices();
+        inOrder.verify(controller1).getDevice((byte) 2);
         inOrder.verify(configService).modify(eq("Started monitoring device"), eq("anton"), any());
         inOrder.verify(controller1).startMonitor((byte) 2);
         inOrder.verify(communicator).write("Started monitoring device");
@@ -210,7 +214,7 @@ public class AddMonitoredValueCommandTest extends Assert
         InOrder inOrder = inOrder(manager, controller1, configService, communicator);
         inOrder.verify(manager).getControllers();
         inOrder.verify(controller1, new Times(2)).getName();
-        inOrder.verify(controller1).getDevices();
+        inOrder.verify(controller1).getDevice((byte) 2);
         inOrder.verify(configService).modify(eq("Started monitoring device"), eq("anton"), any());
         inOrder.verify(controller1).startMonitor((byte) 2);
         inOrder.verify(communicator).write("Started monitoring device");
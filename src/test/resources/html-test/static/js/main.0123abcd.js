@@ -0,0 +1 @@
+!function(){console.log("hello world");console.log("hello world");console.log("hello world");console.log("hello world");console.log("hello world");console.log("hello world");console.log("hello world");console.log("hello world");console.log("hello world");console.log("hello world");console.log("hello world");console.log("hello world");console.log("hello world");console.log("hello world");console.log("hello world");console.log("hello world");console.log("hello world");console.log("hello world");console.log("hello world");console.log("hello world");console.log("hello world");console.log("hello world");console.log("hello world");console.log("hello world");console.log("hello world");console.log("hello world");console.log("hello world");console.log("hello world");console.log("hello world");console.log("hello world");console.log("hello world");console.log("hello world");console.log("hello world");console.log("hello world");console.log("hello world");console.log("hello world");console.log("hello world");console.log("hello world");console.log("hello world");console.log("hello world");console.log("hello world");console.log("hello world");console.log("hello world");console.log("hello world");console.log("hello world");console.log("hello world");console.log("hello world");console.log("hello world");console.log("hello world");console.log("hello world");}();